@@ -0,0 +1,124 @@
+package dnsresolver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CacheBenchmark measures cache lookups, with the cache holding size answers and a hitRatio share of the lookups
+ * being for names it holds (the rest are for names it has never seen), on both cache backends:
+ *
+ *   queryCache        DNSCache.queryCache() with a decoded question, how misses and TCP queries are looked up
+ *   queryPacket       DNSCache.queryPacket() straight out of a raw query, how the UDP engines look up first (a hit
+ *                     is written into the encoder's buffer)
+ *   answerFromPacket  queryPacket() and, on a hit, finishing the response for the client like the engines do
+ *
+ * The lookups cycle through a fixed list of LOOKUPS questions, picked once in setUp() so every run asks the same
+ * ones. Run with -prof gc to see how much each lookup allocates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheBenchmark {
+
+    // How many different lookups are cycled through (a power of two)
+    static final int LOOKUPS = 4096;
+
+    @Param({"1000", "100000"})
+    int size;
+
+    @Param({"0.5", "0.9", "1.0"})
+    double hitRatio;
+
+    @Param({"heap", "offheap"})
+    String backend;
+
+    DNSCache cache;
+
+    DNSQuestion[] questions = new DNSQuestion[LOOKUPS];
+    ByteBuffer[] packets = new ByteBuffer[LOOKUPS];
+    int next;
+
+    DNSEncoder encoder;
+
+
+    /**
+     * setUp() fills the cache and picks the lookups.
+     *
+     * @throws IOException if a packet doesn't decode
+     */
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+
+        cache = new DNSCache(size, 0, 10_000, 10_800, 100_000, backend.equals("offheap"));
+
+        for (int i = 0; i < size; i++){
+            DNSMessage answer = DNSMessage.decodeMessage(Packets.response("a", name(i), true));
+            cache.insertRecord(answer.question, answer);
+        }
+
+        Random random = new Random(42);
+        for (int i = 0; i < LOOKUPS; i++){
+
+            String name = random.nextDouble() < hitRatio ? name(random.nextInt(size)) : "missing" + i + ".example.net";
+            byte[] query = Packets.query((short) i, name);
+
+            questions[i] = DNSMessage.decodeMessage(query).question;
+            packets[i] = ByteBuffer.wrap(query);
+        }
+
+        encoder = DNSEncoder.get();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown(){
+        cache.close();
+    }
+
+    /**
+     * name() returns the name of the i'th cached answer.
+     */
+
+    static String name(int i){
+        return "host" + i + ".example.com";
+    }
+
+    @Benchmark
+    public CachedResponse queryCache(){
+        return cache.queryCache(questions[next++ & (LOOKUPS - 1)]);
+    }
+
+    @Benchmark
+    public ByteBuffer queryPacket(){
+        return cache.queryPacket(packets[next++ & (LOOKUPS - 1)], encoder);
+    }
+
+    @Benchmark
+    public ByteBuffer answerFromPacket(){
+
+        if (cache.queryPacket(packets[next++ & (LOOKUPS - 1)], encoder) == null){
+            return null;
+        }
+
+        return encoder.finishUDP(0);
+    }
+}
@@ -0,0 +1,122 @@
+package dnsresolver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CodecBenchmark measures decoding and encoding messages, for each shape of response Packets builds, with and
+ * without compression pointers in it:
+ *
+ *   decodeResponse     DNSMessage.decodeMessage() of an upstream's response
+ *   decodeQuery        DNSMessage.decodeMessage() of a client's query
+ *   readQuestion       DNSQuestion.readFrom(), how the cache probe reads a query without decoding it
+ *   encodeResponse     DNSEncoder.encodeResponse(), writing the response to a client under its ID
+ *   toBytes            DNSMessage.toBytes(), encoding into an array of its own
+ *   writeDomainNames   DNSEncoder.writeDomainName() for every owner name in the response, compressing as it goes
+ *
+ * The query doesn't depend on the shape, so the query benchmarks come out the same for every shape. Run with
+ * -prof gc to see how much each one allocates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({"a", "cname", "many"})
+    String shape;
+
+    @Param({"true", "false"})
+    boolean compressed;
+
+    byte[] response;
+    byte[] query;
+    ByteBuffer queryBuffer;
+
+    DNSMessage request;
+    DNSMessage answer;
+
+    DNSEncoder encoder;
+    DNSQuestion probe;
+
+
+    /**
+     * setUp() builds the packets and decodes them once, for the encoding benchmarks.
+     *
+     * @throws IOException if a packet doesn't decode
+     */
+
+    @Setup
+    public void setUp() throws IOException {
+
+        response = Packets.response(shape, "www.example.com", compressed);
+        query = Packets.query((short) 0x1234, "www.example.com");
+        queryBuffer = ByteBuffer.wrap(query);
+
+        request = DNSMessage.decodeMessage(query);
+        answer = DNSMessage.decodeMessage(response);
+
+        encoder = DNSEncoder.get();
+        probe = DNSQuestion.probe();
+    }
+
+    @Benchmark
+    public DNSMessage decodeResponse() throws IOException {
+        return DNSMessage.decodeMessage(response);
+    }
+
+    @Benchmark
+    public DNSMessage decodeQuery() throws IOException {
+        return DNSMessage.decodeMessage(query);
+    }
+
+    @Benchmark
+    public boolean readQuestion(){
+        return probe.readFrom(queryBuffer);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeResponse(){
+        return encoder.encodeResponse(request, answer);
+    }
+
+    @Benchmark
+    public byte[] toBytes(){
+        return answer.toBytes();
+    }
+
+    @Benchmark
+    public int writeDomainNames(){
+
+        encoder.out.clear();
+        encoder.suffixCount = 0;
+
+        encoder.writeDomainName(answer.question.buffer, answer.question.nameOffset);
+        for (DNSRecord record : answer.answers){
+            encoder.writeDomainName(record.buffer, record.nameOffset);
+        }
+        for (DNSRecord record : answer.authorityRecords){
+            encoder.writeDomainName(record.buffer, record.nameOffset);
+        }
+        for (DNSRecord record : answer.additionalRecords){
+            encoder.writeDomainName(record.buffer, record.nameOffset);
+        }
+
+        return encoder.out.position();
+    }
+}
@@ -0,0 +1,233 @@
+package dnsresolver;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * Packets builds the DNS messages the benchmarks decode, encode and cache, in the shapes real resolvers answer with:
+ *
+ *   a       one A record, the most common answer there is
+ *   cname   a chain of three CNAMEs ending in two A records, like a name served by a CDN
+ *   many    sixteen A records, four NS records and their A and AAAA glue, like a round robin pool with its delegation
+ *
+ * Every message can be written with compression pointers (like almost every resolver sends) or with every name
+ * written out in full, which is what decoding has to cope with when a server doesn't compress.
+ */
+public class Packets {
+
+    static final short TYPE_A = 1;
+    static final short TYPE_NS = 2;
+    static final short TYPE_CNAME = 5;
+    static final short TYPE_AAAA = 28;
+    static final short CLASS_IN = 1;
+
+    // Long enough that nothing expires while a benchmark runs
+    static final int TTL = 86_400;
+
+    ByteBuffer out = ByteBuffer.allocate(4096);
+
+    // Where the RDLENGTH of the record being written is
+    int rdlengthAt;
+
+    // Where each name suffix already written starts, for pointing back at it (only used when compressing)
+    HashMap<String, Integer> suffixes = new HashMap<>();
+    boolean compressed;
+
+
+    Packets(boolean compressed){
+        this.compressed = compressed;
+    }
+
+    /**
+     * query() builds a client query for a name's A records, with RD set and no OPT record.
+     *
+     * @param id - the query's ID
+     * @param name - the name asked about (i.e. "www.example.com")
+     * @return byte[] - the query
+     */
+
+    static byte[] query(short id, String name){
+
+        Packets packet = new Packets(false);
+        packet.header(id, 0x0100, 0, 0, 0);
+        packet.question(name);
+
+        return packet.bytes();
+    }
+
+    /**
+     * response() builds a response of one of the shapes.
+     *
+     * @param shape - "a", "cname" or "many"
+     * @param name - the name asked about
+     * @param compressed - whether names are compressed
+     * @return byte[] - the response
+     * @throws IllegalArgumentException if the shape isn't one of the three
+     */
+
+    static byte[] response(String shape, String name, boolean compressed){
+
+        Packets packet = new Packets(compressed);
+
+        switch (shape){
+            case "a" -> {
+                packet.header((short) 1, 0x8180, 1, 0, 0);
+                packet.question(name);
+                packet.address(name, 93, 184, 216, 34);
+            }
+            case "cname" -> {
+                String first = name + "-c-3.edgekey.net";
+                String second = first + ".globalredir.akadns.net";
+                String target = "e13678.dscb.akamaiedge.net";
+
+                packet.header((short) 1, 0x8180, 5, 0, 0);
+                packet.question(name);
+                packet.cname(name, first);
+                packet.cname(first, second);
+                packet.cname(second, target);
+                packet.address(target, 23, 45, 112, 7);
+                packet.address(target, 23, 45, 112, 9);
+            }
+            case "many" -> {
+                String zone = name.substring(name.indexOf('.') + 1);
+
+                packet.header((short) 1, 0x8180, 16, 4, 8);
+                packet.question(name);
+                for (int i = 0; i < 16; i++){
+                    packet.address(name, 10, 20, 30, 40 + i);
+                }
+                for (int i = 1; i <= 4; i++){
+                    packet.record(zone, TYPE_NS);
+                    packet.name("ns" + i + "." + zone);
+                    packet.endRecord();
+                }
+                for (int i = 1; i <= 4; i++){
+                    packet.address("ns" + i + "." + zone, 192, 0, 2, i);
+                }
+                for (int i = 1; i <= 4; i++){
+                    packet.record("ns" + i + "." + zone, TYPE_AAAA);
+                    packet.out.put(new byte[] {0x20, 0x01, 0x0d, (byte) 0xb8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, (byte) i});
+                    packet.endRecord();
+                }
+            }
+            default -> throw new IllegalArgumentException("Unknown shape: " + shape);
+        }
+
+        return packet.bytes();
+    }
+
+    /**
+     * header() writes the header.
+     */
+
+    void header(short id, int flags, int answers, int authority, int additional){
+
+        out.putShort(id);
+        out.putShort((short) flags);
+        out.putShort((short) 1);
+        out.putShort((short) answers);
+        out.putShort((short) authority);
+        out.putShort((short) additional);
+    }
+
+    /**
+     * question() writes the question section, asking for A records.
+     */
+
+    void question(String name){
+
+        name(name);
+        out.putShort(TYPE_A);
+        out.putShort(CLASS_IN);
+    }
+
+    /**
+     * address() writes an A record.
+     */
+
+    void address(String owner, int a, int b, int c, int d){
+
+        record(owner, TYPE_A);
+        out.put(new byte[] {(byte) a, (byte) b, (byte) c, (byte) d});
+        endRecord();
+    }
+
+    /**
+     * cname() writes a CNAME record.
+     */
+
+    void cname(String owner, String target){
+
+        record(owner, TYPE_CNAME);
+        name(target);
+        endRecord();
+    }
+
+    /**
+     * record() writes a record's owner, TYPE, CLASS and TTL, and leaves room for RDLENGTH, which endRecord() fills in
+     * once the RDATA has been written.
+     */
+
+    void record(String owner, short type){
+
+        name(owner);
+        out.putShort(type);
+        out.putShort(CLASS_IN);
+        out.putInt(TTL);
+
+        rdlengthAt = out.position();
+        out.putShort((short) 0);
+    }
+
+    /**
+     * endRecord() fills in the RDLENGTH of the record that was just written.
+     */
+
+    void endRecord(){
+
+        out.putShort(rdlengthAt, (short) (out.position() - rdlengthAt - 2));
+    }
+
+    /**
+     * name() writes a name, pointing back at the longest suffix already written if the packet is compressed.
+     */
+
+    void name(String name){
+
+        String rest = name;
+        while (!rest.isEmpty()){
+
+            Integer previous = compressed ? suffixes.get(rest) : null;
+            if (previous != null){
+                out.putShort((short) (0xC000 | previous));
+                return;
+            }
+
+            suffixes.putIfAbsent(rest, out.position());
+
+            int dot = rest.indexOf('.');
+            String label = dot < 0 ? rest : rest.substring(0, dot);
+            byte[] bytes = label.getBytes(StandardCharsets.US_ASCII);
+            out.put((byte) bytes.length);
+            out.put(bytes);
+
+            rest = dot < 0 ? "" : rest.substring(dot + 1);
+        }
+
+        out.put((byte) 0);
+    }
+
+    /**
+     * bytes() returns what has been written.
+     */
+
+    byte[] bytes(){
+
+        byte[] bytes = new byte[out.position()];
+        out.flip();
+        out.get(bytes);
+
+        return bytes;
+    }
+}
@@ -0,0 +1,304 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * CacheSnapshot saves the cache's answers and negative answers to a file, so a restarted server starts with the
+ * working set it had instead of an empty cache. The server loads the snapshot before it opens any sockets, and saves
+ * one periodically and again when it shuts down.
+ *
+ * The file is a short header followed by one block per cache segment, each starting with its length. A block has one
+ * record per entry: whether it's an answer or a negative answer, when it expires, and the entry's CachedResponse as
+ * CachedResponse.store() writes it. Blocks are loaded in parallel, since each one fills different segments. Times
+ * are written as wall clock milliseconds, since System.nanoTime() means nothing after a restart, so entries keep
+ * counting down their TTLs while the server is down and the ones that expired in the meantime are skipped. RRsets
+ * aren't saved (see DNSCache.restore()).
+ *
+ * A snapshot is written to a temporary file and moved over the old one, so a crash partway through never leaves a
+ * half-written snapshot behind. It's loaded by mapping the file into memory.
+ */
+public class CacheSnapshot {
+
+    // "DNSC", and the version of the format
+    static final int MAGIC = 0x444E5343;
+    static final int VERSION = 1;
+
+    // Magic, version, when the snapshot was written and how many blocks it has
+    static final int HEADER = 4 + 4 + 8 + 4;
+
+    // What each record is
+    static final byte ANSWER = 1;
+    static final byte NEGATIVE = 2;
+
+    // Kind (1 byte) and deadline (8 bytes) come before the stored response
+    static final int RECORD_HEADER = 1 + 8;
+
+    DNSCache cache;
+    Path path;
+
+    ScheduledExecutorService snapshotThread;
+
+    // Scratch space for one record while a snapshot is written (grown if a record doesn't fit)
+    ByteBuffer record = ByteBuffer.allocate(4096);
+
+
+    /**
+     * CacheSnapshot() makes a snapshot of the given cache, saved at the given path.
+     *
+     * @param cache - the cache to save and load
+     * @param path - the snapshot file
+     */
+
+    CacheSnapshot(DNSCache cache, Path path){
+
+        this.cache = cache;
+        this.path = path;
+    }
+
+    /**
+     * start() saves a snapshot every interval on a background thread, and once more when the JVM shuts down.
+     *
+     * @param intervalSeconds - seconds between snapshots (0 only saves at shutdown)
+     */
+
+    void start(int intervalSeconds){
+
+        if (intervalSeconds > 0){
+            snapshotThread = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "cache-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            snapshotThread.scheduleWithFixedDelay(this::trySave, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(this::trySave, "cache-snapshot-shutdown"));
+    }
+
+    /**
+     * trySave() saves a snapshot, reporting (instead of throwing) anything that goes wrong.
+     */
+
+    synchronized void trySave(){
+
+        try {
+            save();
+        }
+        catch (IOException e){
+            System.out.println("Unable to save cache snapshot.");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * save() writes every answer and negative answer that hasn't expired. Each segment is copied while its lock is
+     * held and written after it's let go, so lookups only wait on the copy.
+     *
+     * @return int - number of entries written
+     * @throws IOException if the snapshot can't be written
+     */
+
+    synchronized int save() throws IOException {
+
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+
+        long nowNanos = System.nanoTime();
+        long nowMillis = System.currentTimeMillis();
+
+        int written = 0;
+
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16)){
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putInt(MAGIC).putInt(VERSION).putLong(nowMillis).putInt(DNSCache.SEGMENTS);
+            out.write(header.array());
+
+            ByteArrayOutputStream segmentBytes = new ByteArrayOutputStream();
+
+            for (int i = 0; i < DNSCache.SEGMENTS; i++){
+                written += copy(cache.segments[i], ANSWER, segmentBytes, nowNanos, nowMillis);
+                written += copy(cache.negativeSegments[i], NEGATIVE, segmentBytes, nowNanos, nowMillis);
+
+                header.clear();
+                header.putInt(segmentBytes.size());
+                out.write(header.array(), 0, 4);
+
+                segmentBytes.writeTo(out);
+                segmentBytes.reset();
+            }
+        }
+
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        return written;
+    }
+
+    /**
+     * copy() writes the records for every entry in a segment that hasn't expired.
+     *
+     * @param segment - the segment
+     * @param kind - ANSWER or NEGATIVE
+     * @param out - where the records are written
+     * @param nowNanos - current System.nanoTime()
+     * @param nowMillis - current System.currentTimeMillis()
+     * @return int - number of records written
+     */
+
+    int copy(DNSCache.Segment segment, byte kind, ByteArrayOutputStream out, long nowNanos, long nowMillis){
+
+        int[] copied = new int[1];
+
+        segment.forEach(entry -> {
+
+            if (nowNanos - entry.deadline >= 0){
+                return;
+            }
+
+            if (record.capacity() < RECORD_HEADER + entry.response.storedLength()){
+                record = ByteBuffer.allocate(RECORD_HEADER + entry.response.storedLength());
+            }
+
+            record.clear();
+            record.put(kind);
+            record.putLong(toMillis(entry.deadline, nowNanos, nowMillis));
+
+            int stored = record.position();
+            entry.response.store(record, stored);
+            record.putLong(stored, toMillis(entry.response.encodedTime, nowNanos, nowMillis));
+
+            out.write(record.array(), 0, stored + entry.response.storedLength());
+            copied[0]++;
+        });
+
+        return copied[0];
+    }
+
+    /**
+     * load() puts every entry in the snapshot that hasn't expired back in the cache. A missing snapshot loads nothing,
+     * and a block that turns out to be damaged loads everything up to the damage.
+     *
+     * @return int - number of entries loaded
+     * @throws IOException if the snapshot exists but can't be read
+     */
+
+    int load() throws IOException {
+
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)){
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        catch (NoSuchFileException e){
+            return 0;
+        }
+
+        if (buffer.limit() < HEADER || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION){
+            throw new IOException("Not a cache snapshot: " + path);
+        }
+
+        // Find where each block starts, so they can be loaded at the same time (every block takes at least its
+        // length, so a count the file can't hold means the header is damaged)
+        int blocks = buffer.getInt(16);
+        if (blocks < 0 || blocks > (buffer.limit() - HEADER) / 4){
+            throw new IOException("Cache snapshot has a damaged header: " + path);
+        }
+
+        int[] starts = new int[blocks];
+        int[] ends = new int[blocks];
+
+        long position = HEADER;
+        for (int i = 0; i < blocks; i++){
+            if (position + 4 > buffer.limit()){
+                throw new IOException("Cache snapshot is cut off: " + path);
+            }
+            int length = buffer.getInt((int) position);
+            if (length < 0){
+                throw new IOException("Cache snapshot has a damaged block: " + path);
+            }
+            starts[i] = (int) position + 4;
+            ends[i] = (int) Math.min(buffer.limit(), starts[i] + (long) length);
+            position = ends[i];
+        }
+
+        long nowNanos = System.nanoTime();
+        long nowMillis = System.currentTimeMillis();
+
+        return IntStream.range(0, blocks).parallel()
+                .map(i -> loadBlock(buffer, starts[i], ends[i], nowNanos, nowMillis))
+                .sum();
+    }
+
+    /**
+     * loadBlock() puts back every entry in one block that hasn't expired.
+     *
+     * @param buffer - the mapped snapshot
+     * @param start - where the block's first record starts
+     * @param end - where the block ends
+     * @param nowNanos - System.nanoTime() when loading started
+     * @param nowMillis - System.currentTimeMillis() when loading started
+     * @return int - number of entries loaded
+     */
+
+    int loadBlock(ByteBuffer buffer, int start, int end, long nowNanos, long nowMillis){
+
+        int loaded = 0;
+        int position = start;
+
+        try {
+            while (position < end){
+
+                byte kind = buffer.get(position);
+                long deadline = buffer.getLong(position + 1);
+
+                int stored = position + RECORD_HEADER;
+                position = stored + CachedResponse.storedLength(buffer, stored);
+
+                // Entries that expired while the server was down are skipped without being read
+                if (deadline - nowMillis <= 0){
+                    continue;
+                }
+
+                CachedResponse response = CachedResponse.load(buffer, stored);
+                response.encodedTime = toNanos(buffer.getLong(stored), nowNanos, nowMillis);
+
+                long expires = toNanos(deadline, nowNanos, nowMillis);
+                cache.restore(new DNSCache.CacheEntry(response.question(), response, expires), kind == NEGATIVE);
+                loaded++;
+            }
+        }
+        catch (IndexOutOfBoundsException | IllegalStateException e){
+            System.out.println("Cache snapshot is damaged, loaded " + loaded
+                    + " entries of a block before the damage.");
+        }
+
+        return loaded;
+    }
+
+    /**
+     * toMillis() turns a System.nanoTime() into wall clock milliseconds.
+     */
+
+    static long toMillis(long nanos, long nowNanos, long nowMillis){
+        return nowMillis + (nanos - nowNanos) / 1_000_000L;
+    }
+
+    /**
+     * toNanos() turns wall clock milliseconds into a System.nanoTime().
+     */
+
+    static long toNanos(long millis, long nowNanos, long nowMillis){
+        return nowNanos + (millis - nowMillis) * 1_000_000L;
+    }
+}
@@ -0,0 +1,313 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * CachedResponse is a response that has already been encoded, along with where its ID and TTL fields are. Serving it
+ * again only takes copying the bytes and patching those fields, instead of encoding the whole message again.
+ *
+ * The encoded bytes are the only copy of the response the cache keeps. The message they were encoded from (and the
+ * upstream packet behind it) is let go, and anything else the cache needs (its key, its RRsets) is decoded back out of
+ * these bytes with decode().
+ */
+public class CachedResponse {
+
+    // The encoded response, with every TTL as it was when the response was encoded
+    byte[] wire;
+
+    // Where each record's TTL is in the encoded response (unsigned, since a response is at most 65535 bytes)
+    short[] ttlOffsets;
+
+    // When the response was encoded (System.nanoTime())
+    long encodedTime;
+
+    // A stored response starts with the encoded time, the number of TTLs and the length of the encoded response
+    static final int STORED_HEADER = 8 + 2 + 2;
+
+
+    private CachedResponse(){
+
+    }
+
+    /**
+     * encode() encodes a message once and remembers where its TTLs are.
+     *
+     * @param message - message to encode
+     * @return CachedResponse - the encoded message
+     */
+
+    static CachedResponse encode(DNSMessage message){
+
+        return encode(message, Integer.MAX_VALUE);
+    }
+
+    /**
+     * This version of encode() also caps every TTL in the encoded message. Negative answers use it so the SOA's TTL
+     * is never more than how long the negative answer is actually cached.
+     *
+     * @param message - message to encode
+     * @param maxTTL - largest TTL to write
+     * @return CachedResponse - the encoded message
+     */
+
+    static CachedResponse encode(DNSMessage message, int maxTTL){
+
+        CachedResponse response = new CachedResponse();
+
+        DNSEncoder encoder = DNSEncoder.get();
+        ByteBuffer encoded = encoder.encode(message);
+
+        response.wire = new byte[encoded.remaining()];
+        encoded.get(response.wire);
+
+        response.ttlOffsets = new short[encoder.ttlCount];
+        ByteBuffer wire = ByteBuffer.wrap(response.wire);
+        for (int i = 0; i < response.ttlOffsets.length; i++){
+            int offset = encoder.ttlOffsets[i];
+            response.ttlOffsets[i] = (short) offset;
+            wire.putInt(offset, (int) Math.min(wire.getInt(offset) & 0xFFFFFFFFL, maxTTL));
+        }
+
+        response.encodedTime = encoder.now;
+
+        return response;
+    }
+
+    /**
+     * writeTo() copies the response into an encoder's buffer, with the client's ID and every TTL counted down by how
+     * long the response has been cached.
+     *
+     * @param encoder - encoder whose buffer the response is copied into (the current thread's)
+     * @param id - the client's ID
+     * @return ByteBuffer - the response, from position 0 to the limit
+     */
+
+    ByteBuffer writeTo(DNSEncoder encoder, short id){
+
+        ByteBuffer out = encoder.out;
+
+        out.clear();
+        out.put(wire);
+        out.putShort(0, id);
+
+        encoder.now = System.nanoTime();
+        long secondsPassed = (encoder.now - encodedTime) / 1_000_000_000L;
+
+        // The TTLs in the copy are still the ones from when the response was encoded
+        if (secondsPassed > 0){
+            for (short ttlOffset : ttlOffsets){
+                int offset = ttlOffset & 0xFFFF;
+                out.putInt(offset, (int) Math.max(0, (out.getInt(offset) & 0xFFFFFFFFL) - secondsPassed));
+            }
+        }
+
+        out.flip();
+        return out;
+    }
+
+    /**
+     * writeStaleTo() copies an expired response into an encoder's buffer, with the client's ID and every TTL set to
+     * the given one, so clients come back for a fresh answer soon (RFC 8767 4).
+     *
+     * @param encoder - encoder whose buffer the response is copied into (the current thread's)
+     * @param id - the client's ID
+     * @param ttl - TTL written in every record
+     * @return ByteBuffer - the response, from position 0 to the limit
+     */
+
+    ByteBuffer writeStaleTo(DNSEncoder encoder, short id, int ttl){
+
+        ByteBuffer out = encoder.out;
+
+        out.clear();
+        out.put(wire);
+        out.putShort(0, id);
+
+        for (short ttlOffset : ttlOffsets){
+            out.putInt(ttlOffset & 0xFFFF, ttl);
+        }
+
+        out.flip();
+        return out;
+    }
+
+    /**
+     * decode() reads the encoded response back into a message. The message's question and records point into the
+     * encoded bytes, so keeping them doesn't keep anything else. Every record's TTL counts down from when the response
+     * was encoded.
+     *
+     * @param buffer - the encoded bytes, wrapped (i.e. the buffer of the key from question(), so the two share it)
+     * @return DNSMessage - the response
+     */
+
+    DNSMessage decode(ByteBuffer buffer){
+
+        try {
+            DNSMessage message = DNSMessage.decodeMessage(buffer);
+
+            for (DNSRecord[] section : new DNSRecord[][]{message.answers, message.authorityRecords, message.additionalRecords}){
+                for (DNSRecord record : section){
+                    record.creationTime = encodedTime;
+                }
+            }
+
+            return message;
+        }
+        catch (IOException e){
+            // The bytes were written by DNSEncoder, so they always decode
+            throw new IllegalStateException("Unable to decode a cached response.", e);
+        }
+    }
+
+    /**
+     * question() reads the question back out of the encoded response, for use as the response's key in the cache.
+     *
+     * @return DNSQuestion - the question, pointing into the encoded bytes
+     */
+
+    DNSQuestion question(){
+
+        try {
+            return DNSQuestion.decodeQuestion(ByteBuffer.wrap(wire), DNSHeader.LENGTH);
+        }
+        catch (IOException e){
+            // The bytes were written by DNSEncoder, so they always decode
+            throw new IllegalStateException("Unable to decode a cached response.", e);
+        }
+    }
+
+    /**
+     * storedLength() returns how many bytes store() writes.
+     *
+     * @return int - stored length in bytes
+     */
+
+    int storedLength(){
+
+        return STORED_HEADER + 2 * ttlOffsets.length + wire.length;
+    }
+
+    /**
+     * store() writes the response into a buffer outside the heap (or anywhere else it's kept as bytes): the encoded
+     * time, the TTL offsets and the encoded response.
+     *
+     * @param to - buffer to write into
+     * @param offset - where to start writing
+     */
+
+    void store(ByteBuffer to, int offset){
+
+        to.putLong(offset, encodedTime);
+        to.putShort(offset + 8, (short) ttlOffsets.length);
+        to.putShort(offset + 10, (short) wire.length);
+
+        int position = offset + STORED_HEADER;
+        for (short ttlOffset : ttlOffsets){
+            to.putShort(position, ttlOffset);
+            position += 2;
+        }
+
+        to.put(position, wire);
+    }
+
+    /**
+     * load() reads a response written by store() back onto the heap.
+     *
+     * @param from - buffer the response was stored in
+     * @param offset - where it starts
+     * @return CachedResponse - the response
+     */
+
+    static CachedResponse load(ByteBuffer from, int offset){
+
+        CachedResponse response = new CachedResponse();
+
+        response.encodedTime = from.getLong(offset);
+        response.ttlOffsets = new short[from.getShort(offset + 8) & 0xFFFF];
+        response.wire = new byte[from.getShort(offset + 10) & 0xFFFF];
+
+        int position = offset + STORED_HEADER;
+        for (int i = 0; i < response.ttlOffsets.length; i++){
+            response.ttlOffsets[i] = from.getShort(position);
+            position += 2;
+        }
+
+        from.get(position, response.wire);
+
+        return response;
+    }
+
+    /**
+     * writeStoredTo() copies a stored response straight into an encoder's buffer, the same way writeTo() does, without
+     * loading it onto the heap first.
+     *
+     * @param from - buffer the response was stored in
+     * @param offset - where it starts
+     * @param encoder - encoder whose buffer the response is copied into (the current thread's)
+     * @param id - the client's ID
+     * @return ByteBuffer - the response, from position 0 to the limit
+     */
+
+    static ByteBuffer writeStoredTo(ByteBuffer from, int offset, DNSEncoder encoder, short id){
+
+        ByteBuffer out = encoder.out;
+
+        int ttlCount = from.getShort(offset + 8) & 0xFFFF;
+        int length = from.getShort(offset + 10) & 0xFFFF;
+        int wire = offset + STORED_HEADER + 2 * ttlCount;
+
+        out.clear();
+        out.put(0, from, wire, length);
+        out.position(length);
+        out.putShort(0, id);
+
+        encoder.now = System.nanoTime();
+        long secondsPassed = (encoder.now - from.getLong(offset)) / 1_000_000_000L;
+
+        if (secondsPassed > 0){
+            for (int i = 0; i < ttlCount; i++){
+                int ttlOffset = from.getShort(offset + STORED_HEADER + 2 * i) & 0xFFFF;
+                out.putInt(ttlOffset, (int) Math.max(0, (out.getInt(ttlOffset) & 0xFFFFFFFFL) - secondsPassed));
+            }
+        }
+
+        out.flip();
+        return out;
+    }
+
+    /**
+     * This version of storedLength() reads how long a stored response is, without loading it.
+     *
+     * @param from - buffer the response was stored in
+     * @param offset - where it starts
+     * @return int - stored length in bytes
+     */
+
+    static int storedLength(ByteBuffer from, int offset){
+
+        return STORED_HEADER + 2 * (from.getShort(offset + 8) & 0xFFFF) + (from.getShort(offset + 10) & 0xFFFF);
+    }
+
+    /**
+     * storedWireOffset() finds where the encoded response starts in a stored response, without loading it.
+     *
+     * @param from - buffer the response was stored in
+     * @param offset - where it starts
+     * @return int - offset of the encoded response
+     */
+
+    static int storedWireOffset(ByteBuffer from, int offset){
+
+        return offset + STORED_HEADER + 2 * (from.getShort(offset + 8) & 0xFFFF);
+    }
+
+    /**
+     * size() estimates how many bytes of heap the encoded copy takes up.
+     *
+     * @return int - estimated bytes
+     */
+
+    int size(){
+
+        return 32 + 2 * DNSCache.ARRAY_OVERHEAD + wire.length + 2 * ttlOffsets.length;
+    }
+}
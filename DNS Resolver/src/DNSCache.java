@@ -1,27 +1,732 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 /**
- * DNSCache represents a local cache that stores the first answer for any question.
+ * DNSCache represents a local cache that stores the answer for any question. Answers are stored already encoded
+ * (see CachedResponse), so a hit only needs the client's ID and the TTLs patched in.
+ *
+ * The cache is bounded by a maximum number of entries and (optionally) a maximum number of bytes. It is split into
+ * segments, each with its own lock, so threads looking up different questions rarely wait on each other. Each segment
+ * evicts with a segmented LRU: new entries start out in a probation list, and entries that get hit again move to a
+ * protected list. One-off questions only ever pass through probation, so they can't push popular answers out.
+ *
+ * Each entry's deadline is worked out once when it's inserted (the earliest expiration of any record in the message),
+ * so a lookup only compares it against System.nanoTime(). Each segment also keeps its entries in a TimerWheel, and a
+ * background thread uses the wheels to remove expired entries whether or not anyone asks for them again.
+ *
+ * Negative answers (NXDOMAIN, and NODATA where the name exists but has no records of the type asked for) are kept in
+ * their own set of segments with their own size limit, so lookups of names that don't exist can't push out real
+ * answers. They're cached for the SOA's negative TTL (RFC 2308), and only if the response has an SOA record.
+ *
+ * Answers and negative answers can be kept outside the heap instead (see OffHeapSegment), for caches big enough that
+ * tracing their entries makes garbage collection pauses show up in response times. RRsets stay on the heap.
+ *
+ * Every response is also split into its RRsets (the records with the same name, TYPE and CLASS), which are cached on
+ * their own, keyed by a DNSQuestion for that name, TYPE and CLASS. When a question isn't cached as a whole, its answer
+ * can be put together from cached RRsets, following CNAMEs (i.e. "www.example.com" and "cdn.example.com" both
+ * pointing at the same name only need that name's records cached once). Only RRsets from the answer section that
+ * belong to the question's CNAME chain are used to answer; authority and additional records are kept at a lower
+ * trust level (RFC 2181 5.4.1), so they can never replace or stand in for an answer. So are chain records outside
+ * the question's name, since a CNAME can point anywhere and the server answering for the alias has no say there.
+ *
+ * Nothing in the cache points into the upstream's packet. Each response is kept only as its encoded bytes, and the
+ * entry's key and the response's RRsets are decoded back out of those bytes, so the packet, the message decoded from
+ * it and that message's records can all be garbage collected once the response is inserted.
+ *
+ * If a stale window is set (RFC 8767), answers and negative answers are kept that long after they expire. Lookups
+ * still treat them as expired, but when the upstreams can't answer in time the server can fall back on them with
+ * queryStale().
+ *
+ * If a Prefetcher is set, entries count their hits, and a hit on a hot entry that's past the prefetcher's share of
+ * its TTL hands the question to the prefetcher to be refreshed before it expires.
  */
 
 public class DNSCache {
 
-    // Use a hashmap to represent the cache (with the question as the key and the message as the value)
-    HashMap<DNSQuestion, DNSMessage> cache;
+    // Number of segments (a power of two, so a hash can pick one with a mask)
+    static final int SEGMENTS = 16;
+
+    // Share of each segment's entries that can be in the protected list
+    static final double PROTECTED_SHARE = 0.8;
+
+    // Rough sizes of the objects that make up an entry, used to estimate how much heap it takes up
+    static final int ENTRY_OVERHEAD = 48 + 32;
+    static final int KEY_OVERHEAD = 32 + 48;
+    static final int RECORD_OVERHEAD = 48 + 4;
+    static final int ARRAY_OVERHEAD = 16;
+
+    // How often the background thread removes expired entries
+    static final long EXPIRY_INTERVAL_MILLIS = 1000;
+
+    // How much an RRset is trusted, by the section it came from
+    static final int TRUST_ADDITIONAL = 1;
+    static final int TRUST_AUTHORITY = 2;
+    static final int TRUST_ANSWER = 3;
+
+    // Most CNAMEs followed when putting an answer together from RRsets
+    static final int MAX_CNAME_CHAIN = 8;
+
+    Segment[] segments = new Segment[SEGMENTS];
+    Segment[] negativeSegments = new Segment[SEGMENTS];
+
+    // Individual RRsets (null if the RRset cache is turned off)
+    Segment[] rrsetSegments;
+
+    // Longest a negative answer is cached, no matter what its SOA says
+    int maxNegativeTTL;
+
+    // Client queries answered by each part of the cache, and those that missed it (a miss misses both parts, so it's
+    // counted in both)
+    LongAdder hits = new LongAdder();
+    LongAdder misses = new LongAdder();
+    LongAdder negativeHits = new LongAdder();
+    LongAdder negativeMisses = new LongAdder();
+
+    // Answers put together from cached RRsets
+    LongAdder assembled = new LongAdder();
+
+    // Expired answers served because the upstreams were slow or down
+    LongAdder staleHits = new LongAdder();
+
+    ScheduledExecutorService expiryThread;
+
+    // Refreshes hot entries before they expire (null if prefetching is turned off)
+    Prefetcher prefetcher;
+
+    // Each thread reuses one question for looking up raw packets
+    private static final ThreadLocal<DNSQuestion> PROBES = ThreadLocal.withInitial(DNSQuestion::probe);
+
+    int maxEntries;
+    long maxBytes;
+
+
+    /**
+     * CacheEntry is a question and its encoded response (or, in the RRset segments, a name, TYPE and CLASS and its
+     * records), along with its place in its segment's LRU lists and timer wheel. The deadline it inherits from Timer
+     * is when the entry expires.
+     */
+
+    static class CacheEntry extends TimerWheel.Timer {
+
+        DNSQuestion question;
+        CachedResponse response;
+
+        // The RRset, and how much it's trusted (only in the RRset segments)
+        DNSRecord[] records;
+        int trust;
+
+        // Estimated heap size of the entry in bytes
+        int size;
+
+        // Whether the entry is in the protected list (otherwise it's in probation)
+        boolean isProtected;
+
+        // Used for prefetching: how often the entry has been hit, when it can be refreshed, and whether it has been
+        int hits;
+        long refreshTime;
+        boolean refreshRequested;
+
+        CacheEntry previous;
+        CacheEntry next;
+
+        CacheEntry(DNSQuestion question, CachedResponse response, long deadline){
+            this.question = question;
+            this.response = response;
+            this.size = ENTRY_OVERHEAD + KEY_OVERHEAD + response.size();
+            this.deadline = deadline;
+        }
+
+        CacheEntry(DNSQuestion key, DNSRecord[] records, int trust){
+            this.question = key;
+            this.records = records;
+            this.trust = trust;
+
+            // The records point into their response's encoded bytes, which stay reachable through this entry after
+            // the response's own entry is evicted, so they're counted here too
+            this.size = ENTRY_OVERHEAD + ARRAY_OVERHEAD + records.length * RECORD_OVERHEAD
+                    + records[0].buffer.capacity();
+
+            this.deadline = records[0].expirationTime();
+            for (DNSRecord record : records){
+                if (record.expirationTime() - deadline < 0){
+                    deadline = record.expirationTime();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Segment is one independently locked part of the cache. Each list is doubly linked with the most recently used
+     * entry at the head.
+     */
+
+    static class Segment {
+
+        HashMap<DNSQuestion, CacheEntry> entries = new HashMap<>();
+
+        // Every entry, filed by its deadline
+        TimerWheel wheel = new TimerWheel(System.nanoTime());
+
+        CacheEntry probationHead;
+        CacheEntry probationTail;
+        CacheEntry protectedHead;
+        CacheEntry protectedTail;
+
+        int protectedCount;
+        long bytes;
+
+        // Entries pushed out to make room, and entries removed because they (and their stale window) ran out
+        long evictions;
+        long expirations;
+
+        int maxEntries;
+        int maxProtected;
+        long maxBytes;
+
+        // How long entries are kept after they expire, for serving stale (0 removes them as soon as they expire)
+        long staleNanos;
+
+        Segment(int maxEntries, long maxBytes){
+            this.maxEntries = Math.max(1, maxEntries);
+            this.maxProtected = (int) (this.maxEntries * PROTECTED_SHARE);
+            this.maxBytes = maxBytes;
+        }
+
+        /**
+         * get() looks up an entry and, if it's still valid, records the hit: a hit in probation moves the entry to
+         * the protected list, and a hit in the protected list moves it back to the head. If the entry is hot and due
+         * for a refresh, it's handed to the prefetcher (once). An expired entry is left in place until its stale
+         * window is over too.
+         */
+
+        synchronized CacheEntry get(DNSQuestion question, Prefetcher prefetcher){
+
+            CacheEntry entry = entries.get(question);
+            if (entry == null){
+                return null;
+            }
+
+            long now = System.nanoTime();
+            if (now - entry.deadline >= 0){
+                if (now - entry.deadline >= staleNanos){
+                    remove(entry);
+                    expirations++;
+                }
+                return null;
+            }
+
+            entry.hits++;
+            if (prefetcher != null && !entry.refreshRequested && entry.hits >= prefetcher.minHits && now - entry.refreshTime >= 0){
+                entry.refreshRequested = true;
+                prefetcher.request(entry.question);
+            }
+
+            unlink(entry);
+
+            if (!entry.isProtected){
+                entry.isProtected = true;
+                protectedCount++;
+
+                // The protected list is full, so its least recently used entry gets another chance in probation
+                if (protectedCount > maxProtected && protectedTail != null){
+                    CacheEntry demoted = protectedTail;
+                    unlink(demoted);
+                    demoted.isProtected = false;
+                    protectedCount--;
+                    linkFirst(demoted);
+                }
+            }
+
+            linkFirst(entry);
+
+            return entry;
+        }
+
+        /**
+         * writeHit() looks up an entry like get() and, if it's still valid, writes its response into an encoder's
+         * buffer with the client's ID.
+         *
+         * @return ByteBuffer - the response, or null if there's no valid entry
+         */
+
+        ByteBuffer writeHit(DNSQuestion question, Prefetcher prefetcher, DNSEncoder encoder, short id){
+
+            CacheEntry entry = get(question, prefetcher);
+
+            return entry == null ? null : entry.response.writeTo(encoder, id);
+        }
+
+        /**
+         * put() adds or replaces an entry at the head of probation, then evicts until the segment is back under its
+         * limits. An entry that hasn't expired isn't replaced by one that's trusted less.
+         */
+
+        synchronized void put(CacheEntry entry){
+
+            CacheEntry old = entries.get(entry.question);
+            if (old != null){
+                if (old.trust > entry.trust && System.nanoTime() - old.deadline < 0){
+                    return;
+                }
+                remove(old);
+            }
+
+            entries.put(entry.question, entry);
+            bytes += entry.size;
+            linkFirst(entry);
+            wheel.schedule(entry);
+
+            while (entries.size() > maxEntries || (maxBytes > 0 && bytes > maxBytes)){
+
+                // Probation is evicted first; the protected list only loses entries if probation is empty
+                CacheEntry victim = probationTail != null ? probationTail : protectedTail;
+                remove(victim);
+                evictions++;
+            }
+        }
+
+        /**
+         * getStale() looks up an entry whose stale window isn't over, whether or not it has expired. The hit isn't
+         * recorded, since a stale answer only stands in until the upstreams answer again.
+         *
+         * @return CacheEntry - the entry, or null if there isn't one or it's past its stale window
+         */
+
+        synchronized CacheEntry getStale(DNSQuestion question){
+
+            CacheEntry entry = entries.get(question);
+            if (entry == null){
+                return null;
+            }
+
+            long now = System.nanoTime();
+            if (now - entry.deadline >= staleNanos){
+                remove(entry);
+                expirations++;
+                return null;
+            }
+
+            return entry;
+        }
+
+        /**
+         * expire() removes every entry whose deadline, plus the stale window, has passed. The wheel is advanced to
+         * that much before now, so it only hands back entries that are past their stale window.
+         */
+
+        synchronized void expire(long now){
+
+            wheel.advance(now - staleNanos, timer -> {
+                remove((CacheEntry) timer);
+                expirations++;
+            });
+        }
+
+        /**
+         * remove() takes out the entry for a question, if there is one.
+         */
+
+        synchronized void remove(DNSQuestion question){
+
+            CacheEntry entry = entries.get(question);
+            if (entry != null){
+                remove(entry);
+            }
+        }
+
+        /**
+         * forEach() calls an action for every entry, expired or not, while holding the segment's lock.
+         */
+
+        synchronized void forEach(Consumer<CacheEntry> action){
+
+            entries.values().forEach(action);
+        }
+
+        synchronized int size(){
+            return entries.size();
+        }
+
+        synchronized long bytes(){
+            return bytes;
+        }
+
+        synchronized long evictions(){
+            return evictions;
+        }
+
+        synchronized long expirations(){
+            return expirations;
+        }
+
+        void remove(CacheEntry entry){
+
+            entries.remove(entry.question);
+            unlink(entry);
+            wheel.cancel(entry);
+            bytes -= entry.size;
+
+            if (entry.isProtected){
+                protectedCount--;
+            }
+        }
+
+        /**
+         * linkFirst() puts an entry at the head of the list it belongs in.
+         */
+
+        void linkFirst(CacheEntry entry){
+
+            CacheEntry head = entry.isProtected ? protectedHead : probationHead;
+
+            entry.previous = null;
+            entry.next = head;
+
+            if (head != null){
+                head.previous = entry;
+            }
+
+            if (entry.isProtected){
+                protectedHead = entry;
+                if (protectedTail == null){
+                    protectedTail = entry;
+                }
+            }
+            else {
+                probationHead = entry;
+                if (probationTail == null){
+                    probationTail = entry;
+                }
+            }
+        }
+
+        /**
+         * unlink() takes an entry out of whichever list it's in.
+         */
+
+        void unlink(CacheEntry entry){
+
+            if (entry.previous != null){
+                entry.previous.next = entry.next;
+            }
+            else if (entry.isProtected){
+                protectedHead = entry.next;
+            }
+            else {
+                probationHead = entry.next;
+            }
+
+            if (entry.next != null){
+                entry.next.previous = entry.previous;
+            }
+            else if (entry.isProtected){
+                protectedTail = entry.previous;
+            }
+            else {
+                probationTail = entry.previous;
+            }
+
+            entry.previous = null;
+            entry.next = null;
+        }
+    }
+
+
+    /**
+     * DNSCache() makes a cache with the default limits.
+     */
 
     public DNSCache(){
-        cache = new HashMap<>();
+        this(100_000, 0, 10_000, 10_800, 100_000, false);
+    }
+
+    /**
+     * DNSCache() makes a cache that holds at most maxEntries entries and (if maxBytes isn't 0) at most maxBytes
+     * bytes of estimated heap, plus up to maxNegativeEntries negative answers. RRsets on the heap are held to maxBytes
+     * of their own, since they can keep encoded responses alive after the answers are gone. The limits are split
+     * evenly between the segments.
+     *
+     * @param maxEntries - most entries the cache can hold
+     * @param maxBytes - most estimated bytes the cache can hold, or 0 for no byte limit
+     * @param maxNegativeEntries - most negative answers the cache can hold
+     * @param maxNegativeTTL - longest a negative answer is cached, in seconds
+     * @param maxRRsets - most RRsets the cache can hold, or 0 to turn the RRset cache off
+     * @param offHeap - whether answers and negative answers are kept outside the heap (see OffHeapSegment), in which
+     *                  case maxBytes is the size of the off-heap memory instead of an estimate of heap
+     */
+
+    public DNSCache(int maxEntries, long maxBytes, int maxNegativeEntries, int maxNegativeTTL, int maxRRsets, boolean offHeap){
+
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.maxNegativeTTL = maxNegativeTTL;
+
+        for (int i = 0; i < SEGMENTS; i++){
+            if (offHeap){
+                segments[i] = new OffHeapSegment(maxEntries / SEGMENTS, maxBytes / SEGMENTS);
+                negativeSegments[i] = new OffHeapSegment(maxNegativeEntries / SEGMENTS, 0);
+            }
+            else {
+                segments[i] = new Segment(maxEntries / SEGMENTS, maxBytes / SEGMENTS);
+                negativeSegments[i] = new Segment(maxNegativeEntries / SEGMENTS, 0);
+            }
+        }
+
+        if (maxRRsets > 0){
+            rrsetSegments = new Segment[SEGMENTS];
+            for (int i = 0; i < SEGMENTS; i++){
+                rrsetSegments[i] = new Segment(maxRRsets / SEGMENTS, offHeap ? 0 : maxBytes / SEGMENTS);
+            }
+        }
+
+        expiryThread = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cache-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        expiryThread.scheduleWithFixedDelay(this::removeExpired, EXPIRY_INTERVAL_MILLIS, EXPIRY_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * setStaleWindow() sets how long answers and negative answers are kept after they expire, so they can still be
+     * served stale. RRsets aren't kept, so stale answers can't be put together from them.
+     *
+     * @param seconds - the stale window, or 0 to remove entries as soon as they expire
+     */
+
+    void setStaleWindow(int seconds){
+
+        for (int i = 0; i < SEGMENTS; i++){
+            segments[i].staleNanos = seconds * 1_000_000_000L;
+            negativeSegments[i].staleNanos = seconds * 1_000_000_000L;
+        }
     }
 
     /**
-     * insertRecord() stores a message in the hashmap with its question as the key
+     * insertRecord() stores a message in the cache with its question as the key, and stores each of its RRsets.
+     * Answers go in the main segments and negative answers in the negative segments (replacing whatever the other part
+     * had for the question). Errors other than NXDOMAIN aren't cached.
      *
      * @param question - the key to be stored
      * @param message - the message to be stored
      */
     void insertRecord(DNSQuestion question, DNSMessage message){
 
-        cache.put(question, message);
+        if (message.header.RCODE != 0 && message.header.RCODE != 3){
+            return;
+        }
+
+        // A truncated answer is missing records, so it isn't cached
+        if ((message.header.flags & DNSEncoder.FLAG_TC) != 0){
+            return;
+        }
+
+        CacheEntry entry = insertMessage(question, message);
+
+        // The RRsets are taken from the cached copy, so they don't keep the upstream's packet either. If the message
+        // wasn't worth caching, neither are its RRsets.
+        if (rrsetSegments != null && entry != null){
+            insertRRsets(entry.question, entry.response.decode(entry.question.buffer));
+        }
+    }
+
+    /**
+     * insertMessage() stores a whole message in the main or negative segments. The entry's key is a question that
+     * points into the encoded response, so neither the question nor the message passed in is kept.
+     *
+     * @param question - the question the message answers
+     * @param message - the message to be stored
+     * @return CacheEntry - the new entry, or null if the message isn't worth caching
+     */
+
+    CacheEntry insertMessage(DNSQuestion question, DNSMessage message){
+
+        long now = System.nanoTime();
+        int index = segmentIndex(question);
+
+        CacheEntry entry;
+        Segment segment;
+        Segment otherSegment;
+
+        if (message.isNegative()){
+
+            // Negative answers without an SOA don't say how long they can be cached, so they aren't
+            int negativeTTL = Math.min(message.negativeTTL(), maxNegativeTTL);
+            if (negativeTTL <= 0){
+                return null;
+            }
+
+            // The response is encoded before taking the segment's lock
+            CachedResponse response = CachedResponse.encode(message, negativeTTL);
+            entry = new CacheEntry(response.question(), response, now + negativeTTL * 1_000_000_000L);
+
+            segment = negativeSegments[index];
+            otherSegment = segments[index];
+        }
+        else {
+
+            // Messages that are already expired aren't worth keeping
+            long deadline = message.expirationTime();
+            if (now - deadline >= 0){
+                return null;
+            }
+
+            // The response is encoded before taking the segment's lock
+            CachedResponse response = CachedResponse.encode(message);
+            entry = new CacheEntry(response.question(), response, deadline);
+
+            segment = segments[index];
+            otherSegment = negativeSegments[index];
+        }
+
+        // Set before the entry is put, since an off-heap segment copies it
+        if (prefetcher != null){
+            entry.refreshTime = prefetcher.refreshTime(now, entry.deadline);
+        }
+
+        otherSegment.remove(question);
+        segment.put(entry);
+
+        return entry;
+    }
+
+    /**
+     * restore() puts back an entry loaded from a snapshot. Its RRsets aren't split out again, which would double how
+     * long loading takes; the answers they'd be put together into are already cached whole, and the RRset cache fills
+     * back up as new responses come in.
+     *
+     * @param entry - the entry, with its deadline already set
+     * @param negative - whether it's a negative answer
+     */
+
+    void restore(CacheEntry entry, boolean negative){
+
+        if (prefetcher != null){
+            entry.refreshTime = prefetcher.refreshTime(System.nanoTime(), entry.deadline);
+        }
+
+        int index = segmentIndex(entry.question);
+        (negative ? negativeSegments : segments)[index].put(entry);
+    }
+
+    /**
+     * insertRRsets() stores every RRset in a message. Answer RRsets are only kept if they're part of the question's
+     * CNAME chain, so a response can't slip in answers for names nobody asked about. Chain records for names outside
+     * the question's (past a CNAME into another zone) are only trusted as much as the authority section, so an
+     * evil.com CNAME to bank.com can't replace bank.com's own answer.
+     *
+     * @param question - the question the message answers
+     * @param message - the message whose RRsets are stored
+     */
+
+    void insertRRsets(DNSQuestion question, DNSMessage message){
+
+        DNSRecord[] answers = message.answers;
+        boolean[] chain = chain(question, answers);
+
+        boolean[] inside = new boolean[answers.length];
+        boolean[] outside = new boolean[answers.length];
+        for (int i = 0; i < answers.length; i++){
+            if (chain[i]){
+                boolean below = DNSName.isAtOrBelow(answers[i].buffer, answers[i].nameOffset, question.buffer,
+                        question.nameOffset);
+                inside[i] = below;
+                outside[i] = !below;
+            }
+        }
+
+        insertSection(answers, inside, TRUST_ANSWER);
+        insertSection(answers, outside, TRUST_AUTHORITY);
+        insertSection(message.authorityRecords, null, TRUST_AUTHORITY);
+        insertSection(message.additionalRecords, null, TRUST_ADDITIONAL);
+    }
+
+    /**
+     * chain() finds which answers belong to the question's CNAME chain: records for the question's name, and records
+     * for the target of any CNAME already found to belong.
+     *
+     * @param question - the question
+     * @param answers - the answer section
+     * @return boolean[] - whether each answer belongs
+     */
+
+    static boolean[] chain(DNSQuestion question, DNSRecord[] answers){
+
+        boolean[] belongs = new boolean[answers.length];
+
+        // CNAMEs usually come in order, but a pass is repeated until nothing new is found in case they don't
+        boolean found = true;
+        for (int pass = 0; found && pass <= MAX_CNAME_CHAIN; pass++){
+
+            found = false;
+
+            for (int i = 0; i < answers.length; i++){
+                if (belongs[i]){
+                    continue;
+                }
+
+                DNSRecord answer = answers[i];
+                boolean owned = DNSName.equals(answer.buffer, answer.nameOffset, question.buffer, question.nameOffset);
+
+                for (int j = 0; !owned && j < answers.length; j++){
+                    owned = belongs[j] && answers[j].TYPE == DNSEncoder.TYPE_CNAME
+                            && DNSName.equals(answer.buffer, answer.nameOffset, answers[j].buffer, answers[j].rdataOffset);
+                }
+
+                if (owned){
+                    belongs[i] = true;
+                    found = true;
+                }
+            }
+        }
+
+        return belongs;
+    }
+
+    /**
+     * insertSection() groups a section's records into RRsets and stores each one.
+     *
+     * @param records - the section
+     * @param belongs - which records can be stored (null for all of them)
+     * @param trust - how much the section is trusted
+     */
+
+    void insertSection(DNSRecord[] records, boolean[] belongs, int trust){
+
+        boolean[] grouped = new boolean[records.length];
+
+        for (int i = 0; i < records.length; i++){
+
+            if (grouped[i] || (belongs != null && !belongs[i])){
+                continue;
+            }
+
+            DNSRecord first = records[i];
+            DNSQuestion key = DNSQuestion.forName(first.buffer, first.nameOffset, first.TYPE, first.CLASS);
+
+            // An RRset's records are usually next to each other, but they don't have to be
+            ArrayList<DNSRecord> rrset = new ArrayList<>();
+            for (int j = i; j < records.length; j++){
+                DNSRecord record = records[j];
+                if (!grouped[j] && (belongs == null || belongs[j]) && record.TYPE == first.TYPE && record.CLASS == first.CLASS
+                        && DNSName.equals(record.buffer, record.nameOffset, first.buffer, first.nameOffset)){
+                    grouped[j] = true;
+                    rrset.add(record);
+                }
+            }
+
+            CacheEntry entry = new CacheEntry(key, rrset.toArray(new DNSRecord[0]), trust);
+            if (System.nanoTime() - entry.deadline < 0){
+                rrsetSegments[segmentIndex(key)].put(entry);
+            }
+        }
     }
 
 
@@ -32,16 +737,322 @@ public class DNSCache {
      *
      * @param key - question to use to check to see if the message exists in the cache
      * @return null if the message doesn't exist at all or if the timestamp has expired.
-     *         DNSMessage if the question/message pair exists in the cache and it has not expired.
+     *         CachedResponse (the encoded message) if the question/message pair exists in the cache and it has not expired.
+     */
+    CachedResponse queryCache(DNSQuestion key){
+
+        CachedResponse response = lookup(key);
+
+        // The question isn't cached as a whole, but its answer may be put together from cached RRsets
+        if (response == null && rrsetSegments != null){
+            response = assemble(key);
+        }
+
+        return response;
+    }
+
+    /**
+     * lookup() checks the main segments and then the negative segments for a question. Each client query is counted
+     * once: a hit in whichever part answered it, or a miss in both once neither has it.
+     *
+     * @param key - the question
+     * @return CachedResponse - the cached response, or null if neither part of the cache has one
      */
-    DNSMessage queryCache(DNSQuestion key){
 
-        if ((cache.get(key) != null) && (!cache.get(key).answers[0].timestampValid())){
-            cache.remove(key);
-            System.out.println("Record not found");
+    CachedResponse lookup(DNSQuestion key){
+
+        int index = segmentIndex(key);
+
+        CacheEntry entry = segments[index].get(key, prefetcher);
+        if (entry != null){
+            hits.increment();
+            return entry.response;
+        }
+
+        // Only questions that aren't answered can have a negative answer
+        entry = negativeSegments[index].get(key, prefetcher);
+        if (entry != null){
+            negativeHits.increment();
+            return entry.response;
+        }
+
+        misses.increment();
+        negativeMisses.increment();
+
+        return null;
+    }
+
+    /**
+     * queryStale() looks up an answer or negative answer for a question, even one that has expired, as long as it's
+     * still within the stale window. It's only used once the upstreams have had their chance to answer.
+     *
+     * @param key - the question
+     * @return CachedResponse - the cached response, or null if neither part of the cache has one
+     */
+
+    CachedResponse queryStale(DNSQuestion key){
+
+        int index = segmentIndex(key);
+
+        CacheEntry entry = segments[index].getStale(key);
+        if (entry == null){
+            entry = negativeSegments[index].getStale(key);
+        }
+
+        if (entry == null){
             return null;
         }
 
-        return cache.get(key);
+        staleHits.increment();
+        return entry.response;
+    }
+
+    /**
+     * assemble() tries to answer a question from cached RRsets: the RRset for the question's name and type if there is
+     * one, otherwise the name's CNAME, then the same for the CNAME's target, and so on. If the chain ends in an RRset
+     * of the type asked for, the answer is cached as a whole (so the next lookup finds it right away) and returned.
+     *
+     * @param question - the question
+     * @return CachedResponse - the answer, or null if some part of the chain isn't cached
+     */
+
+    CachedResponse assemble(DNSQuestion question){
+
+        ArrayList<DNSRecord> answers = new ArrayList<>();
+
+        ByteBuffer nameBuffer = question.buffer;
+        int nameOffset = question.nameOffset;
+
+        for (int length = 0; length <= MAX_CNAME_CHAIN; length++){
+
+            DNSRecord[] rrset = getRRset(nameBuffer, nameOffset, question.QTYPE, question.QCLASS);
+            if (rrset != null){
+
+                for (DNSRecord record : rrset){
+                    answers.add(record);
+                }
+
+                // The question may point into a packet that's about to be reused, but the cached answer only keeps
+                // its encoded copy
+                CacheEntry entry = insertMessage(question, DNSMessage.assemble(question, answers.toArray(new DNSRecord[0])));
+                if (entry == null){
+                    return null;
+                }
+
+                assembled.increment();
+                return entry.response;
+            }
+
+            if (question.QTYPE == DNSEncoder.TYPE_CNAME){
+                return null;
+            }
+
+            rrset = getRRset(nameBuffer, nameOffset, DNSEncoder.TYPE_CNAME, question.QCLASS);
+            if (rrset == null){
+                return null;
+            }
+
+            // A name only has one CNAME
+            DNSRecord cname = rrset[0];
+            answers.add(cname);
+            nameBuffer = cname.buffer;
+            nameOffset = cname.rdataOffset;
+        }
+
+        return null;
+    }
+
+    /**
+     * getRRset() looks up an RRset that can be used in an answer.
+     *
+     * @param nameBuffer - the packet the name is in
+     * @param nameOffset - where the name starts
+     * @param type - the RRset's TYPE
+     * @param dnsClass - the RRset's CLASS
+     * @return DNSRecord[] - the RRset, or null if no answer RRset is cached
+     */
+
+    DNSRecord[] getRRset(ByteBuffer nameBuffer, int nameOffset, short type, short dnsClass){
+
+        DNSQuestion key = DNSQuestion.forName(nameBuffer, nameOffset, type, dnsClass);
+
+        CacheEntry entry = rrsetSegments[segmentIndex(key)].get(key, null);
+        if (entry == null || entry.trust < TRUST_ANSWER){
+            return null;
+        }
+
+        return entry.records;
+    }
+
+    /**
+     * queryPacket() looks up a raw client query without decoding it. The question is hashed and compared straight out
+     * of the packet (ignoring case), and a hit is written straight into the encoder's buffer with the query's ID, so it
+     * doesn't create any objects (on either backend). A miss, or a packet that isn't a plain query, returns null and
+     * the packet should be decoded as usual.
+     *
+     * @param packet - a received client query, from index 0 to the limit
+     * @param encoder - encoder whose buffer a hit is written into
+     * @return ByteBuffer - the response if the query's question is cached and hasn't expired, otherwise null
+     */
+
+    ByteBuffer queryPacket(ByteBuffer packet, DNSEncoder encoder){
+
+        DNSQuestion probe = PROBES.get();
+
+        if (!probe.readFrom(packet)){
+            return null;
+        }
+
+        int index = segmentIndex(probe);
+        short id = packet.getShort(0);
+
+        // Answers aren't put together for a probe, since that would cache the probe itself. A miss here is decoded
+        // and looked up again with queryCache(), which counts it.
+        ByteBuffer response = segments[index].writeHit(probe, prefetcher, encoder, id);
+        if (response != null){
+            hits.increment();
+        }
+        else {
+            response = negativeSegments[index].writeHit(probe, prefetcher, encoder, id);
+            if (response != null){
+                negativeHits.increment();
+            }
+        }
+
+        // Don't keep the packet reachable from the thread's probe
+        probe.buffer = null;
+
+        return response;
+    }
+
+    /**
+     * removeExpired() removes every expired entry from every segment. The background thread calls this every second.
+     */
+
+    void removeExpired(){
+
+        long now = System.nanoTime();
+
+        for (int i = 0; i < SEGMENTS; i++){
+            segments[i].expire(now);
+            negativeSegments[i].expire(now);
+            if (rrsetSegments != null){
+                rrsetSegments[i].expire(now);
+            }
+        }
+    }
+
+    /**
+     * close() stops the background thread. The cache can still be used, but expired entries are only removed when
+     * they're looked up.
+     */
+
+    void close(){
+
+        expiryThread.shutdownNow();
+    }
+
+    /**
+     * size() returns how many entries are in the cache.
+     *
+     * @return int - number of entries
+     */
+
+    int size(){
+
+        int size = 0;
+        for (Segment segment : segments){
+            size += segment.size();
+        }
+
+        return size;
+    }
+
+    /**
+     * bytes() returns the estimated heap used by every answer and RRset in the cache.
+     *
+     * @return long - estimated bytes
+     */
+
+    long bytes(){
+
+        long bytes = 0;
+        for (Segment segment : segments){
+            bytes += segment.bytes();
+        }
+
+        if (rrsetSegments != null){
+            for (Segment segment : rrsetSegments){
+                bytes += segment.bytes();
+            }
+        }
+
+        return bytes;
+    }
+
+    /**
+     * evictions() returns how many answers and negative answers have been evicted to make room for others.
+     *
+     * @return long - number of evictions
+     */
+
+    long evictions(){
+
+        long evictions = 0;
+        for (int i = 0; i < SEGMENTS; i++){
+            evictions += segments[i].evictions() + negativeSegments[i].evictions();
+        }
+
+        return evictions;
+    }
+
+    /**
+     * expirations() returns how many answers and negative answers have been removed because they expired (and, if
+     * serving stale is on, their stale window ran out too).
+     *
+     * @return long - number of expirations
+     */
+
+    long expirations(){
+
+        long expirations = 0;
+        for (int i = 0; i < SEGMENTS; i++){
+            expirations += segments[i].expirations() + negativeSegments[i].expirations();
+        }
+
+        return expirations;
+    }
+
+    /**
+     * negativeSize() returns how many negative answers are in the cache.
+     *
+     * @return int - number of negative entries
+     */
+
+    int negativeSize(){
+
+        int size = 0;
+        for (Segment segment : negativeSegments){
+            size += segment.size();
+        }
+
+        return size;
+    }
+
+    /**
+     * segmentIndex() picks the segment a question belongs in (the same index is used for the negative segments).
+     *
+     * @param question - the key
+     * @return int - index of the segment that holds (or would hold) the key
+     */
+
+    int segmentIndex(DNSQuestion question){
+
+        int hash = question.hashCode();
+
+        // Spread the high bits down, since the low bits alone pick the segment
+        hash ^= hash >>> 16;
+
+        return hash & (SEGMENTS - 1);
     }
 }
@@ -0,0 +1,254 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * DNSConfig holds the startup options for the server. Options are passed on the command line as --name=value
+ * (i.e. --engine=concurrent --threads=16). Anything that isn't passed keeps its default value.
+ */
+public class DNSConfig {
+
+    // Port the server listens on for client queries
+    int port = 8053;
+
+    // Which server engine to run: "blocking" (one receive/forward loop), "concurrent" (worker pool),
+    // or "nio" (one thread multiplexing both channels with a Selector)
+    String engine = "blocking";
+
+    // Number of worker threads used by the concurrent engine
+    int workerThreads = Runtime.getRuntime().availableProcessors() * 2;
+
+    // Number of nio engines answering UDP, each on its own thread with its own socket bound to the port with
+    // SO_REUSEPORT, so the kernel spreads clients across them (i.e. one per core)
+    int shards = 1;
+
+    // Resolvers queries are forwarded to (--upstreams=8.8.8.8,1.1.1.1:53), Google's two by default
+    List<InetSocketAddress> upstreams = parseAddresses("8.8.8.8:53,8.8.4.4:53");
+
+    // How long to wait for an upstream answer before giving up on it, across every upstream it's sent to
+    int upstreamTimeoutMillis = 5000;
+
+    // A query is also sent to a second upstream once it has taken longer than this percentile of the first
+    // upstream's recent round trip times (0 turns hedging off)
+    double hedgePercentile = 95;
+
+    // How queries that miss the cache are answered: "forward" (sent to the upstreams) or "iterative" (followed down
+    // from the root servers, see IterativeResolver)
+    String resolution = "forward";
+
+    // Root hints file in zone file format (i.e. named.root), empty uses the built-in list of root servers
+    String rootHints = "";
+
+    // Port authoritative servers are asked on (only ever not 53 for testing against servers on one machine)
+    int iterativePort = 53;
+
+    // Whether IPv6 addresses of authoritative servers are used as well as IPv4 ones
+    boolean iterativeIPv6 = false;
+
+    // Most zone cuts and name server addresses the iterative resolver keeps, each
+    int delegationMaxEntries = 10_000;
+
+    // Zone files and hosts files answered locally before the cache and upstreams (--local-zones=corp.zone,hosts),
+    // and how often in seconds they're checked for changes (0 never reloads them)
+    String localZones = "";
+    int localZonesIntervalSeconds = 5;
+
+    // Most TCP connections open at once (0 turns the TCP listener off)
+    int tcpMaxConnections = 128;
+
+    // TCP connections that haven't sent a query in this long are closed
+    int tcpIdleTimeoutMillis = 10_000;
+
+    // Most entries the cache can hold
+    int cacheMaxEntries = 100_000;
+
+    // Where the cache keeps answers: "heap" (as objects) or "offheap" (in direct buffers allocated up front)
+    String cacheBackend = "heap";
+
+    // Most estimated heap bytes the cache's answers can hold, and its RRsets separately (0 means only the entry limits
+    // apply). With the offheap backend this is how much off-heap memory answers get (0 sizes it from the entry limit).
+    long cacheMaxBytes = 0;
+
+    // Where the cache is saved so a restart starts warm (empty turns snapshots off), and how often in seconds
+    String cacheSnapshot = "";
+    int snapshotIntervalSeconds = 300;
+
+    // How long in seconds answers are kept after they expire, to be served stale when the upstreams are slow or down
+    // (RFC 8767 suggests 1 to 3 days; 0 turns serve-stale off)
+    int staleWindowSeconds = 0;
+
+    // How long a client waits on the upstreams before it's given a stale answer (if one is cached)
+    int staleAnswerTimeoutMillis = 1800;
+
+    // TTL written in every record of a stale answer
+    int staleTTL = 30;
+
+    // Most negative answers (NXDOMAIN and NODATA) the cache can hold, on top of cacheMaxEntries
+    int negativeCacheMaxEntries = 10_000;
+
+    // Longest a negative answer is cached in seconds, whatever its SOA says (RFC 2308 suggests 1 to 3 hours)
+    int negativeTTLMax = 10_800;
+
+    // Most RRsets cached on their own, for putting answers together (0 turns the RRset cache off)
+    int rrsetMaxEntries = 100_000;
+
+    // Hot cache entries are refreshed once this share of their TTL has passed (0 turns prefetching off)
+    double prefetchFraction = 0.9;
+
+    // How many hits an entry needs to count as hot
+    int prefetchMinHits = 10;
+
+    // Most prefetch queries sent per second
+    int prefetchRate = 100;
+
+    // Where the stats (see Metrics) are written every metricsIntervalSeconds (empty only answers them to CHAOS
+    // class TXT queries for stats.bind)
+    String metricsFile = "";
+    int metricsIntervalSeconds = 60;
+
+    // Most UDP answers per second each client network gets (0 turns rate limiting off), and how many it can get at
+    // once after being quiet (0 means a second's worth), see RateLimiter
+    int rateLimit = 0;
+    int rateLimitBurst = 0;
+
+    // Clients are grouped into networks by these prefix lengths
+    int rateLimitIPv4Prefix = 24;
+    int rateLimitIPv6Prefix = 56;
+
+    // What a client over the limit gets: "drop" (nothing), "truncate" (TC set, so it retries over TCP) or "slip"
+    // (dropped, but one in rateLimitSlip is truncated)
+    String rateLimitAction = "slip";
+    int rateLimitSlip = 2;
+
+    // Size of the rate limiter's table of buckets (rounded up to a power of two, at most 2^30)
+    int rateLimitBuckets = 65_536;
+
+
+    /**
+     * parse() builds a config from the command line arguments.
+     *
+     * @param args - arguments passed to main()
+     * @return DNSConfig - a config with every recognized option applied
+     * @throws IllegalArgumentException if an option is not recognized or its value can't be read
+     */
+
+    static DNSConfig parse(String[] args){
+
+        DNSConfig config = new DNSConfig();
+
+        for (String arg : args){
+
+            // Every option looks like --name=value
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0){
+                throw new IllegalArgumentException("Options must look like --name=value: " + arg);
+            }
+
+            String name = arg.substring(2, equals);
+            String value = arg.substring(equals + 1);
+
+            switch (name) {
+                case "port" -> config.port = Integer.parseInt(value);
+                case "engine" -> config.engine = value;
+                case "threads" -> config.workerThreads = Integer.parseInt(value);
+                case "shards" -> config.shards = Integer.parseInt(value);
+                case "upstreams" -> config.upstreams = parseAddresses(value);
+                case "hedge-percentile" -> config.hedgePercentile = Double.parseDouble(value);
+                case "upstream-timeout" -> config.upstreamTimeoutMillis = Integer.parseInt(value);
+                case "resolution" -> config.resolution = value;
+                case "root-hints" -> config.rootHints = value;
+                case "iterative-port" -> config.iterativePort = Integer.parseInt(value);
+                case "iterative-ipv6" -> config.iterativeIPv6 = Boolean.parseBoolean(value);
+                case "delegation-entries" -> config.delegationMaxEntries = Integer.parseInt(value);
+                case "local-zones" -> config.localZones = value;
+                case "local-zones-interval" -> config.localZonesIntervalSeconds = Integer.parseInt(value);
+                case "tcp-connections" -> config.tcpMaxConnections = Integer.parseInt(value);
+                case "tcp-idle-timeout" -> config.tcpIdleTimeoutMillis = Integer.parseInt(value);
+                case "cache-entries" -> config.cacheMaxEntries = Integer.parseInt(value);
+                case "cache-backend" -> config.cacheBackend = value;
+                case "cache-bytes" -> config.cacheMaxBytes = Long.parseLong(value);
+                case "cache-snapshot" -> config.cacheSnapshot = value;
+                case "snapshot-interval" -> config.snapshotIntervalSeconds = Integer.parseInt(value);
+                case "stale-window" -> config.staleWindowSeconds = Integer.parseInt(value);
+                case "stale-answer-timeout" -> config.staleAnswerTimeoutMillis = Integer.parseInt(value);
+                case "stale-ttl" -> config.staleTTL = Integer.parseInt(value);
+                case "negative-cache-entries" -> config.negativeCacheMaxEntries = Integer.parseInt(value);
+                case "negative-ttl-max" -> config.negativeTTLMax = Integer.parseInt(value);
+                case "rrset-entries" -> config.rrsetMaxEntries = Integer.parseInt(value);
+                case "prefetch-fraction" -> config.prefetchFraction = Double.parseDouble(value);
+                case "prefetch-min-hits" -> config.prefetchMinHits = Integer.parseInt(value);
+                case "prefetch-rate" -> config.prefetchRate = Integer.parseInt(value);
+                case "metrics-file" -> config.metricsFile = value;
+                case "metrics-interval" -> config.metricsIntervalSeconds = Integer.parseInt(value);
+                case "rate-limit" -> config.rateLimit = Integer.parseInt(value);
+                case "rate-limit-burst" -> config.rateLimitBurst = Integer.parseInt(value);
+                case "rate-limit-ipv4-prefix" -> config.rateLimitIPv4Prefix = Integer.parseInt(value);
+                case "rate-limit-ipv6-prefix" -> config.rateLimitIPv6Prefix = Integer.parseInt(value);
+                case "rate-limit-action" -> config.rateLimitAction = value;
+                case "rate-limit-slip" -> config.rateLimitSlip = Integer.parseInt(value);
+                case "rate-limit-buckets" -> config.rateLimitBuckets = Integer.parseInt(value);
+                default -> throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+
+        // A misspelled value would otherwise quietly run the default
+        if (!config.engine.equals("blocking") && !config.engine.equals("concurrent") && !config.engine.equals("nio")){
+            throw new IllegalArgumentException("Unknown engine: " + config.engine);
+        }
+
+        if (!config.resolution.equals("forward") && !config.resolution.equals("iterative")){
+            throw new IllegalArgumentException("Unknown resolution: " + config.resolution);
+        }
+
+        if (!config.cacheBackend.equals("heap") && !config.cacheBackend.equals("offheap")){
+            throw new IllegalArgumentException("Unknown cache backend: " + config.cacheBackend);
+        }
+
+        return config;
+    }
+
+    /**
+     * parseAddresses() reads a comma separated list of resolver addresses. Each one is an IP address with an optional
+     * port (53 if it's left off), and IPv6 addresses with a port are written in brackets: [2001:4860:4860::8888]:53
+     *
+     * @param value - the list of addresses
+     * @return List - the addresses
+     * @throws IllegalArgumentException if an address can't be read
+     */
+
+    static List<InetSocketAddress> parseAddresses(String value){
+
+        List<InetSocketAddress> addresses = new ArrayList<>();
+
+        for (String address : value.split(",")){
+
+            String host = address.trim();
+            int port = 53;
+
+            int colon = host.lastIndexOf(':');
+            if (host.startsWith("[")){
+                int bracket = host.indexOf(']');
+                if (colon > bracket){
+                    port = Integer.parseInt(host.substring(colon + 1));
+                }
+                host = host.substring(1, bracket);
+            }
+            else if (colon >= 0 && colon == host.indexOf(':')){
+                port = Integer.parseInt(host.substring(colon + 1));
+                host = host.substring(0, colon);
+            }
+
+            // Names are looked up once here, not on every query
+            try {
+                addresses.add(new InetSocketAddress(InetAddress.getByName(host), port));
+            }
+            catch (UnknownHostException e){
+                throw new IllegalArgumentException("Unknown upstream: " + address);
+            }
+        }
+
+        return addresses;
+    }
+}
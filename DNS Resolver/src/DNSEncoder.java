@@ -0,0 +1,450 @@
+import java.net.DatagramPacket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * DNSEncoder writes messages into a buffer it keeps and reuses, so encoding a response doesn't create any garbage.
+ * Each thread gets its own encoder from get(). The buffer that encode() returns is only good until the same thread
+ * encodes its next message, so it should be sent right away.
+ */
+public class DNSEncoder {
+
+    // Record types whose RDATA contains domain names (which may be compressed in the packet they came from)
+    static final short TYPE_NS = 2;
+    static final short TYPE_CNAME = 5;
+    static final short TYPE_SOA = 6;
+    static final short TYPE_PTR = 12;
+    static final short TYPE_MX = 15;
+
+    // Address records
+    static final short TYPE_A = 1;
+
+    // EDNS0's OPT pseudo-record (RFC 6891)
+    static final short TYPE_OPT = 41;
+
+    // Largest UDP message a client can take if it doesn't use EDNS (RFC 1035)
+    static final int UDP_PAYLOAD_SIZE = 512;
+
+    // UDP payload size we advertise upstream and to clients, and the most we'll send a client over UDP
+    static final int EDNS_PAYLOAD_SIZE = 4096;
+
+    // The TC (truncated) flag in the second half of the header's flags
+    static final int FLAG_TC = 0x0200;
+
+    // Header flags of a SERVFAIL answer: QR, RA and RCODE 2 (RD is copied from the query)
+    static final int SERVFAIL_FLAGS = 0x8000 | 0x0080 | 2;
+
+    // Compression pointers only have 14 bits for the offset
+    static final int MAX_POINTER_OFFSET = 0x3FFF;
+
+    // One encoder per thread
+    private static final ThreadLocal<DNSEncoder> ENCODERS = ThreadLocal.withInitial(DNSEncoder::new);
+
+    // Big enough for the largest possible DNS message
+    ByteBuffer out = ByteBuffer.allocate(65535);
+
+    // Where every name suffix written so far starts in the output, so later names can point back at them
+    int[] suffixOffsets = new int[128];
+    int suffixCount;
+
+    // Where every TTL written in the current message is, so cached copies can count them down later
+    int[] ttlOffsets = new int[64];
+    int ttlCount;
+
+    // When the message being written was started (System.nanoTime()), used to count TTLs down
+    long now;
+
+    // Wraps the output buffer for sending through a DatagramSocket
+    DatagramPacket packet = new DatagramPacket(out.array(), 0);
+
+
+    /**
+     * get() returns the current thread's encoder.
+     *
+     * @return DNSEncoder - the encoder only this thread uses
+     */
+
+    static DNSEncoder get(){
+
+        return ENCODERS.get();
+    }
+
+    /**
+     * encode() writes a whole message.
+     *
+     * @param message - message to encode
+     * @return ByteBuffer - the encoded message, from position 0 to the limit
+     */
+
+    ByteBuffer encode(DNSMessage message){
+
+        return encodeResponse(message.header.ID, message);
+    }
+
+    /**
+     * encodeResponse() writes the response to a client's query: Google's response with the client's ID. This does the
+     * same thing as encoding DNSMessage.buildResponse(), without building the response message first.
+     *
+     * @param request - the client's query
+     * @param response - Google's response (either just received or from the cache)
+     * @return ByteBuffer - the encoded response, from position 0 to the limit
+     */
+
+    ByteBuffer encodeResponse(DNSMessage request, DNSMessage response){
+
+        return encodeResponse(request.header.ID, response);
+    }
+
+    /**
+     * This version of encodeResponse() writes a message under the given ID.
+     *
+     * @param id - the ID to write in the header
+     * @param message - message to encode
+     * @return ByteBuffer - the encoded message, from position 0 to the limit
+     */
+
+    ByteBuffer encodeResponse(short id, DNSMessage message){
+
+        out.clear();
+        suffixCount = 0;
+        ttlCount = 0;
+        now = System.nanoTime();
+
+        message.header.writeBytes(this, id, (short) message.answers.length,
+                (short) message.authorityRecords.length, (short) message.additionalRecords.length);
+
+        message.question.writeBytes(this);
+
+        // Every answer is written, since a CNAME answer is no use without the records at the end of its chain
+        for (DNSRecord r : message.answers){
+            r.writeBytes(this);
+        }
+
+        // If there are any authority records, we want to write them back to the client.
+        for (DNSRecord r : message.authorityRecords){
+            r.writeBytes(this);
+        }
+
+        // If there are any additional records, we want to write them back to the client.
+        for (DNSRecord r : message.additionalRecords){
+            r.writeBytes(this);
+        }
+
+        out.flip();
+        return out;
+    }
+
+    /**
+     * encodeServerFailure() writes SERVFAIL for a client's query that can't be answered: the query's ID and question,
+     * with RD copied from the query and no records.
+     *
+     * @param request - the client's query
+     * @return ByteBuffer - the encoded response, from position 0 to the limit
+     */
+
+    ByteBuffer encodeServerFailure(DNSMessage request){
+
+        out.clear();
+        suffixCount = 0;
+        ttlCount = 0;
+
+        out.putShort(request.header.ID);
+        out.putShort((short) (SERVFAIL_FLAGS | (request.header.flags & 0x0100)));
+        out.putShort((short) 1);
+        out.putShort((short) 0);
+        out.putShort((short) 0);
+        out.putShort((short) 0);
+
+        request.question.writeBytes(this);
+
+        out.flip();
+        return out;
+    }
+
+    /**
+     * encodeQuery() writes a query for a question, with recursion desired, like a client would send. It has an OPT
+     * record advertising a 4096 byte UDP payload, so upstreams can send large answers without truncating them.
+     *
+     * @param id - the query's ID
+     * @param question - the question to ask
+     * @return ByteBuffer - the encoded query, from position 0 to the limit
+     */
+
+    ByteBuffer encodeQuery(short id, DNSQuestion question){
+
+        return encodeQuery(id, question, true);
+    }
+
+    /**
+     * This version of encodeQuery() can leave recursion desired off, for asking authoritative servers directly (see
+     * IterativeResolver).
+     *
+     * @param id - the query's ID
+     * @param question - the question to ask
+     * @param recursionDesired - whether the RD flag is set
+     * @return ByteBuffer - the encoded query, from position 0 to the limit
+     */
+
+    ByteBuffer encodeQuery(short id, DNSQuestion question, boolean recursionDesired){
+
+        out.clear();
+        suffixCount = 0;
+        ttlCount = 0;
+
+        // At most the RD (recursion desired) flag is set, and there's one question and the OPT record
+        out.putShort(id);
+        out.putShort((short) (recursionDesired ? 0x0100 : 0));
+        out.putShort((short) 1);
+        out.putShort((short) 0);
+        out.putShort((short) 0);
+        out.putShort((short) 1);
+
+        question.writeBytes(this);
+
+        writeOPT();
+
+        out.flip();
+        return out;
+    }
+
+    /**
+     * finishUDP() gets the response that was just written (by encodeResponse() or CachedResponse.writeTo()) ready to
+     * send to a client over UDP. If the client's query had an OPT record the response gets one too. If the response
+     * is bigger than the client can take (512 bytes without EDNS, otherwise what it advertised, up to 4096), it's cut
+     * down to the header and question with the TC flag set, which tells the client to ask again over TCP.
+     *
+     * @param clientPayloadSize - the UDP payload size from the client's OPT record, or 0 if it didn't have one
+     * @return ByteBuffer - the response, from position 0 to the limit
+     */
+
+    ByteBuffer finishUDP(int clientPayloadSize){
+
+        int maxLength = clientPayloadSize == 0 ? UDP_PAYLOAD_SIZE : Math.min(clientPayloadSize, EDNS_PAYLOAD_SIZE);
+
+        return finish(clientPayloadSize, maxLength);
+    }
+
+    /**
+     * finishTCP() gets the response that was just written ready to send over TCP, which can take a message of any
+     * size. Like finishUDP(), it adds an OPT record if the client's query had one.
+     *
+     * @param clientPayloadSize - the UDP payload size from the client's OPT record, or 0 if it didn't have one
+     * @return ByteBuffer - the response, from position 0 to the limit
+     */
+
+    ByteBuffer finishTCP(int clientPayloadSize){
+
+        return finish(clientPayloadSize, out.capacity());
+    }
+
+    /**
+     * finish() does the work of finishUDP() and finishTCP().
+     */
+
+    private ByteBuffer finish(int clientPayloadSize, int maxLength){
+
+        int length = out.limit();
+        boolean edns = clientPayloadSize > 0;
+        int optLength = edns ? 11 : 0;
+
+        out.clear();
+
+        if (length + optLength > maxLength){
+
+            // Only the header and question fit, and the client should know there was more
+            length = skip(out, DNSHeader.LENGTH) + 4;
+            out.putShort(2, (short) (out.getShort(2) | FLAG_TC));
+            out.putShort(6, (short) 0);
+            out.putShort(8, (short) 0);
+            out.putShort(10, (short) 0);
+        }
+
+        out.position(length);
+
+        if (edns){
+            writeOPT();
+            out.putShort(10, (short) (out.getShort(10) + 1));
+        }
+
+        out.flip();
+        return out;
+    }
+
+    /**
+     * writeOPT() writes an OPT record advertising our UDP payload size: the root name, TYPE 41, the payload size in the
+     * CLASS field, no extended flags (in the TTL field), and no options.
+     */
+
+    void writeOPT(){
+
+        out.put((byte) 0);
+        out.putShort(TYPE_OPT);
+        out.putShort((short) EDNS_PAYLOAD_SIZE);
+        out.putInt(0);
+        out.putShort((short) 0);
+    }
+
+    /**
+     * writeTTL() writes a record's TTL and remembers where it was written.
+     *
+     * @param ttl - the TTL to write
+     */
+
+    void writeTTL(int ttl){
+
+        if (ttlCount == ttlOffsets.length){
+            ttlOffsets = Arrays.copyOf(ttlOffsets, ttlCount * 2);
+        }
+        ttlOffsets[ttlCount++] = out.position();
+
+        out.putInt(ttl);
+    }
+
+    /**
+     * toPacket() points the encoder's packet at the last encoded message so it can be sent through a DatagramSocket.
+     *
+     * @param address - where the packet should be sent
+     * @return DatagramPacket - the packet, only good until this thread encodes another message
+     */
+
+    DatagramPacket toPacket(SocketAddress address){
+
+        packet.setData(out.array(), 0, out.limit());
+        packet.setSocketAddress(address);
+
+        return packet;
+    }
+
+    /**
+     * writeDomainName() copies a name out of a packet. If a suffix of the name (i.e. "example.com" for "www.example.com")
+     * has already been written, only the labels in front of it are written, followed by a pointer back to it.
+     * Otherwise, the whole name is written using DNS encoding (each label prefixed with its length, 0 at the end).
+     *
+     * @param source - the packet the name is in
+     * @param offset - where the name starts in that packet
+     */
+
+    void writeDomainName(ByteBuffer source, int offset){
+
+        int position = DNSName.follow(source, offset);
+
+        // Suffixes of this name can't be pointed at until the whole name has been written
+        int written = suffixCount;
+
+        while (source.get(position) != 0){
+
+            // If the rest of the name has been written already, point back at it and stop
+            int previous = findSuffix(source, position, written);
+            if (previous >= 0){
+                out.putShort((short) (0xC000 | previous));
+                return;
+            }
+
+            // Remember where this suffix starts so later names can point at it
+            if (suffixCount < suffixOffsets.length && out.position() <= MAX_POINTER_OFFSET){
+                suffixOffsets[suffixCount++] = out.position();
+            }
+
+            int length = source.get(position);
+            copy(source, position, length + 1);
+
+            position = DNSName.follow(source, position + length + 1);
+        }
+
+        // Terminate domain name with a length of zero
+        out.put((byte) 0);
+    }
+
+    /**
+     * findSuffix() looks for a name suffix that has already been written and matches the name at the given position.
+     *
+     * @param source - the packet the name is in
+     * @param position - where the suffix starts in that packet
+     * @param count - how many entries of the suffix table to search
+     * @return int - where the matching suffix is in the output, or -1 if it hasn't been written
+     */
+
+    int findSuffix(ByteBuffer source, int position, int count){
+
+        for (int i = 0; i < count; i++){
+            if (DNSName.equals(out, suffixOffsets[i], source, position)){
+                return suffixOffsets[i];
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * writeRDATA() copies a record's RDATA. Names inside RDATA are rewritten, since compression pointers in them point
+     * at offsets in the packet they came from, and that packet isn't the one being written.
+     *
+     * @param record - record whose RDATA should be written
+     */
+
+    void writeRDATA(DNSRecord record){
+
+        ByteBuffer source = record.buffer;
+        int start = record.rdataOffset;
+        int end = start + (record.RDLENGTH & 0xFFFF);
+
+        // Leave room for RDLENGTH, which isn't known until the names have been written
+        int lengthPosition = out.position();
+        out.putShort((short) 0);
+
+        switch (record.TYPE) {
+            case TYPE_NS, TYPE_CNAME, TYPE_PTR -> writeDomainName(source, start);
+            case TYPE_MX -> {
+                copy(source, start, 2);
+                writeDomainName(source, start + 2);
+            }
+            case TYPE_SOA -> {
+                writeDomainName(source, start);
+                int position = skip(source, start);
+                writeDomainName(source, position);
+                position = skip(source, position);
+                copy(source, position, end - position);
+            }
+            default -> copy(source, start, end - start);
+        }
+
+        out.putShort(lengthPosition, (short) (out.position() - lengthPosition - 2));
+    }
+
+    /**
+     * copy() copies bytes out of a packet into the output.
+     *
+     * @param source - the packet to copy from
+     * @param offset - where the bytes start in that packet
+     * @param length - how many bytes to copy
+     */
+
+    void copy(ByteBuffer source, int offset, int length){
+
+        out.put(out.position(), source, offset, length);
+        out.position(out.position() + length);
+    }
+
+    /**
+     * skip() returns the offset right after a name that has already been checked by the decoder.
+     *
+     * @param source - the packet the name is in
+     * @param offset - where the name starts
+     * @return int - the offset of the first byte after the name
+     */
+
+    static int skip(ByteBuffer source, int offset){
+
+        while (true){
+            int length = source.get(offset) & 0xFF;
+            if ((length & DNSName.POINTER) == DNSName.POINTER){
+                return offset + 2;
+            }
+            if (length == 0){
+                return offset + 1;
+            }
+            offset += length + 1;
+        }
+    }
+}
@@ -1,32 +1,26 @@
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 
 /**
  * DNSHeader stores all the data provided by the 12 byte DNS header.
  */
 public class DNSHeader {
 
+    // The header is always 12 bytes long
+    static final int LENGTH = 12;
+
     // Components of a DNS header
     short ID;
-    byte[] thirdAndFourthHeaderBytes;
+    short flags;
     byte QR;
     byte OpCode;
     byte GroupAATCRD;
     byte GroupRAZADCD;
     byte RCODE;
 
-    byte[] QDCOUNT;
-    byte[] ANCOUNT;
-    byte[] NSCOUNT;
-    byte[] ARCOUNT;
-
-    // Short versions are used to make comparisons more easily
-    short ANCOUNTShort;
-    short NSCOUNTShort;
-    short ARCOUNTShort;
+    short QDCOUNT;
+    short ANCOUNT;
+    short NSCOUNT;
+    short ARCOUNT;
 
 
     private DNSHeader(){
@@ -34,25 +28,24 @@ public class DNSHeader {
     }
 
     /**
-     * decodeHeader() reads the header from a message
+     * decodeHeader() reads the header from the start of a message. Every field is read straight out of the buffer
+     * by its offset, so nothing is copied.
      *
-     * @param inputStream - for maintaining the same input stream
+     * @param buffer - the bytes of the whole message
      * @return DNSHeader - a new header with the correct components represented
-     * @throws IOException
      */
 
-    public static DNSHeader decodeHeader(ByteArrayInputStream inputStream) throws IOException {
+    public static DNSHeader decodeHeader(ByteBuffer buffer) {
 
         DNSHeader header = new DNSHeader();
 
         // First two bytes of the header contain the ID
-        byte[] tempID = inputStream.readNBytes(2);
-        header.ID = (short) ((tempID[0] << 8) | (tempID[1] & (0xFF)));
+        header.ID = buffer.getShort(0);
 
         // Next two bytes of the header contain the QR, OpCode, AA, TC, RD, RA, Z, AD, CD, and RCODE
-        header.thirdAndFourthHeaderBytes = inputStream.readNBytes(2);
+        header.flags = buffer.getShort(2);
 
-        byte thirdHeaderByte = header.thirdAndFourthHeaderBytes[0];
+        byte thirdHeaderByte = (byte) (header.flags >> 8);
 
         header.QR = (byte)(thirdHeaderByte >> 7 & 0x1);
 
@@ -63,7 +56,7 @@ public class DNSHeader {
         header.GroupAATCRD = (byte) (header.GroupAATCRD >> 5);
 
 
-        byte fourthHeaderByte = header.thirdAndFourthHeaderBytes[1];
+        byte fourthHeaderByte = (byte) header.flags;
 
         header.GroupRAZADCD = (byte) (fourthHeaderByte >> 4);
 
@@ -71,18 +64,10 @@ public class DNSHeader {
         header.RCODE = (byte) (header.RCODE >> 4);
 
         // QDCOUNT, ANCOUNT, NSCOUNT, and RCOUNT are each represented by two bytes
-
-        header.QDCOUNT = inputStream.readNBytes(2);
-
-        header.ANCOUNT = inputStream.readNBytes(2);
-        header.ANCOUNTShort = (short) ((header.ANCOUNT[0] << 8) | (header.ANCOUNT[1] & (0xFF)));
-
-        header.NSCOUNT = inputStream.readNBytes(2);
-        header.NSCOUNTShort = (short) ((header.NSCOUNT[0] << 8) | (header.NSCOUNT[1] & (0xFF)));
-
-        header.ARCOUNT = inputStream.readNBytes(2);
-        header.ARCOUNTShort = (short) ((header.ARCOUNT[0] << 8) | (header.ARCOUNT[1] & (0xFF)));
-
+        header.QDCOUNT = buffer.getShort(4);
+        header.ANCOUNT = buffer.getShort(6);
+        header.NSCOUNT = buffer.getShort(8);
+        header.ARCOUNT = buffer.getShort(10);
 
         return header;
     }
@@ -103,74 +88,94 @@ public class DNSHeader {
         responseHeader.ID = request.header.ID;
 
         // Remaining header components should match Google's response header
-        responseHeader.thirdAndFourthHeaderBytes = response.header.thirdAndFourthHeaderBytes;
+        responseHeader.flags = response.header.flags;
+        responseHeader.RCODE = response.header.RCODE;
 
         responseHeader.QDCOUNT = response.header.QDCOUNT;
-        responseHeader.ANCOUNTShort = response.header.ANCOUNTShort;
-        responseHeader.NSCOUNTShort = response.header.NSCOUNTShort;
-        responseHeader.ARCOUNTShort = response.header.ARCOUNTShort;
+        responseHeader.ANCOUNT = response.header.ANCOUNT;
+        responseHeader.NSCOUNT = response.header.NSCOUNT;
+        responseHeader.ARCOUNT = response.header.ARCOUNT;
 
         return responseHeader;
     }
 
     /**
-     * writeBytes() encodes the header to bytes to be sent back to the client.
+     * buildAnswerHeader() creates the header for an answer the server puts together itself: a response with
+     * recursion desired and available and no error.
      *
-     * @param outputStream - maintains the same output stream
-     * @throws IOException
+     * @param answerCount - how many answers the response has
+     * @return DNSHeader - the header
      */
 
-    void writeBytes(OutputStream outputStream) throws IOException {
+    static DNSHeader buildAnswerHeader(short answerCount){
 
-        outputStream.write(shortToBytes(ID));
-
-        outputStream.write(thirdAndFourthHeaderBytes);
+        return buildAnswerHeader(answerCount, 0);
+    }
 
-        outputStream.write(QDCOUNT);
+    /**
+     * This version of buildAnswerHeader() sets the RCODE too, so negative answers (i.e. NXDOMAIN) can be put
+     * together the same way.
+     *
+     * @param answerCount - how many answers the response has
+     * @param rcode - the response code
+     * @return DNSHeader - the header
+     */
 
-        // ANCOUNT will never be greater than 1 for our purposes, since we only want to send back 1 answer
-        if (ANCOUNTShort > (short)1){
-            ANCOUNTShort = 1;
-        }
+    static DNSHeader buildAnswerHeader(short answerCount, int rcode){
 
-        outputStream.write(shortToBytes(ANCOUNTShort));
+        ByteBuffer header = ByteBuffer.allocate(LENGTH);
 
-        outputStream.write(shortToBytes(NSCOUNTShort));
+        // QR, RD and RA are set, along with the RCODE
+        header.putShort(2, (short) (0x8180 | (rcode & 0xF)));
+        header.putShort(4, (short) 1);
+        header.putShort(6, answerCount);
 
-        outputStream.write(shortToBytes(ARCOUNTShort));
+        return decodeHeader(header);
     }
 
     /**
-     * shortToBytes() takes in a short and returns it as a byte array
+     * writeBytes() encodes the header to bytes to be sent back to the client.
      *
-     * @param s - short to be converted into a byte array
-     * @return byte[] - byte version of the short
+     * @param encoder - the encoder the message is being written with
+     * @param id - the ID to write, which is the client's ID when this is a response
+     * @param answerCount - how many answers are being written
+     * @param authorityCount - how many authority records are being written
+     * @param additionalCount - how many additional records are being written
      */
 
-    byte[] shortToBytes(short s){
+    void writeBytes(DNSEncoder encoder, short id, short answerCount, short authorityCount, short additionalCount) {
+
+        ByteBuffer out = encoder.out;
+
+        out.putShort(id);
+
+        out.putShort(flags);
+
+        // Only the first question is ever decoded, so it's the only one written
+        out.putShort((short) 1);
+
+        // The record counts come from what's being written, since an OPT record may have been left out
+        out.putShort(answerCount);
+
+        out.putShort(authorityCount);
 
-        ByteBuffer bb = ByteBuffer.allocate(2);
-        bb.putShort(s);
-        return bb.array();
+        out.putShort(additionalCount);
     }
 
     @Override
     public String toString() {
         return "DNSHeader{" +
                 "ID=" + ID +
-                ", thirdAndFourthHeaderBytes=" + Arrays.toString(thirdAndFourthHeaderBytes) +
+                ", flags=" + flags +
                 ", QR=" + QR +
                 ", OpCode=" + OpCode +
                 ", GroupAATCRD=" + GroupAATCRD +
                 ", GroupRAZADCD=" + GroupRAZADCD +
                 ", RCODE=" + RCODE +
-                ", QDCOUNT=" + Arrays.toString(QDCOUNT) +
-                ", ANCOUNT=" + Arrays.toString(ANCOUNT) +
-                ", NSCOUNT=" + Arrays.toString(NSCOUNT) +
-                ", ARCOUNT=" + Arrays.toString(ARCOUNT) +
-                ", ANCOUNTShort=" + ANCOUNTShort +
-                ", NSCOUNTShort=" + NSCOUNTShort +
-                ", ARCOUNTShort=" + ARCOUNTShort +
+                ", QDCOUNT=" + QDCOUNT +
+                ", ANCOUNT=" + ANCOUNT +
+                ", NSCOUNT=" + NSCOUNT +
+                ", ARCOUNT=" + ARCOUNT +
                 '}';
     }
-}
\ No newline at end of file
+}
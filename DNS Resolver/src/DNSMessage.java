@@ -1,17 +1,14 @@
 import java.io.*;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.HashMap;
 
 /**
  * DNSMessage represents an entire DNS message (either a client request, a google request, a google response, or a client response)
  */
 public class DNSMessage {
 
-    ByteArrayInputStream inputStream;
-
-    // A DNSMessage represented in bytes
-    byte[] byteMessage;
+    // The bytes of the whole message. Names and RDATA are read out of it by offset.
+    ByteBuffer buffer;
 
     DNSHeader header;
 
@@ -21,6 +18,17 @@ public class DNSMessage {
     DNSRecord[] authorityRecords;
     DNSRecord[] additionalRecords;
 
+    // UDP payload size from the OPT record of a query (EDNS0, RFC 6891), or 0 if the query didn't have one. Responses
+    // don't keep their OPT record at all, since it describes the upstream's connection and not the answer.
+    int ednsPayloadSize;
+
+    // When the query was received (System.nanoTime()), for timing how long the client waits. Set by whoever received
+    // it, 0 for messages that aren't client queries.
+    long receivedAt;
+
+    // Shared by every message that isn't a response, since those have no records
+    private static final DNSRecord[] NO_RECORDS = new DNSRecord[0];
+
     private DNSMessage(){
 
     }
@@ -35,274 +43,281 @@ public class DNSMessage {
 
     static DNSMessage decodeMessage(byte[] bytes) throws IOException {
 
-        DNSMessage message = new DNSMessage();
-
-        // The new message should have its own inputStream
-        message.inputStream = new ByteArrayInputStream(bytes);
-
-        message.byteMessage = bytes;
-
+        return decodeMessage(ByteBuffer.wrap(bytes));
+    }
 
-        // Establish the message's header, question, and record components
-        message.header = DNSHeader.decodeHeader(message.inputStream);
+    /**
+     * This version of decodeMessage() reads the message straight out of a buffer. Every field is read by its offset
+     * (the message starts at index 0 and ends at the buffer's limit), and names and RDATA are left where they are in
+     * the buffer, so the buffer must not be reused while the message is still in use.
+     *
+     * @param buffer - the bytes of the whole message
+     * @return DNSMessage - a new message containing the appropriate header, question, and records according to the packet.
+     * @throws IOException if the message is truncated or malformed
+     */
 
-        message.question = DNSQuestion.decodeQuestion(message.inputStream, message);
+    static DNSMessage decodeMessage(ByteBuffer buffer) throws IOException {
 
-        // QR indicates that the message is a response. If it is a response, we need to decode the record. If not, no
-        // record is needed
-        if (message.header.QR == 1){
+        DNSMessage message = new DNSMessage();
 
-            // ANCOUNT indicates how many answers the message contains - build an array of this size.
-            message.answers = new DNSRecord[message.header.ANCOUNTShort];
+        message.buffer = buffer;
 
-            // Each answer in the answer array should be its own record
-            for (int i = 0; i < message.answers.length; i++) {
+        try {
+            // Establish the message's header, question, and record components
+            message.header = DNSHeader.decodeHeader(buffer);
 
-                DNSRecord record = DNSRecord.decodeRecord(message.inputStream, message);
-                message.answers[i] = record;
+            if (message.header.QDCOUNT < 1){
+                throw new IOException("Message has no question.");
             }
 
-            // NSCOUNT indicates how many authority records the message contains - build an array of this size.
-            message.authorityRecords = new DNSRecord[message.header.NSCOUNTShort];
+            message.question = DNSQuestion.decodeQuestion(buffer, DNSHeader.LENGTH);
 
-            // Each authority record in the authority records array should be its own record
-            for (int i = 0; i < message.authorityRecords.length; i++) {
+            int offset = DNSHeader.LENGTH + message.question.length;
 
-                DNSRecord record = DNSRecord.decodeRecord(message.inputStream, message);
-                message.authorityRecords[i] = record;
-            }
+            // QR indicates that the message is a response. If it is a response, we need to decode the record. If not, no
+            // record is needed
+            if (message.header.QR == 1){
 
-            // ARCOUNT indicates how many additional records the message contains - build an array of this size.
-            message.additionalRecords = new DNSRecord[message.header.ARCOUNTShort];
+                // ANCOUNT, NSCOUNT and ARCOUNT indicate how many records are in each section - build arrays of these sizes.
+                message.answers = new DNSRecord[message.header.ANCOUNT & 0xFFFF];
+                message.authorityRecords = new DNSRecord[message.header.NSCOUNT & 0xFFFF];
+                message.additionalRecords = new DNSRecord[message.header.ARCOUNT & 0xFFFF];
 
-            // Each additional record in the additional records array should be its own record
-            for (int i = 0; i < message.additionalRecords.length; i++) {
+                // Each record in each section should be its own record, and each one starts where the last one ended
+                offset = decodeRecords(buffer, offset, message.answers);
+                offset = decodeRecords(buffer, offset, message.authorityRecords);
+                decodeRecords(buffer, offset, message.additionalRecords);
 
-                DNSRecord record = DNSRecord.decodeRecord(message.inputStream, message);
-                message.additionalRecords[i] = record;
+                message.additionalRecords = withoutOPT(message.additionalRecords);
             }
+            else {
+                message.answers = NO_RECORDS;
+                message.authorityRecords = NO_RECORDS;
+                message.additionalRecords = NO_RECORDS;
 
+                message.ednsPayloadSize = ednsPayloadSize(buffer);
+            }
+        }
+        catch (IndexOutOfBoundsException e){
+            throw new IOException("Message is truncated.");
         }
 
         return message;
     }
 
     /**
-     * This version of readDomainName() reads the pieces of a domain name starting from the current position of the input stream
-     * (used if the domain name is not compressed).
+     * decodeRecords() fills an array with the records that start at the given offset.
      *
-     * @param inputStream - maintains use of the same inputStream.
-     * @return - String[] representing the components of the domain name (i.e. google.com contains "google" and "com")
-     * @throws IOException
+     * @param buffer - the bytes of the whole message
+     * @param offset - where the first record starts
+     * @param records - array to fill, already the size of the section
+     * @return int - the offset right after the last record
+     * @throws IOException if a record is malformed
      */
 
-    String[] readDomainName(InputStream inputStream) throws IOException {
+    private static int decodeRecords(ByteBuffer buffer, int offset, DNSRecord[] records) throws IOException {
 
-        // Make an array of byte arrays which represent the labels, or the components of the domain name.
-        ArrayList<byte[]> labels = new ArrayList<>();
+        for (int i = 0; i < records.length; i++) {
 
-        // If the domain name is not compressed, the length byte will indicate how many bytes to read for the domain name.
-        byte[] length = inputStream.readNBytes(1);
-
-        // A length of zero indicates that there are no more labels to read.
-        while (length[0] != 0){
-            // Read as many bytes as the length byte indicates
-            byte[] label = inputStream.readNBytes(length[0]);
-            // Add the label to the array of labels
-            labels.add(label);
-
-            length = inputStream.readNBytes(1);
-        }
-
-        // Need to turn the array of labels into a string array
-        String[] labelsAsStrings = new String[labels.size()];
-
-        for (int i = 0; i < labels.size(); i++){
-            String toAdd = new String(labels.get(i));
-            labelsAsStrings[i] = toAdd;
+            records[i] = DNSRecord.decodeRecord(buffer, offset);
+            offset += records[i].length;
         }
 
-        return labelsAsStrings;
+        return offset;
     }
 
     /**
-     * This version of readDomainName() is used when there's compression and we need to find the domain from earlier in the message.
-     * This method makes a ByteArrayInputStream that starts at the specified byte and calls the other version of this method.
+     * withoutOPT() takes the OPT pseudo-record out of an additional section, if it has one.
      *
-     * @param firstByte - represents the offset, or where in the inputStream the domain name is located.
-     * @return - String[] representing the components of the domain name (i.e. google.com contains "google" and "com")
-     * @throws IOException
+     * @param records - the additional records
+     * @return DNSRecord[] - the same records without the OPT record (the same array if there wasn't one)
      */
 
-    String[] readDomainName(int firstByte) throws IOException {
+    private static DNSRecord[] withoutOPT(DNSRecord[] records){
 
-        ByteArrayInputStream forReadDomainNameCompression = new ByteArrayInputStream(byteMessage);
+        for (int i = 0; i < records.length; i++){
+            if (records[i].TYPE == DNSEncoder.TYPE_OPT){
 
-        // Read up until the indicated byte to get to the correct location (but we don't actually use these bytes for anything)
-        byte [] toDiscard = forReadDomainNameCompression.readNBytes(firstByte);
+                DNSRecord[] rest = new DNSRecord[records.length - 1];
+                System.arraycopy(records, 0, rest, 0, i);
+                System.arraycopy(records, i + 1, rest, i, rest.length - i);
 
-        // Call on the other version of readDomainName
-        String[] domainName = readDomainName(forReadDomainNameCompression);
+                return withoutOPT(rest);
+            }
+        }
 
-        return domainName;
+        return records;
     }
 
     /**
-     * buildResponse() builds an entire message response based on the request and the answers intended to send back to the client.
+     * ednsPayloadSize() finds the OPT record in a raw query and returns the UDP payload size the client advertised
+     * (which is in the OPT record's CLASS field). The rest of the query isn't decoded, so this also works on packets
+     * that are answered straight from the cache.
      *
-     * @param request - represents the request message initially sent to us in the client request.
-     * @param responseFromGoogle - represents the response message sent to us from our Google request.
-     * @return DNSMessage - represents the response message that we will send back to the client with the appropriate
-     * header, question, and answer components.
+     * @param packet - a query, from index 0 to the limit
+     * @return int - the client's UDP payload size (at least 512), or 0 if the query has no OPT record or can't be read
      */
 
-    static DNSMessage buildResponse(DNSMessage request, DNSMessage responseFromGoogle){
+    static int ednsPayloadSize(ByteBuffer packet){
 
-        DNSMessage responseMessage = new DNSMessage();
+        try {
+            int offset = DNSHeader.LENGTH;
 
-        responseMessage.header = DNSHeader.buildResponseHeader(request, responseFromGoogle);
+            for (int i = 0; i < (packet.getShort(4) & 0xFFFF); i++){
+                offset = DNSName.skip(packet, offset) + 4;
+            }
 
-        // Question and record sections should be based off of the response we got back from our Google query
-        responseMessage.question = responseFromGoogle.question;
+            // Queries don't normally have answer or authority records, but they're skipped in case they do
+            int records = (packet.getShort(6) & 0xFFFF) + (packet.getShort(8) & 0xFFFF);
+            int additional = packet.getShort(10) & 0xFFFF;
 
-        responseMessage.answers = responseFromGoogle.answers;
+            for (int i = 0; i < records + additional; i++){
 
-        responseMessage.authorityRecords = responseFromGoogle.authorityRecords;
+                offset = DNSName.skip(packet, offset);
 
-        responseMessage.additionalRecords = responseFromGoogle.additionalRecords;
+                if (i >= records && packet.getShort(offset) == DNSEncoder.TYPE_OPT){
+                    return Math.max(DNSEncoder.UDP_PAYLOAD_SIZE, packet.getShort(offset + 2) & 0xFFFF);
+                }
 
-        return responseMessage;
+                offset += 10 + (packet.getShort(offset + 8) & 0xFFFF);
+            }
+        }
+        catch (IOException | IndexOutOfBoundsException e){
+            return 0;
+        }
+
+        return 0;
     }
 
     /**
-     * toBytes() gets the message bytes to put in a packet and send back to the client.
+     * expirationTime() returns when the message as a whole expires: the earliest expiration of any record in any
+     * section, since a cached response can't be served once part of it is stale.
      *
-     * @return byte[] - represents the response message in bytes.
-     * @throws IOException
+     * @return long - System.nanoTime() at which the first record expires, or the current time if there are no records
      */
 
-    byte[] toBytes() throws IOException {
-
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    long expirationTime(){
 
-        header.writeBytes(outputStream);
+        long expiration = 0;
+        boolean hasRecords = false;
 
-        // Create a hashmap to keep track of where domain names are located within the message
-        HashMap<String,Integer> domainNameLocations = new HashMap<>();
-
-        question.writeBytes(outputStream, domainNameLocations);
-
-        // For our purposes, we are only writing the first answer back to the client.
-        if (answers.length > 0){
-            answers[0].writeBytes(outputStream, domainNameLocations);
+        for (DNSRecord[] section : new DNSRecord[][] { answers, authorityRecords, additionalRecords }){
+            for (DNSRecord record : section){
+                if (!hasRecords || record.expirationTime() - expiration < 0){
+                    expiration = record.expirationTime();
+                }
+                hasRecords = true;
+            }
         }
 
-        // If there are any authority records, we want to write them back to the client.
-        for (DNSRecord r : authorityRecords){
-            r.writeBytes(outputStream, domainNameLocations);
-        }
+        return hasRecords ? expiration : System.nanoTime();
+    }
 
-        // If there are any additional records, we want to write them back to the client.
-        for (DNSRecord r: additionalRecords){
-            r.writeBytes(outputStream, domainNameLocations);
-        }
+    /**
+     * isNegative() checks whether the message says the name doesn't exist (NXDOMAIN) or has no records of the type
+     * asked for (NODATA: no error, but no answers either).
+     *
+     * @return true if the message is a negative answer
+     */
 
+    boolean isNegative(){
 
-        // Creates a byte[] from the output stream we created.
-        return outputStream.toByteArray();
+        return header.RCODE == 3 || (header.RCODE == 0 && answers.length == 0);
     }
 
     /**
-     * If this is the first time we've seen this domain name in the packet, write it using DNS encoding
-     * (each segment of the domain prefixed with its length, 0 at the end), and add it to the hash map.
-     * Otherwise, write a back pointer to where the domain has been seen previously.
+     * negativeTTL() returns how long a negative answer can be cached (RFC 2308): the smaller of the TTL of the SOA
+     * record in the authority section and the SOA's MINIMUM field.
      *
-     * @param byteArrayOutputStream - for maintaining the same output stream
-     * @param domainLocations - hashmap that contains current domain name pieces and their positions in the message
-     * @param domainNamePieces - string components of the domain name
-     * @throws IOException
+     * @return int - seconds the negative answer can be cached, or -1 if there's no SOA record (so it can't be cached)
      */
 
-    static void writeDomainName(ByteArrayOutputStream byteArrayOutputStream, HashMap<String,Integer> domainLocations, String[] domainNamePieces) throws IOException {
-
-        // Get the full domain name, including dots
-        String domainNameString = octetsToString(domainNamePieces);
-
-        // If this name is not in the hashmap, we need to write it using encoding and add it to the hashmap.
-        if (domainLocations.get(domainNameString) == null){
+    int negativeTTL(){
 
-            // out.size tells us how many we've read in so far, which keeps track of the domain name's location in the message
-            domainLocations.put(domainNameString, byteArrayOutputStream.size());
+        for (DNSRecord record : authorityRecords){
+            if (record.TYPE == DNSEncoder.TYPE_SOA){
 
-            for (String s : domainNamePieces) {
-                int length = s.length();
+                // MINIMUM is the last four bytes of the SOA's RDATA
+                long minimum = record.buffer.getInt(record.rdataOffset + (record.RDLENGTH & 0xFFFF) - 4) & 0xFFFFFFFFL;
 
-                // DNS encoding: write the length of the domain name segment followed by the segment
-                byteArrayOutputStream.write(((byte) length));
-                byteArrayOutputStream.write(s.getBytes());
+                return (int) Math.min(Math.min(record.TTL & 0xFFFFFFFFL, minimum), Integer.MAX_VALUE);
             }
-            // Terminate domain name with a length of zero
-            byteArrayOutputStream.write((byte)0);
         }
 
-        // If this name is in the hashmap, it has been seen already and we need to write a pointer to its location.
-        else {
+        return -1;
+    }
+
+    /**
+     * assemble() builds a response out of cached records instead of an upstream response.
+     *
+     * @param question - the question being answered (with its own buffer, since the message keeps it)
+     * @param answers - the answer records, which can come from different responses
+     * @return DNSMessage - the response
+     */
+
+    static DNSMessage assemble(DNSQuestion question, DNSRecord[] answers){
+
+        DNSMessage message = new DNSMessage();
+
+        message.buffer = question.buffer;
+        message.header = DNSHeader.buildAnswerHeader((short) answers.length);
+        message.question = question;
+        message.answers = answers;
+        message.authorityRecords = NO_RECORDS;
+        message.additionalRecords = NO_RECORDS;
+
+        return message;
+    }
+
+    /**
+     * buildResponse() builds an entire message response based on the request and the answers intended to send back to the client.
+     *
+     * @param request - represents the request message initially sent to us in the client request.
+     * @param responseFromGoogle - represents the response message sent to us from our Google request.
+     * @return DNSMessage - represents the response message that we will send back to the client with the appropriate
+     * header, question, and answer components.
+     */
 
-            // Get the domain name's location in the stream (called the offset) from the hashmap
-            int offset = domainLocations.get(domainNameString);
+    static DNSMessage buildResponse(DNSMessage request, DNSMessage responseFromGoogle){
 
-            // Indicate compression with two "1" bits
-            int indicateCompression = 0xC000;
+        DNSMessage responseMessage = new DNSMessage();
 
-            // Represents 2 bytes with 2 "1" bits and the offset
-            int compressedDomainName = (offset | indicateCompression);
+        responseMessage.header = DNSHeader.buildResponseHeader(request, responseFromGoogle);
 
-            // Need to write one byte at a time (writing an int in a byteArrayStream will only write the last 8 bits)
-            int writeFirstByte = compressedDomainName >> 8;
+        // Question and record sections should be based off of the response we got back from our Google query
+        responseMessage.question = responseFromGoogle.question;
 
-            byteArrayOutputStream.write(writeFirstByte);
+        responseMessage.answers = responseFromGoogle.answers;
 
-            // Writes the last 8 bits from the original int
-            byteArrayOutputStream.write(compressedDomainName);
+        responseMessage.authorityRecords = responseFromGoogle.authorityRecords;
 
-        }
+        responseMessage.additionalRecords = responseFromGoogle.additionalRecords;
 
+        return responseMessage;
     }
 
     /**
-     * octetsToString() joins the pieces of a domain name with dots (i.e. "google" and "com" becomes "google.com").
+     * toBytes() gets the message bytes as their own array. The servers send straight from DNSEncoder's buffer instead,
+     * this is for when the bytes need to be kept around.
      *
-     * @param octets - components of the domain name
-     * @return - singular string that represents the domain name components connected with dots
+     * @return byte[] - represents the response message in bytes.
      */
 
-    static String octetsToString(String[] octets){
-
-        String domainNameWithDots;
+    byte[] toBytes() {
 
-        // If the domain name has no components, create an empty string
-        if (octets.length == 0){
-            domainNameWithDots = "";
-        }
-        // Get the first domain name component
-        else {
-            domainNameWithDots = octets[0];
-        }
+        ByteBuffer encoded = DNSEncoder.get().encode(this);
 
-        for (int i = 1; i < octets.length; i++){
-            domainNameWithDots += "." + octets[i];
-        }
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
 
-        return domainNameWithDots;
+        return bytes;
     }
 
 
     @Override
     public String toString() {
         return "DNSMessage{" +
-                "inputStream=" + inputStream +
-                ", byteMessage=" + Arrays.toString(byteMessage) +
-                ", header=" + header +
+                "header=" + header +
                 ", question=" + question +
                 ", answers=" + Arrays.toString(answers) +
                 ", authorityRecords=" + Arrays.toString(authorityRecords) +
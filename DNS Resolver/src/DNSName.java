@@ -0,0 +1,320 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * DNSName works with domain names where they sit in a packet, instead of copying them out into strings. A name is
+ * just a buffer and the offset its first length byte is at. Compression pointers are followed as needed.
+ */
+public class DNSName {
+
+    // The two top bits of a length byte that mark a compression pointer
+    static final int POINTER = 0xC0;
+
+    // Longest a name is allowed to be on the wire (RFC 1035)
+    static final int MAX_LENGTH = 255;
+
+
+    private DNSName(){
+
+    }
+
+    /**
+     * skip() checks that the name starting at offset is well formed and returns where the bytes after it start.
+     * Compression pointers have to point backwards, which guarantees every later walk over the name ends.
+     *
+     * @param buffer - the packet the name is in
+     * @param offset - where the name starts
+     * @return int - the offset of the first byte after the name (after the pointer, if the name ends with one)
+     * @throws IOException if the name runs off the end of the packet, is too long, or has a bad pointer
+     */
+
+    static int skip(ByteBuffer buffer, int offset) throws IOException {
+
+        int end = -1;
+        int position = offset;
+        int length = 0;
+
+        try {
+            while (true){
+
+                int labelLength = buffer.get(position) & 0xFF;
+
+                if ((labelLength & POINTER) == POINTER){
+
+                    int target = pointerTarget(buffer, position);
+                    if (target >= position){
+                        throw new IOException("Compression pointer doesn't point backwards.");
+                    }
+
+                    // The bytes after the name start right after the first pointer
+                    if (end < 0){
+                        end = position + 2;
+                    }
+                    position = target;
+                    continue;
+                }
+
+                if ((labelLength & POINTER) != 0){
+                    throw new IOException("Unknown label type.");
+                }
+
+                length += labelLength + 1;
+                if (length > MAX_LENGTH){
+                    throw new IOException("Domain name is too long.");
+                }
+
+                if (labelLength == 0){
+                    return end < 0 ? position + 1 : end;
+                }
+
+                // Make sure the whole label is inside the packet
+                buffer.get(position + labelLength);
+                position += labelLength + 1;
+            }
+        }
+        catch (IndexOutOfBoundsException e){
+            throw new IOException("Domain name runs past the end of the packet.");
+        }
+    }
+
+    /**
+     * labels() copies the pieces of a name out as strings (i.e. google.com becomes "google" and "com").
+     *
+     * @param buffer - the packet the name is in
+     * @param offset - where the name starts
+     * @return String[] - the labels of the name
+     */
+
+    static String[] labels(ByteBuffer buffer, int offset){
+
+        String[] labels = new String[labelCount(buffer, offset)];
+
+        int position = follow(buffer, offset);
+        for (int i = 0; i < labels.length; i++){
+
+            int labelLength = buffer.get(position);
+            byte[] label = new byte[labelLength];
+            buffer.get(position + 1, label);
+            labels[i] = new String(label);
+
+            position = follow(buffer, position + labelLength + 1);
+        }
+
+        return labels;
+    }
+
+    /**
+     * labelCount() counts how many labels a name has, not counting the empty root label.
+     *
+     * @param buffer - the packet the name is in
+     * @param offset - where the name starts
+     * @return int - number of labels
+     */
+
+    static int labelCount(ByteBuffer buffer, int offset){
+
+        int count = 0;
+
+        int position = follow(buffer, offset);
+        while (buffer.get(position) != 0){
+            count++;
+            position = follow(buffer, position + buffer.get(position) + 1);
+        }
+
+        return count;
+    }
+
+    /**
+     * equals() compares two names without copying them. DNS names are compared ignoring case.
+     *
+     * @param a - the packet the first name is in
+     * @param aOffset - where the first name starts
+     * @param b - the packet the second name is in
+     * @param bOffset - where the second name starts
+     * @return true if both names have the same labels
+     */
+
+    static boolean equals(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset){
+
+        int aPosition = follow(a, aOffset);
+        int bPosition = follow(b, bOffset);
+
+        while (true){
+
+            int length = a.get(aPosition);
+            if (length != b.get(bPosition)){
+                return false;
+            }
+            if (length == 0){
+                return true;
+            }
+
+            for (int i = 1; i <= length; i++){
+                if (toLowerCase(a.get(aPosition + i)) != toLowerCase(b.get(bPosition + i))){
+                    return false;
+                }
+            }
+
+            aPosition = follow(a, aPosition + length + 1);
+            bPosition = follow(b, bPosition + length + 1);
+        }
+    }
+
+    /**
+     * isAtOrBelow() checks whether a name is the same as another or a subdomain of it, without copying either.
+     *
+     * @param a - the packet the name is in
+     * @param aOffset - where the name starts
+     * @param b - the packet the possible parent is in
+     * @param bOffset - where the possible parent starts
+     * @return true if the name ends with all of the parent's labels
+     */
+
+    static boolean isAtOrBelow(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset){
+
+        int extra = labelCount(a, aOffset) - labelCount(b, bOffset);
+        if (extra < 0){
+            return false;
+        }
+
+        // Skip the name's own labels until what's left is as long as the parent
+        int position = follow(a, aOffset);
+        for (int i = 0; i < extra; i++){
+            position = follow(a, position + a.get(position) + 1);
+        }
+
+        return equals(a, position, b, bOffset);
+    }
+
+    /**
+     * hashCode() hashes a name ignoring case, so names that are equal() always have the same hash.
+     *
+     * @param buffer - the packet the name is in
+     * @param offset - where the name starts
+     * @return int - the hash of the name
+     */
+
+    static int hashCode(ByteBuffer buffer, int offset){
+
+        int hash = 1;
+
+        int position = follow(buffer, offset);
+        while (true){
+
+            int length = buffer.get(position);
+            hash = 31 * hash + length;
+            if (length == 0){
+                return hash;
+            }
+
+            for (int i = 1; i <= length; i++){
+                hash = 31 * hash + toLowerCase(buffer.get(position + i));
+            }
+
+            position = follow(buffer, position + length + 1);
+        }
+    }
+
+    /**
+     * follow() returns where the next label really is: if there's a compression pointer at the offset, it returns where
+     * the pointer points (repeating if that's a pointer too), otherwise it returns the offset itself.
+     *
+     * @param buffer - the packet the name is in
+     * @param offset - offset of a length byte or pointer
+     * @return int - offset of a length byte
+     */
+
+    static int follow(ByteBuffer buffer, int offset){
+
+        while ((buffer.get(offset) & POINTER) == POINTER){
+            offset = pointerTarget(buffer, offset);
+        }
+
+        return offset;
+    }
+
+    /**
+     * pointerTarget() reads the 14 bit offset out of a compression pointer.
+     *
+     * @param buffer - the packet the pointer is in
+     * @param offset - where the pointer starts
+     * @return int - the offset the pointer points to
+     */
+
+    static int pointerTarget(ByteBuffer buffer, int offset){
+
+        return buffer.getShort(offset) & 0x3FFF;
+    }
+
+    /**
+     * write() writes an absolute name (i.e. "www.example.com.") in DNS encoding, without compression.
+     *
+     * @param out - where the name is written
+     * @param name - the name, ending in a dot
+     * @throws IllegalArgumentException if a label is empty or too long, or the name is too long
+     */
+
+    static void write(ByteBuffer out, String name){
+
+        int start = out.position();
+
+        if (!name.equals(".")){
+            for (String label : name.substring(0, name.length() - 1).split("\\.", -1)){
+                byte[] bytes = label.getBytes(StandardCharsets.ISO_8859_1);
+                if (bytes.length == 0 || bytes.length > 63){
+                    throw new IllegalArgumentException("Bad label in name: " + name);
+                }
+                out.put((byte) bytes.length).put(bytes);
+            }
+        }
+        out.put((byte) 0);
+
+        if (out.position() - start > MAX_LENGTH){
+            throw new IllegalArgumentException("Name is too long: " + name);
+        }
+    }
+
+    /**
+     * toString() reads a name out as lower case text ending in a dot (i.e. "www.example.com."), for using as a key.
+     *
+     * @param buffer - the packet the name is in
+     * @param offset - where the name starts
+     * @return String - the name, or "." for the root
+     */
+
+    static String toString(ByteBuffer buffer, int offset){
+
+        StringBuilder name = new StringBuilder();
+
+        int position = follow(buffer, offset);
+        while (buffer.get(position) != 0){
+
+            int length = buffer.get(position);
+            for (int i = 1; i <= length; i++){
+                name.append((char) (toLowerCase(buffer.get(position + i)) & 0xFF));
+            }
+            name.append('.');
+
+            position = follow(buffer, position + length + 1);
+        }
+
+        return name.length() == 0 ? "." : name.toString();
+    }
+
+    /**
+     * toLowerCase() lower cases an ASCII letter and leaves every other byte alone.
+     *
+     * @param b - byte to lower case
+     * @return byte - the lower case byte
+     */
+
+    static byte toLowerCase(byte b){
+
+        if (b >= 'A' && b <= 'Z'){
+            return (byte) (b + ('a' - 'A'));
+        }
+
+        return b;
+    }
+}
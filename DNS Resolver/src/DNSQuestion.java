@@ -1,9 +1,6 @@
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.HashMap;
 
 /**
  * DNSQuestion represents a client request.
@@ -11,71 +8,170 @@ import java.util.HashMap;
 
 public class DNSQuestion {
 
+    // The packet the question was read from, and where its domain name starts in it
+    ByteBuffer buffer;
+    int nameOffset;
+
+    // How many bytes the question takes up in the packet
+    int length;
+
     // Components of a DNS question
-    public String[] domainName;
-    byte[] QTYPE;
-    byte[] QCLASS;
+    short QTYPE;
+    short QCLASS;
+
+    // Hashing walks the whole name, so the hash is worked out once (0 means it hasn't been yet)
+    private int hash;
 
     private DNSQuestion(){
 
     }
 
     /**
-     * decodeQuestion() reads the header from a message
+     * decodeQuestion() reads the question that starts at the given offset. The domain name is left in the packet
+     * and only its offset is kept.
      *
-     * @param inputStream - maintains the same input stream
-     * @param message - message contains the readDomainName method, so we want to pass it in
+     * @param buffer - the bytes of the whole message
+     * @param offset - where the question starts
      * @return DNSQuestion - represents the question component of the message
-     * @throws IOException
+     * @throws IOException if the domain name is malformed
      */
 
-    static DNSQuestion decodeQuestion(InputStream inputStream, DNSMessage message) throws IOException {
+    static DNSQuestion decodeQuestion(ByteBuffer buffer, int offset) throws IOException {
 
         DNSQuestion question = new DNSQuestion();
 
-        // Reads the domain name (first time seeing it).
-        question.domainName = message.readDomainName(inputStream);
+        question.buffer = buffer;
+        question.nameOffset = offset;
+
+        // Checks the domain name and finds where it ends
+        int position = DNSName.skip(buffer, offset);
 
         // Next two bytes of the DNS question contain the QTYPE
-        question.QTYPE = inputStream.readNBytes(2);
+        question.QTYPE = buffer.getShort(position);
 
         // Next two bites of the DNS question contain the QCLASS
-        question.QCLASS = inputStream.readNBytes(2);
+        question.QCLASS = buffer.getShort(position + 2);
+
+        question.length = position + 4 - offset;
 
         return question;
     }
 
+    /**
+     * forName() makes a question for a name that's somewhere in a packet, like a record's name or a name in RDATA. The
+     * cache uses these as the keys for RRsets.
+     *
+     * @param buffer - the packet the name is in
+     * @param nameOffset - where the name starts (it may be compressed)
+     * @param type - the TYPE to ask for
+     * @param dnsClass - the CLASS to ask for
+     * @return DNSQuestion - a question pointing at the name
+     */
+
+    static DNSQuestion forName(ByteBuffer buffer, int nameOffset, short type, short dnsClass){
+
+        DNSQuestion question = new DNSQuestion();
+
+        question.buffer = buffer;
+        question.nameOffset = nameOffset;
+        question.QTYPE = type;
+        question.QCLASS = dnsClass;
+
+        return question;
+    }
+
+    /**
+     * probe() makes an empty question to be filled in over and over by readFrom().
+     *
+     * @return DNSQuestion - a question with no packet yet
+     */
+
+    static DNSQuestion probe(){
+
+        return new DNSQuestion();
+    }
+
+    /**
+     * readFrom() points this question at the question section of a raw client query, without decoding anything
+     * else in the packet. It's used to look the query up in the cache before the packet is decoded at all, so it
+     * only accepts plain queries (QR = 0, OPCODE = 0, one question); anything else should just be decoded.
+     *
+     * The question keeps pointing into the packet, so it must only be used while the packet is still there.
+     *
+     * @param packet - a received packet, from index 0 to the limit
+     * @return true if the packet is a plain query and the question was read, false if it should be decoded instead
+     */
+
+    boolean readFrom(ByteBuffer packet){
+
+        if (packet.limit() < DNSHeader.LENGTH){
+            return false;
+        }
+
+        // QR and OPCODE are the top five bits of the third byte, and there has to be exactly one question
+        if ((packet.get(2) & 0xF8) != 0 || packet.getShort(4) != 1){
+            return false;
+        }
+
+        try {
+            int position = DNSName.skip(packet, DNSHeader.LENGTH);
+
+            buffer = packet;
+            nameOffset = DNSHeader.LENGTH;
+            QTYPE = packet.getShort(position);
+            QCLASS = packet.getShort(position + 2);
+            length = position + 4 - DNSHeader.LENGTH;
+            hash = 0;
+
+            return true;
+        }
+        catch (IOException | IndexOutOfBoundsException e){
+            return false;
+        }
+    }
+
+    /**
+     * getDomainName() returns the labels of the domain name (i.e. "google" and "com"), reading them out of the packet.
+     * They aren't kept, since a question used as a cache key would otherwise hold on to them.
+     *
+     * @return String[] - the labels of the domain name
+     */
+
+    public String[] getDomainName(){
+
+        return DNSName.labels(buffer, nameOffset);
+    }
+
     /**
      * writeBytes() writes the question bytes which will be sent to the client.
      *
-     * @param byteArrayOutputStream - for maintaining the same output stream
-     * @param domainNameLocations - contains the locations of different name components (useful for compression)
-     * @throws IOException
+     * @param encoder - the encoder the message is being written with (it keeps track of names for compression)
      */
 
-    void writeBytes(ByteArrayOutputStream byteArrayOutputStream, HashMap<String, Integer> domainNameLocations) throws IOException {
+    void writeBytes(DNSEncoder encoder) {
 
         // Will write the correct domain name taking compression into consideration
-        DNSMessage.writeDomainName(byteArrayOutputStream, domainNameLocations, domainName);
+        encoder.writeDomainName(buffer, nameOffset);
 
-        byteArrayOutputStream.write(QTYPE);
+        encoder.out.putShort(QTYPE);
 
-        byteArrayOutputStream.write(QCLASS);
+        encoder.out.putShort(QCLASS);
     }
 
 
     @Override
     public String toString() {
         return "DNSQuestion{" +
-                "QTYPE=" + Arrays.toString(QTYPE) +
-                ", QCLASS=" + Arrays.toString(QCLASS) +
-                ", domainName=" + Arrays.toString(domainName) +
+                "QTYPE=" + QTYPE +
+                ", QCLASS=" + QCLASS +
+                ", domainName=" + Arrays.toString(getDomainName()) +
                 '}';
     }
 
 
     /**
-     * equals and hashCode are needed to use a question as a HashMap key (for the cache)
+     * equals and hashCode are needed to use a question as a HashMap key (for the cache). The names are compared
+     * where they sit in the packets, ignoring case.
      */
 
     @Override
@@ -83,14 +179,17 @@ public class DNSQuestion {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         DNSQuestion that = (DNSQuestion) o;
-        return Arrays.equals(QTYPE, that.QTYPE) && Arrays.equals(QCLASS, that.QCLASS) && Arrays.equals(domainName, that.domainName);
+        return QTYPE == that.QTYPE && QCLASS == that.QCLASS && DNSName.equals(buffer, nameOffset, that.buffer, that.nameOffset);
     }
 
     @Override
     public int hashCode() {
-        int result = Arrays.hashCode(QTYPE);
-        result = 31 * result + Arrays.hashCode(QCLASS);
-        result = 31 * result + Arrays.hashCode(domainName);
-        return result;
+        if (hash == 0){
+            int result = QTYPE;
+            result = 31 * result + QCLASS;
+            result = 31 * result + DNSName.hashCode(buffer, nameOffset);
+            hash = result;
+        }
+        return hash;
     }
-}
\ No newline at end of file
+}
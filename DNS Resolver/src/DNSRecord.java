@@ -1,9 +1,6 @@
-import java.io.*;
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.time.Duration;
 import java.util.Arrays;
-import java.time.LocalDateTime;
-import java.util.HashMap;
 
 /**
  * DNSRecord represents a DNS record. Everything after the header and question parts of the DNS message are stored as records.
@@ -11,21 +8,24 @@ import java.util.HashMap;
 
 public class DNSRecord {
 
-    // Components of a DNS record
-    String[] NAME;
-    byte[] nameAsBytes;
+    // The packet the record was read from, and where its name starts in it
+    ByteBuffer buffer;
+    int nameOffset;
 
-    // Used when domain name is compressed
-    public short offset;
+    // How many bytes the record takes up in the packet
+    int length;
 
-    byte[] TYPE;
-    byte[] CLASS;
+    // Components of a DNS record
+    short TYPE;
+    short CLASS;
     int TTL;
     short RDLENGTH;
-    byte[] RDATA;
 
-    // When the record was created
-    LocalDateTime creationDate;
+    // RDATA is left in the packet, this is where it starts
+    int rdataOffset;
+
+    // When the record was created (System.nanoTime())
+    long creationTime;
 
 
     private DNSRecord(){
@@ -33,164 +33,165 @@ public class DNSRecord {
     }
 
     /**
-     * decodeRecord() reads the record(s) from a message
+     * decodeRecord() reads the record that starts at the given offset. The name and RDATA are left in the packet and
+     * only their offsets are kept. If the name is compressed, the offset still points at the compression pointer,
+     * which is followed whenever the name is read.
      *
-     * @param inputStream - maintains the same input stream
-     * @param message - message contains the readDomainName() method, so we need to pass it in
+     * @param buffer - the bytes of the whole message
+     * @param offset - where the record starts
      * @return DNSRecord - represents the record component of the message
-     * @throws IOException
+     * @throws IOException if the name is malformed or RDATA runs past the end of the packet
      */
 
-    static DNSRecord decodeRecord(InputStream inputStream, DNSMessage message) throws IOException {
+    static DNSRecord decodeRecord(ByteBuffer buffer, int offset) throws IOException {
 
         DNSRecord record = new DNSRecord();
 
         // Represents the time the record was created
-        record.creationDate = LocalDateTime.now();
+        record.creationTime = System.nanoTime();
 
-        // Mark the inputStream so that we can return to this location
-        inputStream.mark(2);
+        record.buffer = buffer;
+        record.nameOffset = offset;
 
-        // Need to check the first byte to see if the first 2 bits are set, which indicates compression
-        byte[] peekForCompression = inputStream.readNBytes(1);
+        // Checks the name and finds where it ends
+        int position = DNSName.skip(buffer, offset);
 
-        // If the first two bits are 1's, it means that the domain name is compressed.
-        byte firstTwoBits = (byte) (peekForCompression[0] >> 6);
+        // TYPE, CLASS, and RDLENGTH are each represented by two bytes, TTL by four
+        record.TYPE = buffer.getShort(position);
 
-        if ((firstTwoBits & (0x3)) == 0x3){
+        record.CLASS = buffer.getShort(position + 2);
 
-            // Need the next byte to get the offset
-            byte[] secondCompressionByte = inputStream.readNBytes(1);
+        record.TTL = buffer.getInt(position + 4);
 
-            // If the first two bits are 1's, then the next 14 bits represent the location of the domain name in the message (the offset).
-            byte firstSixBits = (byte) (peekForCompression[0] << 2);
-            firstSixBits = (byte) (firstSixBits >> 2);
+        record.RDLENGTH = buffer.getShort(position + 8);
 
-            // Mask the first six bits together with the next eight bits
-            record.offset = (short) ((short) firstSixBits << 8 | (secondCompressionByte[0] & (0xFF)));
+        // RDLENGTH indicates how many bytes long RDATA is
+        record.rdataOffset = position + 10;
 
-            record.NAME = message.readDomainName(record.offset);
+        int end = record.rdataOffset + (record.RDLENGTH & 0xFFFF);
+        if (end > buffer.limit()){
+            throw new IOException("RDATA runs past the end of the packet.");
         }
 
-        // If the first two bits are not 1's, it means that the domain name is not compressed
-        else {
+        // Names inside RDATA get rewritten when the record is encoded, so they have to be checked too
+        record.checkRDATANames(end);
 
-            // Return back to the initial inputStream location
-            inputStream.reset();
+        record.length = end - offset;
 
-            // Call the version of readDomainName that does not deal with compression
-            record.NAME = message.readDomainName(inputStream);
-        }
-
-        // TYPE, CLASS, TTL, and RDLENGTH are each represented by two bytes
-        record.TYPE = inputStream.readNBytes(2);
+        return record;
+    }
 
-        record.CLASS = inputStream.readNBytes(2);
+    /**
+     * checkRDATANames() makes sure every domain name inside RDATA is well formed and starts inside RDATA.
+     *
+     * @param end - offset of the first byte after RDATA
+     * @throws IOException if a name is malformed or RDATA is too short to hold it
+     */
 
-        byte[] tempTTL = inputStream.readNBytes(4);
-        record.TTL = ((tempTTL[0] << 24) | ((tempTTL[1] & (0xFF0000)) | (tempTTL[2] & (0xFF00) | (tempTTL[3] & (0xFF)))));
+    private void checkRDATANames(int end) throws IOException {
 
-        byte[] tempRDLength = inputStream.readNBytes(2);
-        record.RDLENGTH = (short) ((tempRDLength[0] << 8) | (tempRDLength[1] & (0xFF)));
+        int position = rdataOffset;
 
-        // RDLENGTH indicates how many bytes long RDATA is
-        record.RDATA = inputStream.readNBytes(record.RDLENGTH);
+        switch (TYPE) {
+            case DNSEncoder.TYPE_NS, DNSEncoder.TYPE_CNAME, DNSEncoder.TYPE_PTR -> position = DNSName.skip(buffer, position);
+            case DNSEncoder.TYPE_MX -> position = DNSName.skip(buffer, position + 2);
+            case DNSEncoder.TYPE_SOA -> position = DNSName.skip(buffer, DNSName.skip(buffer, position)) + 20;
+            default -> {
+                return;
+            }
+        }
 
-        return record;
+        if (position > end){
+            throw new IOException("RDATA is too short for its type.");
+        }
     }
 
     /**
-     * writeBytes() encodes the record to bytes to be sent back to the client.
+     * getName() returns the labels of the record's name, reading them out of the packet. They aren't kept, since a
+     * cached record would otherwise hold on to them for as long as it's cached.
      *
-     * @param byteArrayOutputStream - maintains the same output stream
-     * @param domainNameLocations - - contains the locations of different name components (useful for compression)
-     * @throws IOException
+     * @return String[] - the labels of the name
      */
 
-    void writeBytes(ByteArrayOutputStream byteArrayOutputStream, HashMap<String, Integer> domainNameLocations) throws IOException {
-
-        DNSMessage.writeDomainName(byteArrayOutputStream, domainNameLocations, NAME);
-
-        byteArrayOutputStream.write(TYPE);
+    String[] getName(){
 
-        byteArrayOutputStream.write(CLASS);
-
-        // DataOutputStream can write an int
-        DataOutputStream dos = new DataOutputStream(byteArrayOutputStream);
+        return DNSName.labels(buffer, nameOffset);
+    }
 
-        // Want to write out the updated TTL according to how much time is left before the record expires
-        dos.writeInt(getCurrentTTL());
+    /**
+     * getRDATA() copies the record's RDATA out of the packet.
+     *
+     * @return byte[] - the RDATA bytes
+     */
 
-        byteArrayOutputStream.write(shortToBytes(RDLENGTH));
+    byte[] getRDATA(){
 
-        byteArrayOutputStream.write(RDATA);
+        byte[] rdata = new byte[RDLENGTH & 0xFFFF];
+        buffer.get(rdataOffset, rdata);
 
+        return rdata;
     }
 
     /**
-     * Since the TTL will decrease with time as it sits in our cache, getCurrentTTL() returns the updated TTL to write
-     * in the response to the client.
-     * @return int - represents the updated TTL
+     * writeBytes() encodes the record to bytes to be sent back to the client.
+     *
+     * @param encoder - the encoder the message is being written with (it keeps track of names for compression)
      */
 
-    int getCurrentTTL(){
+    void writeBytes(DNSEncoder encoder) {
 
-        // Get the current time when this method is called
-        LocalDateTime currentTime = LocalDateTime.now();
+        encoder.writeDomainName(buffer, nameOffset);
 
-        // Represents how much time has passed since the creation of the record and the current time
-        Duration differenceInTTL = Duration.between(creationDate, currentTime);
+        encoder.out.putShort(TYPE);
 
-        int updatedTTL = (int) (TTL - differenceInTTL.getSeconds());
+        encoder.out.putShort(CLASS);
 
-        return updatedTTL;
-    }
+        // Want to write out the updated TTL according to how much time is left before the record expires
+        encoder.writeTTL(getCurrentTTL(encoder.now));
 
+        // Writes RDLENGTH too, since names inside RDATA may not be the same length once they're rewritten
+        encoder.writeRDATA(this);
+    }
 
     /**
-     * shortToBytes() takes in a short and returns it as a byte array
+     * Since the TTL will decrease with time as it sits in our cache, getCurrentTTL() returns the updated TTL to write
+     * in the response to the client.
      *
-     * @param s - short to be converted into a byte array
-     * @return byte[] - byte version of the short
+     * @param now - current System.nanoTime()
+     * @return int - represents the updated TTL (never less than 0)
      */
 
-    byte[] shortToBytes(short s){
+    int getCurrentTTL(long now){
+
+        // Represents how many whole seconds have passed since the creation of the record
+        long secondsPassed = (now - creationTime) / 1_000_000_000L;
 
-        ByteBuffer bb = ByteBuffer.allocate(2);
-        bb.putShort(s);
-        return bb.array();
+        return (int) Math.max(0, (TTL & 0xFFFFFFFFL) - secondsPassed);
     }
 
     /**
-     * timestampValid() determines whether the record has expired
+     * expirationTime() returns the System.nanoTime() at which the record expires.
      *
-     * @return false if the creation date + the time to live is after the current time (the TTL has expired)
+     * @return long - the creation time plus the TTL
      */
 
-    boolean timestampValid(){
-
-        // Get the current time when this method is called
-        LocalDateTime currentDate = LocalDateTime.now();
-
-        // The record will expire at the creation date of the record plus the time to live
-        LocalDateTime timeOfExpiration = creationDate.plusSeconds(TTL);
+    long expirationTime(){
 
-        // Returns false if the current time is past when the TTL has expired
-        return currentDate.isBefore(timeOfExpiration);
+        // TTL is an unsigned 32 bit number of seconds
+        return creationTime + (TTL & 0xFFFFFFFFL) * 1_000_000_000L;
     }
 
     @Override
     public String toString() {
         return "DNSRecord{" +
-                "offset=" + offset +
-                ", NAME=" + Arrays.toString(NAME) +
-                ", nameAsBytes=" + Arrays.toString(nameAsBytes) +
-                ", TYPE=" + Arrays.toString(TYPE) +
-                ", CLASS=" + Arrays.toString(CLASS) +
+                "nameOffset=" + nameOffset +
+                ", NAME=" + Arrays.toString(getName()) +
+                ", TYPE=" + TYPE +
+                ", CLASS=" + CLASS +
                 ", TTL=" + TTL +
                 ", RDLENGTH=" + RDLENGTH +
-                ", RDATA=" + Arrays.toString(RDATA) +
-                ", creationDate=" + creationDate +
+                ", RDATA=" + Arrays.toString(getRDATA()) +
+                ", creationTime=" + creationTime +
                 '}';
     }
 }
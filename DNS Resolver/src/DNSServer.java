@@ -1,6 +1,19 @@
 import java.io.IOException;
-import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * DNSServer opens up a UDP socket and listens for client requests, sends DNS requests to google and receive
@@ -8,19 +21,52 @@ import java.net.*;
  */
 public class DNSServer {
 
+    DNSConfig config;
+
     DatagramSocket clientSocket;
     DatagramSocket googleSocket;
 
-    byte[] bufferForClientPacket = new byte[256];
-    byte[] bufferForGooglePacket = new byte[256];
+    byte[] bufferForClientPacket = new byte[DNSEncoder.UDP_PAYLOAD_SIZE];
+
+    // Upstream answers can be as big as the EDNS payload size we advertise
+    byte[] bufferForGooglePacket = new byte[DNSEncoder.EDNS_PAYLOAD_SIZE];
 
     DatagramPacket clientPacket;
-    DatagramPacket responsePacket;
 
     public static DNSCache cache;
 
     DNSMessage googleResponseMessage;
 
+    // The resolvers queries are forwarded to, and how fast each has been answering
+    Upstreams upstreams;
+
+    // Whether the blocking engine has already given the current client a stale answer
+    boolean staleSent;
+
+    // Used by the concurrent engine and the TCP listener to forward queries without waiting on the upstream answer
+    UpstreamClient upstream;
+
+    // Used by the concurrent engine and the TCP listener so only one upstream query per question is pending at a time
+    QueryCoalescer coalescer = new QueryCoalescer();
+
+    // Names answered from our own zone and hosts files (null if there are none)
+    LocalZones localZones;
+
+    // Answers misses by following referrals from the root servers instead of forwarding them (null when forwarding)
+    IterativeResolver resolver;
+
+    // Limits how many answers each client network gets over UDP (null when rate limiting is off)
+    RateLimiter rateLimiter;
+
+    // Answers queries over TCP on the same port, next to whichever engine is answering UDP
+    TCPListener tcp;
+
+    // Used by the concurrent engine to handle queries off of the receive loop
+    ExecutorService workers;
+
+    // Sends the concurrent engine's prefetch queries (null if prefetching is off)
+    ScheduledExecutorService prefetchThread;
+
     // Socket will remain open unless there is a problem with establishing or maintaining the socket itself.
     boolean done = false;
 
@@ -29,56 +75,82 @@ public class DNSServer {
      * DNSServer() opens a UDP socket and listen for requests. When it gets one, it looks at all the questions in the request.
      * If there is a valid answer in the cache, it sends back a response. Otherwise, a new UDP socket is created which
      * forwards the request to Google (8.8.8.8) and stores Google's response. The response is then sent back to the client.
+     *
+     * @param config - startup options, including which engine handles the queries
      */
 
-    DNSServer(){
+    DNSServer(DNSConfig config){
+
+        this.config = config;
 
         clientPacket = new DatagramPacket(bufferForClientPacket, bufferForClientPacket.length);
 
-        // Make a new cache each time the server is run
-        cache = new DNSCache();
+        cache = new DNSCache(config.cacheMaxEntries, config.cacheMaxBytes, config.negativeCacheMaxEntries,
+                config.negativeTTLMax, config.rrsetMaxEntries, config.cacheBackend.equals("offheap"));
+        cache.setStaleWindow(config.staleWindowSeconds);
 
-        try {
+        // The blocking engine can't send a query without stopping to wait for the answer, so it doesn't prefetch
+        if (config.prefetchFraction > 0 && !config.engine.equals("blocking")){
+            cache.prefetcher = new Prefetcher(config.prefetchFraction, config.prefetchMinHits, config.prefetchRate);
+        }
 
-            // Socket for sending and receiving queries with the user
-            clientSocket = new DatagramSocket(8053);
+        // The last run's cache is loaded before any socket opens, so the first queries are answered from it
+        if (!config.cacheSnapshot.isEmpty()){
+            loadSnapshot();
+        }
 
-            // Socket for sending and receiving queries with Google
-            googleSocket = new DatagramSocket(9000);
+        if (!config.localZones.isEmpty()){
+            loadLocalZones();
+        }
 
-            // The server should remain open unless the socket cannot be opened
-            while (!done) {
+        upstreams = new Upstreams(config.upstreams, config.hedgePercentile);
 
-                clientSocket.receive(clientPacket);
+        if (config.rateLimit > 0){
+            rateLimiter = new RateLimiter(config);
+        }
 
-                DNSMessage initialQueryMessage = DNSMessage.decodeMessage(bufferForClientPacket);
+        try {
 
-                // Will return null if the record has not already been added to the cache
-                googleResponseMessage = cache.queryCache(initialQueryMessage.question);
+            if (config.resolution.equals("iterative")){
+                resolver = new IterativeResolver(config);
+            }
 
-                // If the record has not been added to the cache previously, we need to query Google and then add
-                // Google's response to the cache
-                if (googleResponseMessage == null) {
+            Metrics.watch(cache, upstreams, resolver, rateLimiter);
+            if (!config.metricsFile.isEmpty() && config.metricsIntervalSeconds > 0){
+                Metrics.start(Path.of(config.metricsFile), config.metricsIntervalSeconds);
+            }
 
-                    googleResponseMessage = queryGoogle();
+            // Socket for sending and receiving queries with Google (the selector engine opens its own channels)
+            if (!config.engine.equals("nio")){
+                googleSocket = new DatagramSocket(9000);
+            }
 
-                    System.out.println("Queried Google.");
+            // The concurrent engine and the TCP listener share one client, so a question asked over UDP and TCP at
+            // once only goes upstream once. The blocking engine waits on googleSocket itself, so TCP gets its own.
+            if (config.engine.equals("concurrent") || config.tcpMaxConnections > 0){
+                DatagramSocket socket = config.engine.equals("concurrent") ? googleSocket : new DatagramSocket();
+                upstream = new UpstreamClient(socket, upstreams, config.upstreamTimeoutMillis);
+            }
 
-                    // Only insert into the cache if there is no error code for the packet
-                    if (googleResponseMessage.header.RCODE == 0){
-                        cache.insertRecord(googleResponseMessage.question, googleResponseMessage);
-                    }
-                }
-                else {
-                    System.out.println("From cache.");
-                }
+            if (config.tcpMaxConnections > 0){
+                tcp = new TCPListener(config, cache, upstream, coalescer, localZones, resolver);
+                tcp.start();
+            }
 
-                DNSMessage responseMessage = DNSMessage.buildResponse(initialQueryMessage, googleResponseMessage);
-                byte[] responsePacketInBytes = responseMessage.toBytes();
+            // The selector engine opens its own channels instead of the two sockets
+            if (config.engine.equals("nio")){
+                runShards();
+                return;
+            }
+
+            // Socket for sending and receiving queries with the user
+            clientSocket = new DatagramSocket(config.port);
 
-                // Want the response to be sent over the same port and to the same address as the initial query
-                responsePacket = new DatagramPacket(responsePacketInBytes, responsePacketInBytes.length, clientPacket.getAddress(), clientPacket.getPort());
-                clientSocket.send(responsePacket);
+            if (config.engine.equals("concurrent")){
+                runConcurrent();
+            }
+            else {
+                runBlocking();
             }
         }
 
@@ -93,40 +165,688 @@ public class DNSServer {
             System.out.println("Unable to receive packet.");
             e.printStackTrace();
         }
+
+        finally {
+            close();
+        }
     }
 
     /**
-     * queryGoogle() sends a query to Google with the information from the client's initial query and stores Google's response as a DNSMessage.
+     * close() stops the background work the engine started once it has stopped answering.
+     */
+
+    void close(){
+
+        done = true;
+
+        if (prefetchThread != null){
+            prefetchThread.shutdownNow();
+        }
+    }
+
+    /**
+     * loadSnapshot() fills the cache from the snapshot file, then starts saving new snapshots. A snapshot that can't
+     * be read just means starting with an empty cache.
+     */
+
+    void loadSnapshot(){
+
+        CacheSnapshot snapshot = new CacheSnapshot(cache, Path.of(config.cacheSnapshot));
+
+        try {
+            long start = System.nanoTime();
+            int loaded = snapshot.load();
+            System.out.println("Loaded " + loaded + " cached answers in " + (System.nanoTime() - start) / 1_000_000 + " ms.");
+        }
+        catch (IOException e){
+            System.out.println("Unable to load cache snapshot.");
+            e.printStackTrace();
+        }
+
+        snapshot.start(config.snapshotIntervalSeconds);
+    }
+
+    /**
+     * loadLocalZones() loads the local zone and hosts files, then starts watching them for changes. Files that can't
+     * be loaded just mean nothing is answered locally until they're fixed.
+     */
+
+    void loadLocalZones(){
+
+        List<Path> paths = new ArrayList<>();
+        for (String file : config.localZones.split(",")){
+            paths.add(Path.of(file.trim()));
+        }
+
+        localZones = new LocalZones(paths);
+        localZones.reload();
+        localZones.start(config.localZonesIntervalSeconds);
+    }
+
+    /**
+     * runShards() runs config.shards selector engines, each on its own thread. Every engine's socket is bound before
+     * any of them starts, so a port that can't be shared fails right away. This thread runs the first shard.
+     *
+     * @throws IOException if a shard's channels can't be opened, or the first shard fails
+     */
+
+    void runShards() throws IOException {
+
+        SelectorEngine[] shards = new SelectorEngine[Math.max(1, config.shards)];
+        for (int i = 0; i < shards.length; i++){
+            shards[i] = new SelectorEngine(config, cache, upstreams, localZones, resolver, rateLimiter);
+        }
+
+        for (int i = 1; i < shards.length; i++){
+            SelectorEngine shard = shards[i];
+            Thread thread = new Thread(() -> {
+                try {
+                    shard.run();
+                }
+                catch (IOException e){
+                    System.out.println("Shard stopped.");
+                    e.printStackTrace();
+                }
+            }, "shard-" + i);
+            thread.start();
+        }
+
+        shards[0].run();
+    }
+
+    /**
+     * runBlocking() handles one query at a time: a client query is received, answered (asking Google and waiting
+     * for the answer if needed), and only then is the next client query received.
      *
-     * @return - DNSMessage containing Google's DNS response.
      * @throws IOException
      */
 
-    DNSMessage queryGoogle() throws IOException {
+    void runBlocking() throws IOException {
 
-        // Send a DNS query to Google
-        Inet4Address address = (Inet4Address) InetAddress.getByName("8.8.8.8");
+        // The server should remain open unless the socket cannot be opened
+        while (!done) {
 
-        DatagramPacket queryGooglePacket = new DatagramPacket(bufferForClientPacket, bufferForClientPacket.length, address, 53);
+            clientPacket.setLength(bufferForClientPacket.length);
+            clientSocket.receive(clientPacket);
+            long received = System.nanoTime();
 
-        googleSocket.send(queryGooglePacket);
+            ByteBuffer query = ByteBuffer.wrap(bufferForClientPacket, 0, clientPacket.getLength());
+            DNSEncoder encoder = DNSEncoder.get();
 
+            // Clients over their rate get nothing, or at most an empty truncated answer
+            if (rateLimiter != null && limit(query, received, encoder)){
+                continue;
+            }
 
-        // Receive Google's DNS response and store in a message
-        DatagramPacket responseGooglePacket = new DatagramPacket(bufferForGooglePacket, bufferForGooglePacket.length);
+            // Local names are answered before the cache, so nothing from upstream can stand in for them
+            if (localZones != null && localZones.answer(query, encoder) != null){
+                encoder.finishUDP(DNSMessage.ednsPayloadSize(query));
+                clientSocket.send(encoder.toPacket(clientPacket.getSocketAddress()));
+                Metrics.answered(received);
+                continue;
+            }
+
+            // Cache hits are answered straight from the raw packet, without decoding it (the cached bytes only need
+            // the client's ID and the current TTLs)
+            if (cache.queryPacket(query, encoder) != null){
+                encoder.finishUDP(DNSMessage.ednsPayloadSize(query));
+                clientSocket.send(encoder.toPacket(clientPacket.getSocketAddress()));
+                Metrics.answered(received);
+                continue;
+            }
+
+            // CHAOS queries (the stats) are answered here, never cached or forwarded
+            if (Metrics.answer(query, encoder) != null){
+                encoder.finishUDP(DNSMessage.ednsPayloadSize(query));
+                clientSocket.send(encoder.toPacket(clientPacket.getSocketAddress()));
+                continue;
+            }
+
+            // The query is only used until its response is sent, so it can be read straight out of the receive buffer
+            DNSMessage initialQueryMessage;
+            try {
+                initialQueryMessage = DNSMessage.decodeMessage(query);
+            }
+            catch (IOException e){
+                Metrics.DECODE_ERRORS.increment();
+                System.out.println("Unable to decode packet.");
+                continue;
+            }
+            initialQueryMessage.receivedAt = received;
+
+            // Will return null if the record has not already been added to the cache
+            CachedResponse cachedResponse = cache.queryCache(initialQueryMessage.question);
+
+            // If the record has not been added to the cache previously, we need to query Google and then add
+            // Google's response to the cache
+            if (cachedResponse == null) {
+
+                // If Google takes too long, the client gets a stale answer while the query carries on
+                SocketAddress client = clientPacket.getSocketAddress();
+                Runnable whenSlow = () -> staleSent = sendStaleResponse(initialQueryMessage, client);
+
+                staleSent = false;
+                try {
+                    Runnable slow = config.staleWindowSeconds > 0 ? whenSlow : null;
+                    googleResponseMessage = resolver != null ? resolveBlocking(initialQueryMessage.question, slow)
+                            : queryGoogle(initialQueryMessage.question, slow);
+                }
+                catch (SocketTimeoutException e){
+                    // The client will retry on its own, the server just moves on to the next query
+                    System.out.println(e.getMessage());
+                    if (!staleSent){
+                        sendStaleResponse(initialQueryMessage, client);
+                    }
+                    continue;
+                }
+
+                // The cache decides which responses it keeps (answers, NXDOMAIN and NODATA)
+                cache.insertRecord(initialQueryMessage.question, googleResponseMessage);
+
+                // The client already has its answer, the fresh one only refreshes the cache
+                if (staleSent){
+                    continue;
+                }
+
+                encoder.encodeResponse(initialQueryMessage, googleResponseMessage);
+                encoder.finishUDP(initialQueryMessage.ednsPayloadSize);
+            }
+            else {
+                // The cached bytes only need the client's ID and the current TTLs
+                cachedResponse.writeTo(encoder, initialQueryMessage.header.ID);
+                encoder.finishUDP(initialQueryMessage.ednsPayloadSize);
+            }
+
+            // Want the response to be sent over the same port and to the same address as the initial query
+            clientSocket.send(encoder.toPacket(clientPacket.getSocketAddress()));
+            Metrics.answered(received);
+        }
+    }
+
+    /**
+     * runConcurrent() receives on this thread and answers cache hits straight from the raw packet. Every other query is
+     * copied and handed to the worker pool, so cache hits are answered while other queries are still waiting on Google.
+     *
+     * @throws IOException
+     */
+
+    void runConcurrent() throws IOException {
+
+        workers = Executors.newFixedThreadPool(config.workerThreads);
+
+        if (cache.prefetcher != null){
+            prefetchThread = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "prefetch");
+                thread.setDaemon(true);
+                return thread;
+            });
+            prefetchThread.scheduleWithFixedDelay(this::trySendPrefetches, SelectorEngine.PREFETCH_INTERVAL_MILLIS,
+                    SelectorEngine.PREFETCH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        while (!done) {
+
+            clientPacket.setLength(bufferForClientPacket.length);
+            clientSocket.receive(clientPacket);
+            long received = System.nanoTime();
+
+            // A hit is just a copy and a few writes, so it's cheaper to answer here than to hand it off
+            ByteBuffer packet = ByteBuffer.wrap(bufferForClientPacket, 0, clientPacket.getLength());
+
+            // Clients over their rate get nothing, or at most an empty truncated answer
+            if (rateLimiter != null && limit(packet, received, DNSEncoder.get())){
+                continue;
+            }
+
+            // Local names are answered here too, before the cache
+            if (localZones != null){
+                DNSEncoder encoder = DNSEncoder.get();
+                if (localZones.answer(packet, encoder) != null){
+                    encoder.finishUDP(DNSMessage.ednsPayloadSize(packet));
+                    clientSocket.send(encoder.toPacket(clientPacket.getSocketAddress()));
+                    Metrics.answered(received);
+                    continue;
+                }
+            }
+
+            DNSEncoder encoder = DNSEncoder.get();
+            if (cache.queryPacket(packet, encoder) != null){
+                encoder.finishUDP(DNSMessage.ednsPayloadSize(packet));
+                clientSocket.send(encoder.toPacket(clientPacket.getSocketAddress()));
+                Metrics.answered(received);
+                continue;
+            }
+
+            // CHAOS queries (the stats) are answered here, never cached or forwarded
+            if (Metrics.answer(packet, encoder) != null){
+                encoder.finishUDP(DNSMessage.ednsPayloadSize(packet));
+                clientSocket.send(encoder.toPacket(clientPacket.getSocketAddress()));
+                continue;
+            }
+
+            // The receive buffer is reused for the next packet, so the worker gets its own copy
+            byte[] query = Arrays.copyOf(bufferForClientPacket, clientPacket.getLength());
+            SocketAddress client = clientPacket.getSocketAddress();
+
+            workers.execute(() -> handleQuery(query, client, received));
+        }
+    }
+
+    /**
+     * limit() checks the rate limit for the client the last packet came from, and sends it a truncated answer if
+     * that's what it gets instead of a real one.
+     *
+     * @param query - the client's query
+     * @param received - when the query was received (System.nanoTime())
+     * @param encoder - the receiving thread's encoder
+     * @return boolean - true if the client is over its rate and the query shouldn't be answered
+     * @throws IOException if the truncated answer can't be sent
+     */
+
+    boolean limit(ByteBuffer query, long received, DNSEncoder encoder) throws IOException {
+
+        int action = rateLimiter.check(clientPacket.getAddress(), received);
+        if (action == RateLimiter.ALLOW){
+            return false;
+        }
+
+        if (action == RateLimiter.TRUNCATE && RateLimiter.truncated(query, encoder) != null){
+            encoder.finishUDP(DNSMessage.ednsPayloadSize(query));
+            clientSocket.send(encoder.toPacket(clientPacket.getSocketAddress()));
+        }
+
+        return true;
+    }
+
+    /**
+     * handleQuery() answers one client query on a worker thread. Cache hits are answered right away. Misses are
+     * forwarded to Google (unless the same question is already on its way there) and answered from the upstream
+     * receive thread once Google's response comes back. If Google takes longer than the stale answer timeout, or
+     * doesn't answer at all, the client gets a stale answer instead (if one is cached), and Google's response only
+     * refreshes the cache.
+     *
+     * @param query - the bytes of the client's query
+     * @param client - where the response should be sent
+     * @param received - when the query was received (System.nanoTime())
+     */
+
+    void handleQuery(byte[] query, SocketAddress client, long received){
+
+        try {
+            DNSMessage initialQueryMessage = DNSMessage.decodeMessage(query);
+            initialQueryMessage.receivedAt = received;
+
+            CachedResponse cachedResponse = cache.queryCache(initialQueryMessage.question);
 
-        googleSocket.receive(responseGooglePacket);
+            if (cachedResponse != null){
+                sendCachedResponse(initialQueryMessage, cachedResponse, client);
+                return;
+            }
 
-        DNSMessage googleMessage = DNSMessage.decodeMessage(responseGooglePacket.getData());
+            // Clients asking the same question while it's being looked up all wait on the same upstream query
+            DNSQuestion question = initialQueryMessage.question;
+
+            // Whichever comes first, the upstream answer or a stale one, is the one the client gets
+            AtomicBoolean answered = new AtomicBoolean();
+            ScheduledFuture<?> staleTimer = config.staleWindowSeconds == 0 ? null : upstream.timer.schedule(
+                    () -> sendStaleResponse(initialQueryMessage, client, answered), config.staleAnswerTimeoutMillis, TimeUnit.MILLISECONDS);
+
+            coalescer.join(question, () -> lookUp(question).thenApply(this::cacheResponse))
+                    .whenComplete((googleMessage, error) -> {
+
+                        if (staleTimer != null){
+                            staleTimer.cancel(false);
+                        }
+
+                        if (error != null){
+                            if (!sendStaleResponse(initialQueryMessage, client, answered)){
+                                System.out.println("No upstream answer: " + error);
+                            }
+                            return;
+                        }
+
+                        // Every client gets the shared answer under its own ID
+                        if (answered.compareAndSet(false, true)){
+                            sendResponse(initialQueryMessage, googleMessage, client);
+                        }
+                    });
+        }
+        catch (IOException e){
+            Metrics.DECODE_ERRORS.increment();
+            System.out.println("Unable to decode packet.");
+            e.printStackTrace();
+        }
+    }
 
+    /**
+     * cacheResponse() inserts Google's response into the cache.
+     *
+     * @param googleMessage - Google's response
+     * @return DNSMessage - the same response, so this can be chained onto the upstream query
+     */
+
+    DNSMessage cacheResponse(DNSMessage googleMessage){
+
+        // The cache decides which responses it keeps (answers, NXDOMAIN and NODATA)
+        cache.insertRecord(googleMessage.question, googleMessage);
 
         return googleMessage;
     }
 
+    /**
+     * trySendPrefetches() sends the prefetches, reporting (instead of throwing) anything that goes wrong, since an
+     * exception would cancel every later run of the schedule.
+     */
+
+    void trySendPrefetches(){
+
+        try {
+            sendPrefetches();
+        }
+        catch (RuntimeException e){
+            System.out.println("Unable to send prefetches.");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * sendPrefetches() sends a query for every question the cache wants refreshed (as many as the prefetcher's rate
+     * limit allows). It runs every 100ms on its own thread. Nobody is waiting on the answers, they're only cached.
+     */
+
+    void sendPrefetches(){
+
+        DNSQuestion question;
+        while ((question = cache.prefetcher.poll()) != null){
+
+            DNSQuestion prefetch = question;
+            coalescer.join(prefetch, () -> lookUp(prefetch).thenApply(this::cacheResponse));
+        }
+    }
+
+    /**
+     * lookUp() starts finding the answer to a question that missed the cache: resolving it iteratively, or forwarding
+     * it to the upstreams.
+     *
+     * @param question - the question
+     * @return CompletableFuture - completes with the answer, or fails if there isn't one in time
+     */
+
+    CompletableFuture<DNSMessage> lookUp(DNSQuestion question){
+
+        return resolver != null ? resolver.resolve(question) : upstream.query(question);
+    }
+
+    /**
+     * sendResponse() builds the response for a client's query and sends it back to the client.
+     *
+     * @param request - the client's query
+     * @param answer - Google's response (either just received or from the cache)
+     * @param client - where the response should be sent
+     */
+
+    void sendResponse(DNSMessage request, DNSMessage answer, SocketAddress client){
+
+        try {
+            // Each thread has its own encoder, and the packet is sent straight out of the encoder's buffer
+            DNSEncoder encoder = DNSEncoder.get();
+            encoder.encodeResponse(request, answer);
+            encoder.finishUDP(request.ednsPayloadSize);
+
+            // DatagramSocket.send() can be called from several threads at once
+            clientSocket.send(encoder.toPacket(client));
+            Metrics.answered(request.receivedAt);
+        }
+        catch (IOException e){
+            Metrics.SEND_ERRORS.increment();
+            System.out.println("Unable to send packet.");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * sendCachedResponse() sends a cached response back to the client, patched with the client's ID.
+     *
+     * @param request - the client's query
+     * @param cachedResponse - the encoded response from the cache
+     * @param client - where the response should be sent
+     */
+
+    void sendCachedResponse(DNSMessage request, CachedResponse cachedResponse, SocketAddress client){
+
+        try {
+            DNSEncoder encoder = DNSEncoder.get();
+            cachedResponse.writeTo(encoder, request.header.ID);
+            encoder.finishUDP(request.ednsPayloadSize);
+
+            clientSocket.send(encoder.toPacket(client));
+            Metrics.answered(request.receivedAt);
+        }
+        catch (IOException e){
+            Metrics.SEND_ERRORS.increment();
+            System.out.println("Unable to send packet.");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * sendStaleResponse() sends the client a stale answer to its query, if serving stale is turned on and the cache
+     * has one, unless the client has already been answered.
+     *
+     * @param request - the client's query
+     * @param client - where the response should be sent
+     * @param answered - whether the client has been answered, set here if the stale answer is sent
+     * @return boolean - whether the client has an answer now (stale or not)
+     */
+
+    boolean sendStaleResponse(DNSMessage request, SocketAddress client, AtomicBoolean answered){
+
+        if (config.staleWindowSeconds == 0){
+            return answered.get();
+        }
+
+        CachedResponse stale = cache.queryStale(request.question);
+        if (stale != null && answered.compareAndSet(false, true)){
+            sendStaleResponse(request, stale, client);
+        }
+
+        return answered.get();
+    }
+
+    /**
+     * sendStaleResponse() sends the client a stale answer to its query, if serving stale is turned on and the cache
+     * has one.
+     *
+     * @param request - the client's query
+     * @param client - where the response should be sent
+     * @return boolean - whether a stale answer was sent
+     */
+
+    boolean sendStaleResponse(DNSMessage request, SocketAddress client){
+
+        CachedResponse stale = config.staleWindowSeconds == 0 ? null : cache.queryStale(request.question);
+        if (stale == null){
+            return false;
+        }
+
+        return sendStaleResponse(request, stale, client);
+    }
+
+    /**
+     * sendStaleResponse() sends a stale answer with the stale answer TTL in every record.
+     *
+     * @param request - the client's query
+     * @param stale - the expired response from the cache
+     * @param client - where the response should be sent
+     * @return boolean - whether the response was sent
+     */
+
+    boolean sendStaleResponse(DNSMessage request, CachedResponse stale, SocketAddress client){
+
+        try {
+            DNSEncoder encoder = DNSEncoder.get();
+            stale.writeStaleTo(encoder, request.header.ID, config.staleTTL);
+            encoder.finishUDP(request.ednsPayloadSize);
+
+            clientSocket.send(encoder.toPacket(client));
+            Metrics.answered(request.receivedAt);
+            return true;
+        }
+        catch (IOException e){
+            Metrics.SEND_ERRORS.increment();
+            System.out.println("Unable to send packet.");
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * queryGoogle() sends a query for the client's question upstream and stores the response as a DNSMessage. The
+     * query starts at the fastest upstream and is sent again to the next one whenever an upstream doesn't answer
+     * within its timeout (see Upstreams), until the upstream timeout runs out.
+     *
+     * @param question - the client's question
+     * @param whenSlow - run once if no upstream has answered by the stale answer timeout (null if nothing should be)
+     * @return - DNSMessage containing the upstream DNS response.
+     * @throws SocketTimeoutException if no upstream answers in time
+     * @throws IOException
+     */
+
+    DNSMessage queryGoogle(DNSQuestion question, Runnable whenSlow) throws IOException {
+
+        // The query goes out under our own ID, so late answers to earlier queries can't be mistaken for this one's.
+        // IDs come from the SecureRandom so an off-path attacker can't work out the next one.
+        short upstreamID = (short) UpstreamClient.RANDOM.nextInt();
+        ByteBuffer encoded = DNSEncoder.get().encodeQuery(upstreamID, question);
+        byte[] upstreamQuery = new byte[encoded.remaining()];
+        encoded.get(upstreamQuery);
+
+        DatagramPacket queryGooglePacket = new DatagramPacket(upstreamQuery, upstreamQuery.length);
+        DatagramPacket responseGooglePacket = new DatagramPacket(bufferForGooglePacket, bufferForGooglePacket.length);
+
+        Upstreams.Query query = new Upstreams.Query(upstreams, System.nanoTime(), config.upstreamTimeoutMillis);
+        Upstreams.Upstream upstream = query.first(query.started);
+
+        long slowAt = query.started + config.staleAnswerTimeoutMillis * 1_000_000L;
+
+        while (true) {
+
+            long now = System.nanoTime();
+            if (whenSlow != null && now - slowAt >= 0){
+                whenSlow.run();
+                whenSlow = null;
+            }
+
+            if (query.expired(now)){
+                query.current.recordTimeout();
+                throw new SocketTimeoutException("No upstream answered within " + config.upstreamTimeoutMillis + "ms.");
+            }
+
+            // Send to whichever upstream is due (the first one, a failover, or a hedge)
+            // (an upstream that can't be sent to is left for the timer to fail over from)
+            if (upstream != null){
+                queryGooglePacket.setSocketAddress(upstream.address);
+                try {
+                    googleSocket.send(queryGooglePacket);
+                }
+                catch (IOException e){
+                    Metrics.SEND_ERRORS.increment();
+                    System.out.println("Unable to send packet.");
+                    e.printStackTrace();
+                }
+            }
+
+            // Wait for an answer until the next retransmit or hedge is due (or it's time to run whenSlow)
+            long waitUntil = query.nextAction();
+            if (whenSlow != null && slowAt - waitUntil < 0){
+                waitUntil = slowAt;
+            }
+            googleSocket.setSoTimeout((int) Math.max(1, (waitUntil - now) / 1_000_000 + 1));
+
+            try {
+                responseGooglePacket.setLength(bufferForGooglePacket.length);
+                googleSocket.receive(responseGooglePacket);
+            }
+            catch (SocketTimeoutException e){
+                now = System.nanoTime();
+                upstream = query.expired(now) ? null : query.due(now);
+                continue;
+            }
+
+            upstream = null;
+
+            // Skip answers to other queries
+            if (responseGooglePacket.getLength() < DNSHeader.LENGTH
+                    || ByteBuffer.wrap(bufferForGooglePacket).getShort(0) != upstreamID){
+                upstream = query.due(System.nanoTime());
+                continue;
+            }
+
+            // The response may be cached, so it gets its own copy of the bytes instead of pointing into the receive
+            // buffer
+            DNSMessage googleMessage;
+            try {
+                googleMessage = DNSMessage.decodeMessage(Arrays.copyOf(bufferForGooglePacket,
+                        responseGooglePacket.getLength()));
+            }
+            catch (IOException e){
+                Metrics.DECODE_ERRORS.increment();
+                System.out.println("Unable to decode packet from upstream.");
+                upstream = query.due(System.nanoTime());
+                continue;
+            }
+
+            // Skip answers to some other question, and packets that didn't come from an upstream this query went to
+            if (!question.equals(googleMessage.question)
+                    || !query.answered(responseGooglePacket.getSocketAddress(), System.nanoTime())){
+                upstream = query.due(System.nanoTime());
+                continue;
+            }
+
+            return googleMessage;
+        }
+    }
+
+    /**
+     * resolveBlocking() resolves a question iteratively for the blocking engine, waiting for the answer.
+     *
+     * @param question - the client's question
+     * @param whenSlow - run once if there's no answer by the stale answer timeout (null if nothing should be)
+     * @return DNSMessage - the answer
+     * @throws SocketTimeoutException if the question can't be resolved in time
+     * @throws IOException
+     */
+
+    DNSMessage resolveBlocking(DNSQuestion question, Runnable whenSlow) throws IOException {
+
+        CompletableFuture<DNSMessage> resolution = resolver.resolve(question);
+
+        try {
+            if (whenSlow != null){
+                try {
+                    return resolution.get(config.staleAnswerTimeoutMillis, TimeUnit.MILLISECONDS);
+                }
+                catch (TimeoutException e){
+                    whenSlow.run();
+                }
+            }
+
+            return resolution.get();
+        }
+        catch (ExecutionException e){
+            // However it failed, the client is treated the same as when the upstreams don't answer
+            throw new SocketTimeoutException("Unable to resolve: " + e.getCause().getMessage());
+        }
+        catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new SocketTimeoutException("Interrupted while resolving.");
+        }
+    }
+
     public static void main(String[] args) {
 
         // Establish the server, which keeps the sockets open
-        DNSServer server = new DNSServer();
+        DNSServer server = new DNSServer(DNSConfig.parse(args));
 
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,188 @@
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram counts durations in a fixed set of buckets, so any number of threads can record into it without locking
+ * and without allocating (once the adders have grown their cells for the threads that use them). Buckets are powers
+ * of two of microseconds, each split into four, so every bucket is at most a quarter as wide as the values in it, from
+ * 1 microsecond up to about 18 minutes. Percentiles are read off the buckets and come out as the upper edge of the
+ * bucket they fall in, so they're never low by more than a bucket's width.
+ */
+public class Histogram {
+
+    // Each power of two is split into this many buckets (two bits below the highest one)
+    static final int SUB_BUCKETS = 4;
+    static final int SUB_BUCKET_BITS = 2;
+
+    // Values from 2^MAX_POWER microseconds up all go in the last bucket
+    static final int MAX_POWER = 30;
+
+    static final int BUCKETS = (MAX_POWER - 1) * SUB_BUCKETS + 1;
+
+    LongAdder[] counts = new LongAdder[BUCKETS];
+    LongAdder total = new LongAdder();
+    LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+
+    Histogram(){
+
+        for (int i = 0; i < BUCKETS; i++){
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * record() counts one duration.
+     *
+     * @param nanos - the duration in nanoseconds
+     */
+
+    void record(long nanos){
+
+        long micros = Math.max(0, nanos / 1000);
+
+        counts[bucket(micros)].increment();
+        total.add(micros);
+        max.accumulate(micros);
+    }
+
+    /**
+     * bucket() returns which bucket a value goes in. Values under 4 microseconds each have their own bucket, and every
+     * power of two above that is split by the two bits under its highest bit.
+     *
+     * @param micros - the value in microseconds
+     * @return int - the bucket
+     */
+
+    static int bucket(long micros){
+
+        if (micros < SUB_BUCKETS){
+            return (int) micros;
+        }
+
+        int power = 63 - Long.numberOfLeadingZeros(micros);
+        if (power >= MAX_POWER){
+            return BUCKETS - 1;
+        }
+
+        int sub = (int) (micros >>> (power - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+
+        return (power - 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * upperBound() returns the smallest value too big for a bucket.
+     *
+     * @param bucket - the bucket
+     * @return long - the bucket's upper edge in microseconds
+     */
+
+    static long upperBound(int bucket){
+
+        if (bucket < SUB_BUCKETS){
+            return bucket + 1;
+        }
+
+        int power = bucket / SUB_BUCKETS + 1;
+        int sub = bucket % SUB_BUCKETS;
+
+        return (long) (SUB_BUCKETS + sub + 1) << (power - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * count() returns how many durations have been recorded.
+     *
+     * @return long - the number of durations
+     */
+
+    long count(){
+
+        long count = 0;
+        for (LongAdder bucket : counts){
+            count += bucket.sum();
+        }
+
+        return count;
+    }
+
+    /**
+     * corrected() makes a copy with the samples a closed loop client never took put back in (coordinated omission). A
+     * client that waited v for an answer didn't send the queries it would otherwise have sent every interval in the
+     * meantime, and those would have waited v - interval, v - 2 * interval and so on, down to the interval. This is
+     * the same correction HdrHistogram makes. Each bucket's samples are taken to be at its upper edge.
+     *
+     * @param intervalMicros - how often the client would have sent a query if nothing had held it up
+     * @return Histogram - the corrected copy
+     */
+
+    Histogram corrected(long intervalMicros){
+
+        Histogram copy = new Histogram();
+        copy.total.add(total.sum());
+        copy.max.accumulate(max.get());
+
+        for (int i = 0; i < BUCKETS; i++){
+
+            long count = counts[i].sum();
+            if (count == 0){
+                continue;
+            }
+
+            copy.counts[i].add(count);
+
+            if (intervalMicros <= 0){
+                continue;
+            }
+
+            long value = Math.min(upperBound(i), max.get());
+            for (long missed = value - intervalMicros; missed >= intervalMicros; missed -= intervalMicros){
+                copy.counts[bucket(missed)].add(count);
+                copy.total.add(missed * count);
+            }
+        }
+
+        return copy;
+    }
+
+    /**
+     * percentiles() reads several percentiles off one copy of the buckets, so they agree with each other even while
+     * more durations are being recorded.
+     *
+     * @param percentiles - the percentiles wanted (i.e. 50, 99, 99.9)
+     * @return long[] - each percentile in microseconds (0 if nothing has been recorded), capped at the largest value
+     */
+
+    long[] percentiles(double... percentiles){
+
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++){
+            snapshot[i] = counts[i].sum();
+            count += snapshot[i];
+        }
+
+        long largest = max.get();
+        long[] values = new long[percentiles.length];
+
+        for (int p = 0; p < percentiles.length; p++){
+
+            if (count == 0){
+                continue;
+            }
+
+            // The rank of the sample the percentile falls on, counting from 1
+            long rank = Math.max(1, (long) Math.ceil(count * percentiles[p] / 100));
+
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++){
+                seen += snapshot[i];
+                if (seen >= rank){
+                    values[p] = Math.min(upperBound(i), largest);
+                    break;
+                }
+            }
+        }
+
+        return values;
+    }
+}
@@ -0,0 +1,719 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * IterativeResolver answers questions itself instead of forwarding them to the upstreams. It starts at the root servers
+ * and follows referrals down to the servers that are authoritative for the name (RFC 1034 section 5.3.3), following
+ * CNAMEs as it goes, then puts the answer together like a recursive resolver would send it.
+ *
+ * Every referral is remembered until its NS records expire: the zone cut, the names of the zone's servers, and their
+ * addresses (from glue, or looked up when a referral doesn't have any). A later question under a zone that's already
+ * known starts at that zone's servers instead of the root. Servers are kept as Upstreams.Upstream objects shared by
+ * every zone they serve, so each query goes to the server of a zone that has been answering fastest, fails over to the
+ * next one when it times out, and is hedged the same way forwarded queries are.
+ *
+ * Only records inside the zone of the server that sent them are used (glue included), a referral has to point further
+ * down towards the name, and every resolution has a budget of queries and a deadline, so a broken or hostile server
+ * can't send it somewhere else or keep it going forever.
+ *
+ * Queries go out over UDP through the resolver's own UpstreamClient, from a pool of sockets on random ports that keeps
+ * changing, with IDs from a SecureRandom (anyone can make the resolver ask a server of their choosing, so the answers
+ * must be hard to forge). Truncated answers are passed on as they are, since authoritative servers aren't asked over
+ * TCP.
+ */
+public class IterativeResolver {
+
+    // Most queries one resolution can send, counting the ones for name server addresses it had to look up
+    static final int MAX_QUERIES = 32;
+
+    // Most CNAMEs followed from the name asked about
+    static final int MAX_CNAME_CHAIN = 8;
+
+    // Shortest and longest a delegation or address is kept, whatever its TTL says
+    static final int MIN_TTL = 5;
+    static final int MAX_TTL = 86_400;
+
+    static final short TYPE_AAAA = 28;
+
+    static final short CLASS_IN = 1;
+
+    // AA (authoritative answer) flag
+    static final int FLAG_AA = 0x0400;
+
+    // Root servers used when there's no root hints file (https://www.iana.org/domains/root/servers)
+    static final String[][] ROOT_SERVERS = {
+            {"a.root-servers.net.", "198.41.0.4"},
+            {"b.root-servers.net.", "170.247.170.2"},
+            {"c.root-servers.net.", "192.33.4.12"},
+            {"d.root-servers.net.", "199.7.91.13"},
+            {"e.root-servers.net.", "192.203.230.10"},
+            {"f.root-servers.net.", "192.5.5.241"},
+            {"g.root-servers.net.", "192.112.36.4"},
+            {"h.root-servers.net.", "198.97.190.53"},
+            {"i.root-servers.net.", "192.36.148.17"},
+            {"j.root-servers.net.", "192.58.128.30"},
+            {"k.root-servers.net.", "193.0.14.129"},
+            {"l.root-servers.net.", "199.7.83.42"},
+            {"m.root-servers.net.", "202.12.27.33"},
+    };
+
+    static final DNSRecord[] NO_RECORDS = new DNSRecord[0];
+
+    // How many sockets (each on its own random port) queries to authoritative servers are spread over
+    static final int SOCKET_POOL_SIZE = 8;
+
+
+    /**
+     * Delegation is a zone cut: the zone's name and the names of its servers, until its NS records expire. Names are
+     * lower case and end in a dot.
+     */
+
+    static class Delegation {
+
+        String zone;
+        String[] nameServers;
+
+        // System.nanoTime() the delegation expires at
+        long deadline;
+
+        Delegation(String zone, String[] nameServers, long deadline){
+            this.zone = zone;
+            this.nameServers = nameServers;
+            this.deadline = deadline;
+        }
+    }
+
+
+    /**
+     * Addresses are where a name server can be reached, until the records they came from expire.
+     */
+
+    static class Addresses {
+
+        InetSocketAddress[] addresses;
+        long deadline;
+
+        Addresses(InetSocketAddress[] addresses, long deadline){
+            this.addresses = addresses;
+            this.deadline = deadline;
+        }
+    }
+
+
+    /**
+     * Resolution is one question being resolved. Looking up a name server's address is a resolution of its own,
+     * sharing the query budget and deadline of the one that needed it. A resolution only ever has one query out at a
+     * time, so its fields are only touched by whichever thread handles that query's answer.
+     */
+
+    static class Resolution {
+
+        // The question asked, and the name being looked up now (the end of the CNAME chain so far)
+        DNSQuestion question;
+        DNSQuestion current;
+
+        // CNAMEs followed so far, which go at the start of the answer
+        ArrayList<DNSRecord> chain = new ArrayList<>();
+        int cnames;
+
+        // Queries sent so far, and System.nanoTime() the resolution gives up at
+        AtomicInteger queries;
+        long deadline;
+
+        // Name servers whose addresses have been looked up, so a failed lookup isn't tried again
+        HashSet<String> lookedUp = new HashSet<>();
+
+        CompletableFuture<DNSMessage> result = new CompletableFuture<>();
+
+        Resolution(DNSQuestion question, AtomicInteger queries, long deadline){
+            this.question = question;
+            this.current = question;
+            this.queries = queries;
+            this.deadline = deadline;
+        }
+    }
+
+
+    UpstreamClient client;
+
+    int timeoutMillis;
+    double hedgePercentile;
+    int port;
+    boolean useIPv6;
+    int maxEntries;
+
+    // Every server that has been asked, by address, with its round trip times
+    ConcurrentHashMap<InetSocketAddress, Upstreams.Upstream> servers = new ConcurrentHashMap<>();
+
+    // Zone cuts by zone name, and name server addresses by name server name
+    ConcurrentHashMap<String, Delegation> delegations = new ConcurrentHashMap<>();
+    ConcurrentHashMap<String, Addresses> addresses = new ConcurrentHashMap<>();
+
+    // The root zone and its servers' addresses, which never expire
+    Delegation root;
+    HashMap<String, InetSocketAddress[]> hints = new HashMap<>();
+
+    // Stats
+    LongAdder resolutions = new LongAdder();
+    LongAdder queries = new LongAdder();
+    LongAdder referrals = new LongAdder();
+    LongAdder failures = new LongAdder();
+
+
+    /**
+     * IterativeResolver() loads the root hints and opens the socket authoritative servers are asked on.
+     *
+     * @param config - startup options (timeout, hedging, root hints, port and delegation cache size)
+     * @throws IOException if the root hints file can't be read or the socket can't be opened
+     */
+
+    IterativeResolver(DNSConfig config) throws IOException {
+
+        this.timeoutMillis = config.upstreamTimeoutMillis;
+        this.hedgePercentile = config.hedgePercentile;
+        this.port = config.iterativePort;
+        this.useIPv6 = config.iterativeIPv6;
+        this.maxEntries = config.delegationMaxEntries;
+
+        if (config.rootHints.isEmpty()){
+            builtInHints();
+        }
+        else {
+            loadHints(Path.of(config.rootHints));
+        }
+
+        // Every query says which servers it goes to, so the client's own list (the root servers) is never used
+        client = new UpstreamClient(new Upstreams(servers(root, System.nanoTime()), hedgePercentile), timeoutMillis,
+                SOCKET_POOL_SIZE);
+    }
+
+    /**
+     * builtInHints() makes the root zone out of ROOT_SERVERS.
+     */
+
+    void builtInHints() throws IOException {
+
+        String[] names = new String[ROOT_SERVERS.length];
+
+        for (int i = 0; i < ROOT_SERVERS.length; i++){
+            names[i] = ROOT_SERVERS[i][0];
+            hints.put(names[i], new InetSocketAddress[]{ new InetSocketAddress(InetAddress.getByName(ROOT_SERVERS[i][1]), port) });
+        }
+
+        root = new Delegation(".", names, Long.MAX_VALUE);
+    }
+
+    /**
+     * loadHints() makes the root zone out of a root hints file: the NS records of "." and the addresses of the
+     * servers they name. The file is read the same way as local zone files.
+     *
+     * @param path - the root hints file
+     * @throws IOException if the file can't be read or doesn't name any root server with an address
+     */
+
+    void loadHints(Path path) throws IOException {
+
+        LocalZones.Node trie = new LocalZones.Node(new String[0]);
+        new LocalZones.ZoneFile(trie, path).read();
+
+        List<String> names = new ArrayList<>();
+
+        for (DNSRecord ns : LocalZones.find(trie, new String[0]).node.records){
+            if (ns.TYPE != DNSEncoder.TYPE_NS){
+                continue;
+            }
+
+            String name = DNSName.toString(ns.buffer, ns.rdataOffset);
+            ByteBuffer encoded = ByteBuffer.allocate(DNSName.MAX_LENGTH);
+            DNSName.write(encoded, name);
+
+            LocalZones.Match match = LocalZones.find(trie, LocalZones.reversedLabels(encoded, 0));
+            if (match.node == null){
+                continue;
+            }
+
+            InetSocketAddress[] found = toAddresses(match.node.records);
+            if (found.length > 0){
+                names.add(name);
+                hints.put(name, found);
+            }
+        }
+
+        if (names.isEmpty()){
+            throw new IOException("No root servers with addresses in " + path);
+        }
+
+        root = new Delegation(".", names.toArray(new String[0]), Long.MAX_VALUE);
+    }
+
+    /**
+     * resolve() starts resolving a question and returns right away. The answer goes through the same steps a
+     * forwarded one does (caching, coalescing, serving stale), so it's shaped like a recursive resolver's response.
+     *
+     * @param question - the question to resolve
+     * @return CompletableFuture - completes with the response, or fails if the question can't be resolved in time
+     */
+
+    CompletableFuture<DNSMessage> resolve(DNSQuestion question){
+
+        resolutions.increment();
+
+        Resolution resolution = new Resolution(question, new AtomicInteger(), System.nanoTime() + timeoutMillis * 1_000_000L);
+        step(resolution);
+
+        resolution.result.whenComplete((message, error) -> {
+            if (error != null){
+                failures.increment();
+            }
+        });
+
+        return resolution.result;
+    }
+
+    /**
+     * step() sends the next query of a resolution: the name being looked up, to the servers of the closest zone
+     * above it that's known. If none of those servers' addresses are known, one of them is looked up first.
+     *
+     * @param resolution - the resolution
+     */
+
+    void step(Resolution resolution){
+
+        try {
+            long now = System.nanoTime();
+
+            if (now - resolution.deadline >= 0){
+                resolution.result.completeExceptionally(new TimeoutException("Resolution took longer than " + timeoutMillis + "ms"));
+                return;
+            }
+
+            if (resolution.queries.incrementAndGet() > MAX_QUERIES){
+                resolution.result.completeExceptionally(new IOException("Resolution needed more than " + MAX_QUERIES + " queries"));
+                return;
+            }
+
+            String name = DNSName.toString(resolution.current.buffer, resolution.current.nameOffset);
+            Delegation zone = closest(name, now);
+
+            Upstreams.Upstream[] zoneServers = servers(zone, now);
+            if (zoneServers.length == 0){
+                lookUpNameServer(resolution, zone);
+                return;
+            }
+
+            queries.increment();
+
+            int remainingMillis = (int) Math.max(1, (resolution.deadline - now) / 1_000_000);
+            client.query(resolution.current, new Upstreams(zoneServers, hedgePercentile), false, remainingMillis)
+                    .whenComplete((response, error) -> {
+                        if (error != null){
+                            resolution.result.completeExceptionally(error);
+                        }
+                        else {
+                            handleResponse(resolution, zone, response);
+                        }
+                    });
+        }
+        catch (RuntimeException e){
+            resolution.result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * lookUpNameServer() resolves the address of one of a zone's servers, then carries on with the resolution that
+     * needed it. Servers inside the zone itself can't be looked up (their addresses only come as glue), and neither
+     * can servers whose lookup already failed. If no server is left, the zone cut is forgotten and the resolution
+     * starts again from the zone above it.
+     *
+     * @param resolution - the resolution waiting on the address
+     * @param zone - the zone none of whose servers' addresses are known
+     */
+
+    void lookUpNameServer(Resolution resolution, Delegation zone){
+
+        String nameServer = null;
+        for (String candidate : zone.nameServers){
+            if (!isAtOrBelow(candidate, zone.zone) && resolution.lookedUp.add(candidate)){
+                nameServer = candidate;
+                break;
+            }
+        }
+
+        if (nameServer == null){
+            if (zone == root){
+                resolution.result.completeExceptionally(new IOException("No root server can be reached."));
+                return;
+            }
+
+            delegations.remove(zone.zone, zone);
+            step(resolution);
+            return;
+        }
+
+        ByteBuffer encoded = ByteBuffer.allocate(DNSName.MAX_LENGTH);
+        DNSName.write(encoded, nameServer);
+
+        Resolution lookup = new Resolution(DNSQuestion.forName(encoded, 0, DNSEncoder.TYPE_A, CLASS_IN),
+                resolution.queries, resolution.deadline);
+
+        String name = nameServer;
+        lookup.result.whenComplete((message, error) -> {
+
+            // The addresses can be owned by the end of a CNAME chain, but they're the name server's
+            if (message != null){
+                storeAddresses(name, message.answers, System.nanoTime());
+            }
+
+            step(resolution);
+        });
+
+        step(lookup);
+    }
+
+    /**
+     * handleResponse() works out what a server's response means for a resolution: an answer (possibly after
+     * following CNAMEs), a negative answer, a referral to servers further down, or a CNAME to go and resolve.
+     *
+     * @param resolution - the resolution
+     * @param zone - the zone of the server that sent the response
+     * @param response - the response
+     */
+
+    void handleResponse(Resolution resolution, Delegation zone, DNSMessage response){
+
+        try {
+            int rcode = response.header.RCODE;
+            if (rcode != 0 && rcode != 3){
+                resolution.result.completeExceptionally(new IOException("Server for " + zone.zone + " answered with RCODE " + rcode));
+                return;
+            }
+
+            DNSQuestion question = resolution.current;
+            String name = DNSName.toString(question.buffer, question.nameOffset);
+
+            // Follow the answer section from the name asked about, through any CNAMEs in the zone
+            DNSRecord cname = null;
+            boolean answered = false;
+
+            String owner = name;
+            while (!answered){
+
+                DNSRecord next = null;
+
+                for (DNSRecord record : response.answers){
+                    if (record.CLASS != question.QCLASS || !isAtOrBelow(owner, zone.zone)
+                            || !owner.equals(DNSName.toString(record.buffer, record.nameOffset))){
+                        continue;
+                    }
+
+                    if (record.TYPE == question.QTYPE){
+                        resolution.chain.add(record);
+                        answered = true;
+                    }
+                    else if (record.TYPE == DNSEncoder.TYPE_CNAME && next == null){
+                        next = record;
+                    }
+                }
+
+                if (answered || next == null){
+                    break;
+                }
+
+                if (++resolution.cnames > MAX_CNAME_CHAIN){
+                    resolution.result.completeExceptionally(new IOException("CNAME chain is longer than " + MAX_CNAME_CHAIN));
+                    return;
+                }
+
+                resolution.chain.add(next);
+                cname = next;
+                owner = DNSName.toString(next.buffer, next.rdataOffset);
+            }
+
+            if (answered){
+                finish(resolution, 0, NO_RECORDS);
+                return;
+            }
+
+            // The chain leads somewhere this response doesn't answer for, so that's looked up next
+            if (cname != null){
+                resolution.current = DNSQuestion.forName(cname.buffer, cname.rdataOffset, question.QTYPE, question.QCLASS);
+                step(resolution);
+                return;
+            }
+
+            long now = System.nanoTime();
+
+            // A referral is a non-authoritative response with the NS records of a zone further down towards the name
+            String cut = null;
+            List<DNSRecord> nsRecords = new ArrayList<>();
+
+            if (rcode == 0 && (response.header.flags & FLAG_AA) == 0){
+                for (DNSRecord record : response.authorityRecords){
+                    if (record.TYPE != DNSEncoder.TYPE_NS){
+                        continue;
+                    }
+
+                    String recordOwner = DNSName.toString(record.buffer, record.nameOffset);
+                    if (cut == null){
+                        cut = recordOwner;
+                    }
+                    if (recordOwner.equals(cut)){
+                        nsRecords.add(record);
+                    }
+                }
+            }
+
+            if (cut == null){
+                finish(resolution, rcode, soaRecords(response, zone));
+                return;
+            }
+
+            if (cut.equals(zone.zone) || !isAtOrBelow(cut, zone.zone) || !isAtOrBelow(name, cut)){
+                resolution.result.completeExceptionally(new IOException("Server for " + zone.zone + " sent a referral to " + cut));
+                return;
+            }
+
+            referrals.increment();
+            storeDelegation(cut, zone, nsRecords, response.additionalRecords, now);
+
+            step(resolution);
+        }
+        catch (RuntimeException e){
+            resolution.result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * storeDelegation() remembers a zone cut from a referral, along with whatever glue came with it. Glue is only
+     * kept for the zone's servers, and only if it's inside the zone of the server that sent it.
+     *
+     * @param cut - the zone the referral is to
+     * @param parent - the zone of the server that sent the referral
+     * @param nsRecords - the zone's NS records
+     * @param additional - the referral's additional records
+     * @param now - current System.nanoTime()
+     */
+
+    void storeDelegation(String cut, Delegation parent, List<DNSRecord> nsRecords, DNSRecord[] additional, long now){
+
+        String[] nameServers = new String[nsRecords.size()];
+        long ttl = MAX_TTL;
+
+        for (int i = 0; i < nameServers.length; i++){
+            DNSRecord ns = nsRecords.get(i);
+            nameServers[i] = DNSName.toString(ns.buffer, ns.rdataOffset);
+            ttl = Math.min(ttl, ns.TTL & 0xFFFFFFFFL);
+        }
+
+        trim(delegations, now, entry -> entry.deadline);
+        delegations.put(cut, new Delegation(cut, nameServers, now + Math.max(MIN_TTL, ttl) * 1_000_000_000L));
+
+        for (String nameServer : nameServers){
+            if (!isAtOrBelow(nameServer, parent.zone)){
+                continue;
+            }
+
+            List<DNSRecord> glue = new ArrayList<>();
+            for (DNSRecord record : additional){
+                if (nameServer.equals(DNSName.toString(record.buffer, record.nameOffset))){
+                    glue.add(record);
+                }
+            }
+
+            storeAddresses(nameServer, glue.toArray(NO_RECORDS), now);
+        }
+    }
+
+    /**
+     * storeAddresses() remembers a name server's addresses, if any of the records are addresses.
+     *
+     * @param nameServer - the name server
+     * @param records - its A and AAAA records, along with anything else that limits how long they're kept (i.e. the
+     *                CNAMEs that led to them)
+     * @param now - current System.nanoTime()
+     */
+
+    void storeAddresses(String nameServer, DNSRecord[] records, long now){
+
+        InetSocketAddress[] found = toAddresses(records);
+        if (found.length == 0){
+            return;
+        }
+
+        long ttl = MAX_TTL;
+        for (DNSRecord record : records){
+            ttl = Math.min(ttl, record.TTL & 0xFFFFFFFFL);
+        }
+
+        trim(addresses, now, entry -> entry.deadline);
+        addresses.put(nameServer, new Addresses(found, now + Math.max(MIN_TTL, ttl) * 1_000_000_000L));
+    }
+
+    /**
+     * finish() completes a resolution with the answer put together from what it found.
+     *
+     * @param resolution - the resolution
+     * @param rcode - the response code
+     * @param authority - the authority section (the zone's SOA for a negative answer)
+     */
+
+    void finish(Resolution resolution, int rcode, DNSRecord[] authority){
+
+        DNSMessage message = DNSMessage.assemble(resolution.question, resolution.chain.toArray(NO_RECORDS));
+        message.header = DNSHeader.buildAnswerHeader((short) message.answers.length, rcode);
+        message.authorityRecords = authority;
+
+        resolution.result.complete(message);
+    }
+
+    /**
+     * soaRecords() returns the SOA records of a negative answer that are inside the zone of the server that sent it,
+     * which say how long the answer can be cached.
+     */
+
+    static DNSRecord[] soaRecords(DNSMessage response, Delegation zone){
+
+        List<DNSRecord> soa = new ArrayList<>();
+
+        for (DNSRecord record : response.authorityRecords){
+            if (record.TYPE == DNSEncoder.TYPE_SOA && isAtOrBelow(DNSName.toString(record.buffer, record.nameOffset), zone.zone)){
+                soa.add(record);
+            }
+        }
+
+        return soa.toArray(NO_RECORDS);
+    }
+
+    /**
+     * closest() finds the deepest zone above (or at) a name whose delegation is known and hasn't expired.
+     *
+     * @param name - the name, lower case and ending in a dot
+     * @param now - current System.nanoTime()
+     * @return Delegation - the zone, the root if nothing closer is known
+     */
+
+    Delegation closest(String name, long now){
+
+        String zone = name;
+        while (!zone.equals(".")){
+
+            Delegation delegation = delegations.get(zone);
+            if (delegation != null && now - delegation.deadline < 0){
+                return delegation;
+            }
+
+            int dot = zone.indexOf('.');
+            zone = dot == zone.length() - 1 ? "." : zone.substring(dot + 1);
+        }
+
+        return root;
+    }
+
+    /**
+     * servers() returns the servers of a zone whose addresses are known.
+     *
+     * @param zone - the zone
+     * @param now - current System.nanoTime()
+     * @return Upstream[] - the servers, empty if no addresses are known
+     */
+
+    Upstreams.Upstream[] servers(Delegation zone, long now){
+
+        List<Upstreams.Upstream> found = new ArrayList<>();
+
+        for (String nameServer : zone.nameServers){
+
+            InetSocketAddress[] nameServerAddresses = hints.get(nameServer);
+
+            Addresses cached = addresses.get(nameServer);
+            if (cached != null && now - cached.deadline < 0){
+                nameServerAddresses = cached.addresses;
+            }
+
+            if (nameServerAddresses == null){
+                continue;
+            }
+
+            for (InetSocketAddress address : nameServerAddresses){
+                found.add(servers.computeIfAbsent(address, Upstreams.Upstream::new));
+            }
+        }
+
+        if (servers.size() > maxEntries){
+            servers.clear();
+        }
+
+        return found.toArray(new Upstreams.Upstream[0]);
+    }
+
+    /**
+     * toAddresses() turns A records (and AAAA records, if IPv6 is used) into server addresses.
+     */
+
+    InetSocketAddress[] toAddresses(DNSRecord[] records){
+
+        List<InetSocketAddress> found = new ArrayList<>();
+
+        for (DNSRecord record : records){
+            if (record.TYPE == DNSEncoder.TYPE_A && record.RDLENGTH == 4
+                    || useIPv6 && record.TYPE == TYPE_AAAA && record.RDLENGTH == 16){
+                try {
+                    found.add(new InetSocketAddress(InetAddress.getByAddress(record.getRDATA()), port));
+                }
+                catch (IOException e){
+                    // Can't happen, the length was checked
+                }
+            }
+        }
+
+        return found.toArray(new InetSocketAddress[0]);
+    }
+
+    /**
+     * trim() makes room in a delegation or address table that's full: expired entries are dropped, and if that isn't
+     * enough the whole table is, since everything in it can be found again from the root.
+     */
+
+    <T> void trim(ConcurrentHashMap<String, T> table, long now, ToLongFunction<T> deadline){
+
+        if (table.size() < maxEntries){
+            return;
+        }
+
+        table.values().removeIf(entry -> now - deadline.applyAsLong(entry) >= 0);
+
+        if (table.size() >= maxEntries){
+            table.clear();
+        }
+    }
+
+    /**
+     * isAtOrBelow() checks whether a name is a zone or inside it (i.e. "www.example.com." is below "com.").
+     *
+     * @param name - the name, lower case and ending in a dot
+     * @param zone - the zone, lower case and ending in a dot
+     * @return true if the name is the zone or a name under it
+     */
+
+    static boolean isAtOrBelow(String name, String zone){
+
+        if (zone.equals(".") || name.equals(zone)){
+            return true;
+        }
+
+        return name.length() > zone.length() && name.endsWith(zone) && name.charAt(name.length() - zone.length() - 1) == '.';
+    }
+}
@@ -0,0 +1,761 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * LoadGenerator drives a DNS server at a controlled load and measures how it copes, for capacity planning. It runs in
+ * one of two modes:
+ *
+ *   open     queries go out at a constant rate whether or not earlier ones have been answered, the way real clients
+ *            behave. Each query's latency is timed from when it was due to go out, not from when it actually did, so a
+ *            generator that falls behind (because the server or the machine stalled it) can't hide the wait
+ *            (coordinated omission).
+ *   closed   a fixed number of clients each send a query, wait for the answer (or the timeout) and send the next one.
+ *            A stalled answer also stops its client from sending the queries it would have sent in the meantime, so
+ *            the latencies are corrected afterwards the way HdrHistogram does, taking the mean latency as how often
+ *            each client would have sent.
+ *
+ * Either way the report has the corrected latencies (latency) and the time from each query actually being sent to
+ * its answer (service time). Queries that time out are in both at the timeout, so the percentiles they reach are
+ * lower bounds.
+ *
+ * Queries are replayed from a file, in order and over and over. A file can be a plain list with one query per line
+ * ("www.example.com AAAA", A if the type is left off) or a BIND query log ("... query: www.example.com IN A +E(0)
+ * (10.0.0.1)"). Without a file, queries cycle through --names made up names.
+ *
+ * Unless --server points at a server that's already running, the generator starts one in its own JVM (with
+ * --server-args passed on to it), pointed at a stand-in upstream with the given latency (see StandInUpstream).
+ *
+ * The results are printed, and written to --output as JSON so runs can be compared across builds.
+ *
+ * Options are passed like the server's (--name=value):
+ *   --mode              "open" or "closed" ("open" by default)
+ *   --rate              queries per second in open mode (1000 by default)
+ *   --clients           clients in closed mode (16 by default)
+ *   --seconds           how long the run lasts (10 by default)
+ *   --timeout           milliseconds before an unanswered query counts as timed out (2000 by default)
+ *   --queries           query file (made up names by default)
+ *   --names             how many made up names are cycled through (1000 by default)
+ *   --prime             whether every query is asked once before the run, so it starts with a warm cache
+ *   --server            address of a server that's already running, i.e. 127.0.0.1:8053
+ *   --server-args       options for the server it starts, space separated (i.e. "--engine=nio --shards=2")
+ *   --port              port the server it starts listens on (18053 by default)
+ *   --upstream-latency  milliseconds the stand-in upstream holds each answer back (0 by default)
+ *   --upstream-jitter   up to how many more milliseconds, picked at random for each answer (0 by default)
+ *   --upstream-ttl      TTL of the stand-in upstream's answers (3600 by default)
+ *   --output            where the JSON results are written (loadgen.json by default)
+ */
+public class LoadGenerator {
+
+    // Query IDs per socket, and the most unanswered queries one socket is given in open mode (half its IDs, so an ID
+    // isn't reused while its last query could still be answered)
+    static final int IDS = 65536;
+    static final int MAX_PENDING_PER_SOCKET = IDS / 2;
+
+    // Marks an ID with no query waiting on it
+    static final long FREE = Long.MIN_VALUE;
+
+    static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+    static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999", "p9999"};
+
+    String mode = "open";
+    int rate = 1000;
+    int clients = 16;
+    int seconds = 10;
+    int timeoutMillis = 2000;
+    String queryFile = "";
+    int names = 1000;
+    boolean prime = false;
+    String serverAddress = "";
+    String serverArgs = "";
+    int port = 18053;
+    double upstreamLatencyMillis = 0;
+    double upstreamJitterMillis = 0;
+    int upstreamTTL = 3600;
+    String output = "loadgen.json";
+
+    // The queries, replayed in order (IDs are filled in as they're sent)
+    List<byte[]> queries;
+
+    InetSocketAddress server;
+
+    // Results
+    Histogram latency = new Histogram();
+    Histogram serviceTime = new Histogram();
+    LongAdder sent = new LongAdder();
+    LongAdder answered = new LongAdder();
+    LongAdder timeouts = new LongAdder();
+    LongAdder truncated = new LongAdder();
+    LongAdder errors = new LongAdder();
+    long elapsedNanos;
+
+    // Cleared when the open mode run is over, to stop the receivers
+    volatile boolean receiving = true;
+
+
+    /**
+     * Channel is one socket of the open mode generator, and the queries waiting on an answer through it.
+     */
+
+    static class Channel {
+
+        DatagramSocket socket;
+
+        // When each ID's query was due to go out, and when it actually did (FREE if nothing is waiting on the ID)
+        AtomicLongArray due;
+        long[] sentAt = new long[IDS];
+
+        int nextID;
+
+        Channel() throws IOException {
+
+            socket = new DatagramSocket();
+            socket.setSoTimeout(100);
+
+            long[] free = new long[IDS];
+            Arrays.fill(free, FREE);
+            due = new AtomicLongArray(free);
+        }
+    }
+
+
+    /**
+     * main() starts the stand-in upstream and the server (unless one is given), runs the load and reports on it.
+     *
+     * @param args - options, see the class comment
+     */
+
+    public static void main(String[] args) throws Exception {
+
+        LoadGenerator generator = new LoadGenerator();
+
+        for (String arg : args){
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0){
+                throw new IllegalArgumentException("Options must look like --name=value: " + arg);
+            }
+
+            String value = arg.substring(equals + 1);
+            switch (arg.substring(2, equals)) {
+                case "mode" -> generator.mode = value;
+                case "rate" -> generator.rate = Integer.parseInt(value);
+                case "clients" -> generator.clients = Integer.parseInt(value);
+                case "seconds" -> generator.seconds = Integer.parseInt(value);
+                case "timeout" -> generator.timeoutMillis = Integer.parseInt(value);
+                case "queries" -> generator.queryFile = value;
+                case "names" -> generator.names = Integer.parseInt(value);
+                case "prime" -> generator.prime = Boolean.parseBoolean(value);
+                case "server" -> generator.serverAddress = value;
+                case "server-args" -> generator.serverArgs = value;
+                case "port" -> generator.port = Integer.parseInt(value);
+                case "upstream-latency" -> generator.upstreamLatencyMillis = Double.parseDouble(value);
+                case "upstream-jitter" -> generator.upstreamJitterMillis = Double.parseDouble(value);
+                case "upstream-ttl" -> generator.upstreamTTL = Integer.parseInt(value);
+                case "output" -> generator.output = value;
+                default -> throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+
+        if (!generator.mode.equals("open") && !generator.mode.equals("closed")){
+            throw new IllegalArgumentException("Unknown mode: " + generator.mode);
+        }
+
+        generator.queries = generator.queryFile.isEmpty() ? madeUpQueries(generator.names)
+                : readQueries(Path.of(generator.queryFile));
+
+        if (generator.queries.isEmpty()){
+            throw new IllegalArgumentException("No queries in " + generator.queryFile);
+        }
+
+        if (!generator.serverAddress.isEmpty()){
+            generator.server = DNSConfig.parseAddresses(generator.serverAddress).get(0);
+            generator.run();
+        }
+        else {
+            generator.runWithServer();
+        }
+
+        generator.report();
+    }
+
+    /**
+     * runWithServer() starts the stand-in upstream and a server pointed at it, runs the load, and stops them both.
+     */
+
+    void runWithServer() throws Exception {
+
+        StandInUpstream upstream = new StandInUpstream(upstreamLatencyMillis, upstreamJitterMillis, upstreamTTL);
+        upstream.start();
+
+        List<String> command = new ArrayList<>(List.of(
+                ProcessHandle.current().info().command().orElse("java"),
+                "-cp", System.getProperty("java.class.path"),
+                "DNSServer",
+                "--port=" + port,
+                "--upstreams=127.0.0.1:" + upstream.port()));
+        for (String arg : serverArgs.trim().split("\\s+")){
+            if (!arg.isEmpty()){
+                command.add(arg);
+            }
+        }
+
+        Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+
+        try {
+            server = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+
+            // Wait for the server to come up
+            try (DatagramSocket socket = new DatagramSocket()){
+                socket.setSoTimeout(200);
+                while (!ask(socket, queries.get(0))){
+                    if (!process.isAlive()){
+                        throw new IOException("Server exited with " + process.exitValue());
+                    }
+                }
+            }
+
+            run();
+        }
+        finally {
+            process.destroy();
+            process.waitFor();
+            upstream.close();
+        }
+    }
+
+    /**
+     * run() primes the server if asked to, then runs the load in whichever mode was picked.
+     */
+
+    void run() throws Exception {
+
+        if (prime){
+            try (DatagramSocket socket = new DatagramSocket()){
+                socket.setSoTimeout(timeoutMillis);
+                for (byte[] query : queries){
+                    ask(socket, query);
+                }
+            }
+        }
+
+        if (mode.equals("open")){
+            runOpen();
+        }
+        else {
+            runClosed();
+        }
+    }
+
+    /**
+     * runOpen() sends queries at a constant rate from this thread, while a thread per socket takes the answers. A
+     * query is due every 1/rate seconds from the start, and its latency is timed from then. Rates too high for one
+     * socket's IDs are spread over more sockets.
+     */
+
+    void runOpen() throws Exception {
+
+        int socketCount = (int) Math.max(1, (long) rate * timeoutMillis / 1000 / MAX_PENDING_PER_SOCKET + 1);
+        long timeoutNanos = timeoutMillis * 1_000_000L;
+
+        Channel[] channels = new Channel[socketCount];
+        Thread[] receivers = new Thread[socketCount];
+
+        for (int i = 0; i < socketCount; i++){
+            Channel channel = new Channel();
+            channels[i] = channel;
+            receivers[i] = new Thread(() -> receive(channel, timeoutNanos), "receiver-" + i);
+            receivers[i].start();
+        }
+
+        byte[] buffer = new byte[512];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length, server);
+
+        long start = System.nanoTime();
+        long end = start + seconds * 1_000_000_000L;
+        double interval = 1_000_000_000.0 / rate;
+
+        for (long i = 0; ; i++){
+
+            long due = start + (long) (i * interval);
+            if (due - end >= 0){
+                break;
+            }
+
+            // Sleep until shortly before the query is due, then spin the rest of the way
+            long now;
+            while ((now = System.nanoTime()) - due < 0){
+                if (due - now > 100_000){
+                    LockSupport.parkNanos(due - now - 50_000);
+                }
+                else {
+                    Thread.onSpinWait();
+                }
+            }
+
+            Channel channel = channels[(int) (i % socketCount)];
+            int id = channel.nextID++ & (IDS - 1);
+
+            // The last query with this ID never got an answer
+            if (channel.due.get(id) != FREE && channel.due.getAndSet(id, FREE) != FREE){
+                timedOut();
+            }
+
+            byte[] query = queries.get((int) (i % queries.size()));
+            System.arraycopy(query, 0, buffer, 0, query.length);
+            buffer[0] = (byte) (id >> 8);
+            buffer[1] = (byte) id;
+            packet.setLength(query.length);
+
+            channel.sentAt[id] = System.nanoTime();
+            channel.due.set(id, due);
+            channel.socket.send(packet);
+            sent.increment();
+        }
+
+        elapsedNanos = System.nanoTime() - start;
+
+        // Give the last queries their full timeout, then count whatever is still waiting
+        Thread.sleep(timeoutMillis);
+        receiving = false;
+        for (Thread receiver : receivers){
+            receiver.join();
+        }
+
+        for (Channel channel : channels){
+            for (int id = 0; id < IDS; id++){
+                if (channel.due.getAndSet(id, FREE) != FREE){
+                    timedOut();
+                }
+            }
+            channel.socket.close();
+        }
+    }
+
+    /**
+     * receive() takes answers off one open mode socket until the run is done.
+     *
+     * @param channel - the socket and its waiting queries
+     * @param timeoutNanos - answers later than this count as timeouts
+     */
+
+    void receive(Channel channel, long timeoutNanos){
+
+        byte[] buffer = new byte[DNSEncoder.EDNS_PAYLOAD_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+        while (receiving){
+            try {
+                packet.setLength(buffer.length);
+                channel.socket.receive(packet);
+            }
+            catch (SocketTimeoutException e){
+                continue;
+            }
+            catch (IOException e){
+                return;
+            }
+
+            long now = System.nanoTime();
+            if (packet.getLength() < DNSHeader.LENGTH){
+                continue;
+            }
+
+            int id = ((buffer[0] & 0xFF) << 8) | (buffer[1] & 0xFF);
+
+            // Nothing is waiting on the ID (it was already answered, or counted as a timeout)
+            long due = channel.due.getAndSet(id, FREE);
+            if (due == FREE){
+                continue;
+            }
+            long sentAt = channel.sentAt[id];
+
+            if (now - due > timeoutNanos){
+                timedOut();
+                continue;
+            }
+
+            answered(buffer, now - due, now - sentAt);
+        }
+    }
+
+    /**
+     * runClosed() runs the clients, each on its own thread and socket, until the run is over.
+     */
+
+    void runClosed() throws Exception {
+
+        long start = System.nanoTime();
+        long end = start + seconds * 1_000_000_000L;
+
+        Thread[] threads = new Thread[clients];
+        for (int c = 0; c < clients; c++){
+            int first = c;
+            threads[c] = new Thread(() -> client(first, end), "client-" + c);
+            threads[c].start();
+        }
+
+        for (Thread thread : threads){
+            thread.join();
+        }
+
+        elapsedNanos = System.nanoTime() - start;
+
+        // Put back the queries the clients would have sent while they were waiting
+        long count = serviceTime.count();
+        long meanMicros = count == 0 ? 0 : serviceTime.total.sum() / count;
+        latency = serviceTime.corrected(Math.max(1, meanMicros));
+    }
+
+    /**
+     * client() is one closed mode client: one query at a time, each sent as soon as the last one is answered or times
+     * out.
+     *
+     * @param first - which query the client starts at, so the clients don't all ask the same thing at once
+     * @param end - System.nanoTime() to stop at
+     */
+
+    void client(int first, long end){
+
+        try (DatagramSocket socket = new DatagramSocket()){
+
+            byte[] buffer = new byte[DNSEncoder.EDNS_PAYLOAD_SIZE];
+            DatagramPacket received = new DatagramPacket(buffer, buffer.length);
+            DatagramPacket packet = new DatagramPacket(new byte[512], 512, server);
+
+            int next = first;
+            short id = 0;
+
+            while (System.nanoTime() - end < 0){
+
+                byte[] query = queries.get(next++ % queries.size()).clone();
+                id++;
+                query[0] = (byte) (id >> 8);
+                query[1] = (byte) id;
+                packet.setData(query);
+
+                long sentAt = System.nanoTime();
+                long deadline = sentAt + timeoutMillis * 1_000_000L;
+                socket.send(packet);
+                sent.increment();
+
+                // Answers to earlier queries that timed out are skipped
+                while (true){
+                    long now = System.nanoTime();
+                    if (now - deadline >= 0){
+                        timedOut();
+                        break;
+                    }
+
+                    socket.setSoTimeout((int) Math.max(1, (deadline - now) / 1_000_000));
+                    try {
+                        received.setLength(buffer.length);
+                        socket.receive(received);
+                    }
+                    catch (SocketTimeoutException e){
+                        continue;
+                    }
+
+                    if (received.getLength() >= DNSHeader.LENGTH && buffer[0] == query[0] && buffer[1] == query[1]){
+                        answered(buffer, 0, System.nanoTime() - sentAt);
+                        break;
+                    }
+                }
+            }
+        }
+        catch (IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * answered() counts an answer and records how long it took.
+     *
+     * @param answer - the answer
+     * @param latencyNanos - how long since the query was due (open mode only, closed mode works it out afterwards)
+     * @param serviceNanos - how long since the query was actually sent
+     */
+
+    void answered(byte[] answer, long latencyNanos, long serviceNanos){
+
+        answered.increment();
+        if (mode.equals("open")){
+            latency.record(latencyNanos);
+        }
+        serviceTime.record(serviceNanos);
+
+        if ((answer[2] & 0x02) != 0){
+            truncated.increment();
+        }
+
+        // NXDOMAIN is an answer like any other, anything else is the server failing
+        int rcode = answer[3] & 0x0F;
+        if (rcode != 0 && rcode != 3){
+            errors.increment();
+        }
+    }
+
+    /**
+     * timedOut() counts a query that wasn't answered within the timeout. It's recorded in both histograms at the
+     * timeout, the least it could have taken, so stalls still show up in the percentiles (and, in closed mode, get the
+     * samples put back for the queries the client didn't send while it waited).
+     */
+
+    void timedOut(){
+
+        timeouts.increment();
+
+        long timeoutNanos = timeoutMillis * 1_000_000L;
+        if (mode.equals("open")){
+            latency.record(timeoutNanos);
+        }
+        serviceTime.record(timeoutNanos);
+    }
+
+    /**
+     * ask() sends one query and waits for its answer.
+     *
+     * @param socket - the socket to ask on, with its timeout set
+     * @param query - the query
+     * @return boolean - whether the answer came back before the socket's timeout
+     */
+
+    boolean ask(DatagramSocket socket, byte[] query) throws IOException {
+
+        socket.send(new DatagramPacket(query, query.length, server));
+
+        byte[] buffer = new byte[DNSEncoder.EDNS_PAYLOAD_SIZE];
+        try {
+            socket.receive(new DatagramPacket(buffer, buffer.length));
+            return true;
+        }
+        catch (SocketTimeoutException e){
+            return false;
+        }
+    }
+
+    /**
+     * report() prints the results and writes them to the output file.
+     */
+
+    void report() throws IOException {
+
+        double elapsed = elapsedNanos / 1e9;
+
+        Map<String, Object> results = new LinkedHashMap<>();
+        results.put("mode", mode);
+        results.put("offered_qps", mode.equals("open") ? rate : null);
+        results.put("clients", mode.equals("closed") ? clients : null);
+        results.put("seconds", seconds);
+        results.put("timeout_ms", timeoutMillis);
+        results.put("queries", queryFile.isEmpty() ? names + " made up names" : queryFile);
+        results.put("distinct_queries", queries.size());
+        results.put("server", serverAddress.isEmpty() ? "started" : serverAddress);
+        results.put("server_args", serverArgs);
+        results.put("upstream_latency_ms", serverAddress.isEmpty() ? upstreamLatencyMillis : null);
+        results.put("upstream_jitter_ms", serverAddress.isEmpty() ? upstreamJitterMillis : null);
+        results.put("sent", sent.sum());
+        results.put("answered", answered.sum());
+        results.put("timeouts", timeouts.sum());
+        results.put("truncated", truncated.sum());
+        results.put("errors", errors.sum());
+        results.put("sent_qps", Math.round(sent.sum() / elapsed));
+        results.put("achieved_qps", Math.round(answered.sum() / elapsed));
+        results.put("latency_us", percentiles(latency));
+        results.put("service_time_us", percentiles(serviceTime));
+
+        for (Map.Entry<String, Object> result : results.entrySet()){
+            if (result.getValue() != null){
+                System.out.printf("%-20s %s%n", result.getKey(), result.getValue());
+            }
+        }
+
+        Files.writeString(Path.of(output), json(results) + "\n");
+    }
+
+    /**
+     * percentiles() reads a histogram's summary for the report.
+     *
+     * @param histogram - the histogram
+     * @return Map - count, mean, percentiles and max, in microseconds
+     */
+
+    static Map<String, Object> percentiles(Histogram histogram){
+
+        long count = histogram.count();
+        long[] values = histogram.percentiles(PERCENTILES);
+
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("count", count);
+        summary.put("mean", count == 0 ? 0 : histogram.total.sum() / count);
+        for (int i = 0; i < values.length; i++){
+            summary.put(PERCENTILE_NAMES[i], values[i]);
+        }
+        summary.put("max", histogram.max.get());
+
+        return summary;
+    }
+
+    /**
+     * json() writes a map of numbers, strings and maps as a JSON object, leaving out nulls.
+     *
+     * @param map - the map
+     * @return String - the JSON
+     */
+
+    @SuppressWarnings("unchecked")
+    static String json(Map<String, Object> map){
+
+        StringBuilder json = new StringBuilder("{");
+
+        for (Map.Entry<String, Object> entry : map.entrySet()){
+
+            Object value = entry.getValue();
+            if (value == null){
+                continue;
+            }
+
+            if (json.length() > 1){
+                json.append(", ");
+            }
+            json.append('"').append(entry.getKey()).append("\": ");
+
+            if (value instanceof Map){
+                json.append(json((Map<String, Object>) value));
+            }
+            else if (value instanceof String){
+                json.append('"').append(((String) value).replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+            }
+            else {
+                json.append(value);
+            }
+        }
+
+        return json.append('}').toString();
+    }
+
+    /**
+     * madeUpQueries() makes A queries for host0.load.test, host1.load.test and so on.
+     *
+     * @param count - how many names
+     * @return List - the queries
+     */
+
+    static List<byte[]> madeUpQueries(int count){
+
+        List<byte[]> queries = new ArrayList<>();
+        for (int i = 0; i < count; i++){
+            queries.add(query("host" + i + ".load.test", DNSEncoder.TYPE_A));
+        }
+
+        return queries;
+    }
+
+    /**
+     * readQueries() reads a query file: a plain list ("name [type]" per line) or a BIND query log. Blank lines and
+     * lines starting with # or ; are skipped.
+     *
+     * @param path - the file
+     * @return List - the queries, in the file's order
+     * @throws IOException if the file can't be read
+     * @throws IllegalArgumentException if a line has a type or name that can't be used
+     */
+
+    static List<byte[]> readQueries(Path path) throws IOException {
+
+        List<byte[]> queries = new ArrayList<>();
+
+        for (String line : Files.readAllLines(path)){
+
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#") || line.startsWith(";")){
+                continue;
+            }
+
+            // A query log line has the name, class and type after "query: "
+            int logged = line.indexOf("query: ");
+            String[] fields = (logged >= 0 ? line.substring(logged + 7) : line).trim().split("\\s+");
+
+            String type = "A";
+            if (logged >= 0 && fields.length > 2){
+                type = fields[2];
+            }
+            else if (logged < 0 && fields.length > 1){
+                type = fields[1];
+            }
+
+            queries.add(query(fields[0], typeCode(type)));
+        }
+
+        return queries;
+    }
+
+    /**
+     * typeCode() returns the TYPE for a type's name (i.e. AAAA), or for TYPEnnn.
+     *
+     * @param type - the type's name
+     * @return short - the TYPE
+     * @throws IllegalArgumentException if the type isn't known
+     */
+
+    static short typeCode(String type){
+
+        String upper = type.toUpperCase(Locale.ROOT);
+        if (upper.startsWith("TYPE")){
+            return (short) Integer.parseInt(upper.substring(4));
+        }
+
+        return switch (upper){
+            case "A" -> 1;
+            case "NS" -> 2;
+            case "CNAME" -> 5;
+            case "SOA" -> 6;
+            case "PTR" -> 12;
+            case "MX" -> 15;
+            case "TXT" -> 16;
+            case "AAAA" -> 28;
+            case "SRV" -> 33;
+            case "DS" -> 43;
+            case "DNSKEY" -> 48;
+            case "HTTPS" -> 65;
+            case "ANY" -> 255;
+            default -> throw new IllegalArgumentException("Unknown type: " + type);
+        };
+    }
+
+    /**
+     * query() builds a query with RD set, class IN and ID 0 (the ID is filled in as it's sent).
+     *
+     * @param name - the name (with or without the final dot)
+     * @param type - the TYPE
+     * @return byte[] - the query
+     */
+
+    static byte[] query(String name, short type){
+
+        ByteBuffer buffer = ByteBuffer.allocate(DNSHeader.LENGTH + 256 + 4);
+        buffer.putShort((short) 0).putShort((short) 0x0100).putShort((short) 1);
+        buffer.putShort((short) 0).putShort((short) 0).putShort((short) 0);
+        DNSName.write(buffer, name.endsWith(".") ? name : name + ".");
+        buffer.putShort(type).putShort((short) 1);
+
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+}
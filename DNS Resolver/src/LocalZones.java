@@ -0,0 +1,862 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LocalZones answers questions about names we know ourselves (i.e. internal service names) from zone files and
+ * hosts files, before the cache or the upstreams are asked. Every engine checks it first, straight from the raw packet.
+ *
+ * The records are kept in a radix trie keyed by the name's labels in reverse (i.e. "api.corp.internal" is filed under
+ * "internal", "corp", "api"), so names in the same zone share their path, and runs of labels with nothing else
+ * branching off them are a single edge. A lookup walks from the root a label at a time, noting the deepest zone apex
+ * (a name with an SOA) it passes. Wildcards ("*.svc.internal") answer for names that don't exist under their parent
+ * (RFC 4592), CNAMEs are followed through the local data, and names that don't exist inside a zone get NXDOMAIN (or
+ * NODATA if they exist without the type asked for), with the zone's SOA. Outside any zone only names that have
+ * records are answered, and everything else goes on to the cache and upstreams as usual.
+ *
+ * A CNAME whose target isn't in the local data is answered the way an authoritative server would: the chain up to
+ * the CNAME, without RA, and the target is not looked up in the cache or upstream. Stub resolvers won't chase the
+ * target themselves, so local CNAMEs should point at local names.
+ *
+ * Zone files are a subset of the RFC 1035 master file format: $ORIGIN and $TTL, "@", relative names, blank owners,
+ * parentheses and comments, with A, AAAA, NS, CNAME, PTR, MX, TXT, SRV and SOA records. A line whose first field is
+ * an IP address is read as a hosts file line instead ("10.0.0.5 api.corp.internal api2.corp.internal").
+ *
+ * The files are checked for changes on a background thread. A new trie is built off to the side and swapped in with
+ * one write, so lookups carry on against the old data until the new data is ready, and files that fail to load leave
+ * the old data in place.
+ */
+public class LocalZones {
+
+    // Record types only used here
+    static final short TYPE_TXT = 16;
+    static final short TYPE_AAAA = 28;
+    static final short TYPE_SRV = 33;
+    static final short TYPE_ANY = 255;
+
+    static final short CLASS_IN = 1;
+
+    // TTL of records that don't have one and come before any $TTL, and of records from hosts files
+    static final int DEFAULT_TTL = 3600;
+    static final int HOSTS_TTL = 300;
+
+    // Most CNAMEs followed through the local data
+    static final int MAX_CNAME_CHAIN = 8;
+
+    // Response flags: QR, AA and RA (RD is copied from the query)
+    static final int RESPONSE_FLAGS = 0x8480;
+    static final int RECURSION_AVAILABLE = 0x0080;
+
+    static final DNSRecord[] NO_RECORDS = new DNSRecord[0];
+
+    // Stands in for a name that only exists because names below it do (an empty non-terminal)
+    static final Node EMPTY = new Node(new String[0]);
+
+    // Each thread reuses one question for reading raw packets
+    private static final ThreadLocal<DNSQuestion> PROBES = ThreadLocal.withInitial(DNSQuestion::probe);
+
+    List<Path> paths;
+
+    // The current data, replaced whole on every reload
+    volatile Node root = new Node(new String[0]);
+
+    // When each file was last changed, as of the last load
+    FileTime[] loadedTimes;
+
+    ScheduledExecutorService reloadThread;
+
+
+    /**
+     * Node is one name in the trie. Its edge is the labels between its parent and itself (usually one, more where
+     * nothing else branches off), and its children are keyed by the first label of their edge. Names are lower cased.
+     */
+
+    static class Node {
+
+        String[] edge;
+        HashMap<String, Node> children;
+
+        // Every record owned by the name, and its SOA if it's a zone apex
+        DNSRecord[] records = NO_RECORDS;
+        DNSRecord soa;
+
+        Node(String[] edge){
+            this.edge = edge;
+        }
+
+        void add(DNSRecord record){
+
+            records = Arrays.copyOf(records, records.length + 1);
+            records[records.length - 1] = record;
+
+            if (record.TYPE == DNSEncoder.TYPE_SOA){
+                soa = record;
+            }
+        }
+    }
+
+
+    /**
+     * Match is what a lookup found: the node for the name (or the wildcard standing in for it), and the zone the name
+     * is in.
+     */
+
+    static class Match {
+
+        // Null if the name doesn't exist and no wildcard covers it
+        Node node;
+
+        // The deepest zone apex above (or at) the name, null if it isn't in a zone
+        Node apex;
+    }
+
+
+    /**
+     * ZoneFile reads one zone or hosts file into a trie, keeping track of $ORIGIN, $TTL and the last owner as it goes.
+     */
+
+    static class ZoneFile {
+
+        Node root;
+        Path path;
+
+        String origin = ".";
+        int defaultTTL = DEFAULT_TTL;
+        String previousOwner;
+
+        int records;
+
+        ZoneFile(Node root, Path path){
+            this.root = root;
+            this.path = path;
+        }
+
+        /**
+         * read() reads every entry in the file. An entry is a line, or several if it has parentheses.
+         *
+         * @throws IOException if the file can't be read or has an entry that can't be understood
+         */
+
+        void read() throws IOException {
+
+            List<String> lines = Files.readAllLines(path, StandardCharsets.ISO_8859_1);
+
+            for (int n = 0; n < lines.size(); n++){
+
+                int number = n + 1;
+                String line = lines.get(n);
+
+                // A line that starts with a space has the same owner as the entry before it
+                boolean sameOwner = !line.isEmpty() && Character.isWhitespace(line.charAt(0));
+
+                List<String> tokens = new ArrayList<>();
+                int depth = tokenize(line, tokens, 0);
+                while (depth > 0 && n + 1 < lines.size()){
+                    depth = tokenize(lines.get(++n), tokens, depth);
+                }
+
+                if (tokens.isEmpty()){
+                    continue;
+                }
+
+                try {
+                    entry(tokens, sameOwner);
+                }
+                catch (IllegalArgumentException | IndexOutOfBoundsException e){
+                    throw new IOException(path + ":" + number + ": " + e.getMessage(), e);
+                }
+            }
+        }
+
+        /**
+         * entry() handles one entry: a $ directive, a hosts line or a record.
+         *
+         * @param tokens - the entry's fields (quoted strings keep their opening quote)
+         * @param sameOwner - whether the entry started with a space, so has no owner of its own
+         * @throws IllegalArgumentException if the entry can't be understood
+         */
+
+        void entry(List<String> tokens, boolean sameOwner){
+
+            String first = tokens.get(0);
+
+            if (!sameOwner && first.equalsIgnoreCase("$ORIGIN")){
+                origin = absolute(tokens.get(1));
+                return;
+            }
+
+            if (!sameOwner && first.equalsIgnoreCase("$TTL")){
+                defaultTTL = Integer.parseInt(tokens.get(1));
+                return;
+            }
+
+            if (!sameOwner && first.startsWith("$")){
+                throw new IllegalArgumentException("Unsupported directive: " + first);
+            }
+
+            // Hosts file line: an address and the names that have it
+            if (!sameOwner && isAddress(first)){
+                byte[] address = address(first);
+                short type = address.length == 4 ? DNSEncoder.TYPE_A : TYPE_AAAA;
+                for (int i = 1; i < tokens.size(); i++){
+                    String name = tokens.get(i);
+                    add(name.endsWith(".") ? name : name + ".", type, HOSTS_TTL, ByteBuffer.wrap(address));
+                }
+                return;
+            }
+
+            int i = 0;
+            String owner;
+            if (sameOwner){
+                if (previousOwner == null){
+                    throw new IllegalArgumentException("No owner for the record.");
+                }
+                owner = previousOwner;
+            }
+            else {
+                owner = absolute(tokens.get(i++));
+            }
+            previousOwner = owner;
+
+            // TTL and class can come in either order, and both can be left out
+            int ttl = defaultTTL;
+            for (int k = 0; k < 2 && i < tokens.size(); k++){
+                String token = tokens.get(i);
+                if (!token.isEmpty() && token.chars().allMatch(Character::isDigit)){
+                    ttl = Integer.parseInt(token);
+                    i++;
+                }
+                else if (token.equalsIgnoreCase("IN")){
+                    i++;
+                }
+            }
+
+            String type = tokens.get(i++).toUpperCase(Locale.ROOT);
+            List<String> fields = tokens.subList(i, tokens.size());
+
+            ByteBuffer rdata = ByteBuffer.allocate(65535);
+            short code;
+
+            switch (type) {
+                case "A", "AAAA" -> {
+                    byte[] address = address(fields.get(0));
+                    if (address.length != (type.equals("A") ? 4 : 16)){
+                        throw new IllegalArgumentException("Wrong kind of address for " + type + ": " + fields.get(0));
+                    }
+                    code = address.length == 4 ? DNSEncoder.TYPE_A : TYPE_AAAA;
+                    rdata.put(address);
+                }
+                case "NS", "CNAME", "PTR" -> {
+                    code = type.equals("NS") ? DNSEncoder.TYPE_NS : type.equals("CNAME") ? DNSEncoder.TYPE_CNAME : DNSEncoder.TYPE_PTR;
+                    DNSName.write(rdata, absolute(fields.get(0)));
+                }
+                case "MX" -> {
+                    code = DNSEncoder.TYPE_MX;
+                    rdata.putShort((short) Integer.parseInt(fields.get(0)));
+                    DNSName.write(rdata, absolute(fields.get(1)));
+                }
+                case "TXT" -> {
+                    code = TYPE_TXT;
+                    for (String field : fields){
+                        byte[] text = (field.startsWith("\"") ? field.substring(1) : field).getBytes(StandardCharsets.ISO_8859_1);
+
+                        // Each character-string holds at most 255 bytes, so long text is split over several
+                        int start = 0;
+                        do {
+                            int length = Math.min(255, text.length - start);
+                            rdata.put((byte) length).put(text, start, length);
+                            start += length;
+                        } while (start < text.length);
+                    }
+                }
+                case "SRV" -> {
+                    code = TYPE_SRV;
+                    rdata.putShort((short) Integer.parseInt(fields.get(0)));
+                    rdata.putShort((short) Integer.parseInt(fields.get(1)));
+                    rdata.putShort((short) Integer.parseInt(fields.get(2)));
+                    DNSName.write(rdata, absolute(fields.get(3)));
+                }
+                case "SOA" -> {
+                    code = DNSEncoder.TYPE_SOA;
+                    DNSName.write(rdata, absolute(fields.get(0)));
+                    DNSName.write(rdata, absolute(fields.get(1)));
+
+                    // Serial, refresh, retry, expire and minimum are unsigned 32 bit numbers
+                    for (int f = 2; f < 7; f++){
+                        rdata.putInt((int) Long.parseLong(fields.get(f)));
+                    }
+                }
+                default -> throw new IllegalArgumentException("Unsupported record type: " + type);
+            }
+
+            rdata.flip();
+            add(owner, code, ttl, rdata);
+        }
+
+        /**
+         * add() encodes a record the way it would be in a packet (without compression), decodes it back into a
+         * DNSRecord pointing into those bytes, and files it under its owner.
+         *
+         * @param owner - the owner's absolute name
+         * @param type - the record's TYPE
+         * @param ttl - the record's TTL
+         * @param rdata - the RDATA, from position to limit
+         */
+
+        void add(String owner, short type, int ttl, ByteBuffer rdata){
+
+            // DNSName.write() only checks the length after writing, and the buffer only has room for a legal name (an
+            // absolute name takes one byte more than its text)
+            if (owner.length() + 1 > DNSName.MAX_LENGTH){
+                throw new IllegalArgumentException("Name is too long: " + owner);
+            }
+
+            ByteBuffer wire = ByteBuffer.allocate(DNSName.MAX_LENGTH + 10 + rdata.remaining());
+            DNSName.write(wire, owner);
+            wire.putShort(type).putShort(CLASS_IN).putInt(ttl).putShort((short) rdata.remaining()).put(rdata);
+            wire.flip();
+
+            DNSRecord record;
+            try {
+                record = DNSRecord.decodeRecord(wire, 0);
+            }
+            catch (IOException e){
+                throw new IllegalArgumentException(e.getMessage());
+            }
+
+            insert(root, reversedLabels(wire, 0), record);
+            records++;
+        }
+
+        /**
+         * absolute() makes a name from the file absolute: "@" is the origin, names ending in a dot are already
+         * absolute, and anything else is relative to the origin.
+         */
+
+        String absolute(String name){
+
+            if (name.equals("@")){
+                return origin;
+            }
+            if (name.endsWith(".")){
+                return name;
+            }
+
+            return origin.equals(".") ? name + "." : name + "." + origin;
+        }
+    }
+
+
+    /**
+     * LocalZones() makes an empty set of local data for the given files. Nothing is loaded until reload().
+     *
+     * @param paths - the zone and hosts files
+     */
+
+    LocalZones(List<Path> paths){
+
+        this.paths = paths;
+    }
+
+    /**
+     * start() checks the files for changes every interval on a background thread, and reloads them when they change.
+     *
+     * @param intervalSeconds - seconds between checks (0 never reloads)
+     */
+
+    void start(int intervalSeconds){
+
+        if (intervalSeconds <= 0){
+            return;
+        }
+
+        reloadThread = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "local-zones");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reloadThread.scheduleWithFixedDelay(this::tryReload, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * tryReload() reloads the files if they've changed, reporting (instead of throwing) anything that goes wrong, since
+     * an exception would cancel every later check.
+     */
+
+    void tryReload(){
+
+        try {
+            if (!Arrays.equals(modifiedTimes(), loadedTimes)){
+                reload();
+            }
+        }
+        catch (RuntimeException e){
+            System.out.println("Unable to reload local zones.");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * reload() reads every file into a new trie and swaps it in. If any file fails, the old data stays, and the files
+     * aren't tried again until they change.
+     *
+     * @return boolean - whether the new data was swapped in
+     */
+
+    synchronized boolean reload(){
+
+        // Taken before reading, so a change made while the files are read is picked up by the next check
+        loadedTimes = modifiedTimes();
+
+        Node fresh = new Node(new String[0]);
+        int records = 0;
+
+        try {
+            for (Path path : paths){
+                ZoneFile file = new ZoneFile(fresh, path);
+                file.read();
+                records += file.records;
+            }
+        }
+        catch (IOException e){
+            System.out.println("Unable to load local zones, keeping the ones already loaded: " + e.getMessage());
+            return false;
+        }
+
+        root = fresh;
+        System.out.println("Loaded " + records + " local records.");
+
+        return true;
+    }
+
+    /**
+     * modifiedTimes() gets when each file was last changed (null for a file that can't be read).
+     *
+     * @return FileTime[] - one time per file
+     */
+
+    FileTime[] modifiedTimes(){
+
+        FileTime[] times = new FileTime[paths.size()];
+        for (int i = 0; i < times.length; i++){
+            try {
+                times[i] = Files.getLastModifiedTime(paths.get(i));
+            }
+            catch (IOException e){
+                times[i] = null;
+            }
+        }
+
+        return times;
+    }
+
+    /**
+     * answer() answers a raw client query from the local data, if it's about a local name. The response is written
+     * into the encoder's buffer like CachedResponse.writeTo() does, ready for DNSEncoder.finishUDP() or finishTCP().
+     *
+     * @param packet - a received client query, from index 0 to the limit
+     * @param encoder - encoder whose buffer the response is written into (the current thread's)
+     * @return ByteBuffer - the response, from position 0 to the limit, or null if the query should be answered as
+     *         usual
+     */
+
+    ByteBuffer answer(ByteBuffer packet, DNSEncoder encoder){
+
+        // Read once, so the whole answer comes from the same data even if a reload swaps it partway through
+        Node root = this.root;
+        if (root.children == null){
+            return null;
+        }
+
+        DNSQuestion question = PROBES.get();
+        if (!question.readFrom(packet)){
+            return null;
+        }
+
+        try {
+            if (question.QCLASS != CLASS_IN){
+                return null;
+            }
+
+            boolean recursionDesired = (packet.get(2) & 0x01) != 0;
+            return answer(root, question, packet.getShort(0), recursionDesired, encoder);
+        }
+        finally {
+            // Don't keep the packet reachable from the thread's probe
+            question.buffer = null;
+        }
+    }
+
+    /**
+     * This version of answer() does the lookup and writes the response. The records are written as they're found,
+     * and the header's flags, counts and RCODE are filled in at the end.
+     *
+     * @param root - the data to answer from
+     * @param question - the client's question
+     * @param id - the client's ID
+     * @param recursionDesired - whether the client set RD, which is copied into the response
+     * @param encoder - encoder whose buffer the response is written into
+     * @return ByteBuffer - the response, or null if the question isn't about a local name
+     */
+
+    ByteBuffer answer(Node root, DNSQuestion question, short id, boolean recursionDesired, DNSEncoder encoder){
+
+        Match match = find(root, reversedLabels(question.buffer, question.nameOffset));
+
+        // Outside a zone, only names with records of their own are ours to answer
+        if (match.node == null ? match.apex == null : match.apex == null && match.node.records.length == 0){
+            return null;
+        }
+
+        ByteBuffer out = encoder.out;
+        out.clear();
+        encoder.suffixCount = 0;
+        encoder.ttlCount = 0;
+
+        out.putShort(id);
+        out.putShort((short) 0);
+        out.putShort((short) 1);
+        out.putShort((short) 0);
+        out.putShort((short) 0);
+        out.putShort((short) 0);
+
+        question.writeBytes(encoder);
+
+        // Each record is written under the name being looked up, which is how a wildcard's records get the question's
+        // name, and how a CNAME's target gets its records
+        ByteBuffer ownerBuffer = question.buffer;
+        int ownerOffset = question.nameOffset;
+
+        int answers = 0;
+        int rcode = 0;
+
+        // Whether the answer ends in a CNAME whose target isn't answered here
+        boolean dangling = false;
+
+        for (int step = 0; step <= MAX_CNAME_CHAIN; step++){
+
+            if (step > 0){
+                match = find(root, reversedLabels(ownerBuffer, ownerOffset));
+            }
+
+            if (match.node == null){
+                // The chain left the local data, or the name doesn't exist in its zone
+                if (match.apex != null){
+                    rcode = 3;
+                    dangling = false;
+                }
+                break;
+            }
+            dangling = false;
+
+            DNSRecord cname = null;
+            boolean found = false;
+
+            for (DNSRecord record : match.node.records){
+                if (record.TYPE == question.QTYPE || question.QTYPE == TYPE_ANY){
+                    writeRecord(encoder, record, ownerBuffer, ownerOffset);
+                    answers++;
+                    found = true;
+                }
+                else if (record.TYPE == DNSEncoder.TYPE_CNAME){
+                    cname = record;
+                }
+            }
+
+            if (found || cname == null){
+                break;
+            }
+
+            writeRecord(encoder, cname, ownerBuffer, ownerOffset);
+            answers++;
+            dangling = true;
+
+            ownerBuffer = cname.buffer;
+            ownerOffset = cname.rdataOffset;
+        }
+
+        // NXDOMAIN and NODATA carry the zone's SOA, so the client knows how long to cache them (RFC 2308)
+        int authority = 0;
+        if ((answers == 0 || rcode == 3) && match.apex != null){
+            DNSRecord soa = match.apex.soa;
+            writeRecord(encoder, soa, soa.buffer, soa.nameOffset);
+            authority++;
+        }
+
+        // An answer that stops at a CNAME leaving the local data wasn't recursed, so it doesn't claim RA
+        int flags = dangling ? RESPONSE_FLAGS & ~RECURSION_AVAILABLE : RESPONSE_FLAGS;
+        out.putShort(2, (short) (flags | (recursionDesired ? 0x0100 : 0) | rcode));
+        out.putShort(6, (short) answers);
+        out.putShort(8, (short) authority);
+
+        Metrics.LOCAL_ANSWERS.increment();
+
+        out.flip();
+        return out;
+    }
+
+    /**
+     * writeRecord() writes a local record under the given owner name, with its TTL as it was loaded.
+     *
+     * @param encoder - the encoder the response is being written with
+     * @param record - the record
+     * @param ownerBuffer - the packet the owner name is in
+     * @param ownerOffset - where the owner name starts
+     */
+
+    static void writeRecord(DNSEncoder encoder, DNSRecord record, ByteBuffer ownerBuffer, int ownerOffset){
+
+        encoder.writeDomainName(ownerBuffer, ownerOffset);
+        encoder.out.putShort(record.TYPE);
+        encoder.out.putShort(record.CLASS);
+        encoder.writeTTL(record.TTL);
+        encoder.writeRDATA(record);
+    }
+
+    /**
+     * find() walks the trie for a name. If the name isn't there, the deepest name above it that is (its closest
+     * encloser) is checked for a "*" child, which stands in for the name.
+     *
+     * @param root - the trie
+     * @param labels - the name's labels, lower cased, starting from the top (see reversedLabels())
+     * @return Match - the name's node (EMPTY if it only exists because names below it do), and its zone
+     */
+
+    static Match find(Node root, String[] labels){
+
+        Match match = new Match();
+
+        Node node = root;
+        int i = 0;
+
+        while (true){
+
+            if (node.soa != null){
+                match.apex = node;
+            }
+
+            if (i == labels.length){
+                match.node = node;
+                return match;
+            }
+
+            Node child = node.children == null ? null : node.children.get(labels[i]);
+            if (child == null){
+                match.node = wildcard(node);
+                return match;
+            }
+
+            int j = 0;
+            while (j < child.edge.length && i + j < labels.length && child.edge[j].equals(labels[i + j])){
+                j++;
+            }
+
+            if (j == child.edge.length){
+                node = child;
+                i += j;
+                continue;
+            }
+
+            // The name ends partway along an edge, so only names below it exist
+            if (i + j == labels.length){
+                match.node = EMPTY;
+                return match;
+            }
+
+            // The name branches off partway along an edge, where the only name below is the rest of the edge, which
+            // is a wildcard if it's just "*"
+            match.node = j == child.edge.length - 1 && child.edge[j].equals("*") ? child : null;
+            return match;
+        }
+    }
+
+    /**
+     * wildcard() returns a node's "*" child, if it has one.
+     */
+
+    static Node wildcard(Node node){
+
+        Node child = node.children == null ? null : node.children.get("*");
+
+        return child != null && child.edge.length == 1 ? child : null;
+    }
+
+    /**
+     * insert() files a record under its owner, splitting an edge wherever the owner branches off partway along one.
+     *
+     * @param root - the trie
+     * @param labels - the owner's labels, lower cased, starting from the top
+     * @param record - the record
+     */
+
+    static void insert(Node root, String[] labels, DNSRecord record){
+
+        Node node = root;
+        int i = 0;
+
+        while (i < labels.length){
+
+            if (node.children == null){
+                node.children = new HashMap<>();
+            }
+
+            Node child = node.children.get(labels[i]);
+            if (child == null){
+                child = new Node(Arrays.copyOfRange(labels, i, labels.length));
+                node.children.put(labels[i], child);
+                node = child;
+                break;
+            }
+
+            int j = 1;
+            while (j < child.edge.length && i + j < labels.length && child.edge[j].equals(labels[i + j])){
+                j++;
+            }
+
+            // The owner leaves the edge partway along, so the edge is split there
+            if (j < child.edge.length){
+                Node middle = new Node(Arrays.copyOfRange(child.edge, 0, j));
+                child.edge = Arrays.copyOfRange(child.edge, j, child.edge.length);
+
+                middle.children = new HashMap<>();
+                middle.children.put(child.edge[0], child);
+                node.children.put(labels[i], middle);
+
+                child = middle;
+            }
+
+            node = child;
+            i += j;
+        }
+
+        node.add(record);
+    }
+
+    /**
+     * reversedLabels() copies a name's labels out lower cased, starting from the top (i.e. "www.Example.com" becomes
+     * "com", "example", "www").
+     *
+     * @param buffer - the packet the name is in
+     * @param offset - where the name starts
+     * @return String[] - the labels in reverse
+     */
+
+    static String[] reversedLabels(ByteBuffer buffer, int offset){
+
+        String[] labels = new String[DNSName.labelCount(buffer, offset)];
+
+        int position = DNSName.follow(buffer, offset);
+        for (int i = labels.length - 1; i >= 0; i--){
+
+            int length = buffer.get(position);
+            byte[] label = new byte[length];
+            for (int j = 0; j < length; j++){
+                label[j] = DNSName.toLowerCase(buffer.get(position + 1 + j));
+            }
+            labels[i] = new String(label, StandardCharsets.ISO_8859_1);
+
+            position = DNSName.follow(buffer, position + length + 1);
+        }
+
+        return labels;
+    }
+
+    /**
+     * tokenize() splits a line into fields, leaving out comments (; in zone files, # in hosts files). Quoted strings
+     * are one field (kept with their opening quote, so they can be told apart), and parentheses are counted but not
+     * kept, since they only let an entry go on over several lines.
+     *
+     * @param line - the line
+     * @param tokens - where the fields are added
+     * @param depth - how many parentheses were open before the line
+     * @return int - how many are open after it
+     */
+
+    static int tokenize(String line, List<String> tokens, int depth){
+
+        int i = 0;
+        while (i < line.length()){
+
+            char c = line.charAt(i);
+
+            if (c == ';' || c == '#'){
+                break;
+            }
+            if (Character.isWhitespace(c)){
+                i++;
+                continue;
+            }
+            if (c == '(' || c == ')'){
+                depth += c == '(' ? 1 : -1;
+                i++;
+                continue;
+            }
+
+            StringBuilder token = new StringBuilder();
+
+            if (c == '"'){
+                token.append('"');
+                i++;
+                while (i < line.length() && line.charAt(i) != '"'){
+                    if (line.charAt(i) == '\\' && i + 1 < line.length()){
+                        i++;
+                    }
+                    token.append(line.charAt(i++));
+                }
+                i++;
+            }
+            else {
+                while (i < line.length() && !Character.isWhitespace(line.charAt(i)) && "();#\"".indexOf(line.charAt(i)) < 0){
+                    token.append(line.charAt(i++));
+                }
+            }
+
+            tokens.add(token.toString());
+        }
+
+        return depth;
+    }
+
+    /**
+     * isAddress() checks whether a field is an IP address literal, without looking anything up.
+     */
+
+    static boolean isAddress(String field){
+
+        return field.indexOf(':') >= 0 || field.matches("\\d{1,3}(\\.\\d{1,3}){3}");
+    }
+
+    /**
+     * address() reads an IP address literal.
+     *
+     * @param field - the address
+     * @return byte[] - 4 bytes for IPv4, 16 for IPv6
+     * @throws IllegalArgumentException if it isn't an address (names aren't looked up)
+     */
+
+    static byte[] address(String field){
+
+        if (!isAddress(field)){
+            throw new IllegalArgumentException("Not an IP address: " + field);
+        }
+
+        try {
+            return InetAddress.getByName(field).getAddress();
+        }
+        catch (IOException e){
+            throw new IllegalArgumentException("Not an IP address: " + field);
+        }
+    }
+}
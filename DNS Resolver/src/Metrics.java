@@ -0,0 +1,321 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics keeps the server's latency histograms and error counts, and reports them along with the stats the cache,
+ * upstreams, prefetcher, iterative resolver and rate limiter keep for themselves. Everything is recorded into
+ * LongAdders (see Histogram), so recording never locks or allocates on the query path. The work of adding everything
+ * up is only done when the stats are read.
+ *
+ * The stats are read with a CHAOS class TXT query for stats.bind (i.e. dig @127.0.0.1 -p 8053 CH TXT stats.bind),
+ * which gets one TXT record per stat, each a name=value string. Any other CHAOS query is refused, never forwarded.
+ * The same lines can also be written to a file periodically.
+ */
+public class Metrics {
+
+    static final short TYPE_TXT = 16;
+    static final short TYPE_ANY = 255;
+    static final short CLASS_CH = 3;
+
+    static final String STATS_NAME = "stats.bind.";
+
+    // Header flags of a stats answer: QR and AA
+    static final int RESPONSE_FLAGS = 0x8400;
+    static final int RCODE_REFUSED = 5;
+
+    // The percentiles reported for each histogram
+    static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+    // How long clients wait for their answers, from the query being received to the answer being sent
+    static final Histogram CLIENT_LATENCY = new Histogram();
+
+    // How long upstreams (or authoritative servers) take to answer, counting only unambiguous round trips
+    static final Histogram UPSTREAM_RTT = new Histogram();
+
+    // Packets (client queries or upstream answers) that couldn't be decoded, and answers that couldn't be sent
+    static final LongAdder DECODE_ERRORS = new LongAdder();
+    static final LongAdder SEND_ERRORS = new LongAdder();
+
+    // Queries answered from the local zone and hosts files
+    static final LongAdder LOCAL_ANSWERS = new LongAdder();
+
+    // Each thread reuses one question for reading raw packets
+    private static final ThreadLocal<DNSQuestion> PROBES = ThreadLocal.withInitial(DNSQuestion::probe);
+
+    static final long STARTED = System.nanoTime();
+
+    // Where the rest of the stats come from (any of them can be null)
+    static DNSCache cache;
+    static Upstreams upstreams;
+    static IterativeResolver resolver;
+    static RateLimiter rateLimiter;
+
+    static ScheduledExecutorService dumpThread;
+
+
+    /**
+     * watch() sets which cache, upstreams, resolver and rate limiter are reported on.
+     *
+     * @param cache - the cache
+     * @param upstreams - the upstreams queries are forwarded to
+     * @param resolver - the iterative resolver, or null when forwarding
+     * @param rateLimiter - the rate limiter, or null when rate limiting is off
+     */
+
+    static void watch(DNSCache cache, Upstreams upstreams, IterativeResolver resolver, RateLimiter rateLimiter){
+
+        Metrics.cache = cache;
+        Metrics.upstreams = upstreams;
+        Metrics.resolver = resolver;
+        Metrics.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * answered() records how long a client waited for its answer. It's called right after the answer is sent.
+     *
+     * @param receivedAt - when the client's query was received (System.nanoTime())
+     */
+
+    static void answered(long receivedAt){
+
+        CLIENT_LATENCY.record(System.nanoTime() - receivedAt);
+    }
+
+    /**
+     * start() writes the stats to a file every interval on a background thread.
+     *
+     * @param path - the file (replaced each time)
+     * @param intervalSeconds - seconds between writes
+     */
+
+    static void start(Path path, int intervalSeconds){
+
+        dumpThread = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        dumpThread.scheduleWithFixedDelay(() -> {
+            try {
+                dump(path);
+            }
+            catch (IOException e){
+                System.out.println("Unable to write metrics.");
+                e.printStackTrace();
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * dump() writes the stats to a file, one per line. Like a cache snapshot, the file is written under a temporary
+     * name and moved over the old one, so whatever reads it never sees half of it.
+     *
+     * @param path - the file
+     * @throws IOException if the file can't be written
+     */
+
+    static void dump(Path path) throws IOException {
+
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+
+        List<String> lines = report();
+        lines.add(0, "time=" + System.currentTimeMillis() / 1000);
+
+        Files.write(temporary, lines, StandardCharsets.US_ASCII);
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * report() adds everything up into name=value lines.
+     *
+     * @return List - one line per stat
+     */
+
+    static List<String> report(){
+
+        List<String> lines = new ArrayList<>();
+
+        lines.add("uptime=" + (System.nanoTime() - STARTED) / 1_000_000_000L);
+
+        histogram(lines, "latency.client", CLIENT_LATENCY);
+        histogram(lines, "latency.upstream", UPSTREAM_RTT);
+
+        DNSCache cache = Metrics.cache;
+        if (cache != null){
+            lines.add("cache.hits=" + cache.hits.sum());
+            lines.add("cache.misses=" + cache.misses.sum());
+            lines.add("cache.negative_hits=" + cache.negativeHits.sum());
+            lines.add("cache.negative_misses=" + cache.negativeMisses.sum());
+            lines.add("cache.assembled=" + cache.assembled.sum());
+            lines.add("cache.stale_hits=" + cache.staleHits.sum());
+            lines.add("cache.evictions=" + cache.evictions());
+            lines.add("cache.expirations=" + cache.expirations());
+            lines.add("cache.entries=" + cache.size());
+            lines.add("cache.negative_entries=" + cache.negativeSize());
+            lines.add("cache.bytes=" + cache.bytes());
+
+            Prefetcher prefetcher = cache.prefetcher;
+            if (prefetcher != null){
+                lines.add("prefetch.requested=" + prefetcher.requested.sum());
+                lines.add("prefetch.sent=" + prefetcher.sent.sum());
+                lines.add("prefetch.dropped=" + prefetcher.dropped.sum());
+            }
+        }
+
+        // Upstreams are only asked when forwarding, authoritative servers are too many to list one by one
+        IterativeResolver resolver = Metrics.resolver;
+        if (resolver != null){
+            lines.add("resolver.resolutions=" + resolver.resolutions.sum());
+            lines.add("resolver.queries=" + resolver.queries.sum());
+            lines.add("resolver.referrals=" + resolver.referrals.sum());
+            lines.add("resolver.failures=" + resolver.failures.sum());
+            lines.add("resolver.servers=" + resolver.servers.size());
+            lines.add("resolver.delegations=" + resolver.delegations.size());
+        }
+        else if (upstreams != null){
+            for (Upstreams.Upstream upstream : upstreams.upstreams){
+                String name = "upstream." + upstream + ".";
+                lines.add(name + "sent=" + upstream.sent.sum());
+                lines.add(name + "answered=" + upstream.answered.sum());
+                lines.add(name + "timeouts=" + upstream.timeouts.sum());
+                lines.add(name + "srtt_us=" + upstream.srtt() / 1000);
+            }
+
+            lines.add("upstream.retransmits=" + upstreams.retransmits.sum());
+            lines.add("upstream.failovers=" + upstreams.failovers.sum());
+            lines.add("upstream.hedges=" + upstreams.hedges.sum());
+        }
+
+        RateLimiter rateLimiter = Metrics.rateLimiter;
+        if (rateLimiter != null){
+            lines.add("ratelimit.dropped=" + rateLimiter.dropped.sum());
+            lines.add("ratelimit.truncated=" + rateLimiter.truncated.sum());
+        }
+
+        lines.add("answers.local=" + LOCAL_ANSWERS.sum());
+        lines.add("errors.decode=" + DECODE_ERRORS.sum());
+        lines.add("errors.send=" + SEND_ERRORS.sum());
+
+        return lines;
+    }
+
+    /**
+     * histogram() adds a histogram's count, mean, percentiles and max to the report, in microseconds.
+     *
+     * @param lines - the report
+     * @param name - what the histogram is called in the report
+     * @param histogram - the histogram
+     */
+
+    static void histogram(List<String> lines, String name, Histogram histogram){
+
+        long count = histogram.count();
+        long[] values = histogram.percentiles(PERCENTILES);
+
+        lines.add(name + ".count=" + count);
+        lines.add(name + ".mean_us=" + (count == 0 ? 0 : histogram.total.sum() / count));
+        for (int i = 0; i < values.length; i++){
+            lines.add(name + "." + PERCENTILE_NAMES[i] + "_us=" + values[i]);
+        }
+        lines.add(name + ".max_us=" + histogram.max.get());
+    }
+
+    /**
+     * answer() answers a raw client query if it's in the CHAOS class: a TXT query for stats.bind gets the stats, and
+     * anything else is refused. The response is written into the encoder's buffer like LocalZones.answer() does, ready
+     * for DNSEncoder.finishUDP() or finishTCP(). It's only called after the cache misses, since no CHAOS query is
+     * ever cached.
+     *
+     * @param packet - a received client query, from index 0 to the limit
+     * @param encoder - encoder whose buffer the response is written into (the current thread's)
+     * @return ByteBuffer - the response, from position 0 to the limit, or null if the query isn't a CHAOS query
+     */
+
+    static ByteBuffer answer(ByteBuffer packet, DNSEncoder encoder){
+
+        DNSQuestion question = PROBES.get();
+        if (!question.readFrom(packet)){
+            return null;
+        }
+
+        try {
+            if (question.QCLASS != CLASS_CH){
+                return null;
+            }
+
+            boolean recursionDesired = (packet.get(2) & 0x01) != 0;
+            return answer(question, packet.getShort(0), recursionDesired, encoder);
+        }
+        finally {
+            // Don't keep the packet reachable from the thread's probe
+            question.buffer = null;
+        }
+    }
+
+    /**
+     * This version of answer() writes the response. Each stat is its own TXT record, owned by the question's name
+     * (a pointer back to it), with a TTL of 0 so nothing caches it.
+     *
+     * @param question - the client's question
+     * @param id - the client's ID
+     * @param recursionDesired - whether the client set RD, which is copied into the response
+     * @param encoder - encoder whose buffer the response is written into
+     * @return ByteBuffer - the response
+     */
+
+    static ByteBuffer answer(DNSQuestion question, short id, boolean recursionDesired, DNSEncoder encoder){
+
+        boolean stats = (question.QTYPE == TYPE_TXT || question.QTYPE == TYPE_ANY)
+                && STATS_NAME.equals(DNSName.toString(question.buffer, question.nameOffset));
+
+        ByteBuffer out = encoder.out;
+        out.clear();
+        encoder.suffixCount = 0;
+        encoder.ttlCount = 0;
+
+        out.putShort(id);
+        out.putShort((short) (RESPONSE_FLAGS | (recursionDesired ? 0x0100 : 0) | (stats ? 0 : RCODE_REFUSED)));
+        out.putShort((short) 1);
+        out.putShort((short) 0);
+        out.putShort((short) 0);
+        out.putShort((short) 0);
+
+        question.writeBytes(encoder);
+
+        int answers = 0;
+        if (stats){
+            for (String line : report()){
+
+                // A TXT string holds at most 255 bytes, and no stat comes close
+                byte[] text = line.getBytes(StandardCharsets.US_ASCII);
+                int length = Math.min(text.length, 255);
+
+                out.putShort((short) (0xC000 | DNSHeader.LENGTH));
+                out.putShort(TYPE_TXT);
+                out.putShort(CLASS_CH);
+                out.putInt(0);
+                out.putShort((short) (length + 1));
+                out.put((byte) length);
+                out.put(text, 0, length);
+                answers++;
+            }
+        }
+
+        out.putShort(6, (short) answers);
+
+        out.flip();
+        return out;
+    }
+}
@@ -0,0 +1,691 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * OffHeapSegment is a cache segment that keeps its entries outside the Java heap, in direct ByteBuffers, so a cache
+ * with millions of entries doesn't leave millions of objects for the garbage collector to trace. Both buffers are
+ * allocated up front, so heap usage stays the same however full the cache gets. A hit on a raw packet is written
+ * straight from the arena into the encoder's buffer; other lookups copy the entry back onto the heap as a short lived
+ * CachedResponse.
+ *
+ * The arena holds the entries. It's split into 64 KB pages, and a page is cut into slots of one size (128 bytes,
+ * 256 bytes, and so on up to a whole page) the first time an entry of that size class needs room. Freed slots go on
+ * their size class's free list and are reused by the next entry of that class. Each entry is its deadline, its LRU
+ * links and prefetch state, and the stored CachedResponse; the key is the question inside the encoded response.
+ *
+ * The index is an open addressing hash table (linear probing, with backward shift deletion so there are no
+ * tombstones) of the key's hash and the entry's offset in the arena.
+ *
+ * Entries expire and are evicted the same way as in a Segment (a segmented LRU with probation and protected lists),
+ * except each size class has its own lists, since an entry can only make room for one of its own size. Once every
+ * page has been given out, a size class with nothing of its own to evict takes a page over from the class with the
+ * most slots. Expired entries are found by scanning the index instead of with a TimerWheel, a bounded stretch of it
+ * each second so the segment is never locked for a whole scan.
+ */
+public class OffHeapSegment extends DNSCache.Segment {
+
+    // Arena pages, and slot sizes from 128 bytes (class 0) up to a whole page (class 9)
+    static final int PAGE_SIZE = 1 << 16;
+    static final int MIN_SLOT_SHIFT = 7;
+    static final int SIZE_CLASSES = 10;
+
+    // Arena bytes set aside per entry when no byte limit is given
+    static final int AVERAGE_SLOT_SIZE = 512;
+
+    // Layout of an entry in the arena
+    static final int DEADLINE = 0;
+    static final int REFRESH_TIME = 8;
+    static final int PREVIOUS = 16;
+    static final int NEXT = 20;
+    static final int HITS = 24;
+    static final int HASH = 28;
+    static final int QTYPE = 32;
+    static final int QCLASS = 34;
+    static final int FLAGS = 36;
+    static final int RESPONSE = 40;
+
+    static final byte PROTECTED = 1;
+    static final byte REFRESH_REQUESTED = 2;
+    static final byte LIVE = 4;
+
+    // Marks the end of a list
+    static final int NONE = -1;
+
+    // Each index slot is the key's hash and the entry's offset plus one (0 means the slot is empty)
+    static final int INDEX_SLOT = 8;
+
+    // Most index slots expire() checks in one call
+    static final int EXPIRE_SLOTS = 1 << 14;
+
+    ByteBuffer arena;
+    ByteBuffer index;
+    int indexMask;
+
+    // Which size class each page belongs to, and how many pages have been given out
+    byte[] pageClass;
+    int pagesUsed;
+
+    // Free slots, LRU lists and slot counts, by size class
+    int[] freeHead = new int[SIZE_CLASSES];
+    int[] probationHeads = new int[SIZE_CLASSES];
+    int[] probationTails = new int[SIZE_CLASSES];
+    int[] protectedHeads = new int[SIZE_CLASSES];
+    int[] protectedTails = new int[SIZE_CLASSES];
+    int[] protectedCounts = new int[SIZE_CLASSES];
+    int[] slotCounts = new int[SIZE_CLASSES];
+
+    int count;
+
+    // The index slot the next expire() starts from
+    int expireCursor;
+
+
+    /**
+     * OffHeapSegment() allocates the segment's arena and index.
+     *
+     * @param maxEntries - most entries the segment can hold
+     * @param maxBytes - size of the arena, or 0 to size it from maxEntries
+     */
+
+    OffHeapSegment(int maxEntries, long maxBytes){
+
+        super(maxEntries, maxBytes);
+
+        long arenaBytes = maxBytes > 0 ? maxBytes : (long) this.maxEntries * AVERAGE_SLOT_SIZE;
+        int pages = (int) Math.max(1, Math.min(Integer.MAX_VALUE / PAGE_SIZE, (arenaBytes + PAGE_SIZE - 1) / PAGE_SIZE));
+
+        arena = ByteBuffer.allocateDirect(pages * PAGE_SIZE);
+        pageClass = new byte[pages];
+
+        // The index is kept at most half full, so probes stay short
+        int indexSlots = Integer.highestOneBit(Math.max(8, this.maxEntries) * 2 - 1) << 1;
+        index = ByteBuffer.allocateDirect(indexSlots * INDEX_SLOT);
+        indexMask = indexSlots - 1;
+
+        Arrays.fill(freeHead, NONE);
+        Arrays.fill(probationHeads, NONE);
+        Arrays.fill(probationTails, NONE);
+        Arrays.fill(protectedHeads, NONE);
+        Arrays.fill(protectedTails, NONE);
+    }
+
+    /**
+     * get() looks up an entry and, if it's still valid, records the hit the same way Segment.get() does. The entry
+     * returned is a copy on the heap.
+     */
+
+    @Override
+    synchronized DNSCache.CacheEntry get(DNSQuestion question, Prefetcher prefetcher){
+
+        int entry = hit(question, prefetcher);
+        if (entry == NONE){
+            return null;
+        }
+
+        return new DNSCache.CacheEntry(question, CachedResponse.load(arena, entry + RESPONSE),
+                arena.getLong(entry + DEADLINE));
+    }
+
+    /**
+     * writeHit() looks up an entry like get() and, if it's still valid, copies its response from the arena into the
+     * encoder's buffer while the segment is locked (the slot could be reused as soon as it isn't).
+     */
+
+    @Override
+    synchronized ByteBuffer writeHit(DNSQuestion question, Prefetcher prefetcher, DNSEncoder encoder, short id){
+
+        int entry = hit(question, prefetcher);
+        if (entry == NONE){
+            return null;
+        }
+
+        return CachedResponse.writeStoredTo(arena, entry + RESPONSE, encoder, id);
+    }
+
+    /**
+     * hit() finds a question's entry and, if it's still valid, records the hit (leaving an expired entry in place
+     * until its stale window is over).
+     *
+     * @param question - the key
+     * @param prefetcher - gets the question if the entry is hot and due for a refresh (null if prefetching is off)
+     * @return int - offset of the entry in the arena, or NONE if there's no valid entry
+     */
+
+    int hit(DNSQuestion question, Prefetcher prefetcher){
+
+        int slot = find(question, question.hashCode());
+        if (slot < 0){
+            return NONE;
+        }
+
+        int entry = entryAt(slot);
+
+        long now = System.nanoTime();
+        long deadline = arena.getLong(entry + DEADLINE);
+        if (now - deadline >= 0){
+            if (now - deadline >= staleNanos){
+                remove(entry);
+                expirations++;
+            }
+            return NONE;
+        }
+
+        int hits = arena.getInt(entry + HITS) + 1;
+        arena.putInt(entry + HITS, hits);
+
+        byte flags = arena.get(entry + FLAGS);
+        if (prefetcher != null && (flags & REFRESH_REQUESTED) == 0 && hits >= prefetcher.minHits
+                && now - arena.getLong(entry + REFRESH_TIME) >= 0){
+            arena.put(entry + FLAGS, (byte) (flags | REFRESH_REQUESTED));
+
+            // The question being looked up may be a probe, so the prefetcher gets one of its own
+            prefetcher.request(CachedResponse.load(arena, entry + RESPONSE).question());
+        }
+
+        promote(entry);
+
+        return entry;
+    }
+
+    /**
+     * put() copies an entry into the arena at the head of its size class's probation list, replacing the entry for
+     * the same question if there is one. Entries too big for the largest slot aren't stored.
+     */
+
+    @Override
+    synchronized void put(DNSCache.CacheEntry entry){
+
+        int sizeClass = sizeClass(RESPONSE + entry.response.storedLength());
+        if (sizeClass < 0){
+            return;
+        }
+
+        int hash = entry.question.hashCode();
+
+        int slot = find(entry.question, hash);
+        if (slot >= 0){
+            remove(entryAt(slot));
+        }
+
+        while (count >= maxEntries){
+            evict(sizeClass);
+        }
+
+        int stored = allocate(sizeClass);
+        if (stored == NONE){
+            return;
+        }
+
+        arena.putLong(stored + DEADLINE, entry.deadline);
+        arena.putLong(stored + REFRESH_TIME, entry.refreshTime);
+        arena.putInt(stored + HITS, 0);
+        arena.putInt(stored + HASH, hash);
+        arena.putShort(stored + QTYPE, entry.question.QTYPE);
+        arena.putShort(stored + QCLASS, entry.question.QCLASS);
+        arena.put(stored + FLAGS, LIVE);
+        entry.response.store(arena, stored + RESPONSE);
+
+        linkFirst(stored);
+
+        slot = hash & indexMask;
+        while (index.getInt(slot * INDEX_SLOT + 4) != 0){
+            slot = (slot + 1) & indexMask;
+        }
+        index.putInt(slot * INDEX_SLOT, hash);
+        index.putInt(slot * INDEX_SLOT + 4, stored + 1);
+
+        count++;
+        bytes += slotSize(sizeClass);
+    }
+
+    /**
+     * getStale() looks up an entry that has expired but is still within its stale window, like Segment.getStale().
+     */
+
+    @Override
+    synchronized DNSCache.CacheEntry getStale(DNSQuestion question){
+
+        int slot = find(question, question.hashCode());
+        if (slot < 0){
+            return null;
+        }
+
+        int entry = entryAt(slot);
+
+        long deadline = arena.getLong(entry + DEADLINE);
+        if (System.nanoTime() - deadline >= staleNanos){
+            remove(entry);
+            expirations++;
+            return null;
+        }
+
+        return new DNSCache.CacheEntry(question, CachedResponse.load(arena, entry + RESPONSE), deadline);
+    }
+
+    /**
+     * expire() removes the entries whose deadline, plus the stale window, has passed from the next EXPIRE_SLOTS slots
+     * of the index, carrying on from where the last call stopped, so a big index is walked a piece at a time. Entries
+     * the walk hasn't reached yet are still removed when they're looked up, or evicted.
+     */
+
+    @Override
+    synchronized void expire(long now){
+
+        int slot = expireCursor;
+        for (int checked = 0; checked < Math.min(EXPIRE_SLOTS, indexMask + 1); checked++){
+
+            int stored = index.getInt(slot * INDEX_SLOT + 4);
+
+            // Removing an entry can shift the next one back into this slot, so the slot is checked again
+            if (stored != 0 && now - arena.getLong(stored - 1 + DEADLINE) >= staleNanos){
+                remove(stored - 1);
+                expirations++;
+            }
+            else {
+                slot = (slot + 1) & indexMask;
+            }
+        }
+
+        expireCursor = slot;
+    }
+
+    /**
+     * remove() takes out the entry for a question, if there is one.
+     */
+
+    @Override
+    synchronized void remove(DNSQuestion question){
+
+        int slot = find(question, question.hashCode());
+        if (slot >= 0){
+            remove(entryAt(slot));
+        }
+    }
+
+    /**
+     * forEach() calls an action for a heap copy of every entry, expired or not, while holding the segment's lock.
+     */
+
+    @Override
+    synchronized void forEach(Consumer<DNSCache.CacheEntry> action){
+
+        for (int slot = 0; slot <= indexMask; slot++){
+
+            int stored = index.getInt(slot * INDEX_SLOT + 4);
+            if (stored != 0){
+                CachedResponse response = CachedResponse.load(arena, stored - 1 + RESPONSE);
+                action.accept(new DNSCache.CacheEntry(response.question(), response, arena.getLong(stored - 1 + DEADLINE)));
+            }
+        }
+    }
+
+    @Override
+    synchronized int size(){
+        return count;
+    }
+
+    @Override
+    synchronized long bytes(){
+        return bytes;
+    }
+
+    /**
+     * find() looks for a question in the index.
+     *
+     * @param question - the key
+     * @param hash - the key's hash
+     * @return int - the index slot that points at the question's entry, or -1 if it isn't there
+     */
+
+    int find(DNSQuestion question, int hash){
+
+        int slot = hash & indexMask;
+
+        while (true){
+
+            int stored = index.getInt(slot * INDEX_SLOT + 4);
+            if (stored == 0){
+                return -1;
+            }
+
+            int entry = stored - 1;
+            if (index.getInt(slot * INDEX_SLOT) == hash
+                    && arena.getShort(entry + QTYPE) == question.QTYPE && arena.getShort(entry + QCLASS) == question.QCLASS
+                    && DNSName.equals(arena, nameOffset(entry), question.buffer, question.nameOffset)){
+                return slot;
+            }
+
+            slot = (slot + 1) & indexMask;
+        }
+    }
+
+    /**
+     * remove() takes an entry out of the index and its LRU list, and puts its slot on the free list.
+     *
+     * @param entry - offset of the entry in the arena
+     */
+
+    void remove(int entry){
+
+        int hash = arena.getInt(entry + HASH);
+
+        int slot = hash & indexMask;
+        while (index.getInt(slot * INDEX_SLOT + 4) != entry + 1){
+            slot = (slot + 1) & indexMask;
+        }
+        deleteSlot(slot);
+
+        unlink(entry);
+
+        int sizeClass = pageClass[entry / PAGE_SIZE];
+        if ((arena.get(entry + FLAGS) & PROTECTED) != 0){
+            protectedCounts[sizeClass]--;
+        }
+
+        arena.put(entry + FLAGS, (byte) 0);
+        arena.putInt(entry + NEXT, freeHead[sizeClass]);
+        freeHead[sizeClass] = entry;
+
+        count--;
+        bytes -= slotSize(sizeClass);
+    }
+
+    /**
+     * deleteSlot() empties an index slot, moving later entries of the same probe run back so none of them are cut
+     * off from their home slot.
+     *
+     * @param hole - the slot to empty
+     */
+
+    void deleteSlot(int hole){
+
+        int slot = hole;
+
+        while (true){
+
+            slot = (slot + 1) & indexMask;
+
+            int stored = index.getInt(slot * INDEX_SLOT + 4);
+            if (stored == 0){
+                break;
+            }
+
+            // An entry can only move back if its home slot isn't between the hole and where it is now
+            int home = index.getInt(slot * INDEX_SLOT) & indexMask;
+            if (((slot - home) & indexMask) >= ((slot - hole) & indexMask)){
+                index.putLong(hole * INDEX_SLOT, index.getLong(slot * INDEX_SLOT));
+                hole = slot;
+            }
+        }
+
+        index.putLong(hole * INDEX_SLOT, 0);
+    }
+
+    /**
+     * allocate() finds a free slot in a size class: from its free list, then from a page that hasn't been used yet,
+     * then by evicting the class's least recently used entry, and last by taking a page over from another class.
+     *
+     * @param sizeClass - the size class
+     * @return int - offset of the slot, or NONE if there's no room anywhere
+     */
+
+    int allocate(int sizeClass){
+
+        if (freeHead[sizeClass] == NONE){
+
+            int victim = probationTails[sizeClass] != NONE ? probationTails[sizeClass] : protectedTails[sizeClass];
+
+            if (pagesUsed < pageClass.length){
+                carve(pagesUsed++, sizeClass);
+            }
+            else if (victim != NONE){
+                remove(victim);
+                evictions++;
+            }
+            else {
+                reassignPage(sizeClass);
+            }
+        }
+
+        int slot = freeHead[sizeClass];
+        if (slot == NONE){
+            return NONE;
+        }
+
+        freeHead[sizeClass] = arena.getInt(slot + NEXT);
+
+        return slot;
+    }
+
+    /**
+     * carve() gives a page to a size class and puts every slot in it on the class's free list, lowest offset first.
+     *
+     * @param page - the page
+     * @param sizeClass - the size class
+     */
+
+    void carve(int page, int sizeClass){
+
+        pageClass[page] = (byte) sizeClass;
+
+        int slotSize = slotSize(sizeClass);
+        for (int offset = (page + 1) * PAGE_SIZE - slotSize; offset >= page * PAGE_SIZE; offset -= slotSize){
+            arena.put(offset + FLAGS, (byte) 0);
+            arena.putInt(offset + NEXT, freeHead[sizeClass]);
+            freeHead[sizeClass] = offset;
+        }
+
+        slotCounts[sizeClass] += PAGE_SIZE / slotSize;
+    }
+
+    /**
+     * reassignPage() takes a page away from the size class with the most slots, evicting whatever is in it, and
+     * gives it to a class that has run out of room.
+     *
+     * @param sizeClass - the class that needs a page
+     */
+
+    void reassignPage(int sizeClass){
+
+        int donor = -1;
+        for (int other = 0; other < SIZE_CLASSES; other++){
+            if (other != sizeClass && slotCounts[other] > 0 && (donor < 0 || pages(other) > pages(donor))){
+                donor = other;
+            }
+        }
+
+        if (donor < 0){
+            return;
+        }
+
+        // The page with the donor's least recently used entry, or any of its pages if it has no entries
+        int entry = probationTails[donor] != NONE ? probationTails[donor] : protectedTails[donor] != NONE ? protectedTails[donor] : freeHead[donor];
+        int page = entry / PAGE_SIZE;
+        int start = page * PAGE_SIZE;
+        int slotSize = slotSize(donor);
+
+        for (int offset = start; offset < start + PAGE_SIZE; offset += slotSize){
+            if ((arena.get(offset + FLAGS) & LIVE) != 0){
+                remove(offset);
+                evictions++;
+            }
+        }
+
+        // Every slot in the page is free now, and has to come off the donor's free list
+        int previous = NONE;
+        for (int slot = freeHead[donor]; slot != NONE; slot = arena.getInt(slot + NEXT)){
+            if (slot / PAGE_SIZE == page){
+                if (previous == NONE){
+                    freeHead[donor] = arena.getInt(slot + NEXT);
+                }
+                else {
+                    arena.putInt(previous + NEXT, arena.getInt(slot + NEXT));
+                }
+            }
+            else {
+                previous = slot;
+            }
+        }
+
+        slotCounts[donor] -= PAGE_SIZE / slotSize;
+
+        carve(page, sizeClass);
+    }
+
+    /**
+     * evict() removes one entry to stay under the entry limit, from the given size class if it has any (probation
+     * first), otherwise from the first class that does.
+     *
+     * @param sizeClass - the class to evict from first
+     */
+
+    void evict(int sizeClass){
+
+        for (int i = 0; i < SIZE_CLASSES; i++){
+
+            int victimClass = (sizeClass + i) % SIZE_CLASSES;
+            int victim = probationTails[victimClass] != NONE ? probationTails[victimClass] : protectedTails[victimClass];
+
+            if (victim != NONE){
+                remove(victim);
+                evictions++;
+                return;
+            }
+        }
+    }
+
+    /**
+     * promote() records a hit in the LRU lists: a hit in probation moves the entry to the protected list, and a hit in
+     * the protected list moves it back to the head.
+     *
+     * @param entry - offset of the entry in the arena
+     */
+
+    void promote(int entry){
+
+        int sizeClass = pageClass[entry / PAGE_SIZE];
+
+        unlink(entry);
+
+        byte flags = arena.get(entry + FLAGS);
+        if ((flags & PROTECTED) == 0){
+            arena.put(entry + FLAGS, (byte) (flags | PROTECTED));
+            protectedCounts[sizeClass]++;
+
+            // The protected list is full, so its least recently used entry gets another chance in probation
+            if (protectedCounts[sizeClass] > slotCounts[sizeClass] * DNSCache.PROTECTED_SHARE && protectedTails[sizeClass] != NONE){
+                int demoted = protectedTails[sizeClass];
+                unlink(demoted);
+                arena.put(demoted + FLAGS, (byte) (arena.get(demoted + FLAGS) & ~PROTECTED));
+                protectedCounts[sizeClass]--;
+                linkFirst(demoted);
+            }
+        }
+
+        linkFirst(entry);
+    }
+
+    /**
+     * linkFirst() puts an entry at the head of the list it belongs in.
+     *
+     * @param entry - offset of the entry in the arena
+     */
+
+    void linkFirst(int entry){
+
+        int sizeClass = pageClass[entry / PAGE_SIZE];
+        boolean isProtected = (arena.get(entry + FLAGS) & PROTECTED) != 0;
+
+        int[] heads = isProtected ? protectedHeads : probationHeads;
+        int[] tails = isProtected ? protectedTails : probationTails;
+
+        int head = heads[sizeClass];
+
+        arena.putInt(entry + PREVIOUS, NONE);
+        arena.putInt(entry + NEXT, head);
+
+        if (head != NONE){
+            arena.putInt(head + PREVIOUS, entry);
+        }
+
+        heads[sizeClass] = entry;
+        if (tails[sizeClass] == NONE){
+            tails[sizeClass] = entry;
+        }
+    }
+
+    /**
+     * unlink() takes an entry out of whichever list it's in.
+     *
+     * @param entry - offset of the entry in the arena
+     */
+
+    void unlink(int entry){
+
+        int sizeClass = pageClass[entry / PAGE_SIZE];
+        boolean isProtected = (arena.get(entry + FLAGS) & PROTECTED) != 0;
+
+        int[] heads = isProtected ? protectedHeads : probationHeads;
+        int[] tails = isProtected ? protectedTails : probationTails;
+
+        int previous = arena.getInt(entry + PREVIOUS);
+        int next = arena.getInt(entry + NEXT);
+
+        if (previous != NONE){
+            arena.putInt(previous + NEXT, next);
+        }
+        else {
+            heads[sizeClass] = next;
+        }
+
+        if (next != NONE){
+            arena.putInt(next + PREVIOUS, previous);
+        }
+        else {
+            tails[sizeClass] = previous;
+        }
+    }
+
+    /**
+     * entryAt() returns the entry an index slot points at.
+     */
+
+    int entryAt(int slot){
+        return index.getInt(slot * INDEX_SLOT + 4) - 1;
+    }
+
+    /**
+     * nameOffset() finds the question's name inside an entry's encoded response (right after the header).
+     */
+
+    int nameOffset(int entry){
+        return CachedResponse.storedWireOffset(arena, entry + RESPONSE) + DNSHeader.LENGTH;
+    }
+
+    /**
+     * sizeClass() picks the smallest size class whose slots fit an entry.
+     *
+     * @param length - bytes the entry needs
+     * @return int - the size class, or -1 if the entry is bigger than a page
+     */
+
+    static int sizeClass(int length){
+
+        for (int sizeClass = 0; sizeClass < SIZE_CLASSES; sizeClass++){
+            if (length <= slotSize(sizeClass)){
+                return sizeClass;
+            }
+        }
+
+        return -1;
+    }
+
+    int pages(int sizeClass){
+        return slotCounts[sizeClass] / (PAGE_SIZE / slotSize(sizeClass));
+    }
+
+    static int slotSize(int sizeClass){
+        return 1 << (MIN_SLOT_SHIFT + sizeClass);
+    }
+}
@@ -0,0 +1,107 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Prefetcher decides which cache entries should be refreshed before they expire, so clients asking for popular names
+ * never have to wait on a miss. The cache hands it entries that are hot (hit at least minHits times) and past a
+ * fraction of their TTL, and the server engines take questions back out with poll() and send them upstream.
+ * poll() is rate limited with a token bucket so prefetching can't flood Google.
+ */
+public class Prefetcher {
+
+    // Share of an entry's TTL that has to pass before it's refreshed (i.e. 0.9 refreshes at 90%)
+    double fraction;
+
+    // How many hits an entry needs before it's worth refreshing
+    int minHits;
+
+    // Most prefetch queries sent per second
+    int maxPerSecond;
+
+    // Questions waiting to be refreshed; if it fills up, new ones are dropped
+    ArrayBlockingQueue<DNSQuestion> waiting = new ArrayBlockingQueue<>(1024);
+
+    // Token bucket for the rate limit, refilled based on how much time has passed
+    double tokens;
+    long lastRefill = System.nanoTime();
+
+    // Stats
+    LongAdder requested = new LongAdder();
+    LongAdder sent = new LongAdder();
+    LongAdder dropped = new LongAdder();
+
+
+    /**
+     * Prefetcher() makes a prefetcher with the given thresholds.
+     *
+     * @param fraction - share of the TTL that has to pass before an entry is refreshed
+     * @param minHits - hits an entry needs before it's refreshed
+     * @param maxPerSecond - most prefetch queries per second
+     */
+
+    Prefetcher(double fraction, int minHits, int maxPerSecond){
+
+        this.fraction = fraction;
+        this.minHits = minHits;
+        this.maxPerSecond = maxPerSecond;
+        this.tokens = maxPerSecond;
+    }
+
+    /**
+     * refreshTime() works out when an entry should be refreshed.
+     *
+     * @param insertedTime - when the entry was inserted (System.nanoTime())
+     * @param deadline - when the entry expires (System.nanoTime())
+     * @return long - the System.nanoTime() after which the entry can be refreshed
+     */
+
+    long refreshTime(long insertedTime, long deadline){
+
+        return insertedTime + (long) ((deadline - insertedTime) * fraction);
+    }
+
+    /**
+     * request() queues a question to be refreshed. The cache calls this at most once per entry.
+     *
+     * @param question - question whose entry should be refreshed
+     */
+
+    void request(DNSQuestion question){
+
+        requested.increment();
+
+        if (!waiting.offer(question)){
+            dropped.increment();
+        }
+    }
+
+    /**
+     * poll() returns the next question to refresh, if the rate limit allows another prefetch right now. Questions
+     * that the rate limit holds back are dropped (their entries will just expire normally).
+     *
+     * @return DNSQuestion - the question to send upstream, or null if there's nothing to send
+     */
+
+    synchronized DNSQuestion poll(){
+
+        long now = System.nanoTime();
+        tokens = Math.min(maxPerSecond, tokens + (now - lastRefill) / 1e9 * maxPerSecond);
+        lastRefill = now;
+
+        while (true){
+
+            DNSQuestion question = waiting.poll();
+            if (question == null){
+                return null;
+            }
+
+            if (tokens >= 1){
+                tokens--;
+                sent.increment();
+                return question;
+            }
+
+            dropped.increment();
+        }
+    }
+}
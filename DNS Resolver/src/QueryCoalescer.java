@@ -0,0 +1,65 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * QueryCoalescer makes sure only one query for a question is sent upstream at a time. The first client to miss the
+ * cache sends the query; every client that asks the same question before the answer comes back waits on that same
+ * query instead of sending its own.
+ */
+public class QueryCoalescer {
+
+    // The upstream query currently pending for each question
+    ConcurrentHashMap<DNSQuestion, CompletableFuture<DNSMessage>> inFlight = new ConcurrentHashMap<>();
+
+    // How many clients attached to a query someone else had already sent
+    LongAdder coalesced = new LongAdder();
+
+
+    /**
+     * join() returns the pending upstream answer for a question, sending the query first if nobody else has.
+     *
+     * @param question - the question being asked
+     * @param query - sends the query upstream; only called if no query for the question is pending
+     * @return CompletableFuture - completes with the upstream response, shared by every client asking the question
+     */
+
+    CompletableFuture<DNSMessage> join(DNSQuestion question, Supplier<CompletableFuture<DNSMessage>> query){
+
+        CompletableFuture<DNSMessage> leader = new CompletableFuture<>();
+
+        CompletableFuture<DNSMessage> existing = inFlight.putIfAbsent(question, leader);
+        if (existing != null){
+            coalesced.increment();
+            return existing;
+        }
+
+        // A query that can't even be sent fails everyone waiting on it, and leaves the table so the next client can try
+        CompletableFuture<DNSMessage> sent;
+        try {
+            sent = query.get();
+        }
+        catch (RuntimeException e){
+            inFlight.remove(question, leader);
+            leader.completeExceptionally(e);
+            return leader;
+        }
+
+        // The query's future should do anything that has to happen once per answer (like caching it) before it
+        // completes, so the question leaves the table only after later clients can find it in the cache
+        sent.whenComplete((response, error) -> {
+
+            inFlight.remove(question, leader);
+
+            if (error != null){
+                leader.completeExceptionally(error);
+            }
+            else {
+                leader.complete(response);
+            }
+        });
+
+        return leader;
+    }
+}
@@ -0,0 +1,263 @@
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * RateLimiter limits how many UDP answers each client network gets per second, so one client flooding the port can't
+ * push its misses upstream and starve everyone else (or use the server to flood someone whose address it spoofs).
+ * Clients are grouped by address prefix (a /24 for IPv4 and a /56 for IPv6 by default), and each prefix gets a token
+ * bucket that fills at the rate up to the burst.
+ *
+ * The buckets live in one fixed-size table of longs, found by hashing the prefix, so the table never grows however
+ * many addresses a flood comes from, and checking a packet is a hash, a read and a compareAndSet with no locks. Each
+ * slot holds the time its bucket will be full again (the GCRA form of a token bucket): a query is allowed if taking a
+ * token leaves that time no more than a burst ahead of now. Prefixes that hash to the same slot share a bucket, which
+ * can only make them be limited sooner, and the hash is seeded at random so no one can pick addresses that collide on
+ * purpose.
+ *
+ * Once a bucket runs dry its prefix's queries get the action:
+ *   drop      no answer at all
+ *   truncate  an empty answer with TC set, so a real client asks again over TCP (which isn't limited, since TCP
+ *             addresses can't be spoofed)
+ *   slip      dropped, except one in every slip gets the truncated answer (so real clients still get through
+ *             while the flood gets little back)
+ */
+public class RateLimiter {
+
+    // What the engines do with a query
+    static final int ALLOW = 0;
+    static final int DROP = 1;
+    static final int TRUNCATE = 2;
+
+    // Header flags of a truncated answer: QR, TC and RA (RD is copied from the query)
+    static final int TRUNCATED_FLAGS = 0x8000 | DNSEncoder.FLAG_TC | 0x0080;
+
+    // Most buckets the table can have, so its size still fits in an int
+    static final int MAX_BUCKETS = 1 << 30;
+
+    // Whether Inet4Address.hashCode() is the address itself (it is in every JDK so far), which lets slot() read an
+    // IPv4 address without the copy getAddress() makes
+    static final boolean IPV4_HASH_IS_ADDRESS = ipv4HashIsAddress();
+
+    // Each thread reuses one question for reading raw packets
+    private static final ThreadLocal<DNSQuestion> PROBES = ThreadLocal.withInitial(DNSQuestion::probe);
+
+    // When each slot's bucket is full again, in nanoseconds since the limiter was made (0 for a bucket never used)
+    AtomicLongArray buckets;
+    int slotBits;
+
+    // Nanoseconds between tokens, and how far ahead a bucket can be (a burst's worth of tokens)
+    long interval;
+    long capacity;
+
+    // Masks that keep the prefix of an address (IPv6 prefixes are taken from the first 64 bits)
+    long ipv4Mask;
+    long ipv6Mask;
+
+    // Keeps the slots a prefix hashes to different from one run to the next
+    long seed = ThreadLocalRandom.current().nextLong();
+
+    long epoch = System.nanoTime();
+
+    // "drop", "truncate" or "slip", and one in how many limited queries slips through truncated
+    String action;
+    int slip;
+
+    // Stats
+    LongAdder dropped = new LongAdder();
+    LongAdder truncated = new LongAdder();
+
+
+    /**
+     * RateLimiter() makes a limiter with every bucket full.
+     *
+     * @param config - startup options (the rate limit ones)
+     * @throws IllegalArgumentException if the action, a prefix length, the slip or the table size can't be used
+     */
+
+    RateLimiter(DNSConfig config){
+
+        if (!config.rateLimitAction.equals("drop") && !config.rateLimitAction.equals("truncate")
+                && !config.rateLimitAction.equals("slip")){
+            throw new IllegalArgumentException("Unknown rate limit action: " + config.rateLimitAction);
+        }
+        if (config.rateLimitIPv4Prefix < 0 || config.rateLimitIPv4Prefix > 32
+                || config.rateLimitIPv6Prefix < 0 || config.rateLimitIPv6Prefix > 64){
+            throw new IllegalArgumentException("Rate limit prefixes can be up to /32 for IPv4 and /64 for IPv6");
+        }
+        if (config.rateLimitSlip < 1){
+            throw new IllegalArgumentException("Rate limit slip must be at least 1");
+        }
+        if (config.rateLimitBuckets < 1 || config.rateLimitBuckets > MAX_BUCKETS){
+            throw new IllegalArgumentException("Rate limit buckets must be between 1 and " + MAX_BUCKETS);
+        }
+
+        action = config.rateLimitAction;
+        slip = config.rateLimitSlip;
+
+        // A power of two, so a slot is just the top bits of the hash
+        slotBits = 32 - Integer.numberOfLeadingZeros(Math.max(2, config.rateLimitBuckets) - 1);
+        buckets = new AtomicLongArray(1 << slotBits);
+
+        int burst = config.rateLimitBurst > 0 ? config.rateLimitBurst : config.rateLimit;
+        interval = Math.max(1, 1_000_000_000L / config.rateLimit);
+        capacity = interval * burst;
+
+        ipv4Mask = config.rateLimitIPv4Prefix == 0 ? 0
+                : (0xFFFFFFFFL << (32 - config.rateLimitIPv4Prefix)) & 0xFFFFFFFFL;
+        ipv6Mask = config.rateLimitIPv6Prefix == 0 ? 0 : -1L << (64 - config.rateLimitIPv6Prefix);
+    }
+
+    /**
+     * check() takes a token from the client's bucket, and says what to do with the query if there wasn't one.
+     *
+     * @param client - the client's address
+     * @param now - when the query was received (System.nanoTime())
+     * @return int - ALLOW, DROP or TRUNCATE
+     */
+
+    int check(InetAddress client, long now){
+
+        int slot = slot(client);
+        long time = now - epoch;
+
+        while (true){
+            long full = buckets.get(slot);
+            long next = Math.max(full, time) + interval;
+
+            if (next - time > capacity){
+                return limited();
+            }
+
+            if (buckets.compareAndSet(slot, full, next)){
+                return ALLOW;
+            }
+        }
+    }
+
+    /**
+     * limited() picks what happens to a query whose bucket is empty, and counts it.
+     *
+     * @return int - DROP or TRUNCATE
+     */
+
+    int limited(){
+
+        boolean truncate = action.equals("truncate")
+                || (action.equals("slip") && (slip == 1 || ThreadLocalRandom.current().nextInt(slip) == 0));
+
+        if (truncate){
+            truncated.increment();
+            return TRUNCATE;
+        }
+
+        dropped.increment();
+        return DROP;
+    }
+
+    /**
+     * slot() hashes a client's prefix to the slot of its bucket. IPv4 prefixes have a bit set above the address, so
+     * they never equal an IPv6 prefix with the same bits.
+     *
+     * @param client - the client's address
+     * @return int - the slot
+     */
+
+    int slot(InetAddress client){
+
+        long prefix;
+        if (client instanceof Inet4Address){
+            long address = IPV4_HASH_IS_ADDRESS ? client.hashCode() & 0xFFFFFFFFL : leadingBytes(client.getAddress());
+            prefix = (address & ipv4Mask) | (1L << 32);
+        }
+        else {
+            // There's no way to read an IPv6 address without getAddress() copying it, which costs about 20ns and 32
+            // bytes of garbage per packet
+            prefix = leadingBytes(client.getAddress()) & ipv6Mask;
+        }
+
+        // Spread every bit of the prefix into the top bits, which pick the slot
+        long hash = (prefix ^ seed) * 0x9E3779B97F4A7C15L;
+        hash ^= hash >>> 29;
+        hash *= 0xBF58476D1CE4E5B9L;
+
+        return (int) (hash >>> (64 - slotBits));
+    }
+
+    /**
+     * leadingBytes() reads the first 4 bytes of an IPv4 address, or the first 8 of an IPv6 one, as a number.
+     *
+     * @param address - the address's bytes
+     * @return long - the bytes, the first one highest
+     */
+
+    static long leadingBytes(byte[] address){
+
+        long bytes = 0;
+        for (int i = 0; i < Math.min(address.length, 8); i++){
+            bytes = (bytes << 8) | (address[i] & 0xFF);
+        }
+
+        return bytes;
+    }
+
+    /**
+     * ipv4HashIsAddress() checks that an IPv4 address's hashCode() is the address, for IPV4_HASH_IS_ADDRESS.
+     *
+     * @return boolean - whether slot() can use hashCode() instead of getAddress()
+     */
+
+    static boolean ipv4HashIsAddress(){
+
+        try {
+            return InetAddress.getByAddress(new byte[]{(byte) 192, 0, 2, 1}).hashCode() == 0xC0000201;
+        }
+        catch (UnknownHostException e){
+            return false;
+        }
+    }
+
+    /**
+     * truncated() writes the answer a limited client gets when it's told to retry over TCP: the query's ID and
+     * question with TC set and no records.
+     *
+     * @param packet - the client's query, from index 0 to the limit
+     * @param encoder - encoder whose buffer the answer is written into
+     * @return ByteBuffer - the answer (ready for finishUDP()), or null if the query's question can't be read
+     */
+
+    static ByteBuffer truncated(ByteBuffer packet, DNSEncoder encoder){
+
+        DNSQuestion question = PROBES.get();
+        if (!question.readFrom(packet)){
+            return null;
+        }
+
+        try {
+            ByteBuffer out = encoder.out;
+            out.clear();
+            encoder.suffixCount = 0;
+            encoder.ttlCount = 0;
+
+            out.putShort(packet.getShort(0));
+            out.putShort((short) (TRUNCATED_FLAGS | (packet.get(2) & 0x01) << 8));
+            out.putShort((short) 1);
+            out.putShort((short) 0);
+            out.putShort((short) 0);
+            out.putShort((short) 0);
+
+            question.writeBytes(encoder);
+
+            out.flip();
+            return out;
+        }
+        finally {
+            // Don't keep the packet reachable from the thread's probe
+            question.buffer = null;
+        }
+    }
+}
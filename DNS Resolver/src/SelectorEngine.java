@@ -0,0 +1,765 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * SelectorEngine is a non-blocking server engine. One thread and one Selector handle both the client channel and the
+ * channel used to talk to the upstreams, so a slow upstream answer never stops other clients from being served.
+ * Queries sent upstream are tracked in a table keyed by the ID they were rewritten with, and in a second table keyed by
+ * their question so a question that's already on its way upstream isn't sent again. Retransmits and hedges (see
+ * Upstreams) are handled by the same loop, in between packets. So is serving stale: clients still waiting when the
+ * stale answer timeout comes up get the expired answer if the cache has one (see DNSConfig.staleWindowSeconds), and
+ * the upstream answer, when it comes, only refreshes the cache.
+ *
+ * In iterative mode (see IterativeResolver) misses are resolved off the selector thread instead of being sent on the
+ * upstream channel. Finished resolutions are handed back through a queue and the selector is woken up, so the clients
+ * are still only ever answered from this thread.
+ *
+ * Several engines can run at once as shards (see DNSConfig.shards). Each has its own thread, channels, buffers and
+ * in-flight tables, and they share the cache and the upstreams.
+ */
+public class SelectorEngine {
+
+    DNSConfig config;
+    DNSCache cache;
+
+    Selector selector;
+    DatagramChannel clientChannel;
+    DatagramChannel googleChannel;
+
+    Upstreams upstreams;
+
+    // Names answered from our own zone and hosts files (null if there are none)
+    LocalZones localZones;
+
+    // Resolves misses from the root servers instead of forwarding them (null when forwarding)
+    IterativeResolver resolver;
+
+    // Limits how many answers each client network gets, shared by every shard (null when rate limiting is off)
+    RateLimiter rateLimiter;
+
+    // Queries whose resolution has finished, waiting for this thread to answer their clients
+    ConcurrentLinkedQueue<InFlightQuery> resolved = new ConcurrentLinkedQueue<>();
+
+    // Buffers are reused for every packet, the selector thread is the only one touching them
+    // (upstream answers can be as big as the EDNS payload size we advertise)
+    ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(DNSEncoder.EDNS_PAYLOAD_SIZE);
+    ByteBuffer sendBuffer = ByteBuffer.allocateDirect(512);
+
+    // Responses are encoded into this encoder's buffer, which is also reused for every packet
+    DNSEncoder encoder = new DNSEncoder();
+
+    // Queries that have been sent upstream but not answered yet, keyed by the ID we rewrote them with
+    HashMap<Short, InFlightQuery> inFlight = new HashMap<>();
+
+    // The same queries keyed by their question, so later clients asking the same question can wait on them
+    HashMap<DNSQuestion, InFlightQuery> inFlightQuestions = new HashMap<>();
+
+    // The same queries ordered by when they next need to be retransmitted, hedged or given up on. Answered queries are
+    // left in until their time comes up and skipped then.
+    PriorityQueue<InFlightQuery> checkOrder = new PriorityQueue<>((a, b) -> Long.signum(a.checkAt - b.checkAt));
+
+    // Upstream IDs are 16 bits, so at most this many queries can be waiting on an upstream answer at once
+    static final int MAX_IN_FLIGHT = 1 << 16;
+
+    // Longest the loop waits before checking for prefetches
+    static final int PREFETCH_INTERVAL_MILLIS = 100;
+
+    boolean done = false;
+
+
+    /**
+     * InFlightQuery remembers who asked a question that has been forwarded upstream, including every client that
+     * asked the same question before the answer came back. Prefetch queries have no request or client.
+     */
+
+    static class InFlightQuery extends Upstreams.Query {
+
+        short upstreamID;
+        DNSQuestion question;
+        DNSMessage request;
+        SocketAddress client;
+
+        // The query as it's sent upstream (with the rewritten ID), kept for retransmits
+        byte[] bytes;
+
+        // When the query needs to be looked at next (its place in checkOrder)
+        long checkAt;
+
+        // When the clients are given a stale answer if there's no upstream answer yet, and whether that has been tried
+        // (or isn't needed, as for a prefetch nobody has joined yet)
+        long staleAt;
+        boolean staleChecked;
+
+        // Whether the clients have been given a stale answer, which means the upstreams are already late with this one
+        boolean staleServed;
+
+        // Whether the query is being resolved iteratively instead of sent upstream, and its answer once it has been
+        // (null if it couldn't be resolved)
+        boolean resolving;
+        DNSMessage answer;
+
+        // Clients (and their queries) that asked after the query was sent, only made if there are any
+        ArrayList<DNSMessage> laterRequests;
+        ArrayList<SocketAddress> laterClients;
+
+        InFlightQuery(Upstreams upstreams, int timeoutMillis, short upstreamID, DNSQuestion question, DNSMessage request,
+                      SocketAddress client, byte[] bytes){
+            super(upstreams, System.nanoTime(), timeoutMillis);
+            this.upstreamID = upstreamID;
+            this.question = question;
+            this.request = request;
+            this.client = client;
+            this.bytes = bytes;
+        }
+    }
+
+
+    /**
+     * SelectorEngine() opens both channels in non-blocking mode and registers them with the selector.
+     *
+     * @param config - startup options (port and upstream timeout)
+     * @param cache - the server's cache
+     * @param upstreams - where queries that miss the cache are sent
+     * @param localZones - names answered before the cache (null if there are none)
+     * @param resolver - resolves misses iteratively (null if they're forwarded to the upstreams)
+     * @param rateLimiter - limits answers per client network (null if rate limiting is off)
+     * @throws IOException if a channel can't be opened or bound
+     */
+
+    SelectorEngine(DNSConfig config, DNSCache cache, Upstreams upstreams, LocalZones localZones,
+                   IterativeResolver resolver, RateLimiter rateLimiter) throws IOException {
+
+        this.config = config;
+        this.cache = cache;
+        this.upstreams = upstreams;
+        this.localZones = localZones;
+        this.resolver = resolver;
+        this.rateLimiter = rateLimiter;
+
+        selector = Selector.open();
+
+        clientChannel = DatagramChannel.open();
+
+        // Every shard binds its own socket to the same port, and the kernel picks one for each client
+        if (config.shards > 1){
+            clientChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+
+        clientChannel.bind(new InetSocketAddress(config.port));
+        clientChannel.configureBlocking(false);
+        clientChannel.register(selector, SelectionKey.OP_READ);
+
+        // The upstream channel doesn't need a fixed port
+        googleChannel = DatagramChannel.open();
+        googleChannel.bind(null);
+        googleChannel.configureBlocking(false);
+        googleChannel.register(selector, SelectionKey.OP_READ);
+    }
+
+    /**
+     * run() is the event loop. It waits for either channel to have a packet, handles every packet that is ready, and
+     * retransmits, hedges or gives up on queries that haven't been answered in time.
+     *
+     * @throws IOException
+     */
+
+    void run() throws IOException {
+
+        while (!done){
+
+            // Wake up in time for the next retransmit, and often enough that prefetches go out
+            long wait = PREFETCH_INTERVAL_MILLIS;
+            if (!checkOrder.isEmpty()){
+                wait = Math.min(wait, (checkOrder.peek().checkAt - System.nanoTime()) / 1_000_000 + 1);
+            }
+            selector.select(Math.max(wait, 1));
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()){
+
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                if (key.channel() == clientChannel){
+                    readClientPackets();
+                }
+                else {
+                    readGooglePackets();
+                }
+            }
+
+            finishResolutions();
+
+            checkQueries();
+
+            sendPrefetches();
+        }
+    }
+
+    /**
+     * sendPrefetches() sends a query for every question the cache wants refreshed (as many as the prefetcher's rate
+     * limit allows). The answers are cached like any other answer, but there's no client to send them to.
+     *
+     * @throws IOException
+     */
+
+    void sendPrefetches() throws IOException {
+
+        if (cache.prefetcher == null){
+            return;
+        }
+
+        DNSQuestion question;
+        while ((question = cache.prefetcher.poll()) != null){
+            forwardToGoogle(question, null, null);
+        }
+    }
+
+    /**
+     * readClientPackets() handles every client query waiting on the client channel. Local names and cache hits are
+     * answered right away, misses are forwarded upstream.
+     *
+     * @throws IOException
+     */
+
+    void readClientPackets() throws IOException {
+
+        SocketAddress client;
+        while ((client = receive(clientChannel)) != null){
+
+            long received = System.nanoTime();
+
+            // Clients over their rate get nothing, or at most an empty truncated answer
+            if (rateLimiter != null){
+                int action = rateLimiter.check(((InetSocketAddress) client).getAddress(), received);
+                if (action != RateLimiter.ALLOW){
+                    if (action == RateLimiter.TRUNCATE && RateLimiter.truncated(receiveBuffer, encoder) != null){
+                        sendToClient(encoder.finishUDP(DNSMessage.ednsPayloadSize(receiveBuffer)), client);
+                    }
+                    continue;
+                }
+            }
+
+            // Local names come before the cache
+            if (localZones != null && localZones.answer(receiveBuffer, encoder) != null){
+                sendToClient(encoder.finishUDP(DNSMessage.ednsPayloadSize(receiveBuffer)), client);
+                Metrics.answered(received);
+                continue;
+            }
+
+            // Cache hits are answered straight from the receive buffer, without decoding the packet
+            if (cache.queryPacket(receiveBuffer, encoder) != null){
+                sendToClient(encoder.finishUDP(DNSMessage.ednsPayloadSize(receiveBuffer)), client);
+                Metrics.answered(received);
+                continue;
+            }
+
+            // CHAOS queries (the stats) are answered here, never cached or forwarded
+            if (Metrics.answer(receiveBuffer, encoder) != null){
+                sendToClient(encoder.finishUDP(DNSMessage.ednsPayloadSize(receiveBuffer)), client);
+                continue;
+            }
+
+            byte[] query = new byte[receiveBuffer.remaining()];
+            receiveBuffer.get(query);
+
+            DNSMessage request;
+            try {
+                request = DNSMessage.decodeMessage(query);
+            }
+            catch (IOException e){
+                Metrics.DECODE_ERRORS.increment();
+                System.out.println("Unable to decode packet.");
+                continue;
+            }
+            request.receivedAt = received;
+
+            CachedResponse cachedResponse = cache.queryCache(request.question);
+
+            if (cachedResponse != null){
+                // The cached bytes only need the client's ID and the current TTLs
+                cachedResponse.writeTo(encoder, request.header.ID);
+                sendToClient(encoder.finishUDP(request.ednsPayloadSize), client);
+                Metrics.answered(received);
+            }
+            else {
+                forwardToGoogle(request.question, request, client);
+            }
+        }
+    }
+
+    /**
+     * forwardToGoogle() sends a query for a client's question upstream under a new ID and remembers who to answer when
+     * it comes back.
+     *
+     * @param question - the question being asked
+     * @param request - the decoded client query (null for a prefetch)
+     * @param client - where the answer should eventually be sent (null for a prefetch)
+     * @throws IOException
+     */
+
+    void forwardToGoogle(DNSQuestion question, DNSMessage request, SocketAddress client) throws IOException {
+
+        // If the question is already on its way upstream, wait on that answer instead of asking again
+        InFlightQuery existing = inFlightQuestions.get(question);
+        if (existing != null){
+            if (request == null){
+                return;
+            }
+
+            // The upstreams are already late with this one, so there's no point waiting if a stale answer is cached
+            if (existing.staleServed){
+                CachedResponse stale = cache.queryStale(question);
+                if (stale != null){
+                    sendStaleResponse(request, stale, client);
+                    return;
+                }
+            }
+
+            // Nobody else is waiting on a stale answer timer (the query is a prefetch, or the timer has already come
+            // up), so this client gets its own
+            if (existing.staleChecked && config.staleWindowSeconds > 0){
+                startStaleTimer(existing, request.receivedAt);
+            }
+
+            if (existing.laterRequests == null){
+                existing.laterRequests = new ArrayList<>();
+                existing.laterClients = new ArrayList<>();
+            }
+            existing.laterRequests.add(request);
+            existing.laterClients.add(client);
+            return;
+        }
+
+        if (resolver != null){
+            resolve(question, request, client);
+            return;
+        }
+
+        // Every ID is taken (i.e. the upstreams stopped answering under load), so the client gets a stale answer if
+        // there is one and SERVFAIL otherwise, instead of a query that can't be matched to its answer
+        if (inFlight.size() >= MAX_IN_FLIGHT){
+            CachedResponse stale = config.staleWindowSeconds == 0 ? null : cache.queryStale(question);
+            if (stale != null && request != null){
+                sendStaleResponse(request, stale, client);
+            }
+            else if (request != null){
+                sendServerFailure(request, client);
+            }
+            return;
+        }
+
+        // Pick an ID no other query is waiting on (at least one is free, so this ends). IDs come from the SecureRandom
+        // so an off-path attacker can't work out the next one and race the upstream's answer.
+        short upstreamID;
+        do {
+            upstreamID = (short) UpstreamClient.RANDOM.nextInt();
+        } while (inFlight.containsKey(upstreamID));
+
+        // The query is built from the question alone, so what gets cached doesn't depend on which client asked first.
+        // It's kept for retransmits.
+        ByteBuffer encoded = encoder.encodeQuery(upstreamID, question);
+        byte[] query = new byte[encoded.remaining()];
+        encoded.get(query);
+
+        InFlightQuery pending = new InFlightQuery(upstreams, config.upstreamTimeoutMillis, upstreamID, question, request,
+                client, query);
+        inFlight.put(upstreamID, pending);
+        inFlightQuestions.put(question, pending);
+
+        // Prefetches have nobody waiting, so they never need a stale answer
+        pending.staleAt = pending.started + config.staleAnswerTimeoutMillis * 1_000_000L;
+        pending.staleChecked = request == null || config.staleWindowSeconds == 0;
+
+        send(pending, pending.first(pending.started));
+
+        pending.checkAt = nextCheck(pending);
+        checkOrder.add(pending);
+    }
+
+    /**
+     * startStaleTimer() gives a query's clients a stale answer if there's still no upstream answer when the stale
+     * answer timeout is up, counting from when the client that's now waiting asked.
+     *
+     * @param pending - the query
+     * @param receivedAt - System.nanoTime() when the client's query arrived
+     */
+
+    void startStaleTimer(InFlightQuery pending, long receivedAt){
+
+        pending.staleAt = receivedAt + config.staleAnswerTimeoutMillis * 1_000_000L;
+        pending.staleChecked = false;
+
+        // Resolutions are only in checkOrder while a stale timer is running, queries sent upstream always are (and
+        // have to be moved to their new place). Clients rarely join a query without a timer, so the linear remove()
+        // doesn't matter.
+        if (!pending.resolving){
+            checkOrder.remove(pending);
+            pending.checkAt = nextCheck(pending);
+        }
+        else {
+            pending.checkAt = pending.staleAt;
+        }
+        checkOrder.add(pending);
+    }
+
+    /**
+     * resolve() starts resolving a client's question iteratively and remembers who to answer when it's done. The
+     * query is only put in checkOrder if its clients may need a stale answer, since the resolver gives up on its own.
+     *
+     * @param question - the question being asked
+     * @param request - the decoded client query (null for a prefetch)
+     * @param client - where the answer should eventually be sent (null for a prefetch)
+     */
+
+    void resolve(DNSQuestion question, DNSMessage request, SocketAddress client){
+
+        InFlightQuery pending = new InFlightQuery(upstreams, config.upstreamTimeoutMillis, (short) 0, question, request,
+                client, null);
+        pending.resolving = true;
+        inFlightQuestions.put(question, pending);
+
+        pending.staleAt = pending.started + config.staleAnswerTimeoutMillis * 1_000_000L;
+        pending.staleChecked = request == null || config.staleWindowSeconds == 0;
+
+        if (!pending.staleChecked){
+            pending.checkAt = pending.staleAt;
+            checkOrder.add(pending);
+        }
+
+        resolver.resolve(question).whenComplete((message, error) -> {
+            pending.answer = message;
+            resolved.add(pending);
+            selector.wakeup();
+        });
+    }
+
+    /**
+     * finishResolutions() answers the clients of every query whose resolution has finished, and caches the answer.
+     * Clients of a query that couldn't be resolved get a stale answer if there is one.
+     *
+     * @throws IOException
+     */
+
+    void finishResolutions() throws IOException {
+
+        InFlightQuery pending;
+        while ((pending = resolved.poll()) != null){
+
+            inFlightQuestions.remove(pending.question, pending);
+
+            if (pending.answer == null){
+                answerStale(pending);
+                continue;
+            }
+
+            cache.insertRecord(pending.answer.question, pending.answer);
+            answerClients(pending, pending.answer);
+        }
+    }
+
+    /**
+     * send() sends an in-flight query to one upstream.
+     *
+     * @param pending - the query
+     * @param upstream - where to send it
+     * @throws IOException
+     */
+
+    void send(InFlightQuery pending, Upstreams.Upstream upstream) throws IOException {
+
+        sendBuffer.clear();
+        sendBuffer.put(pending.bytes);
+        sendBuffer.flip();
+
+        // An upstream that can't be reached is left for the retransmit timer, which fails over to the next one
+        try {
+            googleChannel.send(sendBuffer, upstream.address);
+        }
+        catch (IOException e){
+            Metrics.SEND_ERRORS.increment();
+            System.out.println("Unable to send packet.");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * readGooglePackets() handles every response waiting on the upstream channel: the response is matched to its query
+     * by ID (and by coming from an upstream the query was sent to), cached, and sent back to the client that asked.
+     *
+     * @throws IOException
+     */
+
+    void readGooglePackets() throws IOException {
+
+        SocketAddress sender;
+        while ((sender = receive(googleChannel)) != null){
+
+            if (receiveBuffer.remaining() < DNSHeader.LENGTH){
+                continue;
+            }
+
+            InFlightQuery pending = inFlight.get(receiveBuffer.getShort(0));
+
+            // Nobody is waiting on answers that arrive after their query timed out
+            if (pending == null){
+                continue;
+            }
+
+            byte[] responseBytes = new byte[receiveBuffer.remaining()];
+            receiveBuffer.get(responseBytes);
+
+            DNSMessage googleMessage;
+            try {
+                googleMessage = DNSMessage.decodeMessage(responseBytes);
+            }
+            catch (IOException e){
+                Metrics.DECODE_ERRORS.increment();
+                System.out.println("Unable to decode packet from upstream.");
+                continue;
+            }
+
+            // A reply has to come from an upstream the query was sent to and answer the question that was asked.
+            // Anything else is dropped without touching the query, which keeps waiting for the real answer.
+            if (!pending.question.equals(googleMessage.question) || !pending.answered(sender, System.nanoTime())){
+                continue;
+            }
+
+            inFlight.remove(pending.upstreamID);
+            inFlightQuestions.remove(pending.question, pending);
+
+            // The cache decides which responses it keeps (answers, NXDOMAIN and NODATA)
+            cache.insertRecord(pending.question, googleMessage);
+
+            answerClients(pending, googleMessage);
+        }
+    }
+
+    /**
+     * answerClients() sends an answer to every client waiting on a query.
+     *
+     * @param pending - the query
+     * @param answer - the answer
+     * @throws IOException
+     */
+
+    void answerClients(InFlightQuery pending, DNSMessage answer) throws IOException {
+
+        // Prefetch queries only needed to refresh the cache
+        if (pending.request != null){
+            sendResponse(pending.request, answer, pending.client);
+        }
+
+        // Everyone who asked the same question gets the same answer under their own ID
+        if (pending.laterRequests != null){
+            for (int i = 0; i < pending.laterRequests.size(); i++){
+                sendResponse(pending.laterRequests.get(i), answer, pending.laterClients.get(i));
+            }
+        }
+    }
+
+    /**
+     * checkQueries() retransmits or hedges every query that's due, serves stale answers to clients that have waited
+     * too long, and drops queries nobody has answered before their deadline, so the in-flight table can't grow
+     * forever.
+     *
+     * @throws IOException
+     */
+
+    void checkQueries() throws IOException {
+
+        long now = System.nanoTime();
+
+        while (!checkOrder.isEmpty() && now - checkOrder.peek().checkAt >= 0){
+
+            InFlightQuery pending = checkOrder.poll();
+
+            // Resolutions time themselves out, they're only checked for their clients' stale answer
+            if (pending.resolving){
+                if (inFlightQuestions.get(pending.question) == pending){
+                    pending.staleChecked = true;
+                    answerStale(pending);
+                }
+                continue;
+            }
+
+            // The query may have already been answered, or its ID may have been reused by a newer query
+            if (inFlight.get(pending.upstreamID) != pending){
+                continue;
+            }
+
+            if (pending.expired(now)){
+                pending.current.recordTimeout();
+                inFlight.remove(pending.upstreamID);
+                inFlightQuestions.remove(pending.question, pending);
+
+                // Nobody is going to answer, so anyone still waiting gets a stale answer if there is one
+                answerStale(pending);
+                continue;
+            }
+
+            if (!pending.staleChecked && now - pending.staleAt >= 0){
+                pending.staleChecked = true;
+                answerStale(pending);
+            }
+
+            Upstreams.Upstream upstream = pending.due(now);
+            if (upstream != null){
+                send(pending, upstream);
+            }
+
+            pending.checkAt = nextCheck(pending);
+            checkOrder.add(pending);
+        }
+    }
+
+    /**
+     * nextCheck() returns when a query needs to be looked at next: its next retransmit, hedge or deadline, or when
+     * its clients are due a stale answer if that comes first.
+     *
+     * @param pending - the query
+     * @return long - System.nanoTime() to check the query at
+     */
+
+    long nextCheck(InFlightQuery pending){
+
+        long checkAt = pending.nextAction();
+        if (!pending.staleChecked && pending.staleAt - checkAt < 0){
+            checkAt = pending.staleAt;
+        }
+
+        return checkAt;
+    }
+
+    /**
+     * answerStale() sends every client still waiting on a query the stale answer for its question, if the cache has
+     * one. Those clients are then forgotten, so the upstream answer (if it comes) only goes into the cache.
+     *
+     * @param pending - the query
+     * @throws IOException
+     */
+
+    void answerStale(InFlightQuery pending) throws IOException {
+
+        if (config.staleWindowSeconds == 0){
+            return;
+        }
+
+        CachedResponse stale = cache.queryStale(pending.question);
+        if (stale == null){
+            return;
+        }
+
+        if (pending.request != null){
+            sendStaleResponse(pending.request, stale, pending.client);
+            pending.request = null;
+            pending.client = null;
+        }
+
+        if (pending.laterRequests != null){
+            for (int i = 0; i < pending.laterRequests.size(); i++){
+                sendStaleResponse(pending.laterRequests.get(i), stale, pending.laterClients.get(i));
+            }
+            pending.laterRequests = null;
+            pending.laterClients = null;
+        }
+
+        pending.staleServed = true;
+    }
+
+    /**
+     * receive() reads one packet from a channel into the receive buffer and flips the buffer so it can be read.
+     *
+     * @param channel - channel to read from
+     * @return SocketAddress - who sent the packet, or null if there are no more packets waiting
+     * @throws IOException
+     */
+
+    SocketAddress receive(DatagramChannel channel) throws IOException {
+
+        receiveBuffer.clear();
+        SocketAddress sender = channel.receive(receiveBuffer);
+        receiveBuffer.flip();
+
+        return sender;
+    }
+
+    /**
+     * sendToClient() sends a response to a client. A client that can't be sent to only loses its own answer, the
+     * failure is counted instead of ending the loop.
+     *
+     * @param response - the encoded response
+     * @param client - where the response should be sent
+     */
+
+    void sendToClient(ByteBuffer response, SocketAddress client){
+
+        try {
+            clientChannel.send(response, client);
+        }
+        catch (IOException e){
+            Metrics.SEND_ERRORS.increment();
+            System.out.println("Unable to send packet.");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * sendResponse() builds the response to a client's query and sends it to the client.
+     *
+     * @param request - the client's query
+     * @param answer - the upstream response (either just received or from the cache)
+     * @param client - where the response should be sent
+     * @throws IOException
+     */
+
+    void sendResponse(DNSMessage request, DNSMessage answer, SocketAddress client) throws IOException {
+
+        // The response goes straight from the encoder's buffer to the channel
+        encoder.encodeResponse(request, answer);
+        sendToClient(encoder.finishUDP(request.ednsPayloadSize), client);
+        Metrics.answered(request.receivedAt);
+    }
+
+    /**
+     * sendServerFailure() sends SERVFAIL to a client's query that can't be sent upstream.
+     *
+     * @param request - the client's query
+     * @param client - where the response should be sent
+     * @throws IOException
+     */
+
+    void sendServerFailure(DNSMessage request, SocketAddress client) throws IOException {
+
+        encoder.encodeServerFailure(request);
+        sendToClient(encoder.finishUDP(request.ednsPayloadSize), client);
+        Metrics.answered(request.receivedAt);
+    }
+
+    /**
+     * sendStaleResponse() sends a stale answer to a client's query, with the stale answer TTL in every record.
+     *
+     * @param request - the client's query
+     * @param stale - the expired response from the cache
+     * @param client - where the response should be sent
+     * @throws IOException
+     */
+
+    void sendStaleResponse(DNSMessage request, CachedResponse stale, SocketAddress client) throws IOException {
+
+        stale.writeStaleTo(encoder, request.header.ID, config.staleTTL);
+        sendToClient(encoder.finishUDP(request.ednsPayloadSize), client);
+        Metrics.answered(request.receivedAt);
+    }
+}
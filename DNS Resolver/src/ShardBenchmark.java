@@ -0,0 +1,238 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ShardBenchmark measures how many queries per second the nio engine answers as the number of shards goes up
+ * (1, 2, 4, ... up to --max-shards). Every run starts a fresh server in its own JVM, fills its cache, and then has
+ * several client threads, each with its own socket so the kernel can spread them across shards, send queries for the
+ * cached names as fast as the answers come back. Since every query is a cache hit, the numbers show how fast packets
+ * get in and out, which is the part sharding spreads over cores.
+ *
+ * Queries that miss the cache go to a stand-in upstream run by the benchmark itself (see StandInUpstream).
+ *
+ * Options are passed like the server's (--name=value):
+ *   --max-shards   most shards to try (the number of cores by default)
+ *   --clients      client threads (twice the number of cores by default)
+ *   --seconds      how long each run measures for (5 by default)
+ *   --names        distinct names queried (1000 by default)
+ *   --window       queries each client keeps outstanding (16 by default)
+ *   --port         port the server listens on (18053 by default)
+ */
+public class ShardBenchmark {
+
+    int maxShards = Runtime.getRuntime().availableProcessors();
+    int clients = Runtime.getRuntime().availableProcessors() * 2;
+    int seconds = 5;
+    int names = 1000;
+    int window = 16;
+    int port = 18053;
+
+    // The stand-in upstream
+    StandInUpstream upstream;
+
+
+    /**
+     * main() runs the benchmark for every shard count and prints a table of the results.
+     *
+     * @param args - options, see the class comment
+     */
+
+    public static void main(String[] args) throws Exception {
+
+        ShardBenchmark benchmark = new ShardBenchmark();
+
+        for (String arg : args){
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0){
+                throw new IllegalArgumentException("Options must look like --name=value: " + arg);
+            }
+
+            int value = Integer.parseInt(arg.substring(equals + 1));
+            switch (arg.substring(2, equals)) {
+                case "max-shards" -> benchmark.maxShards = value;
+                case "clients" -> benchmark.clients = value;
+                case "seconds" -> benchmark.seconds = value;
+                case "names" -> benchmark.names = value;
+                case "window" -> benchmark.window = value;
+                case "port" -> benchmark.port = value;
+                default -> throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+
+        benchmark.upstream = new StandInUpstream(0, 0, 3600);
+        benchmark.upstream.start();
+
+        System.out.println("shards       qps   speedup");
+
+        double baseline = 0;
+        for (int shards = 1; shards <= benchmark.maxShards; shards *= 2){
+
+            double qps = benchmark.run(shards);
+            if (shards == 1){
+                baseline = qps;
+            }
+
+            System.out.printf("%6d %9.0f %8.2fx%n", shards, qps, qps / baseline);
+        }
+
+        benchmark.upstream.close();
+    }
+
+    /**
+     * run() starts a server with the given number of shards, fills its cache, measures it and stops it.
+     *
+     * @param shards - number of shards
+     * @return double - queries answered per second
+     */
+
+    double run(int shards) throws Exception {
+
+        Process server = new ProcessBuilder(
+                ProcessHandle.current().info().command().orElse("java"),
+                "-cp", System.getProperty("java.class.path"),
+                "DNSServer",
+                "--engine=nio",
+                "--shards=" + shards,
+                "--port=" + port,
+                "--tcp-connections=0",
+                "--prefetch-fraction=0",
+                "--upstreams=127.0.0.1:" + upstream.port())
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+
+        try {
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+
+            // Fill the cache (this also waits for the server to come up)
+            try (DatagramSocket socket = new DatagramSocket()){
+                socket.setSoTimeout(200);
+                for (int i = 0; i < names; i++){
+                    while (!ask(socket, address, i)){
+                        if (!server.isAlive()){
+                            throw new IOException("Server exited with " + server.exitValue());
+                        }
+                    }
+                }
+            }
+
+            LongAdder answered = new LongAdder();
+            long end = System.nanoTime() + seconds * 1_000_000_000L;
+
+            List<Thread> threads = new ArrayList<>();
+            for (int c = 0; c < clients; c++){
+                int first = c;
+                Thread thread = new Thread(() -> drive(address, first, end, answered), "client-" + c);
+                thread.start();
+                threads.add(thread);
+            }
+
+            for (Thread thread : threads){
+                thread.join();
+            }
+
+            return answered.sum() / (double) seconds;
+        }
+        finally {
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+    /**
+     * drive() is one client: it keeps a window of queries outstanding until the end time, counting every answer.
+     *
+     * @param address - the server
+     * @param first - which name the client starts at
+     * @param end - System.nanoTime() to stop at
+     * @param answered - where answers are counted
+     */
+
+    void drive(InetSocketAddress address, int first, long end, LongAdder answered){
+
+        try (DatagramSocket socket = new DatagramSocket()){
+
+            socket.setSoTimeout(100);
+            byte[] receiveBuffer = new byte[512];
+            DatagramPacket received = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+
+            int next = first;
+            while (System.nanoTime() - end < 0){
+
+                for (int i = 0; i < window; i++){
+                    byte[] query = query((short) next, next % names);
+                    socket.send(new DatagramPacket(query, query.length, address));
+                    next++;
+                }
+
+                // Lost packets just shrink the window until the timeout starts the next one
+                try {
+                    for (int i = 0; i < window; i++){
+                        received.setLength(receiveBuffer.length);
+                        socket.receive(received);
+                        answered.increment();
+                    }
+                }
+                catch (SocketTimeoutException e){
+                    // Send the next window
+                }
+            }
+        }
+        catch (IOException e){
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * ask() sends one query and waits for its answer.
+     *
+     * @return boolean - whether the answer came back before the socket's timeout
+     */
+
+    boolean ask(DatagramSocket socket, InetSocketAddress address, int name) throws IOException {
+
+        byte[] query = query((short) name, name);
+        socket.send(new DatagramPacket(query, query.length, address));
+
+        byte[] buffer = new byte[512];
+        try {
+            socket.receive(new DatagramPacket(buffer, buffer.length));
+            return true;
+        }
+        catch (SocketTimeoutException e){
+            return false;
+        }
+    }
+
+    /**
+     * query() builds a query for "host<name>.bench.test" A IN.
+     *
+     * @param id - the query's ID
+     * @param name - which name to ask for
+     * @return byte[] - the query
+     */
+
+    static byte[] query(short id, int name){
+
+        String label = "host" + name;
+
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.putShort(id).putShort((short) 0x0100).putShort((short) 1).putShort((short) 0).putShort((short) 0).putShort((short) 0);
+        buffer.put((byte) label.length()).put(label.getBytes());
+        buffer.put((byte) 5).put("bench".getBytes()).put((byte) 4).put("test".getBytes()).put((byte) 0);
+        buffer.putShort(DNSEncoder.TYPE_A).putShort((short) 1);
+
+        byte[] query = new byte[buffer.position()];
+        buffer.flip().get(query);
+
+        return query;
+    }
+}
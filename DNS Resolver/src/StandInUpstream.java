@@ -0,0 +1,148 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * StandInUpstream is a resolver the benchmark tools point the server at instead of a real one, so a run measures the
+ * server and not the internet. It answers every A query with the question and one A record (10.0.0.1), and every
+ * other query with no records, after a configurable delay to stand in for the round trip to a real upstream.
+ */
+public class StandInUpstream {
+
+    DatagramSocket socket;
+
+    // How long each answer is held back, in microseconds: latency plus a random share of jitter (either can be changed
+    // while the upstream runs, as long as one of them was set when it started)
+    volatile long latencyMicros;
+    volatile long jitterMicros;
+
+    // TTL of the A records, which decides how long the server keeps answering them from its cache
+    int ttl;
+
+    // Sends delayed answers (null when there's no delay)
+    ScheduledExecutorService delayer;
+
+
+    /**
+     * StandInUpstream() opens the upstream's socket on a free loopback port.
+     *
+     * @param latencyMillis - how long every answer is held back
+     * @param jitterMillis - up to how much longer an answer is held back, picked at random for each one
+     * @param ttl - TTL of the A records
+     * @throws IOException if the socket can't be opened
+     */
+
+    StandInUpstream(double latencyMillis, double jitterMillis, int ttl) throws IOException {
+
+        this.latencyMicros = (long) (latencyMillis * 1000);
+        this.jitterMicros = (long) (jitterMillis * 1000);
+        this.ttl = ttl;
+
+        socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * start() answers queries on a background thread until close() is called.
+     */
+
+    void start(){
+
+        if (latencyMicros > 0 || jitterMicros > 0){
+            delayer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "stand-in-upstream-delay");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        Thread thread = new Thread(() -> {
+
+            byte[] buffer = new byte[DNSEncoder.EDNS_PAYLOAD_SIZE];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+            while (!socket.isClosed()){
+                try {
+                    packet.setLength(buffer.length);
+                    socket.receive(packet);
+
+                    answer(ByteBuffer.wrap(buffer, 0, packet.getLength()), packet.getSocketAddress());
+                }
+                catch (IOException | RuntimeException e){
+                    // Closed, or a packet that wasn't a query
+                }
+            }
+        }, "stand-in-upstream");
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * answer() builds the answer to a query and sends it, now or after the delay.
+     *
+     * @param query - the query, from index 0 to the limit
+     * @param sender - where the answer goes
+     * @throws IOException if the answer can't be sent
+     */
+
+    void answer(ByteBuffer query, SocketAddress sender) throws IOException {
+
+        // Keep the header and question, drop anything after the question (the OPT record)
+        int questionEnd = DNSName.skip(query, DNSHeader.LENGTH) + 4;
+        boolean isA = query.getShort(questionEnd - 4) == DNSEncoder.TYPE_A;
+
+        ByteBuffer answer = ByteBuffer.allocate(questionEnd + 16);
+        answer.put(query.array(), 0, questionEnd);
+        answer.putShort(2, (short) 0x8180).putShort(6, (short) (isA ? 1 : 0)).putShort(8, (short) 0).putShort(10, (short) 0);
+        if (isA){
+            answer.putShort((short) 0xC00C).putShort(DNSEncoder.TYPE_A).putShort((short) 1).putInt(ttl).putShort((short) 4);
+            answer.put(new byte[]{10, 0, 0, 1});
+        }
+
+        DatagramPacket packet = new DatagramPacket(answer.array(), answer.position(), sender);
+
+        if (delayer == null){
+            socket.send(packet);
+            return;
+        }
+
+        long delay = latencyMicros + (jitterMicros > 0 ? ThreadLocalRandom.current().nextLong(jitterMicros + 1) : 0);
+        delayer.schedule(() -> {
+            try {
+                socket.send(packet);
+            }
+            catch (IOException e){
+                // Closed
+            }
+        }, delay, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * port() returns the port the upstream is listening on (on the loopback address).
+     *
+     * @return int - the port
+     */
+
+    int port(){
+        return socket.getLocalPort();
+    }
+
+    /**
+     * close() stops the upstream, dropping any answers still being held back.
+     */
+
+    void close(){
+
+        socket.close();
+        if (delayer != null){
+            delayer.shutdownNow();
+        }
+    }
+}
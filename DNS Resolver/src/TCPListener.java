@@ -0,0 +1,476 @@
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * TCPListener answers DNS over TCP on the same port as the UDP engines (RFC 7766). Every message on a connection is
+ * prefixed with its length in two bytes. Clients can send several queries without waiting for the answers (pipelining),
+ * and each answer is written as soon as it's ready, so a cache hit doesn't wait behind a miss that was asked first.
+ * Clients match answers to queries by ID.
+ *
+ * Each connection is read on its own thread and written on another. Misses are sent upstream over UDP through the
+ * server's UpstreamClient and QueryCoalescer, so a TCP client asking what a UDP client already asked waits on the same
+ * query (or they're resolved by the server's IterativeResolver). Answers are queued for the connection's writer, so
+ * the upstream threads never block on a client that isn't reading, and a connection whose queue fills up is closed. A
+ * miss the upstreams are too slow with gets a stale answer instead, if serving stale is turned on and one is
+ * cached, and a miss that can't be answered at all gets SERVFAIL, so the client isn't left waiting on its timeout.
+ */
+public class TCPListener {
+
+    DNSConfig config;
+    DNSCache cache;
+
+    ServerSocket serverSocket;
+
+    UpstreamClient upstream;
+
+    // Resolves misses from the root servers instead of forwarding them (null when forwarding)
+    IterativeResolver resolver;
+
+    // Names answered from our own zone and hosts files (null if there are none)
+    LocalZones localZones;
+
+    // Only one upstream query per question is pending at a time, shared with the UDP engine
+    QueryCoalescer coalescer;
+
+    // Limits how many connections are open at once
+    Semaphore connectionSlots;
+
+    // Most answers a connection can have waiting to be written before it's closed
+    static final int MAX_QUEUED_ANSWERS = 256;
+
+    ExecutorService connections = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "tcp-connection");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+
+    /**
+     * Connection is one client's TCP connection. Answers come from several threads (the reader for cache hits, the
+     * upstream threads for misses), so they're queued and written by the connection's writer thread, in the order they
+     * were queued. Once the client has stopped sending and every query it sent has been answered, the writer writes
+     * what's left and closes the socket.
+     */
+
+    static class Connection {
+
+        // Queued after the last answer, so the writer knows it's done
+        static final byte[] END = new byte[0];
+
+        Socket socket;
+        DataOutputStream out;
+
+        // Answers waiting for the writer
+        BlockingQueue<byte[]> answers = new ArrayBlockingQueue<>(MAX_QUEUED_ANSWERS);
+
+        // Queries still waiting on an upstream answer
+        int pending;
+        boolean reading = true;
+        volatile boolean closed;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        /**
+         * write() queues one message for the writer. A client that has let MAX_QUEUED_ANSWERS answers pile up isn't
+         * reading them, so its connection is closed instead of queueing more.
+         *
+         * @param message - the message, from position to limit
+         */
+
+        void write(ByteBuffer message){
+
+            if (closed){
+                return;
+            }
+
+            byte[] bytes = new byte[message.remaining()];
+            message.get(bytes);
+
+            if (!answers.offer(bytes)){
+                close();
+            }
+        }
+
+        /**
+         * writeLoop() writes queued answers, each with its length in front, until the connection is done or closed.
+         * Answers already waiting go out together in one flush.
+         */
+
+        void writeLoop(){
+
+            try {
+                byte[] message;
+                while ((message = answers.take()) != END){
+                    out.writeShort(message.length);
+                    out.write(message);
+                    if (answers.isEmpty()){
+                        out.flush();
+                    }
+                }
+                out.flush();
+            }
+            catch (IOException | InterruptedException e){
+                // The client went away, or the connection was closed while the writer waited
+            }
+            finally {
+                close();
+            }
+        }
+
+        synchronized void queryStarted(){
+            pending++;
+        }
+
+        synchronized void queryFinished(){
+            pending--;
+            if (!reading && pending == 0){
+                finish();
+            }
+        }
+
+        synchronized void readingFinished(){
+            reading = false;
+            if (pending == 0){
+                finish();
+            }
+        }
+
+        /**
+         * finish() tells the writer there are no more answers coming.
+         */
+
+        void finish(){
+            if (!answers.offer(END)){
+                close();
+            }
+        }
+
+        /**
+         * close() closes the socket (which stops a writer stuck on a client that isn't reading) and wakes the writer if
+         * it's waiting.
+         */
+
+        void close(){
+
+            closed = true;
+            try {
+                socket.close();
+            }
+            catch (IOException e){
+                // Nothing else to do with it
+            }
+
+            answers.clear();
+            answers.offer(END);
+        }
+    }
+
+
+    /**
+     * TCPListener() opens the listening socket.
+     *
+     * @param config - startup options (port, connection limit and idle timeout)
+     * @param cache - the server's cache
+     * @param upstream - the server's client for sending misses upstream
+     * @param coalescer - the server's table of questions already on their way upstream
+     * @param localZones - names answered before the cache (null if there are none)
+     * @param resolver - resolves misses iteratively (null if they're forwarded to the upstreams)
+     * @throws IOException if the socket can't be opened
+     */
+
+    TCPListener(DNSConfig config, DNSCache cache, UpstreamClient upstream, QueryCoalescer coalescer,
+                LocalZones localZones, IterativeResolver resolver) throws IOException {
+
+        this.config = config;
+        this.cache = cache;
+        this.upstream = upstream;
+        this.coalescer = coalescer;
+        this.localZones = localZones;
+        this.resolver = resolver;
+
+        serverSocket = new ServerSocket(config.port);
+        connectionSlots = new Semaphore(config.tcpMaxConnections);
+    }
+
+    /**
+     * start() starts accepting connections on a background thread.
+     */
+
+    void start(){
+
+        Thread acceptor = new Thread(this::acceptLoop, "tcp-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * acceptLoop() accepts connections and hands each one to its own thread, waiting for a slot whenever the
+     * connection limit has been reached.
+     */
+
+    void acceptLoop(){
+
+        while (!serverSocket.isClosed()){
+
+            try {
+                connectionSlots.acquire();
+
+                Socket socket = serverSocket.accept();
+
+                connections.execute(() -> {
+                    try {
+                        serve(socket);
+                    }
+                    finally {
+                        connectionSlots.release();
+                    }
+                });
+            }
+            catch (IOException e){
+                connectionSlots.release();
+                if (!serverSocket.isClosed()){
+                    System.out.println("Unable to accept TCP connection.");
+                    e.printStackTrace();
+                }
+            }
+            catch (InterruptedException e){
+                return;
+            }
+        }
+    }
+
+    /**
+     * serve() starts the connection's writer and reads queries off the connection until the client closes it or it
+     * sits idle too long. It returns once the writer is done, or has had as long as a query can take to finish.
+     *
+     * @param socket - the client's connection
+     */
+
+    void serve(Socket socket){
+
+        Connection connection;
+        try {
+            socket.setSoTimeout(config.tcpIdleTimeoutMillis);
+            socket.setTcpNoDelay(true);
+            connection = new Connection(socket);
+        }
+        catch (IOException e){
+            try {
+                socket.close();
+            }
+            catch (IOException ignored){
+                // Nothing else to do with it
+            }
+            return;
+        }
+
+        Future<?> writer = connections.submit(connection::writeLoop);
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+            while (true){
+
+                int length;
+                try {
+                    length = in.readUnsignedShort();
+                }
+                catch (EOFException | SocketTimeoutException e){
+                    // The client is done, or has been quiet for too long
+                    break;
+                }
+
+                byte[] query = new byte[length];
+                in.readFully(query);
+
+                handleQuery(query, connection);
+            }
+        }
+        catch (IOException e){
+            // The connection broke partway through a message, so nothing more can be read from it
+        }
+        finally {
+            connection.readingFinished();
+        }
+
+        // The connection counts against the limit until its writer is done
+        try {
+            writer.get(config.tcpIdleTimeoutMillis + config.upstreamTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException | ExecutionException e){
+            connection.close();
+        }
+        catch (InterruptedException e){
+            connection.close();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * handleQuery() answers one query from a connection. Local names and hits are written right away, misses once the
+     * upstream answers.
+     *
+     * @param query - the bytes of the query, without the length prefix
+     * @param connection - the connection the query came in on
+     */
+
+    void handleQuery(byte[] query, Connection connection){
+
+        long received = System.nanoTime();
+
+        if (localZones != null){
+            ByteBuffer packet = ByteBuffer.wrap(query);
+            DNSEncoder encoder = DNSEncoder.get();
+            if (localZones.answer(packet, encoder) != null){
+                connection.write(encoder.finishTCP(DNSMessage.ednsPayloadSize(packet)));
+                Metrics.answered(received);
+                return;
+            }
+        }
+
+        DNSMessage request;
+        try {
+            request = DNSMessage.decodeMessage(query);
+        }
+        catch (IOException e){
+            Metrics.DECODE_ERRORS.increment();
+            System.out.println("Unable to decode TCP packet.");
+            return;
+        }
+        request.receivedAt = received;
+
+        CachedResponse cachedResponse = cache.queryCache(request.question);
+        if (cachedResponse != null){
+            DNSEncoder encoder = DNSEncoder.get();
+            cachedResponse.writeTo(encoder, request.header.ID);
+            connection.write(encoder.finishTCP(request.ednsPayloadSize));
+            Metrics.answered(received);
+            return;
+        }
+
+        // CHAOS queries (the stats) are answered here, never cached or forwarded
+        if (request.question.QCLASS == Metrics.CLASS_CH){
+            ByteBuffer packet = ByteBuffer.wrap(query);
+            DNSEncoder encoder = DNSEncoder.get();
+            if (Metrics.answer(packet, encoder) != null){
+                connection.write(encoder.finishTCP(request.ednsPayloadSize));
+                return;
+            }
+        }
+
+        connection.queryStarted();
+
+        // Whichever comes first, the upstream answer or a stale one, is the one the client gets
+        AtomicBoolean answered = new AtomicBoolean();
+        ScheduledFuture<?> staleTimer = config.staleWindowSeconds == 0 ? null : upstream.timer.schedule(
+                () -> writeStale(request, connection, answered), config.staleAnswerTimeoutMillis, TimeUnit.MILLISECONDS);
+
+        DNSQuestion question = request.question;
+        coalescer.join(question, () -> lookUp(question).thenApply(response -> {
+
+                    // The cache decides which responses it keeps (answers, NXDOMAIN and NODATA)
+                    cache.insertRecord(response.question, response);
+                    return response;
+                }))
+                .whenComplete((response, error) -> {
+
+                    if (staleTimer != null){
+                        staleTimer.cancel(false);
+                    }
+
+                    if (error != null){
+                        if (!writeStale(request, connection, answered)){
+                            System.out.println("No upstream answer: " + error);
+                            writeServerFailure(request, connection, answered);
+                        }
+                    }
+                    else if (answered.compareAndSet(false, true)){
+                        DNSEncoder encoder = DNSEncoder.get();
+                        encoder.encodeResponse(request, response);
+                        connection.write(encoder.finishTCP(request.ednsPayloadSize));
+                        Metrics.answered(received);
+                    }
+
+                    connection.queryFinished();
+                });
+    }
+
+    /**
+     * lookUp() starts finding the answer to a question that missed the cache: resolving it iteratively, or forwarding
+     * it to the upstreams.
+     *
+     * @param question - the question
+     * @return CompletableFuture - completes with the answer, or fails if there isn't one in time
+     */
+
+    CompletableFuture<DNSMessage> lookUp(DNSQuestion question){
+
+        return resolver != null ? resolver.resolve(question) : upstream.query(question);
+    }
+
+    /**
+     * writeServerFailure() writes SERVFAIL (the query's ID and question, with no records) to a query that couldn't be
+     * answered, unless it has already been.
+     *
+     * @param request - the client's query
+     * @param connection - the connection the query came in on
+     * @param answered - whether the query has been answered, set here
+     */
+
+    void writeServerFailure(DNSMessage request, Connection connection, AtomicBoolean answered){
+
+        if (!answered.compareAndSet(false, true)){
+            return;
+        }
+
+        DNSEncoder encoder = DNSEncoder.get();
+        encoder.encodeServerFailure(request);
+        connection.write(encoder.finishTCP(request.ednsPayloadSize));
+        Metrics.answered(request.receivedAt);
+    }
+
+    /**
+     * writeStale() writes a stale answer to a query, if serving stale is turned on and the cache has one, unless the
+     * query has already been answered.
+     *
+     * @param request - the client's query
+     * @param connection - the connection the query came in on
+     * @param answered - whether the query has been answered, set here if the stale answer is written
+     * @return boolean - whether the query has an answer now (stale or not)
+     */
+
+    boolean writeStale(DNSMessage request, Connection connection, AtomicBoolean answered){
+
+        if (config.staleWindowSeconds == 0){
+            return answered.get();
+        }
+
+        CachedResponse stale = cache.queryStale(request.question);
+        if (stale != null && answered.compareAndSet(false, true)){
+            DNSEncoder encoder = DNSEncoder.get();
+            stale.writeStaleTo(encoder, request.header.ID, config.staleTTL);
+            connection.write(encoder.finishTCP(request.ednsPayloadSize));
+            Metrics.answered(request.receivedAt);
+        }
+
+        return answered.get();
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * TimerWheel is a hierarchical timing wheel that finds expired timers without looking at the ones that aren't due.
+ * Deadlines are System.nanoTime() values. The lowest level has one slot per tick (about a second), and each level above
+ * it covers 64 times as much time with slots 64 times as wide. Timers in higher levels are moved down a level as their
+ * slot comes up, until they land in the lowest level and expire.
+ *
+ * A wheel isn't thread-safe; whoever owns it has to lock around it.
+ */
+public class TimerWheel {
+
+    // A tick is 2^30 ns (a little over a second)
+    static final int TICK_SHIFT = 30;
+
+    // Each level has 64 slots
+    static final int SLOT_BITS = 6;
+    static final int SLOTS = 1 << SLOT_BITS;
+    static final int SLOT_MASK = SLOTS - 1;
+
+    // 64^4 ticks is about 194 days, longer than any TTL we'd see
+    static final int LEVELS = 4;
+
+
+    /**
+     * Timer is something with a deadline that can be put in a wheel. Timers are linked into their slot directly, so
+     * scheduling and cancelling don't allocate.
+     */
+
+    static class Timer {
+
+        long deadline;
+
+        Timer timerPrevious;
+        Timer timerNext;
+
+        boolean isScheduled(){
+            return timerNext != null;
+        }
+    }
+
+
+    // Each slot is the sentinel of a circular list of the timers in it
+    Timer[][] slots = new Timer[LEVELS][SLOTS];
+
+    // The last tick that has been processed
+    long currentTick;
+
+
+    /**
+     * TimerWheel() makes an empty wheel whose current tick is now.
+     *
+     * @param now - current System.nanoTime()
+     */
+
+    TimerWheel(long now){
+
+        currentTick = now >> TICK_SHIFT;
+
+        for (int level = 0; level < LEVELS; level++){
+            for (int slot = 0; slot < SLOTS; slot++){
+                Timer sentinel = new Timer();
+                sentinel.timerPrevious = sentinel;
+                sentinel.timerNext = sentinel;
+                slots[level][slot] = sentinel;
+            }
+        }
+    }
+
+    /**
+     * schedule() adds a timer to the slot its deadline falls in.
+     *
+     * @param timer - timer to add (it must not already be in a wheel)
+     */
+
+    void schedule(Timer timer){
+
+        long tick = timer.deadline >> TICK_SHIFT;
+
+        // Anything already due goes in the next slot to be processed
+        long delay = Math.max(tick - currentTick, 1);
+
+        int level = 0;
+        while (level < LEVELS - 1 && delay >= (1L << (SLOT_BITS * (level + 1)))){
+            level++;
+        }
+
+        // Anything past the top level's range waits in the top level and gets placed again when its slot comes up
+        if (delay >= (1L << (SLOT_BITS * LEVELS))){
+            tick = currentTick + (1L << (SLOT_BITS * LEVELS)) - 1;
+        }
+        else if (tick <= currentTick){
+            tick = currentTick + 1;
+        }
+
+        link(timer, slots[level][(int) ((tick >> (SLOT_BITS * level)) & SLOT_MASK)]);
+    }
+
+    /**
+     * link() adds a timer to the end of a slot's list.
+     *
+     * @param timer - timer to add
+     * @param sentinel - the slot's sentinel
+     */
+
+    void link(Timer timer, Timer sentinel){
+
+        timer.timerPrevious = sentinel.timerPrevious;
+        timer.timerNext = sentinel;
+        sentinel.timerPrevious.timerNext = timer;
+        sentinel.timerPrevious = timer;
+    }
+
+    /**
+     * cancel() takes a timer out of the wheel. Cancelling a timer that isn't scheduled does nothing.
+     *
+     * @param timer - timer to remove
+     */
+
+    void cancel(Timer timer){
+
+        if (!timer.isScheduled()){
+            return;
+        }
+
+        timer.timerPrevious.timerNext = timer.timerNext;
+        timer.timerNext.timerPrevious = timer.timerPrevious;
+        timer.timerPrevious = null;
+        timer.timerNext = null;
+    }
+
+    /**
+     * advance() processes every tick up to now. Timers in the lowest level's slot for each tick are expired, and when
+     * a higher level's slot comes up its timers are placed again (which moves them down a level).
+     *
+     * @param now - current System.nanoTime()
+     * @param expired - handed every timer whose deadline has passed (the timer is already out of the wheel)
+     */
+
+    void advance(long now, java.util.function.Consumer<Timer> expired){
+
+        long targetTick = now >> TICK_SHIFT;
+
+        while (currentTick < targetTick){
+
+            currentTick++;
+
+            // Cascade from the top down, so timers moving down a level can still land in this tick's slot. schedule()
+            // only places timers from the next tick on, so timers due this tick are put in its slot directly.
+            for (int level = LEVELS - 1; level > 0; level--){
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0){
+                    Timer sentinel = slots[level][(int) ((currentTick >> (SLOT_BITS * level)) & SLOT_MASK)];
+                    while (sentinel.timerNext != sentinel){
+                        Timer timer = sentinel.timerNext;
+                        cancel(timer);
+
+                        if ((timer.deadline >> TICK_SHIFT) <= currentTick){
+                            link(timer, slots[0][(int) (currentTick & SLOT_MASK)]);
+                        }
+                        else {
+                            schedule(timer);
+                        }
+                    }
+                }
+            }
+
+            Timer sentinel = slots[0][(int) (currentTick & SLOT_MASK)];
+            while (sentinel.timerNext != sentinel){
+                Timer timer = sentinel.timerNext;
+                cancel(timer);
+
+                if ((timer.deadline >> TICK_SHIFT) <= currentTick){
+                    expired.accept(timer);
+                }
+                else {
+                    schedule(timer);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,359 @@
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * UpstreamClient forwards queries to the upstream resolvers without making the caller wait for the answer. Every query
+ * is sent with a new transaction ID from a SecureRandom, and a background thread matches each answer back to the query
+ * that is waiting for it by that ID, its question, the server it came from and the socket it came in on. A timer
+ * thread retransmits queries that haven't been answered in time (to the next fastest upstream) and hedges slow ones,
+ * as decided by Upstreams.
+ *
+ * Someone off the path who wants to forge an answer already knows the question and the server, so what they have to
+ * guess is the ID and the port the query went out from. Forwarded queries go out from the one socket they're given.
+ * Queries to authoritative servers (see IterativeResolver), which could be anywhere, are spread at random over a pool
+ * of sockets each bound to a random port, and one socket in the pool is swapped for a new one every
+ * ROTATE_INTERVAL_MILLIS, so the ports keep changing too.
+ */
+public class UpstreamClient {
+
+    // How often one socket of a pool is replaced by a socket on a new random port
+    static final int ROTATE_INTERVAL_MILLIS = 1000;
+
+    // Ports a pool socket is bound to are picked from here (above the well known ports)
+    static final int LOWEST_PORT = 1024;
+
+    // IDs and ports have to be unpredictable, not just well spread
+    static final SecureRandom RANDOM = new SecureRandom();
+
+    // The sockets queries are sent from, one for forwarding or a pool of them
+    AtomicReferenceArray<DatagramSocket> sockets;
+
+    Upstreams upstreams;
+
+    // Queries that have been sent but not answered yet, keyed by the ID we rewrote them with
+    ConcurrentHashMap<Short, PendingQuery> pending = new ConcurrentHashMap<>();
+
+    int timeoutMillis;
+
+    Thread receiver;
+
+    // Retransmits and hedges queries when they're due
+    ScheduledExecutorService timer;
+
+    volatile boolean closed;
+
+
+    /**
+     * PendingQuery is a query waiting on an upstream answer: its bytes (for sending again) and whoever is waiting.
+     * It's locked whenever its Query part is used, since the timer and receive threads both touch it.
+     */
+
+    static class PendingQuery extends Upstreams.Query {
+
+        DNSQuestion question;
+        byte[] bytes;
+        CompletableFuture<DNSMessage> future = new CompletableFuture<>();
+
+        // The socket the query is sent from (every time), which is the only one its answer is taken from
+        DatagramSocket socket;
+
+        PendingQuery(Upstreams upstreams, int timeoutMillis, DNSQuestion question){
+            super(upstreams, System.nanoTime(), timeoutMillis);
+            this.question = question;
+        }
+    }
+
+
+    /**
+     * UpstreamClient() starts the thread that receives upstream responses on the given socket.
+     *
+     * @param socket - socket used for sending and receiving queries with the upstreams
+     * @param upstreams - where queries are sent
+     * @param timeoutMillis - how long a query may wait for its answer (across every upstream) before it fails
+     */
+
+    UpstreamClient(DatagramSocket socket, Upstreams upstreams, int timeoutMillis){
+
+        this.upstreams = upstreams;
+        this.timeoutMillis = timeoutMillis;
+
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "upstream-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        sockets = new AtomicReferenceArray<>(new DatagramSocket[]{ socket });
+        startReceiver(socket);
+    }
+
+    /**
+     * This version of UpstreamClient() opens a pool of sockets on random ports and keeps rotating them, for asking
+     * servers that can't be trusted to be on a safe path.
+     *
+     * @param upstreams - where queries are sent when they don't say otherwise
+     * @param timeoutMillis - how long a query may wait for its answer (across every server) before it fails
+     * @param poolSize - how many sockets queries are spread over
+     * @throws IOException if a socket can't be opened
+     */
+
+    UpstreamClient(Upstreams upstreams, int timeoutMillis, int poolSize) throws IOException {
+
+        this(openRandomPort(), upstreams, timeoutMillis);
+
+        DatagramSocket[] pool = new DatagramSocket[Math.max(1, poolSize)];
+        pool[0] = sockets.get(0);
+        for (int i = 1; i < pool.length; i++){
+            pool[i] = openRandomPort();
+            startReceiver(pool[i]);
+        }
+        sockets = new AtomicReferenceArray<>(pool);
+
+        timer.scheduleWithFixedDelay(this::rotate, ROTATE_INTERVAL_MILLIS, ROTATE_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * openRandomPort() opens a socket on a port picked with the SecureRandom. If a few picks are all taken, the
+     * kernel picks one instead.
+     *
+     * @return DatagramSocket - the socket
+     * @throws IOException if no socket can be opened at all
+     */
+
+    static DatagramSocket openRandomPort() throws IOException {
+
+        for (int attempt = 0; attempt < 16; attempt++){
+            try {
+                return new DatagramSocket(LOWEST_PORT + RANDOM.nextInt(65536 - LOWEST_PORT));
+            }
+            catch (BindException e){
+                // In use, try another
+            }
+        }
+
+        return new DatagramSocket();
+    }
+
+    /**
+     * startReceiver() starts the thread that takes answers off a socket, until the socket is closed.
+     *
+     * @param socket - the socket
+     */
+
+    void startReceiver(DatagramSocket socket){
+
+        receiver = new Thread(() -> receiveLoop(socket), "upstream-receiver-" + socket.getLocalPort());
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * rotate() runs on the timer thread and replaces one socket of the pool, picked at random, with one on a new port.
+     * The old socket stays open for as long as a query sent from it could still be answered, then it's closed.
+     */
+
+    void rotate(){
+
+        if (closed){
+            return;
+        }
+
+        try {
+            DatagramSocket socket = openRandomPort();
+            startReceiver(socket);
+
+            DatagramSocket old = sockets.getAndSet(RANDOM.nextInt(sockets.length()), socket);
+            timer.schedule(old::close, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (IOException e){
+            // The pool just keeps its old ports until the next rotation
+            System.out.println("Unable to open upstream socket.");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * close() stops rotating and closes every socket, which also stops the receive threads.
+     */
+
+    void close(){
+
+        closed = true;
+        timer.shutdownNow();
+        for (int i = 0; i < sockets.length(); i++){
+            sockets.get(i).close();
+        }
+    }
+
+    /**
+     * query() sends a query for a client's question upstream under a new transaction ID and returns right away. The
+     * query is built from the question alone, so what gets cached doesn't depend on which client asked first.
+     *
+     * @param question - the question to ask
+     * @return CompletableFuture - completes with the upstream response, or fails if the query times out or can't be sent
+     */
+
+    CompletableFuture<DNSMessage> query(DNSQuestion question){
+
+        return query(question, upstreams, true, timeoutMillis);
+    }
+
+    /**
+     * This version of query() sends the question to the given servers instead of the upstreams, which is how
+     * IterativeResolver asks authoritative servers (with recursion desired off).
+     *
+     * @param question - the question to ask
+     * @param servers - where the query can be sent
+     * @param recursionDesired - whether the RD flag is set
+     * @param timeoutMillis - how long the query may wait for its answer across every server
+     * @return CompletableFuture - completes with the response, or fails if the query times out or can't be sent
+     */
+
+    CompletableFuture<DNSMessage> query(DNSQuestion question, Upstreams servers, boolean recursionDesired,
+                                        int timeoutMillis){
+
+        PendingQuery query = new PendingQuery(servers, timeoutMillis, question);
+        query.socket = sockets.get(sockets.length() == 1 ? 0 : RANDOM.nextInt(sockets.length()));
+
+        // Find an ID that no other outstanding query is using. IDs come from the SecureRandom so they can't be
+        // worked out from earlier ones.
+        short id;
+        do {
+            id = (short) RANDOM.nextInt();
+        } while (pending.putIfAbsent(id, query) != null);
+
+        // The bytes are kept for retransmits
+        ByteBuffer encoded = DNSEncoder.get().encodeQuery(id, question, recursionDesired);
+        query.bytes = new byte[encoded.remaining()];
+        encoded.get(query.bytes);
+
+        // Whatever happens to the query, it shouldn't stay in the pending table
+        final short queryID = id;
+        query.future.whenComplete((response, error) -> pending.remove(queryID, query));
+
+        synchronized (query){
+            send(query, query.first(System.nanoTime()));
+            schedule(query);
+        }
+
+        return query.future;
+    }
+
+    /**
+     * check() runs on the timer thread when a query's next retransmit, hedge, or deadline comes up.
+     *
+     * @param query - the query to check
+     */
+
+    void check(PendingQuery query){
+
+        synchronized (query){
+
+            if (query.future.isDone()){
+                return;
+            }
+
+            long now = System.nanoTime();
+
+            if (query.expired(now)){
+                query.current.recordTimeout();
+                query.future.completeExceptionally(new TimeoutException("No upstream answered within "
+                        + (query.deadline - query.started) / 1_000_000 + "ms"));
+                return;
+            }
+
+            Upstreams.Upstream upstream = query.due(now);
+            if (upstream != null){
+                send(query, upstream);
+            }
+
+            schedule(query);
+        }
+    }
+
+    /**
+     * schedule() sets the timer to check a query again when its next action is due.
+     */
+
+    void schedule(PendingQuery query){
+
+        long delay = query.nextAction() - System.nanoTime();
+        timer.schedule(() -> check(query), Math.max(delay, 0), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * send() sends a query to one upstream. A failed send fails the query.
+     */
+
+    void send(PendingQuery query, Upstreams.Upstream upstream){
+
+        try {
+            query.socket.send(new DatagramPacket(query.bytes, query.bytes.length, upstream.address));
+        }
+        catch (IOException e){
+            query.future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * receiveLoop() runs on its own thread for each socket, decoding each upstream response and completing the query
+     * with the same ID.
+     *
+     * @param socket - the socket answers are taken from
+     */
+
+    void receiveLoop(DatagramSocket socket){
+
+        // Answers can be as big as the EDNS payload size we advertise
+        byte[] buffer = new byte[DNSEncoder.EDNS_PAYLOAD_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+        while (!socket.isClosed()){
+
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+
+                // Late answers (the query already timed out) have nobody waiting on them
+                short id = (short) (((buffer[0] & 0xFF) << 8) | (buffer[1] & 0xFF));
+                PendingQuery query = pending.get(id);
+                if (query == null || query.socket != socket){
+                    continue;
+                }
+
+                // An answer to some other question isn't this query's answer, however its ID matches
+                DNSMessage response = DNSMessage.decodeMessage(Arrays.copyOf(buffer, packet.getLength()));
+                if (!query.question.equals(response.question)){
+                    continue;
+                }
+
+                synchronized (query){
+
+                    // Only the upstreams the query went to can answer it
+                    if (query.future.isDone() || !query.answered(packet.getSocketAddress(), System.nanoTime())){
+                        continue;
+                    }
+                }
+
+                query.future.complete(response);
+            }
+            catch (IOException e){
+                if (!socket.isClosed()){
+                    System.out.println("Unable to receive packet from upstream.");
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,506 @@
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Upstreams is the list of resolvers queries can be forwarded to, along with how fast each one has been answering.
+ * Every upstream keeps a smoothed round trip time and its variation (the same way TCP does, RFC 6298), and its
+ * retransmit timeout comes from those instead of a fixed number. Queries go to the fastest upstream; if it doesn't
+ * answer before its timeout, the query is sent again to the next fastest one (failover), until the query's overall
+ * deadline passes.
+ *
+ * If hedging is turned on, a query that takes longer than a percentile of its upstream's recent round trip times is
+ * also sent to the next fastest upstream, without waiting for the first one to time out. Whichever answer comes back
+ * first is used.
+ *
+ * The engines each track their own queries, but they all use a Query to decide where and when to send.
+ */
+
+public class Upstreams {
+
+    // Timeout used until an upstream has answered at least once (RFC 6298 starts at one second)
+    static final long INITIAL_TIMEOUT_NANOS = 1_000_000_000L;
+
+    // Shortest a retransmit timeout can get, so a few fast answers don't make every little delay look like a loss
+    static final long MIN_TIMEOUT_NANOS = 100_000_000L;
+
+    // How many recent round trip times each upstream keeps for working out the hedge delay (a power of two, so the
+    // write index can wrap with a mask)
+    static final int SAMPLES = 64;
+
+    // An upstream needs this many samples before its percentile is trusted enough to hedge on
+    static final int MIN_HEDGE_SAMPLES = 16;
+
+    // Every this many picks, a query goes to each upstream in turn so a slow one can show it has gotten faster
+    static final int EXPLORE_EVERY = 64;
+
+
+    /**
+     * Upstream is one resolver and its round trip time stats. Its methods are synchronized since every engine thread
+     * (and the upstream receive thread) updates them.
+     */
+
+    static class Upstream {
+
+        InetSocketAddress address;
+
+        // Smoothed round trip time and its mean deviation, in nanoseconds (0 until the first answer)
+        long srtt;
+        long rttvar;
+
+        // Timeouts in a row, each one doubles the retransmit timeout (reset by an answer), and when the last one was
+        int failures;
+        long lastFailure;
+
+        // The most recent round trip times, where the next one goes, how many there are (at most SAMPLES), samples
+        // taken since the hedge delay was last worked out, and the hedge delay
+        long[] samples = new long[SAMPLES];
+        int nextSample;
+        int sampleCount;
+        int sinceRecompute;
+        long hedgeDelay = -1;
+
+        // Stats
+        LongAdder sent = new LongAdder();
+        LongAdder answered = new LongAdder();
+        LongAdder timeouts = new LongAdder();
+
+        Upstream(InetSocketAddress address){
+            this.address = address;
+        }
+
+        /**
+         * recordRTT() folds in how long an answer took.
+         *
+         * @param rtt - round trip time in nanoseconds
+         * @param percentile - percentile used for the hedge delay (0 if hedging is off)
+         */
+
+        synchronized void recordRTT(long rtt, double percentile){
+
+            if (srtt == 0){
+                srtt = rtt;
+                rttvar = rtt / 2;
+            }
+            else {
+                rttvar += (Math.abs(srtt - rtt) - rttvar) / 4;
+                srtt += (rtt - srtt) / 8;
+            }
+
+            // None of the counters keep growing, so they can't overflow however long the server runs
+            samples[nextSample] = rtt;
+            nextSample = (nextSample + 1) & (SAMPLES - 1);
+            sampleCount = Math.min(sampleCount + 1, SAMPLES);
+
+            // Sorting a copy of 64 longs is cheap, but there's no need to do it on every answer
+            if (++sinceRecompute >= MIN_HEDGE_SAMPLES / 2 && sampleCount >= MIN_HEDGE_SAMPLES){
+                sinceRecompute = 0;
+                if (percentile > 0){
+                    long[] sorted = Arrays.copyOf(samples, sampleCount);
+                    Arrays.sort(sorted);
+                    hedgeDelay = sorted[(int) Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+                }
+            }
+        }
+
+        /**
+         * recordAnswer() notes that the upstream answered, so it's trusted again after any timeouts.
+         */
+
+        synchronized void recordAnswer(){
+            failures = 0;
+            answered.increment();
+        }
+
+        /**
+         * recordTimeout() notes that the upstream didn't answer in time, which backs its timeout off.
+         */
+
+        synchronized void recordTimeout(){
+            failures++;
+            lastFailure = System.nanoTime();
+            timeouts.increment();
+        }
+
+        /**
+         * timeout() returns how long to wait for this upstream before sending the query somewhere else.
+         *
+         * @param maxTimeout - longest the timeout can be, in nanoseconds
+         * @return long - the retransmit timeout in nanoseconds
+         */
+
+        synchronized long timeout(long maxTimeout){
+
+            long timeout = srtt == 0 ? INITIAL_TIMEOUT_NANOS : Math.max(MIN_TIMEOUT_NANOS, srtt + 4 * rttvar);
+
+            return Math.min(maxTimeout, timeout << Math.min(failures, 6));
+        }
+
+        /**
+         * score() ranks upstreams when picking one, lower is better. Upstreams that have never answered come first (so
+         * each one gets tried), and upstreams that have been timing out are pushed back by how many times in a row
+         * they have. The push back only lasts a while (a second, doubling with each timeout), after which the upstream
+         * is scored as if it were fine so one query can check whether it is.
+         *
+         * @param now - current System.nanoTime()
+         * @return long - the upstream's expected wait in nanoseconds
+         */
+
+        synchronized long score(long now){
+
+            int backoff = Math.min(failures, 6);
+            if (backoff > 0 && now - lastFailure > INITIAL_TIMEOUT_NANOS << backoff){
+                backoff = 0;
+            }
+
+            if (srtt == 0){
+                return backoff == 0 ? 0 : INITIAL_TIMEOUT_NANOS << backoff;
+            }
+
+            return srtt << backoff;
+        }
+
+        /**
+         * srtt() returns the smoothed round trip time.
+         *
+         * @return long - the smoothed round trip time in nanoseconds, 0 if the upstream hasn't answered yet
+         */
+
+        synchronized long srtt(){
+            return srtt;
+        }
+
+        @Override
+        public String toString(){
+            return address.getAddress().getHostAddress() + ":" + address.getPort();
+        }
+    }
+
+
+    /**
+     * Query is one query's trip upstream: every upstream it has been sent to and when, the upstream it's currently
+     * waiting on, and when it should next be retransmitted or hedged. A Query isn't thread-safe; whoever owns it has
+     * to lock around it.
+     */
+
+    static class Query {
+
+        Upstreams upstreams;
+
+        // When the query was first sent, and when it's given up on (System.nanoTime())
+        long started;
+        long deadline;
+
+        // The upstream the query was last sent to (not counting hedges), when, and when it times out
+        Upstream current;
+        long currentSentAt;
+        long timeoutAt;
+
+        // When a hedge should be sent, if one is still going to be
+        long hedgeAt;
+        boolean hedgePending;
+
+        // Every send so far
+        Upstream[] sentTo = new Upstream[4];
+        long[] sentAt = new long[4];
+        int sends;
+
+        /**
+         * Query() sets up a query that has to be answered within timeoutMillis.
+         *
+         * @param upstreams - where the query can be sent
+         * @param now - current System.nanoTime()
+         * @param timeoutMillis - how long the query can take in total
+         */
+
+        Query(Upstreams upstreams, long now, int timeoutMillis){
+            this.upstreams = upstreams;
+            this.started = now;
+            this.deadline = now + timeoutMillis * 1_000_000L;
+        }
+
+        /**
+         * first() picks the upstream the query is sent to first. The caller then sends it there.
+         *
+         * @param now - current System.nanoTime()
+         * @return Upstream - where to send the query
+         */
+
+        Upstream first(long now){
+
+            Upstream upstream = upstreams.pick(null);
+            sendTo(upstream, now);
+
+            return upstream;
+        }
+
+        /**
+         * due() checks whether the query should be sent again now. If the current upstream has timed out the query
+         * fails over to the next upstream, and if the hedge delay has passed it's also sent to the next upstream. The
+         * caller sends the query wherever this says to and checks again at nextAction().
+         *
+         * @param now - current System.nanoTime()
+         * @return Upstream - where to send the query now, or null if it doesn't need to be sent
+         */
+
+        Upstream due(long now){
+
+            if (now - timeoutAt >= 0){
+
+                current.recordTimeout();
+
+                Upstream next = upstreams.pick(current);
+                if (next != current){
+                    upstreams.failovers.increment();
+                }
+                else {
+                    upstreams.retransmits.increment();
+                }
+
+                sendTo(next, now);
+                return next;
+            }
+
+            if (hedgePending && now - hedgeAt >= 0){
+
+                hedgePending = false;
+
+                Upstream hedge = upstreams.pick(current);
+                if (hedge == current){
+                    return null;
+                }
+
+                upstreams.hedges.increment();
+                record(hedge, now);
+                return hedge;
+            }
+
+            return null;
+        }
+
+        /**
+         * nextAction() returns when due() should be called again.
+         *
+         * @return long - System.nanoTime() of the next retransmit, hedge, or the deadline, whichever comes first
+         */
+
+        long nextAction(){
+
+            long next = timeoutAt;
+
+            if (hedgePending && hedgeAt - next < 0){
+                next = hedgeAt;
+            }
+
+            if (deadline - next < 0){
+                next = deadline;
+            }
+
+            return next;
+        }
+
+        /**
+         * expired() checks whether the query has run out of time altogether.
+         *
+         * @param now - current System.nanoTime()
+         * @return true if the query should be given up on
+         */
+
+        boolean expired(long now){
+            return now - deadline >= 0;
+        }
+
+        /**
+         * answered() looks up which upstream an answer came from and updates its stats. Answers from addresses the
+         * query was never sent to aren't accepted.
+         *
+         * @param sender - where the answer came from
+         * @param now - current System.nanoTime()
+         * @return true if the answer came from an upstream the query was sent to
+         */
+
+        boolean answered(SocketAddress sender, long now){
+
+            Upstream answeredBy = null;
+            int answeredSends = 0;
+            long answeredSentAt = 0;
+
+            for (int i = 0; i < sends; i++){
+                if (sentTo[i].address.equals(sender)){
+                    answeredBy = sentTo[i];
+                    answeredSends++;
+                    answeredSentAt = sentAt[i];
+                }
+            }
+
+            if (answeredBy == null){
+                return false;
+            }
+
+            answeredBy.recordAnswer();
+
+            // If the query went to the same upstream more than once there's no telling which send was answered
+            // (Karn's algorithm), so only unambiguous round trips are sampled
+            if (answeredSends == 1){
+                answeredBy.recordRTT(now - answeredSentAt, upstreams.hedgePercentile);
+                Metrics.UPSTREAM_RTT.record(now - answeredSentAt);
+            }
+
+            // If a hedge won, the upstream it was racing (which hasn't timed out) took at least this long
+            if (answeredBy != current){
+                current.recordRTT(now - currentSentAt, upstreams.hedgePercentile);
+            }
+
+            return true;
+        }
+
+        /**
+         * sendTo() makes an upstream the one the query is waiting on, and sets its timeout and hedge time.
+         */
+
+        void sendTo(Upstream upstream, long now){
+
+            current = upstream;
+            currentSentAt = now;
+            timeoutAt = now + upstream.timeout(deadline - started);
+
+            long hedgeDelay = upstreams.hedgeDelay(upstream);
+            hedgePending = hedgeDelay >= 0;
+            hedgeAt = now + hedgeDelay;
+
+            record(upstream, now);
+        }
+
+        /**
+         * record() remembers a send, for matching up the answer later.
+         */
+
+        void record(Upstream upstream, long now){
+
+            if (sends == sentTo.length){
+                sentTo = Arrays.copyOf(sentTo, sends * 2);
+                sentAt = Arrays.copyOf(sentAt, sends * 2);
+            }
+
+            sentTo[sends] = upstream;
+            sentAt[sends] = now;
+            sends++;
+
+            upstream.sent.increment();
+        }
+    }
+
+
+    Upstream[] upstreams;
+
+    // Percentile of an upstream's round trip times after which a query is hedged (0 turns hedging off)
+    double hedgePercentile;
+
+    AtomicInteger picks = new AtomicInteger();
+
+    // Stats
+    LongAdder retransmits = new LongAdder();
+    LongAdder failovers = new LongAdder();
+    LongAdder hedges = new LongAdder();
+
+
+    /**
+     * Upstreams() makes a list of upstreams, none of which has answered yet.
+     *
+     * @param addresses - the upstream resolvers
+     * @param hedgePercentile - percentile of round trip times after which queries are hedged, or 0 to never hedge
+     */
+
+    Upstreams(List<InetSocketAddress> addresses, double hedgePercentile){
+
+        if (addresses.isEmpty()){
+            throw new IllegalArgumentException("At least one upstream is needed.");
+        }
+
+        upstreams = new Upstream[addresses.size()];
+        for (int i = 0; i < upstreams.length; i++){
+            upstreams[i] = new Upstream(addresses.get(i));
+        }
+
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    /**
+     * This version of Upstreams() makes a list out of upstreams that are already known, so their round trip times
+     * carry over from every other list they're in (IterativeResolver makes one for each zone it asks, and the same
+     * server can serve many zones).
+     *
+     * @param upstreams - the servers
+     * @param hedgePercentile - percentile of round trip times after which queries are hedged, or 0 to never hedge
+     */
+
+    Upstreams(Upstream[] upstreams, double hedgePercentile){
+
+        if (upstreams.length == 0){
+            throw new IllegalArgumentException("At least one upstream is needed.");
+        }
+
+        this.upstreams = upstreams;
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    /**
+     * pick() returns the upstream with the best score, other than the one given. If there's only one upstream, it's
+     * returned either way.
+     *
+     * @param exclude - upstream to skip (the one that was just tried), or null
+     * @return Upstream - where to send a query
+     */
+
+    Upstream pick(Upstream exclude){
+
+        if (upstreams.length == 1){
+            return upstreams[0];
+        }
+
+        // Now and then a query goes somewhere other than the fastest upstream, so every upstream's stats stay current
+        int pick = picks.getAndIncrement();
+        if (exclude == null && pick % EXPLORE_EVERY == EXPLORE_EVERY - 1){
+            return upstreams[(pick / EXPLORE_EVERY) % upstreams.length];
+        }
+
+        Upstream best = null;
+        long bestScore = Long.MAX_VALUE;
+        long now = System.nanoTime();
+
+        for (Upstream upstream : upstreams){
+            if (upstream == exclude){
+                continue;
+            }
+
+            long score = upstream.score(now);
+            if (score < bestScore){
+                best = upstream;
+                bestScore = score;
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * hedgeDelay() returns how long to wait on an upstream before hedging a query to another one.
+     *
+     * @param upstream - the upstream the query was sent to
+     * @return long - the delay in nanoseconds, or -1 if the query shouldn't be hedged
+     */
+
+    long hedgeDelay(Upstream upstream){
+
+        if (hedgePercentile <= 0 || upstreams.length == 1){
+            return -1;
+        }
+
+        synchronized (upstream){
+            return upstream.hedgeDelay;
+        }
+    }
+}
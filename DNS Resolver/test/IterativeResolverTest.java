@@ -0,0 +1,201 @@
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * IterativeResolverTest resolves names through a hierarchy of stand-in servers on loopback addresses:
+ *
+ *   127.0.0.2  root          refers test. (with glue) and other. (with glue)
+ *   127.0.0.3  test.         refers example.test. (with glue), gl.test. (to ns.glueless.other., no glue) and
+ *                            lame.test. (to a lame server)
+ *   127.0.0.4  example.test. www, mail, and alias (a CNAME to www.gl.test.)
+ *   127.0.0.5  other.        ns.glueless.other. (the address of gl.test.'s server)
+ *   127.0.0.6  lame          refers everything back up to the root
+ *   127.0.0.7  gl.test.      www
+ *
+ * Every server listens on the same port, which the resolver is pointed at with --iterative-port.
+ */
+public class IterativeResolverTest {
+
+    IterativeResolver resolver;
+
+    StandInAuthority root;
+    StandInAuthority tld;
+    StandInAuthority example;
+    StandInAuthority other;
+    StandInAuthority lame;
+    StandInAuthority glueless;
+
+
+    public static void main(String[] args) throws Exception {
+
+        IterativeResolverTest test = new IterativeResolverTest();
+        test.setUp();
+
+        Tests tests = new Tests();
+        tests.run("referrals", test::referrals);
+        tests.run("delegationCacheReuse", test::delegationCacheReuse);
+        tests.run("gluelessNameServer", test::gluelessNameServer);
+        tests.run("cnameRestart", test::cnameRestart);
+        tests.run("nxdomain", test::nxdomain);
+        tests.run("lameDelegation", test::lameDelegation);
+        tests.finish();
+    }
+
+    /**
+     * setUp() starts the stand-in servers and a resolver whose root hints point at the stand-in root.
+     */
+
+    void setUp() throws Exception {
+
+        root = new StandInAuthority("127.0.0.2", 0, ".");
+        int port = root.port();
+
+        root.delegate("test.", "ns1.test.", "127.0.0.3")
+                .delegate("other.", "ns.other.", "127.0.0.5");
+
+        tld = new StandInAuthority("127.0.0.3", port, "test.")
+                .delegate("example.test.", "ns1.example.test.", "127.0.0.4")
+                .delegate("gl.test.", "ns.glueless.other.", null)
+                .delegate("lame.test.", "ns.lame.test.", "127.0.0.6");
+
+        example = new StandInAuthority("127.0.0.4", port, "example.test.")
+                .add("www.example.test.", StandInAuthority.TYPE_A, "10.1.1.1")
+                .add("mail.example.test.", StandInAuthority.TYPE_A, "10.1.1.2")
+                .add("alias.example.test.", StandInAuthority.TYPE_CNAME, "www.gl.test.");
+
+        other = new StandInAuthority("127.0.0.5", port, "other.")
+                .add("ns.glueless.other.", StandInAuthority.TYPE_A, "127.0.0.7");
+
+        lame = new StandInAuthority("127.0.0.6", port, "lame.test.")
+                .delegate(".", "a.root.test.", null);
+
+        glueless = new StandInAuthority("127.0.0.7", port, "gl.test.")
+                .add("www.gl.test.", StandInAuthority.TYPE_A, "10.3.3.3");
+
+        Path hints = Files.createTempFile("hints", ".zone");
+        hints.toFile().deleteOnExit();
+        Files.writeString(hints, ". 3600 IN NS a.root.test.\na.root.test. 3600 IN A 127.0.0.2\n");
+
+        DNSConfig config = new DNSConfig();
+        config.rootHints = hints.toString();
+        config.iterativePort = port;
+        config.upstreamTimeoutMillis = 2000;
+
+        resolver = new IterativeResolver(config);
+    }
+
+    /**
+     * resolve() resolves an A question and waits for the answer.
+     */
+
+    DNSMessage resolve(String name) throws Exception {
+
+        ByteBuffer encoded = ByteBuffer.allocate(DNSName.MAX_LENGTH);
+        DNSName.write(encoded, name);
+
+        return resolver.resolve(DNSQuestion.forName(encoded, 0, DNSEncoder.TYPE_A, IterativeResolver.CLASS_IN))
+                .get(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * address() returns the address in the last record of an answer.
+     */
+
+    static String address(DNSMessage answer){
+
+        Tests.check(answer.answers.length > 0, "no answers");
+        DNSRecord last = answer.answers[answer.answers.length - 1];
+        Tests.check(last.TYPE == DNSEncoder.TYPE_A, "last answer is TYPE " + last.TYPE);
+
+        try {
+            return InetAddress.getByAddress(last.getRDATA()).getHostAddress();
+        }
+        catch (Exception e){
+            throw new AssertionError(e);
+        }
+    }
+
+    // The resolver follows the root's and test.'s referrals down to example.test.'s server
+    void referrals() throws Exception {
+
+        DNSMessage answer = resolve("www.example.test.");
+
+        Tests.check(answer.header.RCODE == 0, "RCODE " + answer.header.RCODE);
+        Tests.check(address(answer).equals("10.1.1.1"), "answer " + address(answer));
+        Tests.check(resolver.referrals.sum() == 2, "referrals " + resolver.referrals.sum());
+        Tests.check(resolver.delegations.containsKey("example.test."), "example.test. cut not cached");
+        Tests.check(example.asked.contains("www.example.test. 1"), "example.test. server not asked");
+    }
+
+    // A second name in example.test. goes straight to its server, without asking the root or test. again
+    void delegationCacheReuse() throws Exception {
+
+        int rootQueries = root.queries.get();
+        int tldQueries = tld.queries.get();
+        long sent = resolver.queries.sum();
+
+        DNSMessage answer = resolve("mail.example.test.");
+
+        Tests.check(address(answer).equals("10.1.1.2"), "answer " + address(answer));
+        Tests.check(root.queries.get() == rootQueries, "root asked again");
+        Tests.check(tld.queries.get() == tldQueries, "test. asked again");
+        Tests.check(resolver.queries.sum() == sent + 1, "sent " + (resolver.queries.sum() - sent) + " queries");
+    }
+
+    // gl.test.'s server has no glue, so its address is resolved (through other.) before gl.test. is asked
+    void gluelessNameServer() throws Exception {
+
+        DNSMessage answer = resolve("www.gl.test.");
+
+        Tests.check(address(answer).equals("10.3.3.3"), "answer " + address(answer));
+        Tests.check(other.asked.contains("ns.glueless.other. 1"), "name server address not looked up");
+        Tests.check(resolver.addresses.containsKey("ns.glueless.other."), "name server address not cached");
+    }
+
+    // A CNAME into another zone restarts the resolution at the target, and the answer has the whole chain
+    void cnameRestart() throws Exception {
+
+        int glueQueries = glueless.queries.get();
+
+        DNSMessage answer = resolve("alias.example.test.");
+
+        Tests.check(answer.answers.length == 2, answer.answers.length + " answers");
+        Tests.check(answer.answers[0].TYPE == DNSEncoder.TYPE_CNAME, "first answer is TYPE " + answer.answers[0].TYPE);
+        Tests.check(address(answer).equals("10.3.3.3"), "answer " + address(answer));
+        Tests.check(glueless.queries.get() == glueQueries + 1, "gl.test. server not asked for the target");
+    }
+
+    // NXDOMAIN is passed on with the zone's SOA, so it can be cached
+    void nxdomain() throws Exception {
+
+        DNSMessage answer = resolve("nope.example.test.");
+
+        Tests.check(answer.header.RCODE == 3, "RCODE " + answer.header.RCODE);
+        Tests.check(answer.answers.length == 0, answer.answers.length + " answers");
+        Tests.check(answer.authorityRecords.length == 1 && answer.authorityRecords[0].TYPE == DNSEncoder.TYPE_SOA,
+                "no SOA in the authority section");
+    }
+
+    // A server that refers back up the tree fails the resolution instead of sending it around in circles
+    void lameDelegation() throws Exception {
+
+        long failures = resolver.failures.sum();
+        int rootQueries = root.queries.get();
+
+        try {
+            resolve("www.lame.test.");
+            throw new AssertionError("lame delegation resolved");
+        }
+        catch (ExecutionException e){
+            Tests.check(e.getCause().getMessage().contains("referral"), "failed with " + e.getCause());
+        }
+
+        Tests.check(lame.queries.get() == 1, "lame server asked " + lame.queries.get() + " times");
+        Tests.check(root.queries.get() == rootQueries, "went back to the root");
+        Tests.check(resolver.failures.sum() == failures + 1, "failure not counted");
+    }
+}
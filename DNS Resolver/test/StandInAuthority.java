@@ -0,0 +1,257 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * StandInAuthority is an authoritative server for one zone, for testing iterative resolution against a hierarchy of
+ * servers on loopback addresses (127.0.0.2, 127.0.0.3 and so on, all on the same port). It answers from the records
+ * it's given, refers queries for names under its delegations to their servers (with glue if it has any), and answers
+ * NXDOMAIN or NODATA with its SOA otherwise. A delegation to "." makes it lame: every query gets a referral back up.
+ */
+public class StandInAuthority {
+
+    static final int TYPE_A = 1;
+    static final int TYPE_NS = 2;
+    static final int TYPE_CNAME = 5;
+    static final int TYPE_SOA = 6;
+
+    static final int TTL = 300;
+
+
+    /**
+     * Record is one record the server can send. Its data is an address for A records and a name for NS and CNAME
+     * records (names are lower case and end in a dot).
+     */
+
+    record Record(String owner, int type, String data){}
+
+
+    DatagramSocket socket;
+
+    String zone;
+
+    // Records by owner name, delegations (zone cut to name server names) and glue (name server name to address)
+    Map<String, List<Record>> records = new HashMap<>();
+    Map<String, List<String>> delegations = new HashMap<>();
+    Map<String, String> glue = new HashMap<>();
+
+    // Every question asked, as "name type"
+    List<String> asked = new ArrayList<>();
+    AtomicInteger queries = new AtomicInteger();
+
+
+    /**
+     * StandInAuthority() opens the server's socket and starts answering on a background thread.
+     *
+     * @param address - loopback address to listen on (i.e. "127.0.0.2")
+     * @param port - port to listen on (0 picks a free one)
+     * @param zone - the zone the server is authoritative for
+     * @throws IOException if the socket can't be opened
+     */
+
+    StandInAuthority(String address, int port, String zone) throws IOException {
+
+        this.zone = zone;
+        socket = new DatagramSocket(port, InetAddress.getByName(address));
+
+        Thread thread = new Thread(this::receiveLoop, "stand-in-" + zone);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int port(){
+        return socket.getLocalPort();
+    }
+
+    void close(){
+        socket.close();
+    }
+
+    /**
+     * add() adds a record the server answers with.
+     *
+     * @param owner - the record's name
+     * @param type - TYPE_A, TYPE_NS or TYPE_CNAME
+     * @param data - the address or name
+     * @return StandInAuthority - this server, for adding more
+     */
+
+    StandInAuthority add(String owner, int type, String data){
+
+        records.computeIfAbsent(owner, key -> new ArrayList<>()).add(new Record(owner, type, data));
+        return this;
+    }
+
+    /**
+     * delegate() adds a zone cut below the server's zone.
+     *
+     * @param cut - the delegated zone
+     * @param nameServer - a server of the delegated zone
+     * @param address - the server's address, sent as glue (null to send no glue)
+     * @return StandInAuthority - this server, for adding more
+     */
+
+    StandInAuthority delegate(String cut, String nameServer, String address){
+
+        delegations.computeIfAbsent(cut, key -> new ArrayList<>()).add(nameServer);
+        if (address != null){
+            glue.put(nameServer, address);
+        }
+        return this;
+    }
+
+    /**
+     * receiveLoop() answers queries until the socket is closed.
+     */
+
+    void receiveLoop(){
+
+        byte[] buffer = new byte[DNSEncoder.EDNS_PAYLOAD_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+        while (!socket.isClosed()){
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+
+                byte[] answer = answer(ByteBuffer.wrap(buffer, 0, packet.getLength()));
+                socket.send(new DatagramPacket(answer, answer.length, packet.getSocketAddress()));
+            }
+            catch (IOException | RuntimeException e){
+                // Closed, or a packet that wasn't a query
+            }
+        }
+    }
+
+    /**
+     * answer() builds the response to a query.
+     *
+     * @param query - the query, from index 0 to the limit
+     * @return byte[] - the response
+     * @throws IOException if the query's name can't be read
+     */
+
+    byte[] answer(ByteBuffer query) throws IOException {
+
+        String name = DNSName.toString(query, DNSHeader.LENGTH);
+        int type = query.getShort(DNSName.skip(query, DNSHeader.LENGTH));
+
+        synchronized (this){
+            asked.add(name + " " + type);
+        }
+        queries.incrementAndGet();
+
+        List<Record> answers = new ArrayList<>();
+        List<Record> authority = new ArrayList<>();
+        List<Record> additional = new ArrayList<>();
+        boolean authoritative = true;
+        int rcode = 0;
+
+        String cut = cut(name);
+        if (cut != null){
+            authoritative = false;
+            for (String nameServer : delegations.get(cut)){
+                authority.add(new Record(cut, TYPE_NS, nameServer));
+                if (glue.containsKey(nameServer)){
+                    additional.add(new Record(nameServer, TYPE_A, glue.get(nameServer)));
+                }
+            }
+        }
+        else if (records.containsKey(name)){
+            for (Record record : records.get(name)){
+                if (record.type() == type){
+                    answers.add(record);
+                }
+            }
+
+            // A CNAME answers every type, the resolver follows it
+            if (answers.isEmpty()){
+                for (Record record : records.get(name)){
+                    if (record.type() == TYPE_CNAME){
+                        answers.add(record);
+                    }
+                }
+            }
+
+            if (answers.isEmpty()){
+                authority.add(new Record(zone, TYPE_SOA, null));
+            }
+        }
+        else {
+            rcode = 3;
+            authority.add(new Record(zone, TYPE_SOA, null));
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(DNSEncoder.EDNS_PAYLOAD_SIZE);
+        out.putShort(query.getShort(0));
+        out.putShort((short) (0x8000 | (authoritative ? 0x0400 : 0) | rcode));
+        out.putShort((short) 1).putShort((short) answers.size()).putShort((short) authority.size())
+                .putShort((short) additional.size());
+
+        out.put(query.array(), DNSHeader.LENGTH, DNSName.skip(query, DNSHeader.LENGTH) + 4 - DNSHeader.LENGTH);
+
+        for (List<Record> section : List.of(answers, authority, additional)){
+            for (Record record : section){
+                write(out, record);
+            }
+        }
+
+        byte[] response = new byte[out.position()];
+        out.flip().get(response);
+        return response;
+    }
+
+    /**
+     * cut() finds the deepest delegation a name is at or below.
+     *
+     * @param name - the name asked about
+     * @return String - the zone cut, or null if the name is in the server's own zone
+     */
+
+    String cut(String name){
+
+        String found = null;
+        for (String cut : delegations.keySet()){
+            if (IterativeResolver.isAtOrBelow(name, cut) && (found == null || cut.length() > found.length())){
+                found = cut;
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * write() writes a record without compression.
+     *
+     * @param out - where the record is written
+     * @param record - the record
+     */
+
+    void write(ByteBuffer out, Record record) throws IOException {
+
+        DNSName.write(out, record.owner());
+        out.putShort((short) record.type()).putShort((short) 1).putInt(TTL);
+
+        int lengthAt = out.position();
+        out.putShort((short) 0);
+
+        switch (record.type()){
+            case TYPE_A -> out.put(InetAddress.getByName(record.data()).getAddress());
+            case TYPE_SOA -> {
+                DNSName.write(out, "ns." + (zone.equals(".") ? "" : zone));
+                DNSName.write(out, "hostmaster." + (zone.equals(".") ? "" : zone));
+                out.putInt(1).putInt(TTL).putInt(TTL).putInt(TTL).putInt(TTL);
+            }
+            default -> DNSName.write(out, record.data());
+        }
+
+        out.putShort(lengthAt, (short) (out.position() - lengthAt - 2));
+    }
+}
@@ -0,0 +1,73 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests runs the checks of one test class and reports on them. The tests are plain classes with a main() (there's no
+ * test framework in the build), compiled together with the server's sources since they share its package:
+ *
+ *   javac -d out src/*.java test/*.java
+ *   java -cp out IterativeResolverTest
+ *
+ * Each test prints PASS or FAIL with the reason, and the run exits with status 1 if any test failed.
+ */
+public class Tests {
+
+    /**
+     * Test is one test, which fails by throwing.
+     */
+
+    interface Test {
+        void run() throws Exception;
+    }
+
+    List<String> failures = new ArrayList<>();
+
+
+    /**
+     * run() runs one test and prints whether it passed.
+     *
+     * @param name - what the test is called in the output
+     * @param test - the test
+     */
+
+    void run(String name, Test test){
+
+        try {
+            test.run();
+            System.out.println("PASS " + name);
+        }
+        catch (Throwable e){
+            failures.add(name);
+            System.out.println("FAIL " + name + ": " + e);
+        }
+    }
+
+    /**
+     * finish() prints how many tests failed and exits with status 1 if any did.
+     */
+
+    void finish(){
+
+        if (failures.isEmpty()){
+            System.out.println("All tests passed.");
+            System.exit(0);
+        }
+
+        System.out.println(failures.size() + " failed: " + failures);
+        System.exit(1);
+    }
+
+    /**
+     * check() fails the test if a condition doesn't hold.
+     *
+     * @param condition - what should be true
+     * @param message - what went wrong if it isn't
+     */
+
+    static void check(boolean condition, String message){
+
+        if (!condition){
+            throw new AssertionError(message);
+        }
+    }
+}
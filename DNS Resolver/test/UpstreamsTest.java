@@ -0,0 +1,158 @@
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * UpstreamsTest forwards queries through an UpstreamClient to two stand-in upstreams, a fast one and a slower one,
+ * then makes the fast one stall to check that queries still come back quickly: hedged to the other upstream before
+ * the fast one's timeout when hedging is on, and failed over to it once the timeout passes when hedging is off.
+ */
+public class UpstreamsTest {
+
+    // How long each stand-in takes to answer normally, and once the fast one stalls
+    static final double FAST_MILLIS = 2;
+    static final double SLOW_MILLIS = 30;
+    static final double STALLED_MILLIS = 2500;
+
+    static final int TIMEOUT_MILLIS = 4000;
+
+    int next;
+
+
+    public static void main(String[] args){
+
+        UpstreamsTest test = new UpstreamsTest();
+
+        Tests tests = new Tests();
+        tests.run("hedgesSlowUpstream", test::hedgesSlowUpstream);
+        tests.run("failsOverWithoutHedging", test::failsOverWithoutHedging);
+        tests.run("hedgesOnRecentSamples", test::hedgesOnRecentSamples);
+        tests.finish();
+    }
+
+    /**
+     * Pair is a client forwarding to a fast and a slow stand-in upstream.
+     */
+
+    class Pair {
+
+        StandInUpstream fast = new StandInUpstream(FAST_MILLIS, 0, 60);
+        StandInUpstream slow = new StandInUpstream(SLOW_MILLIS, 0, 60);
+        Upstreams upstreams;
+        UpstreamClient client;
+
+        Pair(double hedgePercentile) throws IOException {
+
+            fast.start();
+            slow.start();
+
+            InetAddress loopback = InetAddress.getLoopbackAddress();
+            upstreams = new Upstreams(List.of(new InetSocketAddress(loopback, fast.port()),
+                    new InetSocketAddress(loopback, slow.port())), hedgePercentile);
+            client = new UpstreamClient(new DatagramSocket(), upstreams, TIMEOUT_MILLIS);
+
+            // Enough answers for both upstreams' round trip times (and the fast one's hedge delay) to settle
+            for (int i = 0; i < 40; i++){
+                ask();
+            }
+        }
+
+        /**
+         * ask() forwards a query for a new name and returns how long its answer took, in milliseconds.
+         */
+
+        long ask() throws IOException {
+
+            ByteBuffer encoded = ByteBuffer.allocate(DNSName.MAX_LENGTH);
+            DNSName.write(encoded, "host" + next++ + ".example.com.");
+            DNSQuestion question = DNSQuestion.forName(encoded, 0, DNSEncoder.TYPE_A, (short) 1);
+
+            long start = System.nanoTime();
+            try {
+                DNSMessage answer = client.query(question).get(TIMEOUT_MILLIS * 2L, TimeUnit.MILLISECONDS);
+                Tests.check(answer.answers.length == 1, "answer has " + answer.answers.length + " records");
+            }
+            catch (Exception e){
+                throw new AssertionError("query failed: " + e);
+            }
+
+            return (System.nanoTime() - start) / 1_000_000;
+        }
+
+        void close(){
+            client.close();
+            fast.close();
+            slow.close();
+        }
+    }
+
+    // Once the fast upstream stalls, the slow one is asked after the fast one's hedge delay and answers first
+    void hedgesSlowUpstream() throws Exception {
+
+        Pair pair = new Pair(95);
+        try {
+            Upstreams.Upstream fast = pair.upstreams.upstreams[0];
+            Upstreams.Upstream slow = pair.upstreams.upstreams[1];
+            Tests.check(fast.srtt() < slow.srtt(), "fast upstream isn't the faster one");
+
+            long hedges = pair.upstreams.hedges.sum();
+            long slowAnswers = slow.answered.sum();
+
+            pair.fast.latencyMicros = (long) (STALLED_MILLIS * 1000);
+            long millis = pair.ask();
+
+            Tests.check(millis < STALLED_MILLIS / 2, "answer took " + millis + "ms");
+            Tests.check(pair.upstreams.hedges.sum() > hedges, "query wasn't hedged");
+            Tests.check(slow.answered.sum() > slowAnswers, "slow upstream didn't answer");
+            Tests.check(pair.upstreams.failovers.sum() == 0, "query failed over instead of hedging");
+        }
+        finally {
+            pair.close();
+        }
+    }
+
+    // Without hedging, the stalled upstream times out after its retransmit timeout and the query goes to the other one
+    void failsOverWithoutHedging() throws Exception {
+
+        Pair pair = new Pair(0);
+        try {
+            Upstreams.Upstream fast = pair.upstreams.upstreams[0];
+            long timeouts = fast.timeouts.sum();
+            long failovers = pair.upstreams.failovers.sum();
+
+            pair.fast.latencyMicros = (long) (STALLED_MILLIS * 1000);
+            long millis = pair.ask();
+
+            Tests.check(millis < STALLED_MILLIS / 2, "answer took " + millis + "ms");
+            Tests.check(millis >= Upstreams.MIN_TIMEOUT_NANOS / 1_000_000, "answered before the timeout");
+            Tests.check(pair.upstreams.failovers.sum() == failovers + 1, "query didn't fail over");
+            Tests.check(fast.timeouts.sum() == timeouts + 1, "stalled upstream's timeout wasn't counted");
+            Tests.check(pair.upstreams.hedges.sum() == 0, "query was hedged with hedging off");
+        }
+        finally {
+            pair.close();
+        }
+    }
+
+    // Only the latest SAMPLES round trip times count towards the hedge delay, however many answers there have been
+    void hedgesOnRecentSamples(){
+
+        Upstreams.Upstream upstream = new Upstreams.Upstream(new InetSocketAddress(InetAddress.getLoopbackAddress(), 53));
+
+        for (int i = 0; i < 10 * Upstreams.SAMPLES + 3; i++){
+            upstream.recordRTT(1_000_000, 95);
+        }
+        for (int i = 0; i < Upstreams.SAMPLES; i++){
+            upstream.recordRTT(5_000_000, 95);
+        }
+
+        Tests.check(upstream.sampleCount == Upstreams.SAMPLES, "upstream kept " + upstream.sampleCount + " samples");
+        Tests.check(upstream.nextSample >= 0 && upstream.nextSample < Upstreams.SAMPLES,
+                "next sample goes at " + upstream.nextSample);
+        Tests.check(upstream.hedgeDelay == 5_000_000, "hedge delay is " + upstream.hedgeDelay);
+    }
+}